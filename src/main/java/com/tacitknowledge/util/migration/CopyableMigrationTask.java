@@ -0,0 +1,36 @@
+/* Copyright 2004 Tacit Knowledge
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration;
+
+/**
+ * A migration task that is defined by what it was given rather than by its class alone, such
+ * as a SQL script, and can make a fresh instance of itself.  A {@link MigrationProcess} that
+ * keeps a task catalog hands every context its own copy, so that tasks migrating several
+ * contexts at once never share state.  Tasks found by their class are instead created anew
+ * with their no-argument constructor.
+ *
+ * @see MigrationProcess#loadMigrationTaskCatalog()
+ */
+public interface CopyableMigrationTask extends MigrationTask
+{
+    /**
+     * Creates a new task of the same class that does the same work as this one, sharing none
+     * of its state.
+     *
+     * @return the new task
+     */
+    public MigrationTask copy();
+}
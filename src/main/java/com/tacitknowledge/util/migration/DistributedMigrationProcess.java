@@ -15,13 +15,25 @@
 
 package com.tacitknowledge.util.migration;
 
+import com.tacitknowledge.util.migration.jdbc.ContextMigrationResult;
 import com.tacitknowledge.util.migration.jdbc.JdbcMigrationContext;
 import com.tacitknowledge.util.migration.jdbc.JdbcMigrationLauncher;
+import com.tacitknowledge.util.migration.jdbc.PatchTable;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Discovers and executes a sequence of system patches from multiple controlled
@@ -40,6 +52,13 @@ public class DistributedMigrationProcess extends MigrationProcess
      */
     private static Log log = LogFactory.getLog(DistributedMigrationProcess.class);
 
+    /**
+     * Tells the user how to finish a halted rollout
+     */
+    private static final String ROLLOUT_RESUME_HINT = "\nThe nodes of the earlier waves keep "
+            + "the patches.  Once the cause is fixed, run again with 'forcesync' to finish the "
+            + "rollout.";
+
     /**
      * The JdbcMigrationLaunchers we are controlling, keyed by system name
      */
@@ -71,9 +90,56 @@ public class DistributedMigrationProcess extends MigrationProcess
      * Instead, it would be better to import the schema from a node already at
      * the current patch level using database tools, then the new node can
      * participate in the regular patching process.
+     * <p/>
+     * Lagging nodes are caught up before any new patches are applied; see
+     * {@link #syncLaggingNodes(PatchInfoStore, List, LinkedHashMap)}.
      */
     private boolean forceSync = false;
 
+    /**
+     * The most nodes of a controlled system that a patch is applied to at the same time;
+     * 1 patches them one after another.  Either way, a patch has finished on every node
+     * before the next patch starts.
+     */
+    private int maxConcurrentNodes = 1;
+
+    /**
+     * If true, a node that a patch fails on is left out of sync while the other nodes carry on
+     * with the remaining patches, and the run fails at the end with a list of the out-of-sync
+     * nodes.  By default the run stops once the failed patch has finished on every node.
+     */
+    private boolean continueOnNodeFailure = false;
+
+    /**
+     * How long to wait for a node's patch level, or a system's patches, before giving up on
+     * it; 0 waits as long as it takes
+     */
+    private long nodeTimeoutMillis = 0;
+
+    /**
+     * The number of nodes of each controlled system that new patches are rolled out to first,
+     * before the rest of the nodes are patched in waves of increasing size; 0 applies each
+     * patch to every node before the next patch starts
+     */
+    private int canaryNodes = 0;
+
+    /**
+     * How many times larger each wave of a rollout is than the wave before it
+     */
+    private int rolloutWaveFactor = 2;
+
+    /**
+     * Checks the nodes patched by each wave of a rollout before the next wave starts; may be
+     * <code>null</code>
+     */
+    private RolloutVerifier rolloutVerifier = null;
+
+    /**
+     * The nodes left out of sync by the last call to {@link #doMigrations}, with the reason
+     */
+    private LinkedHashMap<JdbcMigrationContext, MigrationException> outOfSyncNodes =
+            new LinkedHashMap<JdbcMigrationContext, MigrationException>();
+
     /**
      * Creates a new <code>Migration</code> instance.
      */
@@ -292,68 +358,46 @@ public class DistributedMigrationProcess extends MigrationProcess
 
         // Roll through each migration, applying it if necessary
         taskCount = 0;
+        outOfSyncNodes = new LinkedHashMap<JdbcMigrationContext, MigrationException>();
+        if (forceSync)
+        {
+            taskCount += syncLaggingNodes(patchInfoStore, migrations, migrationsWithLaunchers);
+        }
+        if (canaryNodes > 0)
+        {
+            taskCount += rollOut(patchInfoStore, migrations, migrationsWithLaunchers);
+
+            // the rollout has applied every patch there was to apply
+            migrations = Collections.EMPTY_LIST;
+        }
         for (Iterator i = migrations.iterator(); i.hasNext();)
         {
             MigrationTask task = (MigrationTask) i.next();
             int migrationLevel = task.getLevel().intValue();
             boolean shouldApplyPatch = getMigrationRunnerStrategy().shouldMigrationRun(migrationLevel, patchInfoStore);
 
-            if (shouldApplyPatch && !forceSync)
+            if (shouldApplyPatch)
             {
                 // Execute the task in the context it was loaded from
                 JdbcMigrationLauncher launcher = (JdbcMigrationLauncher) migrationsWithLaunchers
                         .get(task);
-                // Get all the contexts the task will execute in
-                for (Iterator j = launcher.getContexts().keySet().iterator(); j.hasNext();)
-                {
-                    MigrationContext launcherContext = (MigrationContext) j.next();
-                    applyPatch(launcherContext, task, true);
-                }
-                taskCount++;
-            }
-            else if (forceSync)// if a sync is forced, need to check all
-            // the contexts to identify the ones out of
-            // sync
-            {
-                boolean patchesApplied = false;
-                ArrayList outOfSyncContexts = new ArrayList();
-
-                // first need to iterate over all the contexts and determined
-                // which one's are out of sync.
-                // can't sync yet because if there are multiple contexts that
-                // are out of sync, after the
-                // first one is synced, the remaining one's have their patch
-                // level updated via the
-                // MigrationListener.migrationSuccessful event.
-                JdbcMigrationLauncher launcher = (JdbcMigrationLauncher) migrationsWithLaunchers
-                        .get(task);
-                for (Iterator j = launcher.getContexts().keySet().iterator(); j.hasNext();)
+                if ((maxConcurrentNodes > 1) || continueOnNodeFailure)
                 {
-                    MigrationContext launcherContext = (MigrationContext) j.next();
-                    PatchInfoStore patchInfoStoreOfContext =
-                            (PatchInfoStore) launcher.getContexts().get(
-                                    launcherContext);
-
-                    if (!getMigrationRunnerStrategy().isSynchronized(patchInfoStore, patchInfoStoreOfContext))
+                    if (applyPatchToNodes(launcher, task) > 0)
                     {
-                        outOfSyncContexts.add(launcherContext);
+                        taskCount++;
                     }
+                    continue;
                 }
 
-                // next patch the contexts that have been determined to be out
-                // of sync
-                for (Iterator iter = outOfSyncContexts.iterator(); iter.hasNext();)
+                // Get all the contexts the task will execute in
+                for (Iterator j = launcher.getContexts().keySet().iterator(); j.hasNext();)
                 {
-                    MigrationContext launcherContext = (MigrationContext) iter.next();
+                    MigrationContext launcherContext = (MigrationContext) j.next();
                     applyPatch(launcherContext, task, true);
-                    patchesApplied = true;
                 }
-
-                if (patchesApplied)
-                {
-                    taskCount++;
-                }
-            } // else if forceSync
+                taskCount++;
+            }
         }
 
         if (taskCount > 0)
@@ -365,158 +409,1376 @@ public class DistributedMigrationProcess extends MigrationProcess
             log.info("System up-to-date.  No patch tasks have been run.");
         }
 
+        if (!outOfSyncNodes.isEmpty())
+        {
+            StringBuffer message = new StringBuffer();
+            message.append(outOfSyncNodes.size()).append(" nodes were left out of sync:");
+            for (Entry<JdbcMigrationContext, MigrationException> entry
+                    : outOfSyncNodes.entrySet())
+            {
+                message.append("\n  ").append(entry.getKey()).append(": ")
+                        .append(entry.getValue().getMessage());
+            }
+            message.append("\nOnce the cause is fixed, run again with 'forcesync' to bring "
+                    + "them up to date.");
+            throw new MigrationException(message.toString(),
+                    outOfSyncNodes.values().iterator().next());
+        }
+
         return taskCount;
     }
 
     /**
-     * Validates that the controlled systems are all at the current patch level.
+     * Brings the nodes that are behind the rest of their system up to date before any new
+     * patches are applied.  Each node's patch information is read once, up front, to work out
+     * which of its system's patches it is missing, and exactly those patches are applied to
+     * it, in order.  Up to <code>maxConcurrentNodes</code> lagging nodes catch up at the same
+     * time.
+     * <p/>
+     * The orchestration system and the other nodes have already recorded these patches, so a
+     * catch-up patch is recorded directly in the lagging node's patch table.  Listeners are
+     * told about each catch-up patch on each node, except for the controlled systems'
+     * launchers, which would record it in every node's patch table.
      *
-     * @param currentPatchInfoStore
-     * @throws MigrationException if all the controlled systems are not at the current patch level.
+     * @param patchInfoStore          the patch information of the orchestration system
+     * @param migrations              all the patches, sorted
+     * @param migrationsWithLaunchers the launcher of each patch
+     * @return the number of different patches applied
+     * @throws MigrationException if a node could not be read, or could not catch up and
+     *                            <code>continueOnNodeFailure</code> is not set
      */
-    protected final void validateControlledSystems(final PatchInfoStore currentPatchInfoStore) throws MigrationException
+    private int syncLaggingNodes(PatchInfoStore patchInfoStore, List migrations,
+            LinkedHashMap migrationsWithLaunchers) throws MigrationException
     {
-        for (Iterator it = getControlledSystems().keySet().iterator(); it.hasNext();)
+        // read every node's patch information once
+        Map<JdbcMigrationContext, PatchInfoStore> nodeStores = getNodeStores();
+        Map<JdbcMigrationContext, PatchInfoStore> snapshots = readNodeSnapshots(nodeStores);
+
+        // work out which of the patches the rest of the system has that each node is missing;
+        // patches nobody has yet are applied to every node afterwards
+        PatchInfoStore current = new PatchInfoSnapshot(patchInfoStore);
+        MigrationRunnerStrategy strategy = getMigrationRunnerStrategy();
+        final Map<JdbcMigrationContext, List<MigrationTask>> deltas =
+                new LinkedHashMap<JdbcMigrationContext, List<MigrationTask>>();
+        for (Iterator i = migrations.iterator(); i.hasNext();)
         {
-            String systemName = (String) it.next();
-            JdbcMigrationLauncher launcher = (JdbcMigrationLauncher) getControlledSystems().get(
-                    systemName);
-            for (Iterator contextIt = launcher.getContexts().keySet().iterator(); contextIt
-                    .hasNext();)
+            MigrationTask task = (MigrationTask) i.next();
+            int level = task.getLevel().intValue();
+            if (strategy.shouldMigrationRun(level, current))
+            {
+                continue;
+            }
+            JdbcMigrationLauncher launcher =
+                    (JdbcMigrationLauncher) migrationsWithLaunchers.get(task);
+            for (Iterator j = launcher.getContexts().keySet().iterator(); j.hasNext();)
             {
-                JdbcMigrationContext ctx = (JdbcMigrationContext) contextIt.next();
-                PatchInfoStore patchInfoStore = (PatchInfoStore) launcher.getContexts().get(ctx);
-                if (!getMigrationRunnerStrategy().isSynchronized(currentPatchInfoStore, patchInfoStore))
+                JdbcMigrationContext node = (JdbcMigrationContext) j.next();
+                if (strategy.shouldMigrationRun(level, snapshots.get(node)))
                 {
-                    String message = "Database " + ctx.getDatabaseName()
-                            + " is out of sync with system: " + systemName + ".  "
-                            + ctx.getDatabaseName() + " is at patch level "
-                            + Integer.toString(patchInfoStore.getPatchLevel()) + " and the System is at patch level "
-                            + Integer.toString(currentPatchInfoStore.getPatchLevel()) + ".";
-                    if (getForceSync())
-                    {
-                        log.info(message + "  Continuing since 'forcesync' was specified.");
-                    }
-                    else
+                    List<MigrationTask> delta = deltas.get(node);
+                    if (delta == null)
                     {
-                        throw new MigrationException(message);
+                        delta = new ArrayList<MigrationTask>();
+                        deltas.put(node, delta);
                     }
+                    delta.add(task);
+                }
+            }
+        }
+        if (deltas.isEmpty())
+        {
+            return 0;
+        }
+
+        // then catch the lagging nodes up
+        List<JdbcMigrationContext> laggingNodes =
+                new ArrayList<JdbcMigrationContext>(deltas.keySet());
+        Map<JdbcMigrationContext, List<MigrationTask>> nodeTasks = getNodeTasks(deltas);
+        final MigrationBroadcaster broadcaster = getNodeBroadcaster();
+        List<Callable<ContextMigrationResult>> syncs =
+                new ArrayList<Callable<ContextMigrationResult>>();
+        for (final JdbcMigrationContext node : laggingNodes)
+        {
+            log.info("Node " + node + " is missing " + deltas.get(node).size()
+                    + " patches; bringing it in sync");
+            final PatchInfoStore store = nodeStores.get(node);
+            final List<MigrationTask> patches =
+                    (nodeTasks == null) ? deltas.get(node) : nodeTasks.get(node);
+            syncs.add(new Callable<ContextMigrationResult>()
+            {
+                public ContextMigrationResult call()
+                {
+                    return syncNode(node, store, patches, broadcaster);
                 }
+            });
+        }
+        List<Future<ContextMigrationResult>> results =
+                callConcurrently(syncs, 0, (nodeTasks == null) ? 1 : maxConcurrentNodes);
+
+        Set<MigrationTask> appliedTasks = new HashSet<MigrationTask>();
+        Map<JdbcMigrationContext, MigrationException> failures =
+                new LinkedHashMap<JdbcMigrationContext, MigrationException>();
+        for (int i = 0; i < laggingNodes.size(); i++)
+        {
+            JdbcMigrationContext node = laggingNodes.get(i);
+            ContextMigrationResult result = getResult(results.get(i), "node " + node);
+            appliedTasks.addAll(deltas.get(node).subList(0, result.getPatchCount()));
+            if (!result.isSuccessful())
+            {
+                failures.put(node, (MigrationException) result.getException());
+            }
+        }
+
+        if (!failures.isEmpty())
+        {
+            StringBuffer message = new StringBuffer();
+            message.append(failures.size()).append(" of ").append(laggingNodes.size())
+                    .append(" lagging nodes could not be brought in sync:");
+            for (Entry<JdbcMigrationContext, MigrationException> entry : failures.entrySet())
+            {
+                message.append("\n  ").append(entry.getKey()).append(": ")
+                        .append(entry.getValue().getMessage());
+            }
+            if (!continueOnNodeFailure)
+            {
+                throw new MigrationException(message.toString(),
+                        failures.values().iterator().next());
             }
+            log.error(message + "\nContinuing with the other nodes.");
+            outOfSyncNodes.putAll(failures);
         }
+        return appliedTasks.size();
     }
 
     /**
-     * Returns a LinkedHashMap of task/launcher pairings, regardless of patch
-     * level.
+     * Gives each lagging node instances of the patches it is missing of its own, so that
+     * nodes catching up at the same time never share an instance of a patch.
      *
-     * @return LinkedHashMap containing MigrationTask / JdbcMigrationLauncher
-     *         pairings
-     * @throws MigrationException if one or more migration tasks could not be created
+     * @param deltas the patches each node is missing
+     * @return the instances of the patches for each node, or <code>null</code> if the nodes
+     *         are to catch up one at a time, either because they can't catch up concurrently
+     *         anyway or because one of the patches can't be copied
      */
-    public final LinkedHashMap getMigrationTasksWithLaunchers() throws MigrationException
+    private Map<JdbcMigrationContext, List<MigrationTask>> getNodeTasks(
+            Map<JdbcMigrationContext, List<MigrationTask>> deltas)
     {
-        LinkedHashMap tasks = new LinkedHashMap();
+        if ((maxConcurrentNodes <= 1) || (deltas.size() <= 1))
+        {
+            return null;
+        }
+        Map<JdbcMigrationContext, List<MigrationTask>> nodeTasks =
+                new HashMap<JdbcMigrationContext, List<MigrationTask>>();
+        for (Entry<JdbcMigrationContext, List<MigrationTask>> entry : deltas.entrySet())
+        {
+            List<MigrationTask> instances = new ArrayList<MigrationTask>();
+            for (MigrationTask task : entry.getValue())
+            {
+                MigrationTask instance = copyTask(task);
+                if (instance == null)
+                {
+                    log.warn("Patch task \"" + getTaskLabel(task) + "\" can't be copied for "
+                            + "each node; it should implement CopyableMigrationTask.  "
+                            + "Bringing the nodes in sync one at a time instead.");
+                    return null;
+                }
+                instances.add(instance);
+            }
+            nodeTasks.put(entry.getKey(), instances);
+        }
+        return nodeTasks;
+    }
 
-        // Roll through all our controlled system names
-        for (Iterator controlledSystemIter = getControlledSystems().keySet().iterator(); controlledSystemIter
-                .hasNext();)
+    /**
+     * Rolls the patches that have not been applied yet out to the nodes of the controlled
+     * systems in waves: first to <code>canaryNodes</code> nodes of each system, then to
+     * <code>rolloutWaveFactor</code> times as many nodes in each following wave, until every
+     * node is patched.  Within a wave, each patch is applied to up to
+     * <code>maxConcurrentNodes</code> nodes at the same time and has finished on all of them
+     * before the next patch starts.  A wave only starts once the previous wave has succeeded
+     * on every node and passed the <code>rolloutVerifier</code>, if there is one.
+     * <p/>
+     * Each node records a patch in its own patch table as soon as the patch is committed
+     * there, and the orchestration system records the patches once every wave has finished, so
+     * a halted rollout picks up where it left off on the next run.  Listeners are told about
+     * each patch on each node, except for the controlled systems' launchers, which would
+     * record it in the patch tables of nodes of later waves.
+     *
+     * @param patchInfoStore          the patch information of the orchestration system
+     * @param migrations              all the patches, sorted
+     * @param migrationsWithLaunchers the launcher of each patch
+     * @return the number of patches rolled out
+     * @throws MigrationException if a wave failed on any node or did not pass verification
+     */
+    private int rollOut(PatchInfoStore patchInfoStore, List migrations,
+            LinkedHashMap migrationsWithLaunchers) throws MigrationException
+    {
+        MigrationRunnerStrategy strategy = getMigrationRunnerStrategy();
+        List<MigrationTask> patches = new ArrayList<MigrationTask>();
+        for (Iterator i = migrations.iterator(); i.hasNext();)
         {
-            // Get the sub launcher that runs patches for the current name
-            String controlledSystemName = (String) controlledSystemIter.next();
-            JdbcMigrationLauncher subLauncher = (JdbcMigrationLauncher) getControlledSystems().get(
-                    controlledSystemName);
+            MigrationTask task = (MigrationTask) i.next();
+            if (strategy.shouldMigrationRun(task.getLevel().intValue(), patchInfoStore))
+            {
+                patches.add(task);
+            }
+        }
+        if (patches.isEmpty())
+        {
+            return 0;
+        }
 
-            // Get all the tasks for that sub launcher
-            List subTasks = subLauncher.getMigrationProcess().getMigrationTasks();
-            log.info("Found " + subTasks.size() + " for system " + controlledSystemName);
-            for (Iterator subTaskIter = subTasks.iterator(); subTaskIter.hasNext();)
+        // nodes patched by an earlier, halted rollout already have some of the patches
+        Map<JdbcMigrationContext, PatchInfoStore> nodeStores = getNodeStores();
+        Map<JdbcMigrationContext, PatchInfoStore> snapshots = readNodeSnapshots(nodeStores);
+
+        MigrationBroadcaster broadcaster = getNodeBroadcaster();
+        List<List<JdbcMigrationContext>> waves = getRolloutWaves();
+        for (int w = 0; w < waves.size(); w++)
+        {
+            List<JdbcMigrationContext> wave = waves.get(w);
+            String waveName = "wave " + (w + 1) + " of " + waves.size();
+            log.info("Rolling out " + patches.size() + " patch tasks to " + waveName + " ("
+                    + wave.size() + " nodes)");
+            Map<JdbcMigrationContext, MigrationException> failures =
+                    new LinkedHashMap<JdbcMigrationContext, MigrationException>();
+            for (MigrationTask task : patches)
             {
-                MigrationTask task = (MigrationTask) subTaskIter.next();
-                if (log.isDebugEnabled())
+                int level = task.getLevel().intValue();
+                JdbcMigrationLauncher launcher =
+                        (JdbcMigrationLauncher) migrationsWithLaunchers.get(task);
+                List<JdbcMigrationContext> nodes = new ArrayList<JdbcMigrationContext>();
+                for (JdbcMigrationContext node : wave)
                 {
-                    Iterator launchers = subLauncher.getContexts().keySet().iterator();
-                    String systemName = ((JdbcMigrationContext) launchers.next()).getSystemName();
-                    log.debug("\tMigration+Launcher binder found subtask " + task.getName()
-                            + " for launcher context " + systemName);
+                    if (launcher.getContexts().containsKey(node) && !failures.containsKey(node)
+                            && strategy.shouldMigrationRun(level, snapshots.get(node)))
+                    {
+                        nodes.add(node);
+                    }
+                }
+                if (nodes.isEmpty())
+                {
+                    continue;
                 }
 
-                // store the task, related to its launcher
-                tasks.put(task, subLauncher);
+                for (JdbcMigrationContext node : nodes)
+                {
+                    broadcaster.notifyListeners(task, node, MigrationBroadcaster.TASK_START);
+                }
+                Map<JdbcMigrationContext, MigrationException> patchFailures =
+                        migrateNodes(task, nodes);
+                for (JdbcMigrationContext node : nodes)
+                {
+                    MigrationException e = patchFailures.get(node);
+                    if (e == null)
+                    {
+                        try
+                        {
+                            nodeStores.get(node).updatePatchLevel(level);
+                            broadcaster.notifyListeners(task, node,
+                                    MigrationBroadcaster.TASK_SUCCESS);
+                            node.commit();
+                        }
+                        catch (MigrationException me)
+                        {
+                            e = me;
+                        }
+                    }
+                    if (e != null)
+                    {
+                        notifyFailed(broadcaster, task, node, e);
+                        rollback(node);
+                        failures.put(node, e);
+                    }
+                }
+                if (!failures.isEmpty() && !continueOnNodeFailure)
+                {
+                    break;
+                }
+            }
+
+            if (!failures.isEmpty())
+            {
+                StringBuffer message = new StringBuffer();
+                message.append("Rollout halted: ").append(waveName).append(" failed on ")
+                        .append(failures.size()).append(" of ").append(wave.size())
+                        .append(" nodes:");
+                for (Entry<JdbcMigrationContext, MigrationException> entry
+                        : failures.entrySet())
+                {
+                    message.append("\n  ").append(entry.getKey()).append(": ")
+                            .append(entry.getValue().getMessage());
+                }
+                message.append(ROLLOUT_RESUME_HINT);
+                throw new MigrationException(message.toString(),
+                        failures.values().iterator().next());
+            }
+            if (rolloutVerifier != null)
+            {
+                try
+                {
+                    rolloutVerifier.verifyWave(w + 1, wave, patches);
+                }
+                catch (MigrationException e)
+                {
+                    throw new MigrationException("Rollout halted: verification of " + waveName
+                            + " failed: " + e.getMessage() + ROLLOUT_RESUME_HINT, e);
+                }
             }
+            log.info("Finished rolling out to " + waveName);
         }
 
-        return tasks;
+        // every node has the patches now
+        for (MigrationTask task : patches)
+        {
+            patchInfoStore.updatePatchLevel(task.getLevel().intValue());
+        }
+        return patches.size();
     }
 
     /**
-     * Returns a List of MigrationTasks, regardless of patch level.
+     * Splits the nodes of the controlled systems into the waves of a rollout.  The first wave
+     * has <code>canaryNodes</code> nodes from each system, and each wave after it has
+     * <code>rolloutWaveFactor</code> times as many, or whatever nodes are left.  Nodes that
+     * are out of sync are left out.
      *
-     * @return List containing MigrationTask objects
-     * @throws MigrationException if one or more migration tasks could not be created
+     * @return the nodes of each wave, in order
      */
-    public final List getMigrationTasks() throws MigrationException
+    private List<List<JdbcMigrationContext>> getRolloutWaves()
     {
-        List tasks = new ArrayList();
-
-        for (Iterator controlledSystemIter = getControlledSystems().keySet().iterator(); controlledSystemIter
-                .hasNext();)
+        List<List<JdbcMigrationContext>> waves = new ArrayList<List<JdbcMigrationContext>>();
+        for (Iterator it = getControlledSystems().values().iterator(); it.hasNext();)
         {
-            String controlledSystemName = (String) controlledSystemIter.next();
-            JdbcMigrationLauncher launcher = (JdbcMigrationLauncher) getControlledSystems().get(
-                    controlledSystemName);
-            List subTasks = launcher.getMigrationProcess().getMigrationTasks();
-            log.info("Found " + subTasks.size() + " for system " + controlledSystemName);
-            if (log.isDebugEnabled())
+            JdbcMigrationLauncher launcher = (JdbcMigrationLauncher) it.next();
+            int wave = 0;
+            int waveSize = canaryNodes;
+            int waveNodes = 0;
+            for (Iterator j = launcher.getContexts().keySet().iterator(); j.hasNext();)
             {
-                for (Iterator subTaskIter = subTasks.iterator(); subTaskIter.hasNext();)
+                JdbcMigrationContext node = (JdbcMigrationContext) j.next();
+                if (outOfSyncNodes.containsKey(node))
                 {
-                    log.debug("\tFound subtask " + ((MigrationTask) subTaskIter.next()).getName());
+                    continue;
+                }
+                if (waveNodes == waveSize)
+                {
+                    wave++;
+                    waveNodes = 0;
+                    waveSize *= rolloutWaveFactor;
+                }
+                if (waves.size() == wave)
+                {
+                    waves.add(new ArrayList<JdbcMigrationContext>());
                 }
+                waves.get(wave).add(node);
+                waveNodes++;
             }
-            tasks.addAll(subTasks);
         }
+        return waves;
+    }
 
-        // Its difficult to tell what's going on when you don't see any patches.
-        // This will help people realize they don't have patches, and perhaps
-        // help them discover why.
-        if (tasks.size() == 0)
+    /**
+     * Returns the patch table of every node of every controlled system.
+     *
+     * @return the patch table of each node, keyed by node
+     */
+    private Map<JdbcMigrationContext, PatchInfoStore> getNodeStores()
+    {
+        Map<JdbcMigrationContext, PatchInfoStore> nodeStores =
+                new LinkedHashMap<JdbcMigrationContext, PatchInfoStore>();
+        for (Iterator it = getControlledSystems().values().iterator(); it.hasNext();)
         {
-            log.info("No patch tasks were discovered in your classpath. "
-                    + "Run with DEBUG logging enabled for patch search details.");
+            JdbcMigrationLauncher launcher = (JdbcMigrationLauncher) it.next();
+            for (Iterator j = launcher.getContexts().entrySet().iterator(); j.hasNext();)
+            {
+                Entry entry = (Entry) j.next();
+                nodeStores.put((JdbcMigrationContext) entry.getKey(),
+                        (PatchInfoStore) entry.getValue());
+            }
         }
-
-        return tasks;
+        return nodeStores;
     }
 
     /**
-     * Get the list of systems we are controlling
+     * Reads the patch information of the given nodes, up to <code>maxConcurrentNodes</code>
+     * at a time, giving each read at most <code>nodeTimeoutMillis</code> from when it starts.
      *
-     * @return HashMap of JdbcMigrationLauncher objects keyed by String system
-     *         names
+     * @param nodeStores the patch table of each node
+     * @return a read-only copy of each node's patch information, keyed by node
+     * @throws MigrationException if a node could not be read
      */
-    public final HashMap getControlledSystems()
+    private Map<JdbcMigrationContext, PatchInfoStore> readNodeSnapshots(
+            Map<JdbcMigrationContext, PatchInfoStore> nodeStores) throws MigrationException
     {
-        return controlledSystems;
+        List<JdbcMigrationContext> nodes = new ArrayList<JdbcMigrationContext>(nodeStores.keySet());
+        List<Callable<PatchInfoStore>> reads = new ArrayList<Callable<PatchInfoStore>>();
+        for (JdbcMigrationContext node : nodes)
+        {
+            final PatchInfoStore store = limitQueryTime(nodeStores.get(node));
+            reads.add(new Callable<PatchInfoStore>()
+            {
+                public PatchInfoStore call() throws MigrationException
+                {
+                    return new PatchInfoSnapshot(store);
+                }
+            });
+        }
+        List<Future<PatchInfoStore>> futures = callConcurrently(reads, nodeTimeoutMillis);
+        Map<JdbcMigrationContext, PatchInfoStore> snapshots =
+                new HashMap<JdbcMigrationContext, PatchInfoStore>();
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            snapshots.put(nodes.get(i), getResult(futures.get(i), "the patch level of "
+                    + nodes.get(i)));
+        }
+        return snapshots;
     }
 
     /**
-     * Set the list of systems to control
+     * Limits the statements a node's patch table runs to <code>nodeTimeoutMillis</code>, so
+     * that a read from a node that stops answering fails in the driver and frees its
+     * connection and thread, rather than only being given up on.
      *
-     * @param controlledSystems HashMap of system name / JdbcMigrationLauncher pairs
+     * @param store the node's patch table
+     * @return the same patch table
      */
-    public final void setControlledSystems(final HashMap controlledSystems)
+    private PatchInfoStore limitQueryTime(PatchInfoStore store)
     {
-        this.controlledSystems = controlledSystems;
+        if ((nodeTimeoutMillis > 0) && (store instanceof PatchTable))
+        {
+            ((PatchTable) store).setQueryTimeout((int) ((nodeTimeoutMillis + 999) / 1000));
+        }
+        return store;
     }
 
-    public final boolean getForceSync()
+    /**
+     * Applies the patches a node is missing, committing each one together with its record in
+     * the node's patch table.  Stops at the first patch that fails.
+     *
+     * @param node        the node to bring in sync
+     * @param store       the node's patch table
+     * @param patches     the patches the node is missing, in order
+     * @param broadcaster tells the listeners about each patch
+     * @return how many patches were applied, and why the node stopped short, if it did
+     */
+    private ContextMigrationResult syncNode(JdbcMigrationContext node, PatchInfoStore store,
+            List<MigrationTask> patches, MigrationBroadcaster broadcaster)
     {
-        return forceSync;
+        long start = System.currentTimeMillis();
+        int patchCount = 0;
+        for (MigrationTask task : patches)
+        {
+            MigrationException e = null;
+            try
+            {
+                broadcaster.notifyListeners(task, node, MigrationBroadcaster.TASK_START);
+                e = migrateNode(task, node);
+                if (e == null)
+                {
+                    store.updatePatchLevel(task.getLevel().intValue());
+                    broadcaster.notifyListeners(task, node, MigrationBroadcaster.TASK_SUCCESS);
+                    node.commit();
+                }
+            }
+            catch (MigrationException me)
+            {
+                e = me;
+            }
+            if (e != null)
+            {
+                notifyFailed(broadcaster, task, node, e);
+                rollback(node);
+                return new ContextMigrationResult(node, patchCount, e,
+                        System.currentTimeMillis() - start);
+            }
+            patchCount++;
+        }
+        return new ContextMigrationResult(node, patchCount, null,
+                System.currentTimeMillis() - start);
     }
 
-    public final void setForceSync(final boolean forceSync)
+    /**
+     * Applies a patch to every node of its system, at most <code>maxConcurrentNodes</code> at
+     * a time, and waits for it to finish on all of them.  Listeners are told about the nodes
+     * the patch failed on before the ones it succeeded on, so that the patch tables of failed
+     * nodes are left at their old level.  Nodes left out of sync by an earlier patch are
+     * skipped.
+     *
+     * @param launcher the launcher of the system the patch belongs to
+     * @param task     the patch to apply
+     * @return the number of nodes the patch was applied to
+     * @throws MigrationException if the patch failed on any node and
+     *                            <code>continueOnNodeFailure</code> is not set
+     */
+    private int applyPatchToNodes(JdbcMigrationLauncher launcher, MigrationTask task)
+            throws MigrationException
     {
-        this.forceSync = forceSync;
+        List<JdbcMigrationContext> nodes = new ArrayList<JdbcMigrationContext>();
+        for (Iterator j = launcher.getContexts().keySet().iterator(); j.hasNext();)
+        {
+            JdbcMigrationContext node = (JdbcMigrationContext) j.next();
+            if (outOfSyncNodes.containsKey(node))
+            {
+                log.info("Skipping patch task \"" + getTaskLabel(task) + "\" for node " + node
+                        + ", which is out of sync");
+            }
+            else
+            {
+                nodes.add(node);
+            }
+        }
+        if (nodes.isEmpty())
+        {
+            return 0;
+        }
+
+        MigrationBroadcaster broadcaster = getMigrationBroadcaster();
+        for (JdbcMigrationContext node : nodes)
+        {
+            broadcaster.notifyListeners(task, node, MigrationBroadcaster.TASK_START);
+        }
+
+        Map<JdbcMigrationContext, MigrationException> failures = migrateNodes(task, nodes);
+        for (Entry<JdbcMigrationContext, MigrationException> entry : failures.entrySet())
+        {
+            broadcaster.notifyListeners(task, entry.getKey(), entry.getValue(),
+                    MigrationBroadcaster.TASK_FAILED);
+            rollback(entry.getKey());
+        }
+
+        int patchedNodes = 0;
+        for (JdbcMigrationContext node : nodes)
+        {
+            if (failures.containsKey(node))
+            {
+                continue;
+            }
+            try
+            {
+                broadcaster.notifyListeners(task, node, MigrationBroadcaster.TASK_SUCCESS);
+                node.commit();
+                patchedNodes++;
+            }
+            catch (MigrationException e)
+            {
+                failures.put(node, e);
+                notifyFailed(broadcaster, task, node, e);
+                rollback(node);
+            }
+        }
+
+        if (!failures.isEmpty())
+        {
+            StringBuffer message = new StringBuffer();
+            message.append("Patch task \"").append(getTaskLabel(task)).append("\" failed on ")
+                    .append(failures.size()).append(" of ").append(nodes.size())
+                    .append(" nodes:");
+            for (Entry<JdbcMigrationContext, MigrationException> entry : failures.entrySet())
+            {
+                message.append("\n  ").append(entry.getKey()).append(": ")
+                        .append(entry.getValue().getMessage());
+            }
+            if (!continueOnNodeFailure)
+            {
+                throw new MigrationException(message.toString(),
+                        failures.values().iterator().next());
+            }
+            log.error(message + "\nContinuing with the other nodes.");
+            outOfSyncNodes.putAll(failures);
+        }
+        return patchedNodes;
+    }
+
+    /**
+     * Runs a patch on each of the given nodes, without committing, on a pool of at most
+     * <code>maxConcurrentNodes</code> threads.  Each node runs its own copy of the patch; if
+     * the patch can't be copied, the nodes are patched one at a time instead.  Returns once
+     * the patch has finished on every node.
+     *
+     * @param task  the patch to run
+     * @param nodes the nodes to run it on
+     * @return the nodes the patch failed on, with the reason, in node order
+     * @throws MigrationException if interrupted while waiting for the patch to finish
+     */
+    private Map<JdbcMigrationContext, MigrationException> migrateNodes(MigrationTask task,
+            List<JdbcMigrationContext> nodes) throws MigrationException
+    {
+        List<MigrationTask> instances = getNodeTasks(task, nodes.size());
+        List<Callable<MigrationException>> calls = new ArrayList<Callable<MigrationException>>();
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            final MigrationTask instance = (instances == null) ? task : instances.get(i);
+            final JdbcMigrationContext node = nodes.get(i);
+            calls.add(new Callable<MigrationException>()
+            {
+                public MigrationException call()
+                {
+                    return migrateNode(instance, node);
+                }
+            });
+        }
+
+        // patches may take as long as they need
+        List<Future<MigrationException>> futures =
+                callConcurrently(calls, 0, (instances == null) ? 1 : maxConcurrentNodes);
+        Map<JdbcMigrationContext, MigrationException> failures =
+                new LinkedHashMap<JdbcMigrationContext, MigrationException>();
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            MigrationException e = getResult(futures.get(i), "patch task \""
+                    + getTaskLabel(task) + "\" on node " + nodes.get(i));
+            if (e != null)
+            {
+                failures.put(nodes.get(i), e);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Gives each of the nodes that will run a patch at the same time an instance of the patch
+     * of its own, so that no two threads ever share one.  The first node gets the patch
+     * itself.
+     *
+     * @param task      the patch to run
+     * @param nodeCount the number of nodes to run it on
+     * @return an instance of the patch for each node, or <code>null</code> if the nodes are
+     *         to run the patch one at a time, either because they can't run concurrently
+     *         anyway or because the patch can't be copied
+     */
+    private List<MigrationTask> getNodeTasks(MigrationTask task, int nodeCount)
+    {
+        if ((maxConcurrentNodes <= 1) || (nodeCount <= 1))
+        {
+            return null;
+        }
+        List<MigrationTask> instances = new ArrayList<MigrationTask>(nodeCount);
+        instances.add(task);
+        while (instances.size() < nodeCount)
+        {
+            MigrationTask instance = copyTask(task);
+            if (instance == null)
+            {
+                log.warn("Patch task \"" + getTaskLabel(task) + "\" can't be copied for each "
+                        + "node; it should implement CopyableMigrationTask.  Patching the "
+                        + "nodes one at a time instead.");
+                return null;
+            }
+            instances.add(instance);
+        }
+        return instances;
+    }
+
+    /**
+     * Runs a patch on one node, without committing.
+     *
+     * @param task the patch to run
+     * @param node the node to run it on
+     * @return the reason the patch failed, or <code>null</code> if it succeeded
+     */
+    private MigrationException migrateNode(MigrationTask task, JdbcMigrationContext node)
+    {
+        String label = getTaskLabel(task);
+        log.info("Executing patch task \"" + label + "\" on node " + node + "...");
+        try
+        {
+            long startTime = System.currentTimeMillis();
+            task.migrate(node);
+            long duration = System.currentTimeMillis() - startTime;
+            log.info("Finished patch task \"" + label + "\" on node " + node + " (" + duration
+                    + " millis.)");
+            return null;
+        }
+        catch (MigrationException e)
+        {
+            return e;
+        }
+        catch (RuntimeException e)
+        {
+            return new MigrationException("Patch task \"" + label + "\" failed", e);
+        }
+    }
+
+    /**
+     * Makes the given calls on a pool of at most <code>maxConcurrentNodes</code> threads and
+     * waits for all of them.  A call that has run for <code>timeoutMillis</code> is cancelled
+     * and stops counting against the pool, so a call that hangs doesn't hold up the calls
+     * queued behind it.  With one thread and no timeout, the calls are simply made one after
+     * another on the calling thread.
+     *
+     * @param calls         the calls to make
+     * @param timeoutMillis how long each call may run; 0 lets it run as long as it takes
+     * @return the finished or cancelled calls, in the same order
+     * @throws MigrationException if interrupted while waiting for the calls
+     */
+    private <T> List<Future<T>> callConcurrently(List<Callable<T>> calls, long timeoutMillis)
+            throws MigrationException
+    {
+        return callConcurrently(calls, timeoutMillis, maxConcurrentNodes);
+    }
+
+    /**
+     * Makes the given calls on a pool of at most <code>maxThreads</code> threads and waits
+     * for all of them, as {@link #callConcurrently(List, long)} does.
+     *
+     * @param calls         the calls to make
+     * @param timeoutMillis how long each call may run; 0 lets it run as long as it takes
+     * @param maxThreads    the most calls to make at the same time
+     * @return the finished or cancelled calls, in the same order
+     * @throws MigrationException if interrupted while waiting for the calls
+     */
+    private <T> List<Future<T>> callConcurrently(List<Callable<T>> calls, long timeoutMillis,
+            int maxThreads) throws MigrationException
+    {
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        int threads = Math.min(maxThreads, calls.size());
+        if ((threads <= 1) && (timeoutMillis <= 0))
+        {
+            for (Callable<T> call : calls)
+            {
+                FutureTask<T> future = new FutureTask<T>(call);
+                future.run();
+                futures.add(future);
+            }
+            return futures;
+        }
+
+        // a cancelled call may be stuck in a driver that ignores interrupts, so its thread is
+        // left behind and the next call gets a new one
+        ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "autopatch-node-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        CompletionService<T> completion = new ExecutorCompletionService<T>(executor);
+
+        // the calls running, with the time each one started
+        Map<Future<T>, Long> running = new HashMap<Future<T>, Long>();
+        try
+        {
+            Iterator<Callable<T>> pending = calls.iterator();
+            while (pending.hasNext() || !running.isEmpty())
+            {
+                while (pending.hasNext() && (running.size() < threads))
+                {
+                    Future<T> future = completion.submit(pending.next());
+                    futures.add(future);
+                    running.put(future, new Long(System.currentTimeMillis()));
+                }
+
+                Future<T> done = null;
+                if (timeoutMillis > 0)
+                {
+                    long deadline = Collections.min(running.values()).longValue()
+                            + timeoutMillis;
+                    long wait = Math.max(deadline - System.currentTimeMillis(), 0);
+                    done = completion.poll(wait, TimeUnit.MILLISECONDS);
+                }
+                else
+                {
+                    done = completion.take();
+                }
+                if (done != null)
+                {
+                    running.remove(done);
+                    continue;
+                }
+
+                // give up on the calls that have run too long
+                long now = System.currentTimeMillis();
+                for (Iterator<Entry<Future<T>, Long>> i = running.entrySet().iterator();
+                        i.hasNext();)
+                {
+                    Entry<Future<T>, Long> entry = i.next();
+                    if (now - entry.getValue().longValue() >= timeoutMillis)
+                    {
+                        entry.getKey().cancel(true);
+                        i.remove();
+                    }
+                }
+            }
+            return futures;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new MigrationException("Interrupted while waiting for the nodes", e);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the result of a call made by {@link #callConcurrently(List, long)}.
+     *
+     * @param future      the call
+     * @param description describes the call, for error messages
+     * @return the result of the call
+     * @throws MigrationException if the call failed or timed out
+     */
+    private <T> T getResult(Future<T> future, String description) throws MigrationException
+    {
+        if (future.isCancelled())
+        {
+            throw new MigrationException("Timed out after " + nodeTimeoutMillis
+                    + " millis waiting for " + description);
+        }
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new MigrationException("Interrupted while waiting for " + description, e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof MigrationException)
+            {
+                throw (MigrationException) e.getCause();
+            }
+            throw new MigrationException("Unexpected failure of " + description + ": "
+                    + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Returns a broadcaster for the patches that nodes record in their own patch tables, such
+     * as catch-up and rollout patches.  It tells every listener except the controlled
+     * systems' launchers, which record a patch in the patch table of every node of their
+     * system.
+     *
+     * @return the broadcaster
+     */
+    private MigrationBroadcaster getNodeBroadcaster()
+    {
+        MigrationBroadcaster nodeBroadcaster = new MigrationBroadcaster();
+        Collection launchers = getControlledSystems().values();
+        for (Iterator i = getMigrationBroadcaster().getListeners().iterator(); i.hasNext();)
+        {
+            MigrationListener listener = (MigrationListener) i.next();
+            if (!launchers.contains(listener))
+            {
+                nodeBroadcaster.addListener(listener);
+            }
+        }
+        return nodeBroadcaster;
+    }
+
+    /**
+     * Tells the listeners that a patch failed on a node.  A listener that fails as well is
+     * only logged, so that the node is still rolled back.
+     *
+     * @param broadcaster the listeners
+     * @param task        the patch that failed
+     * @param node        the node it failed on
+     * @param e           why it failed
+     */
+    private void notifyFailed(MigrationBroadcaster broadcaster, MigrationTask task,
+            JdbcMigrationContext node, MigrationException e)
+    {
+        try
+        {
+            broadcaster.notifyListeners(task, node, e, MigrationBroadcaster.TASK_FAILED);
+        }
+        catch (MigrationException me)
+        {
+            log.error("A listener failed on the failure of patch task \"" + getTaskLabel(task)
+                    + "\" on node " + node, me);
+        }
+    }
+
+    /**
+     * Rolls back the transaction on a node a patch failed on.
+     *
+     * @param node the node to roll back
+     */
+    private void rollback(JdbcMigrationContext node)
+    {
+        try
+        {
+            node.rollback();
+            log.info("Patch task failed on node " + node + "; rollback successful");
+        }
+        catch (MigrationException me)
+        {
+            log.info("Patch task failed on node " + node + "; COULD NOT ROLL BACK TRANSACTION",
+                    me);
+        }
+    }
+
+    /**
+     * Validates that the controlled systems are all at the current patch level.
+     *
+     * @param currentPatchInfoStore
+     * @throws MigrationException if all the controlled systems are not at the current patch
+     *                            level, listing every node that is not
+     */
+    protected final void validateControlledSystems(final PatchInfoStore currentPatchInfoStore) throws MigrationException
+    {
+        SyncReport report = getSyncReport(currentPatchInfoStore);
+        if (report.isInSync())
+        {
+            return;
+        }
+        if (getForceSync() && report.getUnreachableNodes().isEmpty())
+        {
+            log.info(report + "\nContinuing since 'forcesync' was specified.");
+        }
+        else
+        {
+            throw new MigrationException(report.toString());
+        }
+    }
+
+    /**
+     * Checks whether every node of every controlled system is at the current patch level.
+     * Up to <code>maxConcurrentNodes</code> nodes are checked at the same time, and a node
+     * that takes longer than <code>nodeTimeoutMillis</code> to answer is reported as one that
+     * could not be checked.
+     *
+     * @param currentPatchInfoStore the patch information of the orchestration system
+     * @return a report listing the nodes that are out of sync or could not be checked
+     * @throws MigrationException if the current patch level can't be read
+     */
+    public final SyncReport getSyncReport(final PatchInfoStore currentPatchInfoStore)
+            throws MigrationException
+    {
+        final PatchInfoStore current = ((maxConcurrentNodes > 1) || (nodeTimeoutMillis > 0))
+                ? new PatchInfoSnapshot(currentPatchInfoStore) : currentPatchInfoStore;
+        List<String> nodeNames = new ArrayList<String>();
+        List<Callable<String>> calls = new ArrayList<Callable<String>>();
+        for (Iterator it = getControlledSystems().keySet().iterator(); it.hasNext();)
+        {
+            final String systemName = (String) it.next();
+            JdbcMigrationLauncher launcher =
+                    (JdbcMigrationLauncher) getControlledSystems().get(systemName);
+            for (Iterator contextIt = launcher.getContexts().entrySet().iterator(); contextIt
+                    .hasNext();)
+            {
+                Entry entry = (Entry) contextIt.next();
+                final String databaseName =
+                        ((JdbcMigrationContext) entry.getKey()).getDatabaseName();
+                final PatchInfoStore patchInfoStore =
+                        limitQueryTime((PatchInfoStore) entry.getValue());
+                nodeNames.add(databaseName + " (system " + systemName + ")");
+                calls.add(new Callable<String>()
+                {
+                    public String call() throws MigrationException
+                    {
+                        if (getMigrationRunnerStrategy().isSynchronized(current, patchInfoStore))
+                        {
+                            return null;
+                        }
+                        return "Database " + databaseName
+                                + " is out of sync with system: " + systemName + ".  "
+                                + databaseName + " is at patch level "
+                                + Integer.toString(patchInfoStore.getPatchLevel())
+                                + " and the System is at patch level "
+                                + Integer.toString(current.getPatchLevel()) + ".";
+                    }
+                });
+            }
+        }
+
+        List<Future<String>> futures = callConcurrently(calls, nodeTimeoutMillis);
+        SyncReport report = new SyncReport();
+        for (int i = 0; i < futures.size(); i++)
+        {
+            try
+            {
+                String outOfSync = getResult(futures.get(i), "the patch level of "
+                        + nodeNames.get(i));
+                if (outOfSync == null)
+                {
+                    report.addInSyncNode();
+                }
+                else
+                {
+                    report.addOutOfSyncNode(outOfSync);
+                }
+            }
+            catch (MigrationException e)
+            {
+                report.addUnreachableNode(nodeNames.get(i) + ": " + e.getMessage());
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Returns a LinkedHashMap of task/launcher pairings, regardless of patch
+     * level.
+     *
+     * @return LinkedHashMap containing MigrationTask / JdbcMigrationLauncher
+     *         pairings
+     * @throws MigrationException if one or more migration tasks could not be created
+     */
+    public final LinkedHashMap getMigrationTasksWithLaunchers() throws MigrationException
+    {
+        LinkedHashMap tasks = new LinkedHashMap();
+
+        // Roll through all our controlled system names
+        Map<String, List> tasksBySystem = getMigrationTasksBySystem();
+        for (Iterator controlledSystemIter = tasksBySystem.keySet().iterator(); controlledSystemIter
+                .hasNext();)
+        {
+            // Get the sub launcher that runs patches for the current name
+            String controlledSystemName = (String) controlledSystemIter.next();
+            JdbcMigrationLauncher subLauncher = (JdbcMigrationLauncher) getControlledSystems().get(
+                    controlledSystemName);
+
+            // Get all the tasks for that sub launcher
+            List subTasks = tasksBySystem.get(controlledSystemName);
+            log.info("Found " + subTasks.size() + " for system " + controlledSystemName);
+            for (Iterator subTaskIter = subTasks.iterator(); subTaskIter.hasNext();)
+            {
+                MigrationTask task = (MigrationTask) subTaskIter.next();
+                if (log.isDebugEnabled())
+                {
+                    Iterator launchers = subLauncher.getContexts().keySet().iterator();
+                    String systemName = ((JdbcMigrationContext) launchers.next()).getSystemName();
+                    log.debug("\tMigration+Launcher binder found subtask " + task.getName()
+                            + " for launcher context " + systemName);
+                }
+
+                // store the task, related to its launcher
+                tasks.put(task, subLauncher);
+            }
+        }
+
+        return tasks;
+    }
+
+    /**
+     * Returns a List of MigrationTasks, regardless of patch level.
+     *
+     * @return List containing MigrationTask objects
+     * @throws MigrationException if one or more migration tasks could not be created
+     */
+    public final List getMigrationTasks() throws MigrationException
+    {
+        List tasks = new ArrayList();
+
+        Map<String, List> tasksBySystem = getMigrationTasksBySystem();
+        for (Iterator controlledSystemIter = tasksBySystem.keySet().iterator(); controlledSystemIter
+                .hasNext();)
+        {
+            String controlledSystemName = (String) controlledSystemIter.next();
+            List subTasks = tasksBySystem.get(controlledSystemName);
+            log.info("Found " + subTasks.size() + " for system " + controlledSystemName);
+            if (log.isDebugEnabled())
+            {
+                for (Iterator subTaskIter = subTasks.iterator(); subTaskIter.hasNext();)
+                {
+                    log.debug("\tFound subtask " + ((MigrationTask) subTaskIter.next()).getName());
+                }
+            }
+            tasks.addAll(subTasks);
+        }
+
+        // Its difficult to tell what's going on when you don't see any patches.
+        // This will help people realize they don't have patches, and perhaps
+        // help them discover why.
+        if (tasks.size() == 0)
+        {
+            log.info("No patch tasks were discovered in your classpath. "
+                    + "Run with DEBUG logging enabled for patch search details.");
+        }
+
+        return tasks;
+    }
+
+    /**
+     * Discovers the patches of every controlled system, up to <code>maxConcurrentNodes</code>
+     * systems at the same time.
+     *
+     * @return the patches of each system, keyed by system name in controlled system order
+     * @throws MigrationException if the patches of a system could not be created, or not
+     *                            within <code>nodeTimeoutMillis</code>
+     */
+    private Map<String, List> getMigrationTasksBySystem() throws MigrationException
+    {
+        List<String> systemNames = new ArrayList<String>();
+        List<Callable<List>> calls = new ArrayList<Callable<List>>();
+        for (Iterator it = getControlledSystems().keySet().iterator(); it.hasNext();)
+        {
+            String controlledSystemName = (String) it.next();
+            final JdbcMigrationLauncher launcher =
+                    (JdbcMigrationLauncher) getControlledSystems().get(controlledSystemName);
+            systemNames.add(controlledSystemName);
+            calls.add(new Callable<List>()
+            {
+                public List call() throws MigrationException
+                {
+                    return launcher.getMigrationProcess().getMigrationTasks();
+                }
+            });
+        }
+
+        List<Future<List>> futures = callConcurrently(calls, nodeTimeoutMillis);
+        Map<String, List> tasksBySystem = new LinkedHashMap<String, List>();
+        for (int i = 0; i < futures.size(); i++)
+        {
+            tasksBySystem.put(systemNames.get(i), getResult(futures.get(i),
+                    "the patches of system " + systemNames.get(i)));
+        }
+        return tasksBySystem;
+    }
+
+    /**
+     * Get the list of systems we are controlling
+     *
+     * @return HashMap of JdbcMigrationLauncher objects keyed by String system
+     *         names
+     */
+    public final HashMap getControlledSystems()
+    {
+        return controlledSystems;
+    }
+
+    /**
+     * Set the list of systems to control
+     *
+     * @param controlledSystems HashMap of system name / JdbcMigrationLauncher pairs
+     */
+    public final void setControlledSystems(final HashMap controlledSystems)
+    {
+        this.controlledSystems = controlledSystems;
+    }
+
+    public final boolean getForceSync()
+    {
+        return forceSync;
+    }
+
+    public final void setForceSync(final boolean forceSync)
+    {
+        this.forceSync = forceSync;
+    }
+
+    /**
+     * @return the most nodes of a controlled system that a patch is applied to at the same time
+     */
+    public final int getMaxConcurrentNodes()
+    {
+        return maxConcurrentNodes;
+    }
+
+    /**
+     * Sets the most nodes of a controlled system that a patch is applied to at the same time.
+     * Each node runs a copy of the patch of its own; patches that can be recreated neither
+     * with {@link CopyableMigrationTask#copy()} nor with a no-argument constructor are
+     * applied to one node at a time.
+     *
+     * @param maxConcurrentNodes the most nodes patched at the same time
+     */
+    public final void setMaxConcurrentNodes(final int maxConcurrentNodes)
+    {
+        if (maxConcurrentNodes < 1)
+        {
+            throw new IllegalArgumentException("maxConcurrentNodes must be at least 1");
+        }
+        this.maxConcurrentNodes = maxConcurrentNodes;
+    }
+
+    /**
+     * @return true if the other nodes carry on when a patch fails on one of them
+     */
+    public final boolean isContinueOnNodeFailure()
+    {
+        return continueOnNodeFailure;
+    }
+
+    /**
+     * Sets whether the other nodes carry on when a patch fails on one of them.
+     *
+     * @param continueOnNodeFailure true to leave the failed node out of sync and carry on
+     */
+    public final void setContinueOnNodeFailure(final boolean continueOnNodeFailure)
+    {
+        this.continueOnNodeFailure = continueOnNodeFailure;
+    }
+
+    /**
+     * @return how long to wait for a node's patch level, or a system's patches, in millis
+     */
+    public final long getNodeTimeoutMillis()
+    {
+        return nodeTimeoutMillis;
+    }
+
+    /**
+     * Sets how long to wait for a node's patch level, or a system's patches, before giving
+     * up on it.  The time is counted from when the node is read rather than from when it was
+     * queued.  Nodes whose patch table is a {@link PatchTable} also get a query timeout of
+     * as many seconds, rounded up, so a node that stops answering is given up on in the
+     * driver as well.
+     *
+     * @param nodeTimeoutMillis the timeout in millis; 0 waits as long as it takes
+     */
+    public final void setNodeTimeoutMillis(final long nodeTimeoutMillis)
+    {
+        this.nodeTimeoutMillis = nodeTimeoutMillis;
+    }
+
+    /**
+     * @return the number of nodes of each controlled system that new patches are rolled out to
+     *         first; 0 if patches are not rolled out in waves
+     */
+    public final int getCanaryNodes()
+    {
+        return canaryNodes;
+    }
+
+    /**
+     * Rolls new patches out to a few nodes of each controlled system first, and then to the
+     * other nodes in waves of increasing size, each of which must succeed before the next one
+     * starts.
+     *
+     * @param canaryNodes the number of nodes of each system in the first wave; 0 applies each
+     *                    patch to every node before the next patch starts
+     * @throws IllegalArgumentException if <code>canaryNodes</code> is negative
+     */
+    public final void setCanaryNodes(final int canaryNodes)
+    {
+        if (canaryNodes < 0)
+        {
+            throw new IllegalArgumentException("canaryNodes can't be negative");
+        }
+        this.canaryNodes = canaryNodes;
+    }
+
+    /**
+     * @return how many times larger each wave of a rollout is than the wave before it
+     */
+    public final int getRolloutWaveFactor()
+    {
+        return rolloutWaveFactor;
+    }
+
+    /**
+     * Sets how many times larger each wave of a rollout is than the wave before it.
+     *
+     * @param rolloutWaveFactor the growth of each wave; 1 makes every wave the size of the
+     *                          canary wave
+     * @throws IllegalArgumentException if <code>rolloutWaveFactor</code> is less than 1
+     */
+    public final void setRolloutWaveFactor(final int rolloutWaveFactor)
+    {
+        if (rolloutWaveFactor < 1)
+        {
+            throw new IllegalArgumentException("rolloutWaveFactor must be at least 1");
+        }
+        this.rolloutWaveFactor = rolloutWaveFactor;
+    }
+
+    /**
+     * @return the check made on each wave of a rollout, or <code>null</code>
+     */
+    public final RolloutVerifier getRolloutVerifier()
+    {
+        return rolloutVerifier;
+    }
+
+    /**
+     * @param rolloutVerifier the check to make on the nodes of each wave of a rollout before
+     *                        the next wave starts; may be <code>null</code>
+     */
+    public final void setRolloutVerifier(final RolloutVerifier rolloutVerifier)
+    {
+        this.rolloutVerifier = rolloutVerifier;
+    }
+
+    /**
+     * Returns the nodes left out of sync by the last call to {@link #doMigrations}, which only
+     * happens when <code>continueOnNodeFailure</code> is set.
+     *
+     * @return the out-of-sync nodes, with the reason the patch failed on each
+     */
+    public final Map<JdbcMigrationContext, MigrationException> getOutOfSyncNodes()
+    {
+        return outOfSyncNodes;
+    }
+
+    /**
+     * The patch information of the orchestration system, read once so that nodes checked
+     * concurrently don't share its connection.
+     */
+    private static class PatchInfoSnapshot implements PatchInfoStore
+    {
+        /**
+         * The patch level
+         */
+        private int patchLevel;
+
+        /**
+         * The patches applied
+         */
+        private Set<Integer> patchesApplied;
+
+        /**
+         * Reads the patch information of the given store.
+         *
+         * @param store the store to read
+         * @throws MigrationException if the store could not be read
+         */
+        PatchInfoSnapshot(PatchInfoStore store) throws MigrationException
+        {
+            patchLevel = store.getPatchLevel();
+            patchesApplied = store.getPatchesApplied();
+        }
+
+        public void createPatchStoreIfNeeded()
+        {
+        }
+
+        public int getPatchLevel()
+        {
+            return patchLevel;
+        }
+
+        public void updatePatchLevel(int level)
+        {
+            throw new UnsupportedOperationException("Patch information snapshots are read-only");
+        }
+
+        public boolean isPatchStoreLocked()
+        {
+            return false;
+        }
+
+        public void lockPatchStore()
+        {
+            throw new UnsupportedOperationException("Patch information snapshots are read-only");
+        }
+
+        public void unlockPatchStore()
+        {
+            throw new UnsupportedOperationException("Patch information snapshots are read-only");
+        }
+
+        public boolean isPatchApplied(int level)
+        {
+            return (patchesApplied != null) && patchesApplied.contains(new Integer(level));
+        }
+
+        public void updatePatchLevelAfterRollBack(int rollbackLevel)
+        {
+            throw new UnsupportedOperationException("Patch information snapshots are read-only");
+        }
+
+        public Set<Integer> getPatchesApplied()
+        {
+            return patchesApplied;
+        }
     }
 }
@@ -109,6 +109,12 @@ public class MigrationProcess
      */
     private boolean readOnly = false;
 
+    /**
+     * The patch tasks found by searching the patch paths once, from which new instances are
+     * made instead of searching them each time; see {@link #loadMigrationTaskCatalog()}
+     */
+    private List<MigrationTask> migrationTaskCatalog = null;
+
     /**
      * Creates a new <code>Migration</code> instance.
      */
@@ -135,6 +141,16 @@ public class MigrationProcess
         this.broadcaster = migrationBroadcaster;
     }
 
+    /**
+     * Returns the <code>MigrationBroadcaster</code> for the current instance.
+     *
+     * @return the <code>MigrationBroadcaster</code> used to notify migration listeners
+     */
+    protected MigrationBroadcaster getMigrationBroadcaster()
+    {
+        return broadcaster;
+    }
+
     /**
      * Adds the given package to the migration task search path.
      *
@@ -552,9 +568,108 @@ public class MigrationProcess
      */
     public List<MigrationTask> getMigrationTasks() throws MigrationException
     {
+        List<MigrationTask> catalog = migrationTaskCatalog;
+        if (catalog != null)
+        {
+            List<MigrationTask> tasks = new ArrayList<MigrationTask>(catalog.size());
+            for (MigrationTask task : catalog)
+            {
+                tasks.add(newTaskInstance(task));
+            }
+            return tasks;
+        }
         return getTasksFromPackages(patchResourcePackages);
     }
 
+    /**
+     * Searches the patch paths once, and makes new instances of the tasks found for every
+     * migration until {@link #clearMigrationTaskCatalog()} is called.  This saves searching
+     * the patch paths again for each of many contexts that get the same patches, while each
+     * context still runs tasks of its own, so contexts can be migrated concurrently.
+     * <p/>
+     * Tasks are recreated with {@link CopyableMigrationTask#copy()}, or else with their
+     * no-argument constructor.  If a task found can be recreated neither way, no catalog is
+     * kept and the patch paths are searched for every migration, as before.
+     *
+     * @throws MigrationException if one or more migration tasks could not be created
+     */
+    public void loadMigrationTaskCatalog() throws MigrationException
+    {
+        migrationTaskCatalog = null;
+        List<MigrationTask> catalog = getMigrationTasks();
+        for (MigrationTask task : catalog)
+        {
+            if (copyTask(task) == null)
+            {
+                log.warn("Patch task " + task.getName() + " can't be recreated for each "
+                        + "context; it should implement CopyableMigrationTask.  Searching "
+                        + "the patch paths for every context instead.");
+                return;
+            }
+        }
+        migrationTaskCatalog = catalog;
+    }
+
+    /**
+     * Makes a new instance of a task that shares none of its state, so that the two can run
+     * in different contexts at the same time.
+     *
+     * @param task the task to copy
+     * @return the new instance, or <code>null</code> if the task can't be recreated as the
+     *         same class with the same name and level
+     */
+    protected final MigrationTask copyTask(MigrationTask task)
+    {
+        MigrationTask instance = null;
+        try
+        {
+            instance = newTaskInstance(task);
+        }
+        catch (MigrationException e)
+        {
+            log.debug("Could not recreate patch task " + task.getName(), e);
+        }
+        if ((instance == null) || (instance.getClass() != task.getClass())
+                || !task.getName().equals(instance.getName())
+                || !task.getLevel().equals(instance.getLevel()))
+        {
+            return null;
+        }
+        return instance;
+    }
+
+    /**
+     * Makes a new instance of a task in the task catalog.
+     *
+     * @param task the task in the catalog
+     * @return the new instance
+     * @throws MigrationException if the task can't be recreated
+     */
+    private MigrationTask newTaskInstance(MigrationTask task) throws MigrationException
+    {
+        if (task instanceof CopyableMigrationTask)
+        {
+            return ((CopyableMigrationTask) task).copy();
+        }
+        try
+        {
+            return (MigrationTask) task.getClass().getConstructor().newInstance();
+        }
+        catch (Exception e)
+        {
+            throw new MigrationException("Could not instantiate MigrationTask "
+                    + task.getClass().getName(), e);
+        }
+    }
+
+    /**
+     * Goes back to searching the patch paths for every migration.
+     */
+    public void clearMigrationTaskCatalog()
+    {
+        migrationTaskCatalog = null;
+    }
+
     /**
      * Returns a list of all post-patch migration tasks
      *
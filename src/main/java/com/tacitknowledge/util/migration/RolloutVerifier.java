@@ -0,0 +1,50 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration;
+
+import com.tacitknowledge.util.migration.jdbc.JdbcMigrationContext;
+
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Checks the nodes patched by one wave of a distributed rollout before the next, larger wave
+ * is patched; for example by running smoke-test queries against them.
+ *
+ * @see DistributedMigrationProcess#setCanaryNodes(int)
+ */
+public interface RolloutVerifier
+{
+    /**
+     * Initialize the verifier before patching begins.
+     *
+     * @param systemName the name of the orchestration system
+     * @param properties the properties loaded from migration.properties
+     * @throws MigrationException if the verifier can't be initialized
+     */
+    public void initialize(String systemName, Properties properties) throws MigrationException;
+
+    /**
+     * Verifies the nodes a wave has just patched.
+     *
+     * @param wave    the number of the wave, starting with 1 for the canary nodes
+     * @param nodes   the nodes patched by the wave
+     * @param patches the patches rolled out, in the order they were applied
+     * @throws MigrationException if the nodes are not healthy, which halts the rollout
+     */
+    public void verifyWave(int wave, List<JdbcMigrationContext> nodes,
+            List<MigrationTask> patches) throws MigrationException;
+}
@@ -0,0 +1,150 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Whether the nodes of the controlled systems of a distributed migration are at the
+ * orchestration system's patch level.  Every node is checked, so the report lists all
+ * the nodes that need attention at once.
+ *
+ * @see DistributedMigrationProcess#getSyncReport(PatchInfoStore)
+ */
+public class SyncReport
+{
+    /**
+     * The number of nodes checked
+     */
+    private int nodeCount = 0;
+
+    /**
+     * Descriptions of the nodes that are not at the current patch level
+     */
+    private List<String> outOfSyncNodes = new ArrayList<String>();
+
+    /**
+     * Descriptions of the nodes whose patch level could not be read
+     */
+    private List<String> unreachableNodes = new ArrayList<String>();
+
+    /**
+     * Records a node that is at the current patch level.
+     */
+    public void addInSyncNode()
+    {
+        nodeCount++;
+    }
+
+    /**
+     * Records a node that is not at the current patch level.
+     *
+     * @param description describes the node and its patch level
+     */
+    public void addOutOfSyncNode(String description)
+    {
+        nodeCount++;
+        outOfSyncNodes.add(description);
+    }
+
+    /**
+     * Records a node whose patch level could not be read, or not in time.
+     *
+     * @param description describes the node and what went wrong
+     */
+    public void addUnreachableNode(String description)
+    {
+        nodeCount++;
+        unreachableNodes.add(description);
+    }
+
+    /**
+     * @return the number of nodes checked
+     */
+    public int getNodeCount()
+    {
+        return nodeCount;
+    }
+
+    /**
+     * @return descriptions of the nodes that are not at the current patch level
+     */
+    public List<String> getOutOfSyncNodes()
+    {
+        return outOfSyncNodes;
+    }
+
+    /**
+     * @return descriptions of the nodes whose patch level could not be read
+     */
+    public List<String> getUnreachableNodes()
+    {
+        return unreachableNodes;
+    }
+
+    /**
+     * @return true if every node is at the current patch level
+     */
+    public boolean isInSync()
+    {
+        return outOfSyncNodes.isEmpty() && unreachableNodes.isEmpty();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString()
+    {
+        StringBuffer report = new StringBuffer();
+        if (isInSync())
+        {
+            return report.append("All ").append(nodeCount).append(" nodes are in sync.")
+                    .toString();
+        }
+        if (!outOfSyncNodes.isEmpty())
+        {
+            report.append(outOfSyncNodes.size()).append(" of ").append(nodeCount)
+                    .append(" nodes are out of sync:");
+            appendNodes(report, outOfSyncNodes);
+        }
+        if (!unreachableNodes.isEmpty())
+        {
+            if (report.length() > 0)
+            {
+                report.append("\n");
+            }
+            report.append(unreachableNodes.size()).append(" of ").append(nodeCount)
+                    .append(" nodes could not be checked:");
+            appendNodes(report, unreachableNodes);
+        }
+        return report.toString();
+    }
+
+    /**
+     * Appends one line per node to a report.
+     *
+     * @param report the report to append to
+     * @param nodes  the node descriptions to append
+     */
+    private void appendNodes(StringBuffer report, List<String> nodes)
+    {
+        for (String node : nodes)
+        {
+            report.append("\n  ").append(node);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Loads rows into a table through a database's own bulk loading path, such as PostgreSQL's
+ * <code>COPY</code>, rather than through one <code>INSERT</code> per row.  The bulk loader for
+ * a type of database is named by the <code>bulkLoader</code> property of its
+ * {@link DatabaseType}, and data loaders use it whenever it is set and supported by the
+ * connection's driver.  None of the bundled database types set it, so bulk loading is turned
+ * on in migration.properties, for instance with <code>postgres.bulkLoader</code>.
+ * <p/>
+ * Implementations must have a public no-argument constructor.  They load within the
+ * connection's current transaction, leaving the commit or rollback to the caller.
+ *
+ * @see DatabaseType#getBulkLoader()
+ */
+public interface BulkLoader
+{
+    /**
+     * Determines whether rows can be bulk loaded through a connection, for instance because
+     * its JDBC driver has the extensions the loader needs.
+     *
+     * @param conn the connection to load through
+     * @return true if {@link #load(Connection, String, String[], BulkRowReader)} can be used
+     *         with the connection
+     */
+    boolean isSupported(Connection conn);
+
+    /**
+     * Loads rows into a table.
+     *
+     * @param conn    the connection to load through
+     * @param table   the table to load
+     * @param columns the columns of the table each row has a value for, in order
+     * @param rows    the rows to load
+     * @return the number of rows loaded
+     * @throws SQLException if the rows could not be loaded
+     * @throws IOException  if the rows could not be read
+     */
+    long load(Connection conn, String table, String[] columns, BulkRowReader rows)
+            throws SQLException, IOException;
+}
@@ -0,0 +1,33 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc;
+
+import java.io.IOException;
+
+/**
+ * Hands the rows of a data load to a {@link BulkLoader} one at a time.
+ */
+public interface BulkRowReader
+{
+    /**
+     * Reads the next row.
+     *
+     * @return the values of the next row, with <code>null</code> for a SQL <code>NULL</code>,
+     *         or <code>null</code> at the end of the rows
+     * @throws IOException if the row could not be read
+     */
+    String[] next() throws IOException;
+}
@@ -0,0 +1,461 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc;
+
+import com.tacitknowledge.util.migration.MigrationContext;
+import com.tacitknowledge.util.migration.MigrationException;
+import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base class for data migrations that work through a table by key, a chunk of rows at a time,
+ * instead of in one huge statement.  Each chunk is committed on its own, which keeps locks,
+ * undo and replication lag small, and the last key of each chunk is checkpointed so a failed
+ * migration resumes where it stopped.
+ * <p/>
+ * Subclasses supply a keyset query and a per-chunk operation:
+ * <ul>
+ * <li>{@link #getKeySql()} returns the keys after the single <code>long</code> parameter, in
+ * ascending order; for example
+ * <code>SELECT id FROM orders WHERE id &gt; ? ORDER BY id</code>.  Each query reads only a
+ * chunk's worth of rows.</li>
+ * <li>{@link #migrateRange(JdbcMigrationContext, long, long)} migrates the rows between two keys,
+ * inclusive; for example <code>UPDATE orders SET ... WHERE id BETWEEN ? AND ?</code>.  It must
+ * not commit.</li>
+ * </ul>
+ * The chunk size adapts so that each chunk takes about {@link #getTargetChunkMillis()}.  If
+ * {@link #getCountSql()} is overridden, progress is logged with an estimate of the rows and time
+ * remaining.
+ *
+ * @see ChunkedMigrationTask
+ */
+public abstract class ChunkedDataMigrationTask extends ChunkedMigrationTask
+{
+    /**
+     * Class logger
+     */
+    private static Log log = LogFactory.getLog(ChunkedDataMigrationTask.class);
+
+    /**
+     * The number of rows in the first chunk
+     */
+    private int initialChunkSize = 1000;
+
+    /**
+     * The fewest rows in a chunk
+     */
+    private int minChunkSize = 100;
+
+    /**
+     * The most rows in a chunk
+     */
+    private int maxChunkSize = 50000;
+
+    /**
+     * How long, in milliseconds, each chunk should take
+     */
+    private long targetChunkMillis = 1000;
+
+    /**
+     * The number of rows in the next chunk
+     */
+    private int chunkSize = 0;
+
+    /**
+     * When the current chunk started, or 0 before the first chunk
+     */
+    private long chunkStartMillis = 0;
+
+    /**
+     * When this run started migrating, or 0 before the first chunk
+     */
+    private long startMillis = 0;
+
+    /**
+     * The number of rows migrated by this run
+     */
+    private long rowsMigrated = 0;
+
+    /**
+     * The number of rows left to migrate when this run started, or -1 if unknown
+     */
+    private long rowsToMigrate = -1;
+
+    /**
+     * {@inheritDoc}
+     */
+    public void up(MigrationContext context) throws MigrationException
+    {
+        chunkSize = 0;
+        chunkStartMillis = 0;
+        startMillis = 0;
+        rowsMigrated = 0;
+        rowsToMigrate = -1;
+        super.up(context);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected String migrateChunk(JdbcMigrationContext context, String checkpoint)
+            throws MigrationException
+    {
+        long now = System.currentTimeMillis();
+        boolean firstChunk = (chunkStartMillis == 0);
+        if (firstChunk)
+        {
+            startMillis = now;
+            chunkSize = initialChunkSize;
+        }
+        else
+        {
+            // the previous chunk's time includes committing it
+            adjustChunkSize(now - chunkStartMillis);
+        }
+        chunkStartMillis = now;
+
+        long afterKey = (checkpoint == null) ? getStartKey() : parseKey(checkpoint);
+        try
+        {
+            if (firstChunk)
+            {
+                rowsToMigrate = countRows(context, afterKey);
+            }
+
+            List keys = getNextKeys(context, afterKey, chunkSize);
+            if (keys.isEmpty())
+            {
+                return null;
+            }
+
+            long firstKey = ((Long) keys.get(0)).longValue();
+            long lastKey = ((Long) keys.get(keys.size() - 1)).longValue();
+            migrateRange(context, firstKey, lastKey);
+            rowsMigrated += keys.size();
+            logProgress();
+
+            return (keys.size() < chunkSize) ? null : String.valueOf(lastKey);
+        }
+        catch (SQLException e)
+        {
+            throw new MigrationException(getName() + ": error migrating the chunk after key "
+                    + afterKey, e);
+        }
+    }
+
+    /**
+     * Returns the keyset query.  It must take the key to start after as its only parameter and
+     * return keys in ascending order.
+     *
+     * @return the SQL that selects the keys to migrate
+     */
+    protected abstract String getKeySql();
+
+    /**
+     * Migrates the rows whose keys lie between the given keys, inclusive.  Do not commit.
+     *
+     * @param context  the context to migrate in
+     * @param firstKey the first key of the chunk
+     * @param lastKey  the last key of the chunk
+     * @throws SQLException       if the chunk could not be migrated
+     * @throws MigrationException if the chunk could not be migrated
+     */
+    protected abstract void migrateRange(JdbcMigrationContext context, long firstKey,
+            long lastKey) throws SQLException, MigrationException;
+
+    /**
+     * Returns SQL that counts the rows still to migrate, taking the key to start after as its
+     * only parameter.  Used only to estimate the time remaining.
+     *
+     * @return the SQL that counts the rows to migrate, or <code>null</code> (the default) if
+     *         the remaining time shouldn't be estimated
+     */
+    protected String getCountSql()
+    {
+        return null;
+    }
+
+    /**
+     * Returns the key the migration starts after.
+     *
+     * @return the key to start after; by default <code>Long.MIN_VALUE</code>
+     */
+    protected long getStartKey()
+    {
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the keys of the next chunk.
+     *
+     * @param context  the context to migrate in
+     * @param afterKey the key to start after
+     * @param limit    the most keys to return
+     * @return the next keys, as <code>Long</code>s, in ascending order
+     * @throws SQLException if the keys could not be read
+     */
+    protected List getNextKeys(JdbcMigrationContext context, long afterKey, int limit)
+            throws SQLException
+    {
+        List keys = new ArrayList(limit);
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = context.getConnection().prepareStatement(getKeySql());
+            stmt.setMaxRows(limit);
+            stmt.setLong(1, afterKey);
+            rs = stmt.executeQuery();
+            while (rs.next() && keys.size() < limit)
+            {
+                keys.add(new Long(rs.getLong(1)));
+            }
+        }
+        finally
+        {
+            SqlUtil.close(null, stmt, rs);
+        }
+        return keys;
+    }
+
+    /**
+     * Resizes the next chunk so it takes about the target time, given how long the last one
+     * took.  The size changes by at most a factor of two at a time, so one slow or fast chunk
+     * doesn't throw it too far.
+     *
+     * @param lastChunkMillis how long the last chunk took, in milliseconds
+     */
+    protected void adjustChunkSize(long lastChunkMillis)
+    {
+        int current = getChunkSize();
+        long size;
+        if (lastChunkMillis <= 0)
+        {
+            size = (long) current * 2;
+        }
+        else
+        {
+            size = current * targetChunkMillis / lastChunkMillis;
+            size = Math.max(current / 2, Math.min((long) current * 2, size));
+        }
+        chunkSize = (int) Math.max(minChunkSize, Math.min(maxChunkSize, size));
+    }
+
+    /**
+     * @return the number of rows in the next chunk
+     */
+    public int getChunkSize()
+    {
+        return (chunkSize == 0) ? initialChunkSize : chunkSize;
+    }
+
+    /**
+     * @return the number of rows migrated by this run
+     */
+    public long getRowsMigrated()
+    {
+        return rowsMigrated;
+    }
+
+    /**
+     * @return the number of rows migrated per second by this run, or 0 before the first chunk
+     */
+    public double getRowsPerSecond()
+    {
+        long elapsed = System.currentTimeMillis() - startMillis;
+        if (startMillis == 0 || rowsMigrated == 0)
+        {
+            return 0;
+        }
+        return rowsMigrated * 1000.0 / Math.max(1, elapsed);
+    }
+
+    /**
+     * @return the estimated number of rows left to migrate, or -1 if unknown
+     */
+    public long getEstimatedRowsRemaining()
+    {
+        if (rowsToMigrate < 0)
+        {
+            return -1;
+        }
+        return Math.max(0, rowsToMigrate - rowsMigrated);
+    }
+
+    /**
+     * @return the estimated time left, in milliseconds, or -1 if unknown
+     */
+    public long getEstimatedMillisRemaining()
+    {
+        long remaining = getEstimatedRowsRemaining();
+        double rate = getRowsPerSecond();
+        if (remaining < 0 || rate <= 0)
+        {
+            return -1;
+        }
+        return (long) (remaining * 1000 / rate);
+    }
+
+    /**
+     * @return the number of rows in the first chunk
+     */
+    public int getInitialChunkSize()
+    {
+        return initialChunkSize;
+    }
+
+    /**
+     * @param initialChunkSize the number of rows in the first chunk
+     */
+    public void setInitialChunkSize(int initialChunkSize)
+    {
+        this.initialChunkSize = initialChunkSize;
+    }
+
+    /**
+     * @return the fewest rows in a chunk
+     */
+    public int getMinChunkSize()
+    {
+        return minChunkSize;
+    }
+
+    /**
+     * @param minChunkSize the fewest rows in a chunk
+     */
+    public void setMinChunkSize(int minChunkSize)
+    {
+        this.minChunkSize = minChunkSize;
+    }
+
+    /**
+     * @return the most rows in a chunk
+     */
+    public int getMaxChunkSize()
+    {
+        return maxChunkSize;
+    }
+
+    /**
+     * @param maxChunkSize the most rows in a chunk
+     */
+    public void setMaxChunkSize(int maxChunkSize)
+    {
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    /**
+     * @return how long, in milliseconds, each chunk should take
+     */
+    public long getTargetChunkMillis()
+    {
+        return targetChunkMillis;
+    }
+
+    /**
+     * @param targetChunkMillis how long, in milliseconds, each chunk should take
+     */
+    public void setTargetChunkMillis(long targetChunkMillis)
+    {
+        this.targetChunkMillis = targetChunkMillis;
+    }
+
+    /**
+     * Counts the rows left to migrate, if the subclass says how.
+     *
+     * @param context  the context to migrate in
+     * @param afterKey the key to start after
+     * @return the number of rows left to migrate, or -1 if unknown
+     * @throws SQLException if the rows could not be counted
+     */
+    private long countRows(JdbcMigrationContext context, long afterKey) throws SQLException
+    {
+        String countSql = getCountSql();
+        if (countSql == null)
+        {
+            return -1;
+        }
+
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = context.getConnection().prepareStatement(countSql);
+            stmt.setLong(1, afterKey);
+            rs = stmt.executeQuery();
+            return rs.next() ? rs.getLong(1) : -1;
+        }
+        finally
+        {
+            SqlUtil.close(null, stmt, rs);
+        }
+    }
+
+    /**
+     * Logs how far the migration has got.
+     */
+    private void logProgress()
+    {
+        if (!log.isInfoEnabled())
+        {
+            return;
+        }
+
+        StringBuffer message = new StringBuffer(getName()).append(": migrated ")
+                .append(rowsMigrated).append(" rows at ")
+                .append(Math.round(getRowsPerSecond())).append(" rows/sec");
+        long rowsRemaining = getEstimatedRowsRemaining();
+        if (rowsRemaining >= 0)
+        {
+            message.append("; about ").append(rowsRemaining).append(" rows");
+            long millisRemaining = getEstimatedMillisRemaining();
+            if (millisRemaining >= 0)
+            {
+                message.append(" (").append(millisRemaining / 1000).append("s)");
+            }
+            message.append(" to go");
+        }
+        message.append("; chunk size ").append(chunkSize);
+        log.info(message.toString());
+    }
+
+    /**
+     * Parses a checkpoint written by this class.
+     *
+     * @param checkpoint the checkpoint
+     * @return the last key migrated
+     * @throws MigrationException if the checkpoint isn't a key
+     */
+    private long parseKey(String checkpoint) throws MigrationException
+    {
+        try
+        {
+            return Long.parseLong(checkpoint.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new MigrationException(getName() + ": checkpoint \"" + checkpoint
+                    + "\" is not a key", e);
+        }
+    }
+}
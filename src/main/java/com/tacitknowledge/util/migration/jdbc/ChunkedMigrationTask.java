@@ -0,0 +1,116 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc;
+
+import com.tacitknowledge.util.migration.MigrationContext;
+import com.tacitknowledge.util.migration.MigrationException;
+import com.tacitknowledge.util.migration.MigrationTaskSupport;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Base class for long-running Java patches that work through their data a chunk at a time.
+ * Each chunk is committed together with a checkpoint describing where the next chunk starts,
+ * such as the last key processed.  If the patch fails, the next run picks up from the last
+ * committed checkpoint rather than starting over.
+ * <p/>
+ * Subclasses implement {@link #migrateChunk(JdbcMigrationContext, String)}.  The last chunk is
+ * not committed by this class; it is committed with the patch level, like any other patch.
+ *
+ * @see PatchCheckpointTable
+ */
+public abstract class ChunkedMigrationTask extends MigrationTaskSupport
+{
+    /**
+     * Class logger
+     */
+    private static Log log = LogFactory.getLog(ChunkedMigrationTask.class);
+
+    /**
+     * {@inheritDoc}
+     */
+    public void up(MigrationContext ctx) throws MigrationException
+    {
+        JdbcMigrationContext context = (JdbcMigrationContext) ctx;
+        int level = getLevel().intValue();
+
+        // start from a clean slate, so the first checkpoint commits only our own work
+        context.commit();
+        PatchCheckpointTable checkpoints = createCheckpointTable(context);
+        String checkpoint = checkpoints.getCheckpoint(level);
+        if (checkpoint != null)
+        {
+            log.info(getName() + ": resuming from checkpoint \"" + checkpoint
+                    + "\" left by an earlier run");
+        }
+
+        int chunks = 0;
+        checkpoint = migrateChunk(context, checkpoint);
+        while (checkpoint != null)
+        {
+            chunks++;
+            checkpoints.saveCheckpoint(level, checkpoint);
+            context.commit();
+            if (log.isDebugEnabled())
+            {
+                log.debug(getName() + ": committed chunk " + chunks + " up to checkpoint \""
+                        + checkpoint + "\"");
+            }
+            checkpoint = migrateChunk(context, checkpoint);
+        }
+
+        checkpoints.clearCheckpoint(level);
+        log.info(getName() + ": finished after " + (chunks + 1) + " chunks");
+    }
+
+    /**
+     * Migrates the chunk of data that starts at the given checkpoint.  Chunks should be small
+     * enough to commit comfortably, and must not commit themselves.
+     *
+     * @param context    the context to migrate in
+     * @param checkpoint where to start, as returned by the previous call; <code>null</code> to
+     *                   start at the beginning
+     * @return the checkpoint the next chunk starts at, of at most
+     *         {@link PatchCheckpointTable#MAX_CHECKPOINT_LENGTH} characters, or
+     *         <code>null</code> if this was the last chunk
+     * @throws MigrationException if the chunk could not be migrated
+     */
+    protected abstract String migrateChunk(JdbcMigrationContext context, String checkpoint)
+            throws MigrationException;
+
+    /**
+     * Creates the table that records this task's progress.
+     *
+     * @param context the context the task is executed in
+     * @return the checkpoint table
+     * @throws MigrationException if the table could not be created
+     */
+    protected PatchCheckpointTable createCheckpointTable(JdbcMigrationContext context)
+            throws MigrationException
+    {
+        PatchCheckpointTable checkpoints = new PatchCheckpointTable(context);
+        checkpoints.createCheckpointTableIfNeeded();
+        return checkpoints;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString()
+    {
+        return getName();
+    }
+}
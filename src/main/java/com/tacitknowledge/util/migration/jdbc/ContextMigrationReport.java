@@ -0,0 +1,197 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc;
+
+import com.tacitknowledge.util.migration.MigrationException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Properties;
+
+/**
+ * The outcome of migrating each of a launcher's contexts, kept in a properties file between
+ * runs.  Each context is recorded under its database name as
+ * <code><i>name</i>.status</code> (<code>succeeded</code> or <code>quarantined</code>),
+ * <code><i>name</i>.patches</code>, <code><i>name</i>.attempts</code>,
+ * <code><i>name</i>.millis</code> and, for quarantined contexts, <code><i>name</i>.error</code>.
+ * A later run can read the report to migrate only the contexts that were quarantined.
+ *
+ * @see JdbcMigrationLauncher#setContextReportFile(String)
+ */
+public class ContextMigrationReport
+{
+    /**
+     * The status of a context that migrated successfully
+     */
+    public static final String SUCCEEDED = "succeeded";
+
+    /**
+     * The status of a context that still failed after all its retries
+     */
+    public static final String QUARANTINED = "quarantined";
+
+    /**
+     * The recorded outcomes
+     */
+    private Properties outcomes = new Properties();
+
+    /**
+     * Records the outcome of migrating a context.
+     *
+     * @param name   the name of the context
+     * @param result the outcome of migrating the context
+     */
+    public void addResult(String name, ContextMigrationResult result)
+    {
+        removeContext(name);
+        outcomes.setProperty(name + ".status", result.isSuccessful() ? SUCCEEDED : QUARANTINED);
+        outcomes.setProperty(name + ".patches", Integer.toString(result.getPatchCount()));
+        outcomes.setProperty(name + ".attempts", Integer.toString(result.getAttempts()));
+        outcomes.setProperty(name + ".millis", Long.toString(result.getElapsedMillis()));
+        if (!result.isSuccessful())
+        {
+            outcomes.setProperty(name + ".error", String.valueOf(result.getException()
+                    .getMessage()));
+        }
+    }
+
+    /**
+     * Copies the outcome of a context from another report, such as the one left by an earlier
+     * run for a context that is not migrated again.
+     *
+     * @param name   the name of the context
+     * @param report the report to copy from
+     */
+    public void copyContext(String name, ContextMigrationReport report)
+    {
+        removeContext(name);
+        String prefix = name + ".";
+        for (Iterator i = report.outcomes.keySet().iterator(); i.hasNext();)
+        {
+            String key = (String) i.next();
+            if (key.startsWith(prefix))
+            {
+                outcomes.setProperty(key, report.outcomes.getProperty(key));
+            }
+        }
+    }
+
+    /**
+     * Returns the recorded status of a context.
+     *
+     * @param name the name of the context
+     * @return {@link #SUCCEEDED}, {@link #QUARANTINED}, or <code>null</code> if the context
+     *         is not in the report
+     */
+    public String getStatus(String name)
+    {
+        return outcomes.getProperty(name + ".status");
+    }
+
+    /**
+     * Reads a report written by {@link #store(File)}.
+     *
+     * @param file the file to read
+     * @return the report
+     * @throws MigrationException if the file could not be read
+     */
+    public static ContextMigrationReport load(File file) throws MigrationException
+    {
+        ContextMigrationReport report = new ContextMigrationReport();
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream(file);
+            report.outcomes.load(in);
+            return report;
+        }
+        catch (IOException e)
+        {
+            throw new MigrationException("Unable to read context report " + file, e);
+        }
+        finally
+        {
+            close(in);
+        }
+    }
+
+    /**
+     * Writes the report to a file, replacing it.
+     *
+     * @param file the file to write
+     * @throws MigrationException if the file could not be written
+     */
+    public void store(File file) throws MigrationException
+    {
+        OutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(file);
+            outcomes.store(out, "AutoPatch context migration report");
+        }
+        catch (IOException e)
+        {
+            throw new MigrationException("Unable to write context report " + file, e);
+        }
+        finally
+        {
+            close(out);
+        }
+    }
+
+    /**
+     * Forgets the recorded outcome of a context.
+     *
+     * @param name the name of the context
+     */
+    private void removeContext(String name)
+    {
+        String prefix = name + ".";
+        for (Iterator i = outcomes.keySet().iterator(); i.hasNext();)
+        {
+            if (((String) i.next()).startsWith(prefix))
+            {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Closes a stream, ignoring any error.
+     *
+     * @param stream the stream to close; may be <code>null</code>
+     */
+    private static void close(Closeable stream)
+    {
+        if (stream != null)
+        {
+            try
+            {
+                stream.close();
+            }
+            catch (IOException e)
+            {
+                // nothing more we can do
+            }
+        }
+    }
+}
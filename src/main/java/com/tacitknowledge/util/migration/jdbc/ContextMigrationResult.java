@@ -0,0 +1,140 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc;
+
+/**
+ * The outcome of migrating a single context.
+ *
+ * @see JdbcMigrationLauncher#getContextResults()
+ */
+public class ContextMigrationResult
+{
+    /**
+     * The context that was migrated
+     */
+    private JdbcMigrationContext context;
+
+    /**
+     * The number of patches applied to the context
+     */
+    private int patchCount;
+
+    /**
+     * The reason the context failed to migrate, or <code>null</code> if it succeeded
+     */
+    private Exception exception;
+
+    /**
+     * How long the context took to migrate, in milliseconds
+     */
+    private long elapsedMillis;
+
+    /**
+     * The number of attempts made to migrate the context
+     */
+    private int attempts;
+
+    /**
+     * Creates a new <code>ContextMigrationResult</code> for a single attempt.
+     *
+     * @param context       the context that was migrated
+     * @param patchCount    the number of patches applied to the context
+     * @param exception     the reason the context failed to migrate, or <code>null</code>
+     * @param elapsedMillis how long the context took to migrate, in milliseconds
+     */
+    public ContextMigrationResult(JdbcMigrationContext context, int patchCount,
+            Exception exception, long elapsedMillis)
+    {
+        this(context, patchCount, exception, elapsedMillis, 1);
+    }
+
+    /**
+     * Creates a new <code>ContextMigrationResult</code>.
+     *
+     * @param context       the context that was migrated
+     * @param patchCount    the number of patches applied to the context
+     * @param exception     the reason the context failed to migrate, or <code>null</code>
+     * @param elapsedMillis how long the context took to migrate, in milliseconds
+     * @param attempts      the number of attempts made to migrate the context
+     */
+    public ContextMigrationResult(JdbcMigrationContext context, int patchCount,
+            Exception exception, long elapsedMillis, int attempts)
+    {
+        this.context = context;
+        this.patchCount = patchCount;
+        this.exception = exception;
+        this.elapsedMillis = elapsedMillis;
+        this.attempts = attempts;
+    }
+
+    /**
+     * @return the context that was migrated
+     */
+    public JdbcMigrationContext getContext()
+    {
+        return context;
+    }
+
+    /**
+     * @return the number of patches applied to the context
+     */
+    public int getPatchCount()
+    {
+        return patchCount;
+    }
+
+    /**
+     * @return the reason the context failed to migrate, or <code>null</code> if it succeeded
+     */
+    public Exception getException()
+    {
+        return exception;
+    }
+
+    /**
+     * @return how long the context took to migrate, in milliseconds
+     */
+    public long getElapsedMillis()
+    {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return the number of attempts made to migrate the context
+     */
+    public int getAttempts()
+    {
+        return attempts;
+    }
+
+    /**
+     * @return true if the context migrated without error
+     */
+    public boolean isSuccessful()
+    {
+        return exception == null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString()
+    {
+        return context + ": " + (isSuccessful() ? patchCount + " patches applied"
+                : "failed (" + exception.getMessage() + ")") + " in " + elapsedMillis + "ms"
+                + ((attempts > 1) ? " after " + attempts + " attempts" : "");
+    }
+}
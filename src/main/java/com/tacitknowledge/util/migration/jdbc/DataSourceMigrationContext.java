@@ -16,6 +16,7 @@
 package com.tacitknowledge.util.migration.jdbc;
 
 import com.tacitknowledge.util.migration.MigrationException;
+import com.tacitknowledge.util.migration.jdbc.util.NonClosingConnectionHandler;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -60,6 +61,11 @@ public class DataSourceMigrationContext implements JdbcMigrationContext
      */
     private String databaseName = "";
 
+    /**
+     * The connection handed out while a transaction group is open, which can't be closed
+     */
+    private Connection groupConnection = null;
+
     /**
      * Returns the database connection to use
      *
@@ -70,17 +76,98 @@ public class DataSourceMigrationContext implements JdbcMigrationContext
     {
         if ((connection == null) || connection.isClosed())
         {
-            DataSource ds = getDataSource();
-            if (ds != null)
-            {
-                connection = ds.getConnection();
-            }
-            else
+            connection = openConnection();
+        }
+        if (groupConnection != null)
+        {
+            return groupConnection;
+        }
+        return connection;
+    }
+
+    /**
+     * Gets a new connection from the data source, set up the way this context sets up its
+     * own.  It is used when there is no open connection to hand out, and by tasks that need
+     * connections besides {@link #getConnection()}, which they must close themselves.
+     *
+     * @return the new connection
+     * @throws SQLException if there is no data source, or it can't supply a connection
+     */
+    public Connection openConnection() throws SQLException
+    {
+        DataSource ds = getDataSource();
+        if (ds == null)
+        {
+            throw new SQLException("Datasource is null");
+        }
+        return ds.getConnection();
+    }
+
+    /**
+     * Starts grouping several patches into one transaction.  Until the group is ended, calls to
+     * {@link #commit()} are ignored and the connection handed out by
+     * {@link #getConnection()} can't be closed, so everything done through this context lands
+     * in a single transaction.  {@link #rollback()} still rolls the whole group back.
+     *
+     * @throws MigrationException if a connection could not be obtained
+     */
+    public void beginTransactionGroup() throws MigrationException
+    {
+        try
+        {
+            groupConnection = null;
+            groupConnection = NonClosingConnectionHandler.wrap(getConnection());
+            log.debug("Started transaction group on " + this);
+        }
+        catch (SQLException e)
+        {
+            throw new MigrationException("Error starting transaction group", e);
+        }
+    }
+
+    /**
+     * Commits the work done so far in the transaction group.  The group stays open.
+     *
+     * @throws MigrationException if the transaction could not be committed
+     */
+    public void commitTransactionGroup() throws MigrationException
+    {
+        if (groupConnection == null)
+        {
+            commit();
+            return;
+        }
+
+        try
+        {
+            log.debug("Committing transaction group on " + this);
+            if (!groupConnection.getAutoCommit())
             {
-                throw new SQLException("Datasource is null");
+                groupConnection.commit();
             }
         }
-        return connection;
+        catch (SQLException e)
+        {
+            throw new MigrationException("Error committing SQL transaction group", e);
+        }
+    }
+
+    /**
+     * Ends the transaction group without committing; call {@link #commitTransactionGroup()}
+     * or {@link #rollback()} first.  Commits go straight to the database again afterwards.
+     */
+    public void endTransactionGroup()
+    {
+        groupConnection = null;
+        log.debug("Ended transaction group on " + this);
+    }
+
+    /**
+     * @return true if a transaction group is open, so commits are being deferred
+     */
+    public boolean isTransactionGroupOpen()
+    {
+        return groupConnection != null;
     }
 
     /**
@@ -88,6 +175,12 @@ public class DataSourceMigrationContext implements JdbcMigrationContext
      */
     public void commit() throws MigrationException
     {
+        if (isTransactionGroupOpen())
+        {
+            log.debug("Deferring commit until the transaction group is committed");
+            return;
+        }
+
         try
         {
             if (getConnection().getAutoCommit())
@@ -37,6 +37,38 @@ import java.util.Properties;
  * <li>lock.release - SQL that releases the patch lock for the system</li>
  * </ul>
  * <p/>
+ * Optional keys include:
+ * <ul>
+ * <li>supportsMultipleStatements - whether an entire SQL patch may be sent to the database in
+ * a single <code>Statement.execute</code> call (defaults to <code>false</code>)</li>
+ * <li>statementBatchSize - the maximum number of consecutive INSERT, UPDATE, DELETE or MERGE
+ * statements from a SQL patch to send in a single JDBC batch; 1 or less disables batching
+ * (defaults to 0)</li>
+ * <li>parameterizeInserts - whether runs of single-row INSERT statements with the same shape
+ * in a statement batch have their literals bound through one <code>PreparedStatement</code>
+ * (defaults to <code>false</code>)</li>
+ * <li>supportsMultiRowInsert - whether the database accepts several rows in one
+ * <code>INSERT ... VALUES</code> list, so parameterized inserts can be collapsed
+ * (defaults to <code>false</code>)</li>
+ * <li>supportsTransactionalDdl - whether DDL takes part in transactions rather than committing
+ * implicitly, so several patches can safely be applied in one transaction
+ * (defaults to <code>false</code>)</li>
+ * <li>loadBatchSize - the number of rows a data loader inserts in each JDBC batch
+ * (defaults to 50)</li>
+ * <li>loadCommitInterval - the number of rows a data loader inserts between commits; 0 commits
+ * once, when the load is finished (defaults to 0)</li>
+ * <li>loadBatchMillis - the time each batch of a data loader should take to execute; setting
+ * it tunes the batch size while loading (defaults to 0, a fixed batch size)</li>
+ * <li>loadConnections - the number of connections a data loader spreads its rows over
+ * (defaults to 1)</li>
+ * <li>bulkLoader - the class name of the {@link BulkLoader} data loaders use to load files
+ * through the database's own bulk loading path; blank turns bulk loading off (defaults to
+ * none)</li>
+ * <li>streamXmlDataSets - whether DbUnit flat XML patches are streamed into the database in
+ * JDBC batches of <code>loadBatchSize</code> rows instead of being read into memory first
+ * (defaults to <code>false</code>)</li>
+ * </ul>
+ * <p/>
  * Use <i>postgres.properties</i> or <i>oracle.properties</i> as a baseline for adding
  * additional database types.
  * <p/>
@@ -51,6 +83,11 @@ import java.util.Properties;
  */
 public class DatabaseType
 {
+    /**
+     * The number of rows a data loader inserts in each batch, unless configured otherwise
+     */
+    public static final int DEFAULT_LOAD_BATCH_SIZE = 50;
+
     /**
      * The SQL statements and properties that are unique to this database flavor.
      */
@@ -170,9 +207,173 @@ public class DatabaseType
      */
     public boolean isMultipleStatementsSupported()
     {
-        String value = this.getProperty("supportsMultipleStatements");
-        String multiStatement = (value != null) ? value : "false";
-        return Boolean.valueOf(multiStatement).booleanValue();
+        return getBooleanProperty("supportsMultipleStatements");
+    }
+
+    /**
+     * Determines if runs of literal, single-row INSERT statements of the same shape should be
+     * executed through a <code>PreparedStatement</code> batch.  Only applies when statement
+     * batching is enabled.
+     *
+     * @return if literal inserts should be parameterized
+     * @see #getStatementBatchSize()
+     */
+    public boolean isInsertParameterizationEnabled()
+    {
+        return getBooleanProperty("parameterizeInserts");
+    }
+
+    /**
+     * Determines if the database accepts more than one row in the <code>VALUES</code> list of
+     * an <code>INSERT</code> statement.
+     *
+     * @return if multi-row inserts are supported
+     */
+    public boolean isMultiRowInsertSupported()
+    {
+        return getBooleanProperty("supportsMultiRowInsert");
+    }
+
+    /**
+     * Determines if DDL statements run inside the current transaction instead of committing it,
+     * which is what makes it safe to apply several patches in one transaction.
+     *
+     * @return if DDL is transactional for this database
+     */
+    public boolean isTransactionalDdlSupported()
+    {
+        return getBooleanProperty("supportsTransactionalDdl");
+    }
+
+    /**
+     * Determines whether DbUnit flat XML patches are streamed into the database in batches.
+     *
+     * @return true if flat XML data sets are streamed
+     * @see com.tacitknowledge.util.migration.jdbc.loader.FlatXmlDataSetMigrationTask
+     */
+    public boolean isXmlDataSetStreamingEnabled()
+    {
+        return getBooleanProperty("streamXmlDataSets");
+    }
+
+    /**
+     * Returns the maximum number of consecutive data manipulation statements in a SQL patch
+     * that are sent to the database in a single <code>Statement.executeBatch</code> call.
+     * A value of 1 or less means every statement is executed on its own.
+     *
+     * @return the maximum number of statements per JDBC batch
+     */
+    public int getStatementBatchSize()
+    {
+        return getIntProperty("statementBatchSize", 0);
+    }
+
+    /**
+     * Returns the number of rows a data loader inserts in each JDBC batch.
+     *
+     * @return the number of rows per batch of a data load
+     * @see SqlLoadMigrationTask
+     */
+    public int getLoadBatchSize()
+    {
+        return getIntProperty("loadBatchSize", DEFAULT_LOAD_BATCH_SIZE);
+    }
+
+    /**
+     * Returns the number of rows a data loader inserts between commits.
+     *
+     * @return the number of rows per commit of a data load, or 0 to commit once at the end
+     * @see SqlLoadMigrationTask
+     */
+    public int getLoadCommitInterval()
+    {
+        return getIntProperty("loadCommitInterval", 0);
+    }
+
+    /**
+     * Returns the time each batch of a data loader should take to execute.
+     *
+     * @return the target time of a data load batch in milliseconds, or 0 for a fixed batch size
+     * @see SqlLoadMigrationTask
+     */
+    public int getLoadBatchMillis()
+    {
+        return getIntProperty("loadBatchMillis", 0);
+    }
+
+    /**
+     * Returns the number of connections a data loader spreads its rows over.
+     *
+     * @return the number of connections of a data load
+     * @see SqlLoadMigrationTask
+     */
+    public int getLoadConnections()
+    {
+        return getIntProperty("loadConnections", 1);
+    }
+
+    /**
+     * Creates the bulk loader data loaders use on this type of database.
+     *
+     * @return a new bulk loader, or <code>null</code> if none is configured
+     * @throws IllegalArgumentException if the configured class can't be instantiated
+     * @see BulkLoader
+     */
+    public BulkLoader getBulkLoader()
+    {
+        String className = getProperty("bulkLoader");
+        if ((className == null) || (className.trim().length() == 0))
+        {
+            return null;
+        }
+        try
+        {
+            return (BulkLoader) Class.forName(className.trim()).newInstance();
+        }
+        catch (Exception e)
+        {
+            throw new IllegalArgumentException("Bulk loader " + className
+                    + " cannot be instantiated: " + e);
+        }
+    }
+
+    /**
+     * Returns the named property as a <code>boolean</code>.
+     *
+     * @param propertyName the property to retrieve
+     * @return the value of the property, or <code>false</code> if it doesn't exist
+     */
+    protected boolean getBooleanProperty(String propertyName)
+    {
+        String value = getProperty(propertyName);
+        return Boolean.valueOf((value != null) ? value.trim() : "false").booleanValue();
+    }
+
+    /**
+     * Returns the named property as an <code>int</code>.
+     *
+     * @param propertyName the property to retrieve
+     * @param defaultValue the value to return if the property is not set
+     * @return the value of the property, or <code>defaultValue</code> if it doesn't exist
+     * @throws IllegalArgumentException if the property is not a valid integer
+     */
+    protected int getIntProperty(String propertyName, int defaultValue)
+    {
+        String value = getProperty(propertyName);
+        if (value == null || value.trim().length() == 0)
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException nfe)
+        {
+            throw new IllegalArgumentException("Property " + databaseType + "." + propertyName
+                    + " must be an integer, but was '" + value + "'");
+        }
     }
 
     /**
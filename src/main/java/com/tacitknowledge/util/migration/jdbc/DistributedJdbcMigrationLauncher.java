@@ -20,6 +20,9 @@ import com.tacitknowledge.util.migration.MigrationException;
 import com.tacitknowledge.util.migration.MigrationProcess;
 import com.tacitknowledge.util.migration.MigrationRunnerFactory;
 
+import java.util.Iterator;
+import java.util.Map;
+
 /**
  * Core starting point for a distributed database migration run.
  * This class obtains a connection to the orchestration database,
@@ -27,7 +30,9 @@ import com.tacitknowledge.util.migration.MigrationRunnerFactory;
  * migration tasks to a <code>MigrationProcess</code> instance,
  * and then commits and cleans everything up at the end.
  * <p/>
- * This class is <b>NOT</b> threadsafe.
+ * It can be shared between threads only as described for {@link JdbcMigrationLauncher}.  The
+ * nodes of a controlled system may be patched on threads of their own, so listeners of the
+ * controlled systems must be threadsafe.
  *
  * @author Mike Hardy (mike@tacitknowledge.com)
  */
@@ -98,4 +103,19 @@ public class DistributedJdbcMigrationLauncher extends JdbcMigrationLauncher
 
         return super.doRollbacks(new int[]{rollbackLevel});
     }
+
+    /**
+     * Closes the connection pools of this launcher's contexts and of the launchers of the
+     * controlled systems.
+     */
+    public void close()
+    {
+        super.close();
+        Map controlledSystems =
+                ((DistributedMigrationProcess) getMigrationProcess()).getControlledSystems();
+        for (Iterator i = controlledSystems.values().iterator(); i.hasNext();)
+        {
+            ((JdbcMigrationLauncher) i.next()).close();
+        }
+    }
 }
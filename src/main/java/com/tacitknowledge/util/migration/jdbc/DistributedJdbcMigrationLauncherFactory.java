@@ -18,8 +18,10 @@ package com.tacitknowledge.util.migration.jdbc;
 import com.tacitknowledge.util.migration.DistributedMigrationProcess;
 import com.tacitknowledge.util.migration.MigrationContext;
 import com.tacitknowledge.util.migration.MigrationException;
+import com.tacitknowledge.util.migration.RolloutVerifier;
 import com.tacitknowledge.util.migration.jdbc.util.ConfigurationUtil;
 import com.tacitknowledge.util.migration.jdbc.util.NonPooledDataSource;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -44,8 +46,37 @@ import java.util.Properties;
  * <tr><td><i>systemName</i>.controlled.systems</td><td>comma-delimited systems to manage</td></tr>
  * </table>
  * <p>
+ * Optional properties include:
+ * <table>
+ * <tr><td><i>systemName</i>.maxConcurrentNodes</td>
+ * <td>Number of nodes of a controlled system to apply each patch to at the same time; every
+ * node finishes a patch before the next patch starts (defaults to 1, one after another)</td></tr>
+ * <tr><td><i>systemName</i>.continueOnNodeFailure</td>
+ * <td>boolean true to leave a node that a patch fails on out of sync and carry on patching the
+ * other nodes, then report the out-of-sync nodes at the end (defaults to false, stop once the
+ * failed patch has finished on every node)</td></tr>
+ * <tr><td><i>systemName</i>.nodeTimeoutMillis</td>
+ * <td>How long to wait for a node's patch level, or a controlled system's patches, before
+ * reporting it as unreachable (defaults to 0, wait as long as it takes).  Nodes are checked
+ * <i>systemName</i>.maxConcurrentNodes at a time</td></tr>
+ * <tr><td><i>systemName</i>.canaryNodes</td>
+ * <td>Number of nodes of each controlled system to roll new patches out to first; the other
+ * nodes are then patched in waves of increasing size, each of which must succeed before the
+ * next one starts (defaults to 0, apply each patch to every node before the next patch).
+ * Combine with <i>systemName</i>.maxConcurrentNodes to patch the nodes of a wave
+ * concurrently</td></tr>
+ * <tr><td><i>systemName</i>.rolloutWaveFactor</td>
+ * <td>How many times larger each wave of a rollout is than the one before it
+ * (defaults to 2)</td></tr>
+ * <tr><td><i>systemName</i>.rolloutVerifier</td>
+ * <td>Class name of a <code>RolloutVerifier</code> that checks the nodes of each wave before
+ * the next wave starts</td></tr>
+ * </table>
+ * <p>
  * For each system in the controlled systems list, the properties file should contain
- * information as directed in the documenation for JdbcMigrationLauncher.
+ * information as directed in the documenation for JdbcMigrationLauncher.  The orchestration
+ * context and each node can have a connection pool, set up with the same
+ * <code>jdbc.pool</code> properties.
  * <p/>
  * <p>
  * The <i>systemName</i>.listeners property only applies to the top level system name which manages
@@ -181,11 +212,7 @@ public class DistributedJdbcMigrationLauncherFactory extends JdbcMigrationLaunch
                 ConfigurationUtil.getRequiredParam(props, systemName + ".context");
 
         // Set up the data source
-        NonPooledDataSource ds = new NonPooledDataSource();
-        ds.setDriverClass(ConfigurationUtil.getRequiredParam(props, patchContext + ".jdbc.driver"));
-        ds.setDatabaseUrl(ConfigurationUtil.getRequiredParam(props, patchContext + ".jdbc.url"));
-        ds.setUsername(ConfigurationUtil.getRequiredParam(props, patchContext + ".jdbc.username"));
-        ds.setPassword(ConfigurationUtil.getRequiredParam(props, patchContext + ".jdbc.password"));
+        NonPooledDataSource ds = createDataSource(props, patchContext + ".jdbc");
 
         launcher.setMigrationStrategy(props.getProperty("migration.strategy"));
         // Get any post-patch task paths
@@ -205,6 +232,42 @@ public class DistributedJdbcMigrationLauncherFactory extends JdbcMigrationLaunch
             launcher.setLockPollRetries(Integer.parseInt(lockPollRetries));
         }
 
+        // See if they want to patch the nodes of each system concurrently
+        DistributedMigrationProcess process =
+                (DistributedMigrationProcess) launcher.getMigrationProcess();
+        String maxConcurrentNodes = props.getProperty(systemName + ".maxConcurrentNodes");
+        if (maxConcurrentNodes != null)
+        {
+            process.setMaxConcurrentNodes(Integer.parseInt(maxConcurrentNodes));
+        }
+        String nodeTimeoutMillis = props.getProperty(systemName + ".nodeTimeoutMillis");
+        if (nodeTimeoutMillis != null)
+        {
+            process.setNodeTimeoutMillis(Long.parseLong(nodeTimeoutMillis));
+        }
+        if ("true".equals(props.getProperty(systemName + ".continueOnNodeFailure")))
+        {
+            process.setContinueOnNodeFailure(true);
+        }
+
+        // See if they want to roll new patches out in waves
+        String canaryNodes = props.getProperty(systemName + ".canaryNodes");
+        if (canaryNodes != null)
+        {
+            process.setCanaryNodes(Integer.parseInt(canaryNodes));
+        }
+        String rolloutWaveFactor = props.getProperty(systemName + ".rolloutWaveFactor");
+        if (rolloutWaveFactor != null)
+        {
+            process.setRolloutWaveFactor(Integer.parseInt(rolloutWaveFactor));
+        }
+        String rolloutVerifier = props.getProperty(systemName + ".rolloutVerifier");
+        if (StringUtils.isNotBlank(rolloutVerifier))
+        {
+            process.setRolloutVerifier(loadRolloutVerifier(systemName, rolloutVerifier.trim(),
+                    props));
+        }
+
         // see if forcesync specified.  Value doesn't matter, just presence of system property enables syncing
         String forceSync = ConfigurationUtil.getOptionalParam("forcesync", System.getProperties(), null, 0);
         if (forceSync != null)
@@ -254,4 +317,34 @@ public class DistributedJdbcMigrationLauncherFactory extends JdbcMigrationLaunch
         ((DistributedMigrationProcess) launcher.getMigrationProcess())
                 .setControlledSystems(controlledSystems);
     }
+
+    /**
+     * Creates and initializes the <code>RolloutVerifier</code> named in the properties.
+     *
+     * @param systemName the name of the orchestration system
+     * @param className  the name of the verifier class
+     * @param properties the properties loaded from migration.properties
+     * @return the verifier
+     * @throws MigrationException if the verifier can't be created or initialized
+     */
+    protected RolloutVerifier loadRolloutVerifier(String systemName, String className,
+            Properties properties) throws MigrationException
+    {
+        try
+        {
+            Class c = Class.forName(className);
+            RolloutVerifier verifier = (RolloutVerifier) c.newInstance();
+            verifier.initialize(systemName, properties);
+            return verifier;
+        }
+        catch (MigrationException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new MigrationException("Exception while loading rollout verifier "
+                    + className, e);
+        }
+    }
 }
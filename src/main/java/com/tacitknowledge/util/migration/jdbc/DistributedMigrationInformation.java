@@ -112,11 +112,11 @@ public class DistributedMigrationInformation
         // The MigrationLauncher is responsible for handling the interaction
         // between the PatchTable and the underlying MigrationTasks; as each
         // task is executed, the patch level is incremented, etc.
+        DistributedJdbcMigrationLauncher launcher = null;
         try
         {
             DistributedJdbcMigrationLauncherFactory factory =
                     new DistributedJdbcMigrationLauncherFactory();
-            DistributedJdbcMigrationLauncher launcher = null;
 
             if (migrationSettings == null)
             {
@@ -147,5 +147,12 @@ public class DistributedMigrationInformation
             log.error(e);
             throw e;
         }
+        finally
+        {
+            if (launcher != null)
+            {
+                launcher.close();
+            }
+        }
     }
 }
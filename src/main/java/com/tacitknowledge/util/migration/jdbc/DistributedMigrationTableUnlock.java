@@ -83,12 +83,13 @@ public class DistributedMigrationTableUnlock
         // The MigrationLauncher is responsible for handling the interaction
         // between the PatchTable and the underlying MigrationTasks; as each
         // task is executed, the patch level is incremented, etc.
+        DistributedJdbcMigrationLauncher launcher = null;
         try
         {
             DistributedJdbcMigrationLauncherFactory factory =
                     new DistributedJdbcMigrationLauncherFactory();
-            DistributedJdbcMigrationLauncher launcher
-                    = (DistributedJdbcMigrationLauncher) factory.createMigrationLauncher(systemName, migrationSettings);
+            launcher = (DistributedJdbcMigrationLauncher)
+                    factory.createMigrationLauncher(systemName, migrationSettings);
 
             Map contextMap = launcher.getContexts();
             JdbcMigrationContext context =
@@ -100,5 +101,12 @@ public class DistributedMigrationTableUnlock
             log.error(e);
             throw e;
         }
+        finally
+        {
+            if (launcher != null)
+            {
+                launcher.close();
+            }
+        }
     }
 }
@@ -79,11 +79,11 @@ public class DistributedStandaloneMigrationLauncher
         // The MigrationLauncher is responsible for handling the interaction
         // between the PatchTable and the underlying MigrationTasks; as each
         // task is executed, the patch level is incremented, etc.
+        JdbcMigrationLauncher launcher = null;
         try
         {
             DistributedJdbcMigrationLauncherFactory factory =
                     new DistributedJdbcMigrationLauncherFactory();
-            JdbcMigrationLauncher launcher = null;
 
             if (migrationSettings == null)
             {
@@ -103,5 +103,12 @@ public class DistributedStandaloneMigrationLauncher
             log.error(e);
             throw e;
         }
+        finally
+        {
+            if (launcher != null)
+            {
+                launcher.close();
+            }
+        }
     }
 }
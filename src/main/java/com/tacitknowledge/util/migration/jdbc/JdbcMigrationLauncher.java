@@ -17,12 +17,20 @@ package com.tacitknowledge.util.migration.jdbc;
 
 import com.tacitknowledge.util.migration.*;
 import com.tacitknowledge.util.migration.jdbc.loader.FlatXmlDataSetTaskSource;
+import com.tacitknowledge.util.migration.jdbc.util.PooledDataSource;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Core starting point for a database migration run. This class obtains a
@@ -30,7 +38,22 @@ import java.util.*;
  * execution of the migration tasks to a <code>MigrationProcess</code>
  * instance, and then commits and cleans everything up at the end.
  * <p/>
- * This class is <b>NOT</b> threadsafe.
+ * When more than one context is configured, they are taken to be connections to one shared
+ * database, whose patch tables all record each patch, unless <code>independentContexts</code>
+ * is set.  The contexts are migrated one after another, or, if they are independent, several
+ * at a time when <code>maxConcurrentContexts</code> is more than 1.  Contexts
+ * migrated concurrently are isolated from each other: a failed context can be retried, and
+ * is then quarantined while the others carry on.  The outcome for each context can be written
+ * to a report file, from which a later run can migrate only the quarantined contexts.
+ * <p/>
+ * <b>Threading:</b> a launcher is not threadsafe as a whole.  Only one thread at a time may
+ * call <code>doMigrations</code>, <code>doRollbacks</code> or <code>close</code>, and the
+ * launcher must not be configured (contexts, paths, listeners, concurrency settings) while
+ * one of those calls is running; use a launcher of its own for each concurrent run.  Within
+ * a run, contexts migrated concurrently each get their own connection, patch table and task
+ * instances, so patch tasks don't need to be threadsafe, but migration listeners are called
+ * from the context threads and must be.  {@link #getContextResults()} can be read once a run
+ * has returned.
  *
  * @author Scott Askew (scott@tacitknowledge.com)
  */
@@ -81,6 +104,70 @@ public class JdbcMigrationLauncher implements RollbackListener
      */
     private String migrationStrategy;
 
+    /**
+     * The number of patches applied in each transaction on databases with transactional DDL.
+     * 1 commits after every patch; 0 applies all pending patches in a single transaction.
+     */
+    private int patchesPerTransaction = 1;
+
+    /**
+     * The number of patches applied since the transaction group was started, keyed by the
+     * contexts whose patches are currently being grouped into transactions
+     */
+    private Map<MigrationContext, Integer> groupedPatchCounts =
+            Collections.synchronizedMap(new HashMap<MigrationContext, Integer>());
+
+    /**
+     * The grouped contexts whose transaction group is set aside while a checkpointed patch
+     * commits its own progress
+     */
+    private Set<MigrationContext> suspendedGroups =
+            Collections.synchronizedSet(new HashSet<MigrationContext>());
+
+    /**
+     * The most contexts to migrate at the same time; 1 migrates them one after another
+     */
+    private int maxConcurrentContexts = 1;
+
+    /**
+     * Whether each context is a database of its own, whose patch table only records the
+     * patches applied to it, rather than one of several connections to a shared database
+     */
+    private boolean independentContexts = false;
+
+    /**
+     * The outcome for each context of the last call to {@link #doMigrations()}
+     */
+    private List<ContextMigrationResult> contextResults =
+            new ArrayList<ContextMigrationResult>();
+
+    /**
+     * Our contexts in which a patch has failed during this run; their patch tables are left
+     * alone from then on, so that they show up as out of sync
+     */
+    private Set<MigrationContext> failedContexts =
+            Collections.synchronizedSet(new HashSet<MigrationContext>());
+
+    /**
+     * How many more times to try a context migrated concurrently before quarantining it
+     */
+    private int contextRetries = 0;
+
+    /**
+     * How long to wait before retrying a failed context, doubled after every further failure
+     */
+    private long contextRetryMillis = 1000;
+
+    /**
+     * The file the outcome for each concurrently migrated context is written to, if any
+     */
+    private String contextReportFile = null;
+
+    /**
+     * If true, contexts that succeeded according to the existing context report are skipped
+     */
+    private boolean rerunQuarantinedContexts = false;
+
     /**
      * Create a new MigrationProcess and add a SqlScriptMigrationTaskSource
      */
@@ -115,8 +202,10 @@ public class JdbcMigrationLauncher implements RollbackListener
     /**
      * Starts the application migration process.
      *
-     * @return the number of patches applied
+     * @return the number of patches applied; if contexts are migrated concurrently, the total
+     *         across all contexts
      * @throws MigrationException if an unrecoverable error occurs during the migration
+     * @see #getContextResults()
      */
     public int doMigrations() throws MigrationException
     {
@@ -125,6 +214,19 @@ public class JdbcMigrationLauncher implements RollbackListener
             throw new MigrationException("You must configure a migration context");
         }
 
+        contextResults = new ArrayList<ContextMigrationResult>();
+        failedContexts.clear();
+        if ((maxConcurrentContexts > 1) && (contexts.size() > 1))
+        {
+            if (!isIndependentContexts())
+            {
+                throw new MigrationException("Contexts can only be migrated concurrently if "
+                        + "they are independent; set independentContexts as well as "
+                        + "maxConcurrentContexts");
+            }
+            return doConcurrentMigrations();
+        }
+
         try
         {
             Iterator contextIter = contexts.keySet().iterator();
@@ -133,9 +235,12 @@ public class JdbcMigrationLauncher implements RollbackListener
             {
                 JdbcMigrationContext context =
                         (JdbcMigrationContext) contextIter.next();
+                long start = System.currentTimeMillis();
                 migrationCount = doMigrations(context);
                 log.info("Executed " + migrationCount + " patches for context "
                         + context);
+                contextResults.add(new ContextMigrationResult(context, migrationCount, null,
+                        System.currentTimeMillis() - start));
             }
             return migrationCount;
         }
@@ -145,6 +250,217 @@ public class JdbcMigrationLauncher implements RollbackListener
         }
     }
 
+    /**
+     * Migrates all contexts on a pool of at most <code>maxConcurrentContexts</code> threads.
+     * Each context is locked, dry-run and patched independently, and a failure in one context
+     * does not stop the others.  Idle threads take the next waiting context, so slow contexts
+     * don't hold up the rest.
+     *
+     * @return the total number of patches applied across all contexts
+     * @throws MigrationException if any context failed to migrate; the message lists every
+     *                            failed context
+     */
+    private int doConcurrentMigrations() throws MigrationException
+    {
+        // with a report from an earlier run, skip the contexts that succeeded then
+        File reportFile = (contextReportFile == null) ? null : new File(contextReportFile);
+        ContextMigrationReport lastReport = null;
+        if (rerunQuarantinedContexts && (reportFile != null) && reportFile.exists())
+        {
+            lastReport = ContextMigrationReport.load(reportFile);
+        }
+        List<JdbcMigrationContext> pending = new ArrayList<JdbcMigrationContext>();
+        for (JdbcMigrationContext context : contexts.keySet())
+        {
+            if ((lastReport != null) && ContextMigrationReport.SUCCEEDED.equals(
+                    lastReport.getStatus(getContextName(context))))
+            {
+                log.info("Skipping context " + context + ", which succeeded last time");
+            }
+            else
+            {
+                pending.add(context);
+            }
+        }
+
+        List<Future<ContextMigrationResult>> futures =
+                new ArrayList<Future<ContextMigrationResult>>();
+        ExecutorService executor = null;
+        try
+        {
+            if (!pending.isEmpty())
+            {
+                int threads = Math.min(maxConcurrentContexts, pending.size());
+                log.info("Migrating " + pending.size() + " contexts, up to " + threads
+                        + " at a time");
+                executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+                {
+                    private int count = 0;
+
+                    public synchronized Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "autopatch-context-" + (++count));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                for (final JdbcMigrationContext context : pending)
+                {
+                    futures.add(executor.submit(new Callable<ContextMigrationResult>()
+                    {
+                        public ContextMigrationResult call()
+                        {
+                            return migrateContext(context);
+                        }
+                    }));
+                }
+            }
+
+            int migrationCount = 0;
+            int failureCount = 0;
+            Exception firstFailure = null;
+            StringBuffer failures = new StringBuffer();
+            for (Future<ContextMigrationResult> future : futures)
+            {
+                ContextMigrationResult result = future.get();
+                contextResults.add(result);
+                migrationCount += result.getPatchCount();
+                if (!result.isSuccessful())
+                {
+                    failureCount++;
+                    if (firstFailure == null)
+                    {
+                        firstFailure = result.getException();
+                    }
+                    failures.append("\n  ").append(result.getContext()).append(": ")
+                            .append(result.getException().getMessage());
+                }
+            }
+
+            if (reportFile != null)
+            {
+                writeContextReport(reportFile, lastReport);
+            }
+            if (failureCount > 0)
+            {
+                throw new MigrationException(failureCount + " of " + pending.size()
+                        + " contexts failed to migrate:" + failures, firstFailure);
+            }
+            return migrationCount;
+        }
+        catch (InterruptedException e)
+        {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new MigrationException("Interrupted while waiting for contexts to migrate", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new MigrationException("Unexpected error migrating contexts", e.getCause());
+        }
+        finally
+        {
+            if (executor != null)
+            {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Migrates one context for {@link #doConcurrentMigrations()}, capturing the outcome.  A
+     * failed context is tried again up to <code>contextRetries</code> times, backing off
+     * between attempts, and then quarantined.
+     *
+     * @param context the context to migrate
+     * @return the outcome of migrating the context
+     */
+    private ContextMigrationResult migrateContext(JdbcMigrationContext context)
+    {
+        long start = System.currentTimeMillis();
+        long backoff = contextRetryMillis;
+        int patchCount = 0;
+        for (int attempt = 1;; attempt++)
+        {
+            try
+            {
+                patchCount += doMigrations(context);
+                log.info("Executed " + patchCount + " patches for context " + context);
+                return new ContextMigrationResult(context, patchCount, null,
+                        System.currentTimeMillis() - start, attempt);
+            }
+            catch (Exception e)
+            {
+                if (attempt > contextRetries)
+                {
+                    log.error("Migration failed for context " + context
+                            + ((attempt > 1) ? " after " + attempt + " attempts" : "")
+                            + "; quarantining it", e);
+                    return new ContextMigrationResult(context, patchCount, e,
+                            System.currentTimeMillis() - start, attempt);
+                }
+                log.warn("Migration failed for context " + context + " (attempt " + attempt
+                        + "); retrying in " + backoff + "ms", e);
+                try
+                {
+                    Thread.sleep(backoff);
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    return new ContextMigrationResult(context, patchCount, e,
+                            System.currentTimeMillis() - start, attempt);
+                }
+                backoff *= 2;
+            }
+        }
+    }
+
+    /**
+     * Writes the outcome of the last concurrent migration to the context report.  Contexts
+     * that were skipped keep their entry from the previous report.
+     *
+     * @param reportFile the report file to write
+     * @param lastReport the previous report, or <code>null</code> if no contexts were skipped
+     * @throws MigrationException if the report could not be written
+     */
+    private void writeContextReport(File reportFile, ContextMigrationReport lastReport)
+            throws MigrationException
+    {
+        ContextMigrationReport report = new ContextMigrationReport();
+        if (lastReport != null)
+        {
+            for (JdbcMigrationContext context : contexts.keySet())
+            {
+                report.copyContext(getContextName(context), lastReport);
+            }
+        }
+        for (ContextMigrationResult result : contextResults)
+        {
+            report.addResult(getContextName(result.getContext()), result);
+        }
+        report.store(reportFile);
+        log.info("Wrote the outcome for each context to " + reportFile);
+    }
+
+    /**
+     * Returns the name a context is recorded under in the context report: its database name,
+     * or its position among the contexts if it has none.
+     *
+     * @param context the context to name
+     * @return the name of the context
+     */
+    private String getContextName(JdbcMigrationContext context)
+    {
+        String name = context.getDatabaseName();
+        if ((name == null) || (name.length() == 0))
+        {
+            name = "context" + (new ArrayList<JdbcMigrationContext>(contexts.keySet())
+                    .indexOf(context) + 1);
+        }
+        return name;
+    }
+
     /**
      * Performs the application rollbacks
      *
@@ -384,6 +700,17 @@ public class JdbcMigrationLauncher implements RollbackListener
     public void migrationStarted(MigrationTask task, MigrationContext ctx) throws MigrationException
     {
         log.debug("Started task " + task.getName() + " for context " + ctx);
+
+        // a checkpointed patch has to commit each chunk, which a transaction group would defer
+        if (groupedPatchCounts.containsKey(ctx) && isCheckpointed(task))
+        {
+            log.info("Committing transaction group before " + task.getName()
+                    + ", which commits its own checkpoints, for context " + ctx);
+            DataSourceMigrationContext dataSourceContext = (DataSourceMigrationContext) ctx;
+            dataSourceContext.commitTransactionGroup();
+            dataSourceContext.endTransactionGroup();
+            suspendedGroups.add(ctx);
+        }
     }
 
     /**
@@ -394,16 +721,46 @@ public class JdbcMigrationLauncher implements RollbackListener
         log.debug("Task " + task.getName() + " was successful for context " + ctx + " in launcher " + this);
         int patchLevel = task.getLevel().intValue();
 
+        // only the context the task ran in has been patched if contexts are independent
+        boolean independent = isPatchedIndependently(ctx);
+
         // update all of our controlled patch tables
         for (Iterator patchTableIter = contexts.entrySet().iterator(); patchTableIter.hasNext();)
         {
-            PatchInfoStore store = (PatchInfoStore) ((Map.Entry) patchTableIter.next()).getValue();
+            Map.Entry entry = (Map.Entry) patchTableIter.next();
+            if (entry.getKey() != ctx
+                    && (independent || failedContexts.contains(entry.getKey())))
+            {
+                continue;
+            }
+            PatchInfoStore store = (PatchInfoStore) entry.getValue();
             MigrationRunnerStrategy strategy = getMigrationProcess().getMigrationRunnerStrategy();
             if (strategy.shouldMigrationRun(patchLevel, store))
             {
                 store.updatePatchLevel(patchLevel);
             }
         }
+
+        // the checkpointed patch and its record are committed; carry on grouping after it
+        if (suspendedGroups.remove(ctx))
+        {
+            resumeTransactionGroup((DataSourceMigrationContext) ctx);
+            return;
+        }
+
+        // the patch and its patch table record are in the transaction group now
+        Integer groupedPatchCount = groupedPatchCounts.get(ctx);
+        if (groupedPatchCount != null)
+        {
+            int count = groupedPatchCount.intValue() + 1;
+            groupedPatchCounts.put(ctx, new Integer(count));
+            if ((patchesPerTransaction > 0) && (count % patchesPerTransaction == 0))
+            {
+                log.info("Committing transaction group of " + patchesPerTransaction
+                        + " patches for context " + ctx);
+                ((DataSourceMigrationContext) ctx).commitTransactionGroup();
+            }
+        }
     }
 
     /**
@@ -413,6 +770,22 @@ public class JdbcMigrationLauncher implements RollbackListener
             throws MigrationException
     {
         log.debug("Task " + task.getName() + " failed for context " + ctx, e);
+        if (contexts.containsKey(ctx))
+        {
+            failedContexts.add(ctx);
+        }
+    }
+
+    /**
+     * Returns whether a patch that succeeded in a context was applied to that context alone,
+     * rather than to a database that all of this launcher's contexts share.
+     *
+     * @param ctx the context a patch succeeded in
+     * @return true if only the patch table of <code>ctx</code> should record the patch
+     */
+    protected boolean isPatchedIndependently(MigrationContext ctx)
+    {
+        return isIndependentContexts() && contexts.containsKey(ctx);
     }
 
     /**
@@ -462,6 +835,27 @@ public class JdbcMigrationLauncher implements RollbackListener
         return contexts;
     }
 
+    /**
+     * Closes the connection pools of this launcher's contexts.  Call this once the launcher
+     * is finished with; the contexts can't connect to their databases afterwards.  Contexts
+     * that don't use a {@link PooledDataSource} are left alone.
+     */
+    public void close()
+    {
+        for (Iterator i = contexts.keySet().iterator(); i.hasNext();)
+        {
+            Object context = i.next();
+            if (context instanceof DataSourceMigrationContext)
+            {
+                Object dataSource = ((DataSourceMigrationContext) context).getDataSource();
+                if (dataSource instanceof PooledDataSource)
+                {
+                    ((PooledDataSource) dataSource).close();
+                }
+            }
+        }
+    }
+
     /**
      * Performs the application migration process in one go
      *
@@ -486,16 +880,27 @@ public class JdbcMigrationLauncher implements RollbackListener
             boolean commitState = conn.getAutoCommit();
             conn.setAutoCommit(false);
 
-            // run the migrations
+            // run the migrations, several patches to a transaction if we can
+            boolean grouped = beginTransactionGroup(context);
+            boolean groupCommitted = false;
             try
             {
                 executedPatchCount = migrationProcess.doMigrations(patchTable,
                         context);
+                if (grouped)
+                {
+                    ((DataSourceMigrationContext) context).commitTransactionGroup();
+                    groupCommitted = true;
+                }
             }
 
             // restore autocommit state
             finally
             {
+                if (grouped)
+                {
+                    endTransactionGroup((DataSourceMigrationContext) context, !groupCommitted);
+                }
                 if ((conn != null) && !conn.isClosed())
                 {
                     conn.setAutoCommit(commitState);
@@ -561,6 +966,103 @@ public class JdbcMigrationLauncher implements RollbackListener
         }
     }
 
+    /**
+     * Starts applying patches to the given context in transaction groups, if configured and
+     * if the database can roll back DDL.
+     *
+     * @param context the context patches are about to be applied to
+     * @return true if a transaction group was started
+     * @throws MigrationException if the transaction group could not be started
+     */
+    private boolean beginTransactionGroup(JdbcMigrationContext context) throws MigrationException
+    {
+        if (patchesPerTransaction == 1)
+        {
+            return false;
+        }
+        if (!context.getDatabaseType().isTransactionalDdlSupported())
+        {
+            log.info("patchesPerTransaction is " + patchesPerTransaction + ", but "
+                    + context.getDatabaseType() + " does not support transactional DDL;"
+                    + " committing after every patch");
+            return false;
+        }
+        if (!(context instanceof DataSourceMigrationContext))
+        {
+            log.info("Context " + context + " does not support transaction groups;"
+                    + " committing after every patch");
+            return false;
+        }
+
+        ((DataSourceMigrationContext) context).beginTransactionGroup();
+        groupedPatchCounts.put(context, new Integer(0));
+        log.info("Applying " + ((patchesPerTransaction > 0) ? "up to " + patchesPerTransaction
+                : "all") + " patches per transaction for context " + context);
+        return true;
+    }
+
+    /**
+     * Stops grouping patches into transactions.
+     *
+     * @param context  the context whose patches were grouped
+     * @param rollback true if uncommitted work in the group should be rolled back
+     * @throws MigrationException if the rollback fails
+     */
+    private void endTransactionGroup(DataSourceMigrationContext context, boolean rollback)
+            throws MigrationException
+    {
+        groupedPatchCounts.remove(context);
+        suspendedGroups.remove(context);
+        try
+        {
+            if (rollback)
+            {
+                context.rollback();
+            }
+        }
+        finally
+        {
+            context.endTransactionGroup();
+        }
+    }
+
+    /**
+     * Starts a new transaction group for a context whose group was set aside for a
+     * checkpointed patch.
+     *
+     * @param context the context whose patches are being grouped
+     * @throws MigrationException if the transaction group could not be started
+     */
+    private void resumeTransactionGroup(DataSourceMigrationContext context)
+            throws MigrationException
+    {
+        try
+        {
+            // the patch table may have closed the connection the group was started on
+            context.getConnection().setAutoCommit(false);
+        }
+        catch (SQLException e)
+        {
+            throw new MigrationException("Error resuming transaction group", e);
+        }
+        context.beginTransactionGroup();
+        groupedPatchCounts.put(context, new Integer(0));
+    }
+
+    /**
+     * Determines whether a patch commits checkpoints of its own progress as it runs, which
+     * can't be deferred to the end of a transaction group.
+     *
+     * @param task the patch
+     * @return true if the patch commits checkpoints
+     */
+    private boolean isCheckpointed(MigrationTask task)
+    {
+        return (task instanceof ChunkedMigrationTask)
+                || ((task instanceof SqlScriptMigrationTask)
+                        && ((SqlScriptMigrationTask) task).isResumable());
+    }
+
     /**
      * create a patch table object for use in migrations
      *
@@ -764,6 +1266,190 @@ public class JdbcMigrationLauncher implements RollbackListener
         }
     }
 
+    /**
+     * Returns the most contexts migrated at the same time.
+     *
+     * @return the most contexts migrated at the same time; 1 migrates them one after another
+     */
+    public int getMaxConcurrentContexts()
+    {
+        return maxConcurrentContexts;
+    }
+
+    /**
+     * Sets the most contexts migrated at the same time.  With more than 1, each context is
+     * locked, checked and patched independently on its own thread, a failure in one context
+     * doesn't stop the others, and <code>doMigrations</code> reports every failed context
+     * together once all of them have finished.  Only independent contexts can be migrated
+     * concurrently; this setting doesn't change which patch tables record a patch.
+     *
+     * @param maxConcurrentContexts the most contexts migrated at the same time
+     * @see #setIndependentContexts(boolean)
+     */
+    public void setMaxConcurrentContexts(int maxConcurrentContexts)
+    {
+        if (maxConcurrentContexts < 1)
+        {
+            throw new IllegalArgumentException("maxConcurrentContexts must be at least 1");
+        }
+        this.maxConcurrentContexts = maxConcurrentContexts;
+    }
+
+    /**
+     * @return true if each context's patch table only records the patches applied to that
+     *         context
+     */
+    public boolean isIndependentContexts()
+    {
+        return independentContexts;
+    }
+
+    /**
+     * Sets whether the contexts are separate databases, so that a patch that succeeds in one
+     * is only recorded in that context's patch table.  Otherwise the contexts are taken to
+     * be connections to one shared database, and a patch is recorded in the patch table of
+     * every context that hasn't failed.  Contexts must be independent to be migrated
+     * concurrently.
+     *
+     * @param independentContexts true if each context is a database of its own
+     */
+    public void setIndependentContexts(boolean independentContexts)
+    {
+        this.independentContexts = independentContexts;
+    }
+
+    /**
+     * @return how many more times a context migrated concurrently is tried before it is
+     *         quarantined
+     */
+    public int getContextRetries()
+    {
+        return contextRetries;
+    }
+
+    /**
+     * Sets how many more times a context migrated concurrently is tried before it is
+     * quarantined.  Patches are committed one at a time, so a retry picks up after the last
+     * patch that was applied.
+     *
+     * @param contextRetries the number of retries; 0 quarantines a context on its first failure
+     */
+    public void setContextRetries(int contextRetries)
+    {
+        if (contextRetries < 0)
+        {
+            throw new IllegalArgumentException("contextRetries must not be negative");
+        }
+        this.contextRetries = contextRetries;
+    }
+
+    /**
+     * @return how long to wait before the first retry of a failed context, in milliseconds
+     */
+    public long getContextRetryMillis()
+    {
+        return contextRetryMillis;
+    }
+
+    /**
+     * Sets how long to wait before the first retry of a failed context.  The wait doubles
+     * after every further failure.
+     *
+     * @param contextRetryMillis the wait in milliseconds
+     */
+    public void setContextRetryMillis(long contextRetryMillis)
+    {
+        if (contextRetryMillis < 0)
+        {
+            throw new IllegalArgumentException("contextRetryMillis must not be negative");
+        }
+        this.contextRetryMillis = contextRetryMillis;
+    }
+
+    /**
+     * @return the file the outcome for each concurrently migrated context is written to, or
+     *         <code>null</code> for none
+     */
+    public String getContextReportFile()
+    {
+        return contextReportFile;
+    }
+
+    /**
+     * Sets the file the outcome for each concurrently migrated context is written to.
+     *
+     * @param contextReportFile the path of the report; <code>null</code> for none
+     * @see ContextMigrationReport
+     */
+    public void setContextReportFile(String contextReportFile)
+    {
+        this.contextReportFile = contextReportFile;
+    }
+
+    /**
+     * @return true if only the contexts quarantined by the last run are migrated
+     */
+    public boolean isRerunQuarantinedContexts()
+    {
+        return rerunQuarantinedContexts;
+    }
+
+    /**
+     * Sets whether to migrate only the contexts that the existing context report doesn't
+     * record as succeeded.  Has no effect until the report file exists.
+     *
+     * @param rerunQuarantinedContexts true to skip the contexts that succeeded last time
+     */
+    public void setRerunQuarantinedContexts(boolean rerunQuarantinedContexts)
+    {
+        this.rerunQuarantinedContexts = rerunQuarantinedContexts;
+    }
+
+    /**
+     * Returns the outcome for each context of the last call to {@link #doMigrations()}, in
+     * the order the contexts were added.  If contexts are migrated one after another, the
+     * list stops at the first context that failed.
+     *
+     * @return the outcome for each context
+     */
+    public List<ContextMigrationResult> getContextResults()
+    {
+        return contextResults;
+    }
+
+    /**
+     * Returns the number of patches applied in each transaction on databases that support
+     * transactional DDL.
+     *
+     * @return 1 to commit after every patch, 0 to apply all pending patches in a single
+     *         transaction, or the number of patches per transaction
+     */
+    public int getPatchesPerTransaction()
+    {
+        return patchesPerTransaction;
+    }
+
+    /**
+     * Sets the number of patches applied in each transaction on databases that support
+     * transactional DDL.  Each group of patches, along with their patch table records, is
+     * committed or rolled back as a unit.  Databases without transactional DDL always commit
+     * after every patch.  Checkpointed patches, such as a {@link ChunkedMigrationTask} or a
+     * resumable SQL script, are never grouped: the group is committed before they start,
+     * they commit each chunk and their own patch level, and a new group starts after them.
+     *
+     * @param patchesPerTransaction 1 to commit after every patch, 0 to apply all pending
+     *                              patches in a single transaction, or the number of patches
+     *                              per transaction
+     */
+    public void setPatchesPerTransaction(int patchesPerTransaction)
+    {
+        if (patchesPerTransaction < 0)
+        {
+            throw new IllegalArgumentException("patchesPerTransaction cannot be negative");
+        }
+        this.patchesPerTransaction = patchesPerTransaction;
+    }
+
     public void setMigrationStrategy(String migrationStrategy)
     {
         this.migrationStrategy = migrationStrategy;
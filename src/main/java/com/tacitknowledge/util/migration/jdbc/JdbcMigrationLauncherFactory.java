@@ -20,6 +20,7 @@ import com.tacitknowledge.util.migration.MigrationException;
 import com.tacitknowledge.util.migration.MigrationListener;
 import com.tacitknowledge.util.migration.jdbc.util.ConfigurationUtil;
 import com.tacitknowledge.util.migration.jdbc.util.NonPooledDataSource;
+import com.tacitknowledge.util.migration.jdbc.util.PooledDataSource;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -65,6 +66,39 @@ import java.util.*;
  * all of the jdbc entries above should be present</td>
  * </tr>
  * <tr><td><i>systemName</i>.listeners</td><td>Comma separated list of fully qualified java class names that implement {@link MigrationListener}</td></tr>
+ * <tr><td><i>systemName</i>.patchesPerTransaction</td>
+ * <td>Number of patches to apply in each transaction on databases whose type sets
+ * <code>supportsTransactionalDdl</code>; 0 applies all pending patches in one transaction
+ * (defaults to 1)</td></tr>
+ * <tr><td><i>systemName</i>.independentContexts</td>
+ * <td>boolean true if the <code>jdbc.systems</code> are separate databases, each of whose
+ * patch tables only records the patches applied to it (defaults to false, one shared
+ * database)</td></tr>
+ * <tr><td><i>systemName</i>.maxConcurrentContexts</td>
+ * <td>Number of <code>jdbc.systems</code> databases to migrate at the same time; more than 1
+ * requires <code>independentContexts</code> (defaults to 1, one after another)</td></tr>
+ * <tr><td><i>systemName</i>.contextRetries</td>
+ * <td>Number of times to retry a database that fails while migrating concurrently before
+ * quarantining it (defaults to 0)</td></tr>
+ * <tr><td><i>systemName</i>.contextRetryMillis</td>
+ * <td>Milliseconds to wait before the first retry, doubled for each further retry
+ * (defaults to 1000)</td></tr>
+ * <tr><td><i>systemName</i>.contextReportFile</td>
+ * <td>File to write the outcome for each database to, when migrating concurrently</td></tr>
+ * <tr><td><i>systemName</i>.rerunQuarantinedContexts</td>
+ * <td>boolean true to migrate only the databases that the existing
+ * <code>contextReportFile</code> doesn't record as succeeded</td></tr>
+ * <tr><td><i>systemName</i>.jdbc.pool.size</td>
+ * <td>Most connections to keep open to the database; setting it reuses connections from a
+ * {@link PooledDataSource} instead of opening one per request</td></tr>
+ * <tr><td><i>systemName</i>.jdbc.pool.validationQuery</td>
+ * <td>Query to check a pooled connection with before it is reused</td></tr>
+ * <tr><td><i>systemName</i>.jdbc.pool.idleTimeoutMillis</td>
+ * <td>Milliseconds a pooled connection can stay unused before it is closed
+ * (defaults to 300000)</td></tr>
+ * <tr><td><i>systemName</i>.jdbc.pool.maxWaitMillis</td>
+ * <td>Milliseconds to wait for a pooled connection when all are in use
+ * (defaults to 30000)</td></tr>
  * </table>
  *
  * @author Scott Askew (scott@tacitknowledge.com)
@@ -154,6 +188,42 @@ public class JdbcMigrationLauncherFactory
             launcher.setLockPollRetries(Integer.parseInt(lockPollRetries));
         }
 
+        // See if they want several patches applied in each transaction
+        String patchesPerTransaction =
+                sce.getServletContext().getInitParameter("migration.patchesPerTransaction");
+        if (patchesPerTransaction != null)
+        {
+            launcher.setPatchesPerTransaction(Integer.parseInt(patchesPerTransaction.trim()));
+        }
+
+        // See if the databases are patched independently, and several at the same time
+        launcher.setIndependentContexts("true".equals(
+                sce.getServletContext().getInitParameter("migration.independentContexts")));
+        String maxConcurrentContexts =
+                sce.getServletContext().getInitParameter("migration.maxConcurrentContexts");
+        if (maxConcurrentContexts != null)
+        {
+            launcher.setMaxConcurrentContexts(Integer.parseInt(maxConcurrentContexts.trim()));
+        }
+
+        // See if they want failed databases retried, and the outcome of each one recorded
+        String contextRetries =
+                sce.getServletContext().getInitParameter("migration.contextRetries");
+        if (contextRetries != null)
+        {
+            launcher.setContextRetries(Integer.parseInt(contextRetries.trim()));
+        }
+        String contextRetryMillis =
+                sce.getServletContext().getInitParameter("migration.contextRetryMillis");
+        if (contextRetryMillis != null)
+        {
+            launcher.setContextRetryMillis(Long.parseLong(contextRetryMillis.trim()));
+        }
+        launcher.setContextReportFile(
+                sce.getServletContext().getInitParameter("migration.contextReportFile"));
+        launcher.setRerunQuarantinedContexts("true".equals(
+                sce.getServletContext().getInitParameter("migration.rerunQuarantinedContexts")));
+
         String patchPath = ConfigurationUtil.getRequiredParam("migration.patchpath", sce, this);
         launcher.setPatchPath(patchPath);
 
@@ -323,6 +393,37 @@ public class JdbcMigrationLauncherFactory
             launcher.setLockPollMillis(Integer.parseInt(lockPollMillis));
         }
 
+        // See if they want several patches applied in each transaction
+        String patchesPerTransaction = props.getProperty(system + ".patchesPerTransaction");
+        if (patchesPerTransaction != null)
+        {
+            launcher.setPatchesPerTransaction(Integer.parseInt(patchesPerTransaction.trim()));
+        }
+
+        // See if the databases are patched independently, and several at the same time
+        launcher.setIndependentContexts(
+                "true".equals(props.getProperty(system + ".independentContexts")));
+        String maxConcurrentContexts = props.getProperty(system + ".maxConcurrentContexts");
+        if (maxConcurrentContexts != null)
+        {
+            launcher.setMaxConcurrentContexts(Integer.parseInt(maxConcurrentContexts.trim()));
+        }
+
+        // See if they want failed databases retried, and the outcome of each one recorded
+        String contextRetries = props.getProperty(system + ".contextRetries");
+        if (contextRetries != null)
+        {
+            launcher.setContextRetries(Integer.parseInt(contextRetries.trim()));
+        }
+        String contextRetryMillis = props.getProperty(system + ".contextRetryMillis");
+        if (contextRetryMillis != null)
+        {
+            launcher.setContextRetryMillis(Long.parseLong(contextRetryMillis.trim()));
+        }
+        launcher.setContextReportFile(props.getProperty(system + ".contextReportFile"));
+        launcher.setRerunQuarantinedContexts(
+                "true".equals(props.getProperty(system + ".rerunQuarantinedContexts")));
+
         // TODO refactor the database name extraction from this and the servlet example
         String databases = props.getProperty(system + ".jdbc.systems");
         String[] databaseNames;
@@ -345,15 +446,7 @@ public class JdbcMigrationLauncherFactory
             }
 
             // Set up the data source
-            NonPooledDataSource dataSource = new NonPooledDataSource();
-            dataSource.setDriverClass(ConfigurationUtil.getRequiredParam(props,
-                    system + db + ".driver"));
-            dataSource.setDatabaseUrl(ConfigurationUtil.getRequiredParam(props,
-                    system + db + ".url"));
-            dataSource.setUsername(ConfigurationUtil.getRequiredParam(props,
-                    system + db + ".username"));
-            dataSource.setPassword(ConfigurationUtil.getRequiredParam(props,
-                    system + db + ".password"));
+            NonPooledDataSource dataSource = createDataSource(props, system + db);
 
             // Set up the JDBC migration context; accepts one of two property names
             DataSourceMigrationContext context = getDataSourceMigrationContext();
@@ -381,6 +474,52 @@ public class JdbcMigrationLauncherFactory
         }
     }
 
+    /**
+     * Creates the data source for a database from the <code>driver</code>, <code>url</code>,
+     * <code>username</code> and <code>password</code> properties under the given prefix.  The
+     * data source is a {@link PooledDataSource} if <code><i>prefix</i>.pool.size</code> is set;
+     * the pool is closed by {@link JdbcMigrationLauncher#close()}.
+     *
+     * @param props  the properties to read
+     * @param prefix the prefix of the database's properties, such as
+     *               <code><i>systemName</i>.jdbc</code>
+     * @return the data source for the database
+     * @throws IllegalArgumentException if a required property is missing or a pool property
+     *                                  is invalid
+     */
+    protected NonPooledDataSource createDataSource(Properties props, String prefix)
+            throws IllegalArgumentException
+    {
+        NonPooledDataSource dataSource;
+        String poolSize = props.getProperty(prefix + ".pool.size");
+        if (poolSize == null)
+        {
+            dataSource = new NonPooledDataSource();
+        }
+        else
+        {
+            PooledDataSource pool = new PooledDataSource();
+            pool.setMaxConnections(Integer.parseInt(poolSize.trim()));
+            pool.setValidationQuery(props.getProperty(prefix + ".pool.validationQuery"));
+            String idleTimeoutMillis = props.getProperty(prefix + ".pool.idleTimeoutMillis");
+            if (idleTimeoutMillis != null)
+            {
+                pool.setIdleTimeoutMillis(Long.parseLong(idleTimeoutMillis.trim()));
+            }
+            String maxWaitMillis = props.getProperty(prefix + ".pool.maxWaitMillis");
+            if (maxWaitMillis != null)
+            {
+                pool.setMaxWaitMillis(Long.parseLong(maxWaitMillis.trim()));
+            }
+            dataSource = pool;
+        }
+        dataSource.setDriverClass(ConfigurationUtil.getRequiredParam(props, prefix + ".driver"));
+        dataSource.setDatabaseUrl(ConfigurationUtil.getRequiredParam(props, prefix + ".url"));
+        dataSource.setUsername(ConfigurationUtil.getRequiredParam(props, prefix + ".username"));
+        dataSource.setPassword(ConfigurationUtil.getRequiredParam(props, prefix + ".password"));
+        return dataSource;
+    }
+
     /**
      * Get a DataSourceMigrationContext
      *
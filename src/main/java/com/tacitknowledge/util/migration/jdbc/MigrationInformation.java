@@ -106,11 +106,11 @@ public class MigrationInformation
         // task is executed, the patch level is incremented, etc.
         int highestPatch = 0;
 
+        JdbcMigrationLauncher launcher = null;
         try
         {   //TODO should be injected
             JdbcMigrationLauncherFactory launcherFactory =
                     new JdbcMigrationLauncherFactoryLoader().createFactory();
-            JdbcMigrationLauncher launcher = null;
 
             if (migrationSettings == null)
             {
@@ -147,5 +147,12 @@ public class MigrationInformation
             log.error(e);
             throw e;
         }
+        finally
+        {
+            if (launcher != null)
+            {
+                launcher.close();
+            }
+        }
     }
 }
@@ -84,11 +84,12 @@ public class MigrationTableUnlock
         // The MigrationLauncher is responsible for handling the interaction
         // between the PatchTable and the underlying MigrationTasks; as each
         // task is executed, the patch level is incremented, etc.
+        JdbcMigrationLauncher launcher = null;
         try
         {   //TODO should be injected
             JdbcMigrationLauncherFactory launcherFactory =
                     new JdbcMigrationLauncherFactoryLoader().createFactory();
-            JdbcMigrationLauncher launcher = launcherFactory.createMigrationLauncher(systemName, migrationSettings);
+            launcher = launcherFactory.createMigrationLauncher(systemName, migrationSettings);
 
             // Print out information for all contexts
             Map contextMap = launcher.getContexts();
@@ -103,5 +104,12 @@ public class MigrationTableUnlock
             log.error(e);
             throw e;
         }
+        finally
+        {
+            if (launcher != null)
+            {
+                launcher.close();
+            }
+        }
     }
 }
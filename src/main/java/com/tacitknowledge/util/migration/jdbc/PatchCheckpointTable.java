@@ -0,0 +1,290 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc;
+
+import com.tacitknowledge.util.migration.MigrationException;
+import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+
+/**
+ * Records how far a resumable patch has got, so that a patch that fails part way through can
+ * continue from its last checkpoint instead of starting over.  A checkpoint is an opaque string
+ * of up to {@link #MAX_CHECKPOINT_LENGTH} characters, such as a statement index or the last key
+ * processed, kept per system and patch level.
+ * <p/>
+ * Checkpoints are written on the migration context's connection without committing, so they
+ * become durable together with the work they describe when the caller commits.  The table is
+ * created on first use from the <code>checkpoint.*</code> SQL of the database type.
+ *
+ * @see SqlScriptMigrationTask#isResumable()
+ * @see ChunkedMigrationTask
+ */
+public class PatchCheckpointTable
+{
+    /**
+     * The longest checkpoint that can be stored
+     */
+    public static final int MAX_CHECKPOINT_LENGTH = 255;
+
+    /**
+     * Class logger
+     */
+    private static Log log = LogFactory.getLog(PatchCheckpointTable.class);
+
+    /**
+     * The migration configuration
+     */
+    private JdbcMigrationContext context = null;
+
+    /**
+     * Keeps track of table validation (see #createCheckpointTableIfNeeded)
+     */
+    private boolean tableExistenceValidated = false;
+
+    /**
+     * Create a new <code>PatchCheckpointTable</code>.
+     *
+     * @param migrationContext the migration configuration and connection source
+     */
+    public PatchCheckpointTable(JdbcMigrationContext migrationContext)
+    {
+        this.context = migrationContext;
+    }
+
+    /**
+     * Creates the checkpoint table if it does not exist yet.  Creating the table commits the
+     * current transaction, so call this before the patch starts work.
+     *
+     * @throws MigrationException if the table could not be created
+     */
+    public void createCheckpointTableIfNeeded() throws MigrationException
+    {
+        if (tableExistenceValidated)
+        {
+            return;
+        }
+
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        Savepoint savepoint = null;
+        try
+        {
+            conn = context.getConnection();
+            savepoint = setSavepoint(conn);
+            stmt = conn.prepareStatement(getSql("checkpoint.read"));
+            stmt.setString(1, context.getSystemName());
+            stmt.setInt(2, 0);
+            rs = stmt.executeQuery();
+            log.debug("Checkpoint table already exists.");
+        }
+        catch (SQLException e)
+        {
+            log.debug(e.getMessage());
+            SqlUtil.close(null, stmt, rs);
+            rs = null;
+            if (null == conn)
+            {
+                throw new MigrationException("Unable to create a connection.", e);
+            }
+
+            // some databases won't run anything else in a transaction after an error
+            try
+            {
+                if (savepoint != null)
+                {
+                    conn.rollback(savepoint);
+                }
+                else
+                {
+                    context.rollback();
+                }
+            }
+            catch (SQLException sqle)
+            {
+                throw new MigrationException("Unable to roll back to savepoint", sqle);
+            }
+
+            log.info("Checkpoint table must not exist; creating....");
+            try
+            {
+                stmt = conn.prepareStatement(getSql("checkpoint.create"));
+                stmt.execute();
+                context.commit();
+            }
+            catch (SQLException sqle)
+            {
+                throw new MigrationException("Unable to create checkpoint table", sqle);
+            }
+            log.info("Created checkpoint table.");
+        }
+        finally
+        {
+            SqlUtil.close(null, stmt, rs);
+        }
+        tableExistenceValidated = true;
+    }
+
+    /**
+     * Returns the last checkpoint recorded for the given patch.
+     *
+     * @param patchLevel the level of the patch
+     * @return the last checkpoint, or <code>null</code> if the patch has not recorded one
+     * @throws MigrationException if the checkpoint could not be read
+     */
+    public String getCheckpoint(int patchLevel) throws MigrationException
+    {
+        createCheckpointTableIfNeeded();
+
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = context.getConnection().prepareStatement(getSql("checkpoint.read"));
+            stmt.setString(1, context.getSystemName());
+            stmt.setInt(2, patchLevel);
+            rs = stmt.executeQuery();
+            return rs.next() ? rs.getString(1) : null;
+        }
+        catch (SQLException e)
+        {
+            throw new MigrationException("Unable to read the checkpoint for patch level "
+                    + patchLevel, e);
+        }
+        finally
+        {
+            SqlUtil.close(null, stmt, rs);
+        }
+    }
+
+    /**
+     * Records a checkpoint for the given patch, replacing any earlier one.  The checkpoint is
+     * not committed.
+     *
+     * @param patchLevel the level of the patch
+     * @param checkpoint the checkpoint to record
+     * @throws MigrationException if the checkpoint could not be recorded
+     */
+    public void saveCheckpoint(int patchLevel, String checkpoint) throws MigrationException
+    {
+        if (checkpoint == null || checkpoint.length() > MAX_CHECKPOINT_LENGTH)
+        {
+            throw new MigrationException("Checkpoints must be non-null and at most "
+                    + MAX_CHECKPOINT_LENGTH + " characters long; got \"" + checkpoint + "\"");
+        }
+
+        createCheckpointTableIfNeeded();
+        if (executeUpdate("checkpoint.update", patchLevel, checkpoint) == 0)
+        {
+            executeUpdate("checkpoint.insert", patchLevel, checkpoint);
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug("Checkpoint for patch level " + patchLevel + " is now \"" + checkpoint
+                    + "\"");
+        }
+    }
+
+    /**
+     * Removes the checkpoint of the given patch, once it has been applied.  The removal is not
+     * committed.
+     *
+     * @param patchLevel the level of the patch
+     * @throws MigrationException if the checkpoint could not be removed
+     */
+    public void clearCheckpoint(int patchLevel) throws MigrationException
+    {
+        createCheckpointTableIfNeeded();
+        executeUpdate("checkpoint.delete", patchLevel, null);
+    }
+
+    /**
+     * Returns the SQL to execute for the database type associated with this table.
+     *
+     * @param key the key within <code><i>database</i>.properties</code> whose
+     *            SQL should be returned
+     * @return the SQL to execute for the database type associated with this table
+     */
+    protected String getSql(String key)
+    {
+        return context.getDatabaseType().getProperty(key);
+    }
+
+    /**
+     * Marks a savepoint to go back to if looking for the table fails, so that an open
+     * transaction (a transaction group, say) survives the failure.
+     *
+     * @param conn the connection to set the savepoint on
+     * @return the savepoint, or <code>null</code> if there is no transaction to protect or
+     *         the driver does not support savepoints
+     */
+    private Savepoint setSavepoint(Connection conn)
+    {
+        try
+        {
+            return conn.getAutoCommit() ? null : conn.setSavepoint();
+        }
+        catch (SQLException e)
+        {
+            log.debug("Savepoints are not available: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Executes one of the checkpoint updates, binding the checkpoint (if any) first, then the
+     * system name and patch level.
+     *
+     * @param sqlKey     the key of the SQL to execute
+     * @param patchLevel the level of the patch
+     * @param checkpoint the checkpoint to bind, or <code>null</code> for none
+     * @return the number of rows updated
+     * @throws MigrationException if the update fails
+     */
+    private int executeUpdate(String sqlKey, int patchLevel, String checkpoint)
+            throws MigrationException
+    {
+        PreparedStatement stmt = null;
+        try
+        {
+            stmt = context.getConnection().prepareStatement(getSql(sqlKey));
+            int i = 1;
+            if (checkpoint != null)
+            {
+                stmt.setString(i++, checkpoint);
+            }
+            stmt.setString(i++, context.getSystemName());
+            stmt.setInt(i, patchLevel);
+            return stmt.executeUpdate();
+        }
+        catch (SQLException e)
+        {
+            throw new MigrationException("Unable to update the checkpoint for patch level "
+                    + patchLevel, e);
+        }
+        finally
+        {
+            SqlUtil.close(null, stmt, null);
+        }
+    }
+}
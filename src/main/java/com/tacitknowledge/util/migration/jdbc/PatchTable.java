@@ -66,6 +66,11 @@ public class PatchTable implements PatchInfoStore
      */
     private boolean tableExistenceValidated = false;
 
+    /**
+     * The most seconds a statement on the patches table may run; 0 sets no limit
+     */
+    private int queryTimeout = 0;
+
     /**
      * Create a new <code>PatchTable</code>.
      *
@@ -98,7 +103,7 @@ public class PatchTable implements PatchInfoStore
         {
             conn = context.getConnection();
 
-            stmt = conn.prepareStatement(getSql("level.table.exists"));
+            stmt = prepareStatement(conn, "level.table.exists");
             stmt.setString(1, context.getSystemName());
             rs = stmt.executeQuery();
             if (!rs.next()) {
@@ -124,7 +129,7 @@ public class PatchTable implements PatchInfoStore
             log.info("'patches' table must not exist; creating....");
             try
             {
-                stmt = conn.prepareStatement(getSql("patches.create"));
+                stmt = prepareStatement(conn, "patches.create");
                 if (log.isDebugEnabled())
                 {
                     log.debug("Creating patches table with SQL '" + getSql("patches.create") + "'");
@@ -165,7 +170,7 @@ public class PatchTable implements PatchInfoStore
         try
         {
             conn = context.getConnection();
-            stmt = conn.prepareStatement(getSql("level.read"));
+            stmt = prepareStatement(conn, "level.read");
             stmt.setString(1, context.getSystemName());
             rs = stmt.executeQuery();
             if (rs.next())
@@ -203,7 +208,7 @@ public class PatchTable implements PatchInfoStore
         try
         {
             conn = context.getConnection();
-            stmt = conn.prepareStatement(getSql("level.update"));
+            stmt = prepareStatement(conn, "level.update");
             stmt.setInt(1, level);
             stmt.setString(2, context.getSystemName());
             stmt.execute();
@@ -232,7 +237,7 @@ public class PatchTable implements PatchInfoStore
         try
         {
             conn = context.getConnection();
-            stmt = conn.prepareStatement(getSql("lock.read"));
+            stmt = prepareStatement(conn, "lock.read");
             stmt.setString(1, context.getSystemName());
             stmt.setString(2, context.getSystemName());
             rs = stmt.executeQuery();
@@ -287,7 +292,7 @@ public class PatchTable implements PatchInfoStore
         try
         {
             conn = context.getConnection();
-            stmt = conn.prepareStatement(getSql("level.exists"));
+            stmt = prepareStatement(conn, "level.exists");
             stmt.setString(1, context.getSystemName());
             stmt.setString(2, String.valueOf(patchLevel));
             rs = stmt.executeQuery();
@@ -321,7 +326,7 @@ public class PatchTable implements PatchInfoStore
         try
         {
             conn = context.getConnection();
-            stmt = conn.prepareStatement(getSql("level.rollback"));
+            stmt = prepareStatement(conn, "level.rollback");
             stmt.setInt(1, rollbackLevel);
             stmt.setString(2, context.getSystemName());
             stmt.execute();
@@ -350,6 +355,45 @@ public class PatchTable implements PatchInfoStore
         return context.getDatabaseType().getProperty(key);
     }
 
+    /**
+     * Prepares a statement on the patches table, limiting how long it may run.
+     *
+     * @param conn the connection to prepare the statement on
+     * @param key  the key within <code><i>database</i>.properties</code> of the SQL
+     * @return the prepared statement
+     * @throws SQLException if the statement can't be prepared
+     */
+    private PreparedStatement prepareStatement(Connection conn, String key) throws SQLException
+    {
+        PreparedStatement stmt = conn.prepareStatement(getSql(key));
+        if (queryTimeout > 0)
+        {
+            stmt.setQueryTimeout(queryTimeout);
+        }
+        return stmt;
+    }
+
+    /**
+     * Returns the most seconds a statement on the patches table may run.
+     *
+     * @return the query timeout in seconds; 0 means no limit
+     */
+    public int getQueryTimeout()
+    {
+        return queryTimeout;
+    }
+
+    /**
+     * Sets the most seconds a statement on the patches table may run, so that a node that
+     * stops answering fails its statement instead of holding a thread forever.
+     *
+     * @param queryTimeout the query timeout in seconds; 0 means no limit
+     */
+    public void setQueryTimeout(int queryTimeout)
+    {
+        this.queryTimeout = queryTimeout;
+    }
+
     /**
      * Creates an initial record in the patches table for this system.
      *
@@ -364,7 +408,7 @@ public class PatchTable implements PatchInfoStore
         try
         {
             conn = context.getConnection();
-            stmt = conn.prepareStatement(getSql("level.create"));
+            stmt = prepareStatement(conn, "level.create");
             stmt.setString(1, systemName);
             stmt.execute();
             context.commit();
@@ -399,7 +443,7 @@ public class PatchTable implements PatchInfoStore
         try
         {
             conn = context.getConnection();
-            stmt = conn.prepareStatement(getSql(sqlkey));
+            stmt = prepareStatement(conn, sqlkey);
             if (log.isDebugEnabled())
             {
                 log.debug("Updating patch table lock: " + getSql(sqlkey));
@@ -440,7 +484,7 @@ public class PatchTable implements PatchInfoStore
         try
         {
             connection = context.getConnection();
-            stmt = connection.prepareStatement(getSql("patches.all"));
+            stmt = prepareStatement(connection, "patches.all");
             stmt.setString(1, context.getSystemName());
             resultSet = stmt.executeQuery();
             while (resultSet.next())
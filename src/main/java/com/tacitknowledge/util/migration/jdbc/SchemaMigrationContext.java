@@ -0,0 +1,231 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc;
+
+import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.MessageFormat;
+import java.util.regex.Pattern;
+
+/**
+ * A migration context for one schema of a database whose tenants each have their own schema.
+ * Every connection it gets from the data source, which is usually a pool shared by all the
+ * schemas, is switched to the schema (with the database type's <code>schema.set</code> SQL,
+ * such as <code>SET search_path</code> on PostgreSQL), so patches written without a schema
+ * name apply to this schema.  The connection's previous schema is put back before the
+ * connection is closed and returned to the pool.
+ * <p/>
+ * Use {@link TenantMigrationLauncher#addSchema(String)} to apply the same patches to many
+ * schemas and record each schema's patches in one central patches table.
+ */
+public class SchemaMigrationContext extends DataSourceMigrationContext
+{
+    /**
+     * Class logger
+     */
+    private static Log log = LogFactory.getLog(SchemaMigrationContext.class);
+
+    /**
+     * The schema names that can be put into SQL safely
+     */
+    private static final Pattern SCHEMA_NAME_PATTERN = Pattern.compile("[A-Za-z_][\\w$]*");
+
+    /**
+     * The schema to switch connections to
+     */
+    private String schemaName = null;
+
+    /**
+     * Returns the schema that connections are switched to.
+     *
+     * @return the schema that connections are switched to
+     */
+    public String getSchemaName()
+    {
+        return schemaName;
+    }
+
+    /**
+     * Sets the schema that connections are switched to.
+     *
+     * @param schemaName the schema that connections are switched to
+     * @throws IllegalArgumentException if <code>schemaName</code> is not a plain identifier
+     */
+    public void setSchemaName(String schemaName)
+    {
+        if ((schemaName == null) || !SCHEMA_NAME_PATTERN.matcher(schemaName).matches())
+        {
+            throw new IllegalArgumentException("Invalid schema name '" + schemaName + "'");
+        }
+        this.schemaName = schemaName;
+    }
+
+    /**
+     * Gets a new connection from the data source and switches it to the schema.
+     *
+     * @return a connection that switches back to its previous schema when it is closed
+     * @throws SQLException if the connection can't be opened or switched
+     */
+    public Connection openConnection() throws SQLException
+    {
+        if (schemaName == null)
+        {
+            throw new IllegalStateException("The schema name is required");
+        }
+        String currentSql = getDatabaseType().getProperty("schema.current");
+        String setSql = getDatabaseType().getProperty("schema.set");
+        if ((currentSql == null) || (setSql == null))
+        {
+            throw new IllegalStateException(getDatabaseType().getDatabaseType()
+                    + " does not support switching schemas");
+        }
+
+        Connection connection = super.openConnection();
+        Statement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = connection.createStatement();
+            rs = stmt.executeQuery(currentSql);
+            String previousSchema = rs.next() ? rs.getString(1) : null;
+            SqlUtil.close(null, null, rs);
+            rs = null;
+
+            stmt.execute(MessageFormat.format(setSql, new Object[] {schemaName}));
+            log.debug("Switched connection from schema " + previousSchema + " to "
+                    + schemaName);
+            String restoreSql = (previousSchema == null) ? null
+                    : MessageFormat.format(setSql, new Object[] {previousSchema});
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class[] {Connection.class},
+                    new SchemaRestoringHandler(connection, restoreSql));
+        }
+        catch (SQLException e)
+        {
+            SqlUtil.close(connection, null, null);
+            throw e;
+        }
+        finally
+        {
+            SqlUtil.close(null, stmt, rs);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString()
+    {
+        return "SchemaMigrationContext[" + getDatabaseType() + "/" + getSchemaName() + "/"
+                + getSystemName() + "]";
+    }
+
+    /**
+     * Switches a connection back to its previous schema before closing it.
+     */
+    private static class SchemaRestoringHandler implements InvocationHandler
+    {
+        /**
+         * The connection that was switched to the schema
+         */
+        private Connection connection;
+
+        /**
+         * The SQL that switches the connection back, or <code>null</code>
+         */
+        private String restoreSql;
+
+        /**
+         * Create a new <code>SchemaRestoringHandler</code>.
+         *
+         * @param connection the connection that was switched to the schema
+         * @param restoreSql the SQL that switches the connection back, or <code>null</code>
+         */
+        SchemaRestoringHandler(Connection connection, String restoreSql)
+        {
+            this.connection = connection;
+            this.restoreSql = restoreSql;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            if ("close".equals(method.getName()) && method.getParameterTypes().length == 0)
+            {
+                restoreSchema();
+            }
+            if ("equals".equals(method.getName()) && method.getParameterTypes().length == 1)
+            {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            if ("hashCode".equals(method.getName()) && method.getParameterTypes().length == 0)
+            {
+                return new Integer(System.identityHashCode(proxy));
+            }
+
+            try
+            {
+                return method.invoke(connection, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getTargetException();
+            }
+        }
+
+        /**
+         * Switches the connection back to its previous schema, once.  A failure is logged
+         * rather than thrown, so that the connection is still closed.
+         */
+        private void restoreSchema()
+        {
+            if (restoreSql == null)
+            {
+                return;
+            }
+            Statement stmt = null;
+            try
+            {
+                if (!connection.isClosed())
+                {
+                    stmt = connection.createStatement();
+                    stmt.execute(restoreSql);
+                }
+            }
+            catch (SQLException e)
+            {
+                log.warn("Could not switch connection back with '" + restoreSql + "'", e);
+            }
+            finally
+            {
+                SqlUtil.close(null, stmt, null);
+                restoreSql = null;
+            }
+        }
+    }
+}
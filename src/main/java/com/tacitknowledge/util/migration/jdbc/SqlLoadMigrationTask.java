@@ -31,9 +31,43 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Base class used for creating bulk data loading <code>MigrationTask</code>s.
+ * <p/>
+ * Rows are inserted in JDBC batches of <code>batchSize</code> rows, and committed every
+ * <code>commitInterval</code> rows or, by default, once at the end of the load.  Committing
+ * along the way keeps the database's undo or write-ahead log from growing with the file, but
+ * a failed load then leaves the rows committed before the failure in place.  With a
+ * <code>targetBatchMillis</code>, the batch size is tuned while loading: it grows while
+ * batches execute in well under the target, and shrinks when they take longer.
+ * <p/>
+ * With <code>loadConnections</code> above 1, rows are spread over that many connections,
+ * each with its own statement and batch, and the batches of different connections execute at
+ * the same time.  Rows are still read and bound on the loading thread.  By default, each
+ * connection in turn takes a batch of consecutive rows; a loader that returns a
+ * {@link #getPartitionKey(String) partition key} sends all the rows with the same key to the
+ * same connection instead, so that rows that lock the same index entries don't wait on each
+ * other.  Rows are not inserted in file order across connections.
+ * <p/>
+ * None of the connections commits until every row has been inserted, unless a commit interval
+ * is set.  If any row fails, every connection rolls back.  Once all the rows are in, the
+ * connections commit one after another: JDBC has no way to commit several connections at
+ * once, so a failure partway through those commits leaves the partitions already committed
+ * in place.  The database must also let several uncommitted transactions insert into the
+ * table at once, as databases with row-level locking do; on one that locks the whole table,
+ * load over a single connection.  Loads inside a transaction group always use the group's
+ * single connection.
+ * <p/>
+ * Each setting can be made on the loader, or for every loader on a type of database through
+ * the <code>loadBatchSize</code>, <code>loadCommitInterval</code>,
+ * <code>loadBatchMillis</code> and <code>loadConnections</code> properties of its
+ * {@link DatabaseType}.
  *
  * @author Scott Askew (scott@tacitknowledge.com)
  */
@@ -44,6 +78,31 @@ public abstract class SqlLoadMigrationTask extends MigrationTaskSupport
      */
     private static Log log = LogFactory.getLog(SqlLoadMigrationTask.class);
 
+    /**
+     * The most rows an adaptive batch can grow to
+     */
+    public static final int MAX_ADAPTIVE_BATCH_SIZE = 10000;
+
+    /**
+     * The number of rows to insert in each JDBC batch, or 0 to use the database type's
+     */
+    private int batchSize = 0;
+
+    /**
+     * The number of rows to insert between commits, or 0 to use the database type's
+     */
+    private int commitInterval = 0;
+
+    /**
+     * The time each batch should take to execute, or 0 to use the database type's
+     */
+    private long targetBatchMillis = 0;
+
+    /**
+     * The number of connections to spread rows over, or 0 to use the database type's
+     */
+    private int loadConnections = 0;
+
     /**
      * Creates a new <code>SqlScriptMigrationTask</code>.
      */
@@ -53,39 +112,87 @@ public abstract class SqlLoadMigrationTask extends MigrationTaskSupport
     }
 
     /**
-     * {@inheritDoc}
+     * Streams the rows of the data file into the database.  Rows are read one at a time and
+     * added to a batch of inserts, so only one batch of rows is held in memory however large
+     * the file is.
+     *
+     * @param ctx the <code>DataSourceMigrationContext</code> to load the data into
+     * @throws MigrationException if a row can't be read or inserted
      */
     public void migrate(MigrationContext ctx) throws MigrationException
     {
         DataSourceMigrationContext context = (DataSourceMigrationContext) ctx;
+        DatabaseType databaseType = context.getDatabaseType();
+        int connections = getLoadConnections(databaseType);
+        if (connections > 1)
+        {
+            if (!context.isTransactionGroupOpen())
+            {
+                migratePartitioned(context, connections);
+                return;
+            }
+            log.info(getName() + ": loading over the transaction group's connection");
+        }
+
+        int currentBatchSize = getBatchSize(databaseType);
+        int rowsPerCommit = getCommitInterval(databaseType);
+        long batchMillis = getTargetBatchMillis(databaseType);
 
         Connection conn = null;
         PreparedStatement stmt = null;
+        BufferedReader reader = null;
+        String sql = null;
+        int rowNumber = 0;
         try
         {
             conn = context.getConnection();
-            stmt = conn.prepareStatement(getStatmentSql());
-            List rows = getData(getResourceAsStream());
-            int rowCount = rows.size();
-            for (int i = 0; i < rowCount; i++)
+            sql = getStatmentSql();
+            stmt = conn.prepareStatement(sql);
+            reader = getReader(getResourceAsStream());
+            int batchedRows = 0;
+            int uncommittedRows = 0;
+            String data = null;
+            while ((data = readRow(reader)) != null)
             {
-                String data = (String) rows.get(i);
+                rowNumber++;
                 boolean loadRowFlag = insert(data, stmt);
                 if (loadRowFlag)
                 {
                     stmt.addBatch();
-                    if (i % 50 == 0)
+                    batchedRows++;
+                    uncommittedRows++;
+                }
+                if ((batchedRows > 0) && ((batchedRows >= currentBatchSize)
+                        || ((rowsPerCommit > 0) && (uncommittedRows >= rowsPerCommit))))
+                {
+                    long start = System.nanoTime();
+                    stmt.executeBatch();
+                    batchedRows = 0;
+                    if (batchMillis > 0)
                     {
-                        stmt.executeBatch();
+                        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+                        currentBatchSize =
+                                nextBatchSize(currentBatchSize, elapsedMillis, batchMillis);
                     }
                 }
+                if ((rowsPerCommit > 0) && (uncommittedRows >= rowsPerCommit))
+                {
+                    context.commit();
+                    uncommittedRows = 0;
+                    log.debug(getName() + ": committed through row " + rowNumber);
+                }
+            }
+            if (batchedRows > 0)
+            {
+                stmt.executeBatch();
             }
-            stmt.executeBatch();
             context.commit();
+            log.debug(getName() + ": loaded " + rowNumber + " rows");
         }
         catch (Exception e)
         {
-            String message = getName() + ": Error running SQL \"" + getStatmentSql() + "\"";
+            String message = getName() + ": Error running SQL \"" + sql + "\" on row "
+                    + rowNumber;
             log.error(message, e);
             if (e instanceof SQLException)
             {
@@ -102,7 +209,267 @@ public abstract class SqlLoadMigrationTask extends MigrationTaskSupport
         finally
         {
             SqlUtil.close(conn, stmt, null);
+            close(reader);
+        }
+    }
+
+    /**
+     * Streams the rows of the data file into the database over several connections, sending
+     * each row to one of them.
+     *
+     * @param context     the context to load the data into
+     * @param connections the number of connections to spread the rows over
+     * @throws MigrationException if a row can't be read or inserted
+     */
+    private void migratePartitioned(DataSourceMigrationContext context, int connections)
+            throws MigrationException
+    {
+        DatabaseType databaseType = context.getDatabaseType();
+        int initialBatchSize = getBatchSize(databaseType);
+        int rowsPerCommit = getCommitInterval(databaseType);
+        long batchMillis = getTargetBatchMillis(databaseType);
+
+        LoadPartition[] partitions = new LoadPartition[connections];
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        BufferedReader reader = null;
+        String sql = null;
+        int rowNumber = 0;
+        try
+        {
+            sql = getStatmentSql();
+            for (int i = 0; i < connections; i++)
+            {
+                partitions[i] = new LoadPartition(context, i, sql, initialBatchSize,
+                        rowsPerCommit, batchMillis);
+            }
+            reader = getReader(getResourceAsStream());
+            int current = 0;
+            String data = null;
+            while ((data = readRow(reader)) != null)
+            {
+                rowNumber++;
+                Object key = getPartitionKey(data);
+                LoadPartition partition = (key == null) ? partitions[current]
+                        : partitions[(key.hashCode() & Integer.MAX_VALUE) % connections];
+                partition.await();
+                if (insert(data, partition.stmt))
+                {
+                    partition.stmt.addBatch();
+                    partition.batchedRows++;
+                }
+                if (partition.batchedRows >= partition.batchSize)
+                {
+                    partition.execute(executor);
+                    if (key == null)
+                    {
+                        current = (current + 1) % connections;
+                    }
+                }
+            }
+            for (int i = 0; i < connections; i++)
+            {
+                partitions[i].await();
+                if (partitions[i].batchedRows > 0)
+                {
+                    partitions[i].execute(executor);
+                }
+            }
+            for (int i = 0; i < connections; i++)
+            {
+                partitions[i].await();
+            }
+
+            // every row is in; only now does any connection commit the end of its load
+            for (int i = 0; i < connections; i++)
+            {
+                partitions[i].commit();
+            }
+            log.debug(getName() + ": loaded " + rowNumber + " rows over " + connections
+                    + " connections");
+        }
+        catch (Exception e)
+        {
+            String message = getName() + ": Error running SQL \"" + sql + "\" by row "
+                    + rowNumber;
+            log.error(message, e);
+            if (e instanceof SQLException)
+            {
+                if (((SQLException) e).getNextException() != null)
+                {
+                    log.error("Chained SQL Exception", ((SQLException) e).getNextException());
+                }
+            }
+
+            for (int i = 0; i < connections; i++)
+            {
+                if (partitions[i] != null)
+                {
+                    partitions[i].rollback();
+                }
+            }
+
+            throw new MigrationException(message, e);
+        }
+        finally
+        {
+            executor.shutdownNow();
+            for (int i = 0; i < connections; i++)
+            {
+                if (partitions[i] != null)
+                {
+                    partitions[i].close();
+                }
+            }
+            close(reader);
+        }
+    }
+
+    /**
+     * Returns the key that decides which connection a row is inserted through when rows are
+     * spread over several connections.  Rows with equal keys go to the same connection.
+     *
+     * @param data the row that is about to be inserted
+     * @return the key of the row, or <code>null</code> to send batches of consecutive rows to
+     *         each connection in turn
+     * @throws Exception if the key can't be read from the row
+     */
+    protected Object getPartitionKey(String data) throws Exception
+    {
+        return null;
+    }
+
+    /**
+     * Works out the size of the next batch in adaptive mode: doubles it while batches execute
+     * in under half the target time, and halves it when a batch takes longer than the target.
+     * The batch size stays between 1 and {@link #MAX_ADAPTIVE_BATCH_SIZE} rows.
+     *
+     * @param batchSize         the size of the batch just executed
+     * @param batchMillis       the time the batch took to execute
+     * @param targetBatchMillis the time each batch should take
+     * @return the size of the next batch
+     */
+    protected int nextBatchSize(int batchSize, long batchMillis, long targetBatchMillis)
+    {
+        int next = batchSize;
+        if (batchMillis > targetBatchMillis)
+        {
+            next = Math.max(1, batchSize / 2);
+        }
+        else if (batchMillis * 2 < targetBatchMillis)
+        {
+            next = Math.min(MAX_ADAPTIVE_BATCH_SIZE, batchSize * 2);
+        }
+        if (next != batchSize)
+        {
+            log.debug(getName() + ": batch of " + batchSize + " rows took " + batchMillis
+                    + " millis; next batch is " + next + " rows");
+        }
+        return next;
+    }
+
+    /**
+     * Returns the number of rows inserted in each JDBC batch.
+     *
+     * @return the number of rows inserted in each JDBC batch, or 0 to use the database
+     *         type's <code>loadBatchSize</code>
+     */
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of rows inserted in each JDBC batch.  In adaptive mode, this is the
+     * size of the first batch.
+     *
+     * @param batchSize the number of rows inserted in each JDBC batch, or 0 to use the
+     *                  database type's <code>loadBatchSize</code>
+     */
+    public void setBatchSize(int batchSize)
+    {
+        if (batchSize < 0)
+        {
+            throw new IllegalArgumentException("batchSize can't be negative");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the number of rows inserted between commits.
+     *
+     * @return the number of rows inserted between commits, or 0 to use the database type's
+     *         <code>loadCommitInterval</code>
+     */
+    public int getCommitInterval()
+    {
+        return commitInterval;
+    }
+
+    /**
+     * Sets the number of rows inserted between commits.
+     *
+     * @param commitInterval the number of rows inserted between commits, or 0 to use the
+     *                       database type's <code>loadCommitInterval</code>
+     */
+    public void setCommitInterval(int commitInterval)
+    {
+        if (commitInterval < 0)
+        {
+            throw new IllegalArgumentException("commitInterval can't be negative");
+        }
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Returns the time each batch should take to execute in adaptive mode.
+     *
+     * @return the time each batch should take to execute, or 0 to use the database type's
+     *         <code>loadBatchMillis</code>
+     */
+    public long getTargetBatchMillis()
+    {
+        return targetBatchMillis;
+    }
+
+    /**
+     * Sets the time each batch should take to execute, which turns on adaptive batch sizing.
+     *
+     * @param targetBatchMillis the time each batch should take to execute, or 0 to use the
+     *                          database type's <code>loadBatchMillis</code>
+     */
+    public void setTargetBatchMillis(long targetBatchMillis)
+    {
+        if (targetBatchMillis < 0)
+        {
+            throw new IllegalArgumentException("targetBatchMillis can't be negative");
+        }
+        this.targetBatchMillis = targetBatchMillis;
+    }
+
+    /**
+     * Returns the number of connections rows are spread over.
+     *
+     * @return the number of connections rows are spread over, or 0 to use the database
+     *         type's <code>loadConnections</code>
+     */
+    public int getLoadConnections()
+    {
+        return loadConnections;
+    }
+
+    /**
+     * Sets the number of connections rows are spread over.
+     *
+     * @param loadConnections the number of connections rows are spread over, or 0 to use the
+     *                        database type's <code>loadConnections</code>
+     */
+    public void setLoadConnections(int loadConnections)
+    {
+        if (loadConnections < 0)
+        {
+            throw new IllegalArgumentException("loadConnections can't be negative");
         }
+        this.loadConnections = loadConnections;
     }
 
     /**
@@ -141,22 +508,364 @@ public abstract class SqlLoadMigrationTask extends MigrationTaskSupport
         return getName();
     }
 
+    /**
+     * Returns the reader to read the rows of data from.
+     *
+     * @param is the input stream containing the data to load
+     * @return a reader over the data to load
+     */
+    protected BufferedReader getReader(InputStream is)
+    {
+        return new BufferedReader(new InputStreamReader(is));
+    }
+
+    /**
+     * Reads the next row of data.  Subclasses whose rows can span several lines can read
+     * further lines here.
+     *
+     * @param reader the reader over the data to load
+     * @return the next row, or <code>null</code> at the end of the data
+     * @throws IOException if the data could not be read
+     */
+    protected String readRow(BufferedReader reader) throws IOException
+    {
+        return reader.readLine();
+    }
+
     /**
      * Returns the data to load as a list of rows.
      *
      * @param is the input stream containing the data to load
      * @return the data to load as a list of rows
      * @throws IOException if the input stream could not be read
+     * @deprecated {@link #migrate(MigrationContext)} streams the rows instead of reading them
+     *             all into memory; override {@link #readRow(BufferedReader)} to change how
+     *             rows are read
      */
     protected List getData(InputStream is) throws IOException
     {
         List data = new ArrayList();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+        BufferedReader reader = getReader(is);
         String line = null;
-        while ((line = reader.readLine()) != null)
+        while ((line = readRow(reader)) != null)
         {
             data.add(line);
         }
         return data;
     }
+
+    /**
+     * Returns the batch size to load with: the loader's, or the database type's.
+     *
+     * @param databaseType the type of the database being loaded; may be <code>null</code>
+     * @return the number of rows to insert in each JDBC batch
+     */
+    private int getBatchSize(DatabaseType databaseType)
+    {
+        if (batchSize > 0)
+        {
+            return batchSize;
+        }
+        return (databaseType == null) ? DatabaseType.DEFAULT_LOAD_BATCH_SIZE
+                : Math.max(1, databaseType.getLoadBatchSize());
+    }
+
+    /**
+     * Returns the commit interval to load with: the loader's, or the database type's.
+     *
+     * @param databaseType the type of the database being loaded; may be <code>null</code>
+     * @return the number of rows to insert between commits, or 0 to commit once at the end
+     */
+    private int getCommitInterval(DatabaseType databaseType)
+    {
+        if ((commitInterval > 0) || (databaseType == null))
+        {
+            return commitInterval;
+        }
+        return Math.max(0, databaseType.getLoadCommitInterval());
+    }
+
+    /**
+     * Returns the target batch time to load with: the loader's, or the database type's.
+     *
+     * @param databaseType the type of the database being loaded; may be <code>null</code>
+     * @return the time each batch should take, or 0 to keep the batch size fixed
+     */
+    private long getTargetBatchMillis(DatabaseType databaseType)
+    {
+        if ((targetBatchMillis > 0) || (databaseType == null))
+        {
+            return targetBatchMillis;
+        }
+        return Math.max(0, databaseType.getLoadBatchMillis());
+    }
+
+    /**
+     * Returns the number of connections to load over: the loader's, or the database type's.
+     *
+     * @param databaseType the type of the database being loaded; may be <code>null</code>
+     * @return the number of connections to spread rows over
+     */
+    private int getLoadConnections(DatabaseType databaseType)
+    {
+        if ((loadConnections > 0) || (databaseType == null))
+        {
+            return Math.max(1, loadConnections);
+        }
+        return Math.max(1, databaseType.getLoadConnections());
+    }
+
+    /**
+     * Closes the reader over the data, logging rather than throwing any failure.
+     *
+     * @param reader the reader to close; may be <code>null</code>
+     */
+    private void close(BufferedReader reader)
+    {
+        if (reader != null)
+        {
+            try
+            {
+                reader.close();
+            }
+            catch (IOException e)
+            {
+                log.error("Error closing " + getName(), e);
+            }
+        }
+    }
+
+    /**
+     * One of the connections a partitioned load inserts rows through, with the batch of rows
+     * bound to its statement.  Rows are bound on the loading thread, and batches executed on
+     * a pool thread; the loading thread waits for a partition's batch to finish before it
+     * binds more rows to the partition's statement.
+     */
+    private class LoadPartition
+    {
+        /**
+         * The context of the load
+         */
+        private DataSourceMigrationContext context;
+
+        /**
+         * The index of the partition; partition 0 loads over the context's connection
+         */
+        private int index;
+
+        /**
+         * The connection rows are inserted through
+         */
+        private Connection conn;
+
+        /**
+         * The statement rows are bound to
+         */
+        private PreparedStatement stmt;
+
+        /**
+         * The number of rows to batch before executing them
+         */
+        private int batchSize;
+
+        /**
+         * The number of rows to insert between commits, or 0 to commit at the end
+         */
+        private int rowsPerCommit;
+
+        /**
+         * The time each batch should take, or 0 to keep the batch size fixed
+         */
+        private long batchMillis;
+
+        /**
+         * Whether the connection was in auto-commit mode before the load
+         */
+        private boolean autoCommit;
+
+        /**
+         * The number of rows bound to the statement and not yet executed
+         */
+        private int batchedRows = 0;
+
+        /**
+         * The number of rows executed since the last commit
+         */
+        private int uncommittedRows = 0;
+
+        /**
+         * The batch being executed, if any
+         */
+        private Future pending = null;
+
+        /**
+         * Create a new <code>LoadPartition</code>, opening its connection.
+         *
+         * @param context       the context of the load
+         * @param index         the index of the partition
+         * @param sql           the insert statement
+         * @param batchSize     the number of rows to batch before executing them
+         * @param rowsPerCommit the number of rows to insert between commits, or 0
+         * @param batchMillis   the time each batch should take, or 0
+         * @throws SQLException if the connection can't be opened
+         */
+        LoadPartition(DataSourceMigrationContext context, int index, String sql,
+                int batchSize, int rowsPerCommit, long batchMillis) throws SQLException
+        {
+            this.context = context;
+            this.index = index;
+            this.batchSize = batchSize;
+            this.rowsPerCommit = rowsPerCommit;
+            this.batchMillis = batchMillis;
+            conn = (index == 0) ? context.getConnection() : context.openConnection();
+            autoCommit = conn.getAutoCommit();
+            if (autoCommit)
+            {
+                // the partitions only commit once they have all loaded their rows
+                conn.setAutoCommit(false);
+            }
+            try
+            {
+                stmt = conn.prepareStatement(sql);
+            }
+            catch (SQLException e)
+            {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Executes the rows bound to the statement on a pool thread.
+         *
+         * @param executor the pool to execute the batch on
+         */
+        void execute(ExecutorService executor)
+        {
+            final int rows = batchedRows;
+            batchedRows = 0;
+            pending = executor.submit(new Callable()
+            {
+                public Object call() throws Exception
+                {
+                    long start = System.nanoTime();
+                    stmt.executeBatch();
+                    long elapsedMillis = (System.nanoTime() - start) / 1000000;
+                    uncommittedRows += rows;
+                    if ((rowsPerCommit > 0) && (uncommittedRows >= rowsPerCommit))
+                    {
+                        commit();
+                        log.debug(getName() + ": connection " + index + " committed");
+                    }
+                    return new Long(elapsedMillis);
+                }
+            });
+        }
+
+        /**
+         * Waits for the batch being executed, if any, and sizes the next batch.
+         *
+         * @throws Exception if the batch failed
+         */
+        void await() throws Exception
+        {
+            if (pending == null)
+            {
+                return;
+            }
+            Future batch = pending;
+            pending = null;
+            try
+            {
+                long elapsedMillis = ((Long) batch.get()).longValue();
+                if (batchMillis > 0)
+                {
+                    batchSize = nextBatchSize(batchSize, elapsedMillis, batchMillis);
+                }
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof Exception)
+                {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Commits the rows inserted through this partition.
+         *
+         * @throws MigrationException if the rows could not be committed
+         */
+        void commit() throws MigrationException
+        {
+            if (index == 0)
+            {
+                context.commit();
+            }
+            else
+            {
+                try
+                {
+                    conn.commit();
+                }
+                catch (SQLException e)
+                {
+                    throw new MigrationException("Error committing SQL transaction", e);
+                }
+            }
+            uncommittedRows = 0;
+        }
+
+        /**
+         * Waits for the batch being executed, if any, and rolls back the rows inserted through
+         * this partition, logging rather than throwing any failure.
+         */
+        void rollback()
+        {
+            try
+            {
+                await();
+            }
+            catch (Exception e)
+            {
+                log.debug("Batch on connection " + index + " failed as well", e);
+            }
+            try
+            {
+                if (index == 0)
+                {
+                    context.rollback();
+                }
+                else
+                {
+                    conn.rollback();
+                }
+            }
+            catch (Exception e)
+            {
+                log.error("Could not roll back connection " + index, e);
+            }
+        }
+
+        /**
+         * Restores the connection's auto-commit mode, and closes it.
+         */
+        void close()
+        {
+            try
+            {
+                if (autoCommit)
+                {
+                    conn.setAutoCommit(true);
+                }
+            }
+            catch (SQLException e)
+            {
+                log.error("Could not restore auto-commit on connection " + index, e);
+            }
+            SqlUtil.close(conn, stmt, null);
+        }
+    }
 }
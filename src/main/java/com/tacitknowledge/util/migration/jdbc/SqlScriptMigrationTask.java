@@ -15,9 +15,12 @@
 
 package com.tacitknowledge.util.migration.jdbc;
 
+import com.tacitknowledge.util.migration.CopyableMigrationTask;
 import com.tacitknowledge.util.migration.MigrationContext;
 import com.tacitknowledge.util.migration.MigrationException;
+import com.tacitknowledge.util.migration.MigrationTask;
 import com.tacitknowledge.util.migration.MigrationTaskSupport;
+import com.tacitknowledge.util.migration.jdbc.util.ParameterizedInsert;
 import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
 import com.tacitknowledge.util.migration.jdbc.util.SybaseUtil;
 import org.apache.commons.lang.StringUtils;
@@ -28,10 +31,14 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.regex.Pattern;
@@ -41,13 +48,35 @@ import java.util.regex.Pattern;
  *
  * @author Scott Askew (scott@tacitknowledge.com)
  */
-public class SqlScriptMigrationTask extends MigrationTaskSupport
+public class SqlScriptMigrationTask extends MigrationTaskSupport implements CopyableMigrationTask
 {
     /**
      * Class logger
      */
     private static Log log = LogFactory.getLog(SqlScriptMigrationTask.class);
 
+    /**
+     * Matches the data manipulation statements that may be sent to the database in a batch
+     */
+    private static final Pattern BATCHABLE_STATEMENT_PATTERN =
+            Pattern.compile("(?is)^\\s*(insert|update|delete|merge)\\s.*");
+
+    /**
+     * The most bind parameters put into one collapsed multi-row insert; SQL Server allows 2100
+     */
+    private static final int MAX_INSERT_PARAMETERS = 2000;
+
+    /**
+     * The most rows put into one collapsed multi-row insert; SQL Server allows 1000
+     */
+    private static final int MAX_INSERT_ROWS = 1000;
+
+    /**
+     * Matches the comment line that marks a script as resumable
+     */
+    private static final Pattern RESUMABLE_MARKER_PATTERN =
+            Pattern.compile("(?im)^\\s*--\\s*autopatch:resumable\\s*$");
+
     /**
      * The SQL to execute
      */
@@ -58,6 +87,10 @@ public class SqlScriptMigrationTask extends MigrationTaskSupport
      */
     private String downSql = null;
 
+    /**
+     * Whether the script records its progress so it can resume after a failure
+     */
+    private boolean resumable = false;
 
     /**
      * Creates a new <code>SqlScriptMigrationTask</code>.
@@ -132,7 +165,7 @@ public class SqlScriptMigrationTask extends MigrationTaskSupport
      */
     public void up(MigrationContext context) throws MigrationException
     {
-        executeSql(context, sql);
+        executeSql(context, sql, isResumable());
     }
 
     /**
@@ -140,17 +173,71 @@ public class SqlScriptMigrationTask extends MigrationTaskSupport
      */
     public void down(MigrationContext context) throws MigrationException
     {
-        executeSql(context, downSql);
+        executeSql(context, downSql, false);
+    }
+
+    /**
+     * Determines whether this script commits and records its progress after every statement
+     * (or batch of statements), so that if it fails, the next run carries on after the last
+     * statement that succeeded instead of starting over.  A script is resumable if it has been
+     * set to be, or if it contains a line consisting of the comment
+     * <code>-- autopatch:resumable</code>.
+     * <p/>
+     * A resumable script is no longer applied in a single transaction.  It is always split into
+     * statements and executed one statement at a time, even on databases that accept a whole
+     * script at once.  Progress is recorded by statement number, so when fixing a script that
+     * failed, only change the failing statement and the ones after it.
+     *
+     * @return true if the script's progress is checkpointed
+     * @see PatchCheckpointTable
+     */
+    public boolean isResumable()
+    {
+        return resumable || ((sql != null) && RESUMABLE_MARKER_PATTERN.matcher(sql).find());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public MigrationTask copy()
+    {
+        SqlScriptMigrationTask copy = new SqlScriptMigrationTask();
+        copy.setName(getName());
+        copy.setLevel(getLevel());
+        copy.setRollbackSupported(isRollbackSupported());
+        copy.sql = sql;
+        copy.downSql = downSql;
+        copy.resumable = resumable;
+        return copy;
+    }
+
+    /**
+     * Sets whether this script's progress is checkpointed.
+     *
+     * @param resumable true if the script's progress is checkpointed
+     * @see #isResumable()
+     */
+    public void setResumable(boolean resumable)
+    {
+        this.resumable = resumable;
     }
 
     /**
      * Executes the passed sql in the passed context.
+     * <p/>
+     * If the database type has a <code>statementBatchSize</code> greater than 1, consecutive
+     * data manipulation statements are grouped into JDBC batches of up to that size.  Any other
+     * statement first flushes the pending batch and is then executed on its own.
+     * <p/>
+     * If the SQL is resumable, the work done is committed along with a checkpoint after every
+     * statement or batch, and statements before the last checkpoint are skipped.
      *
      * @param ctx       the <code>MigrationContext> to execute the SQL in
      * @param sqlToExec the SQL to execute
+     * @param resume    true if progress should be checkpointed
      * @throws MigrationException thrown if there is an error when executing the SQL
      */
-    private void executeSql(MigrationContext ctx, String sqlToExec)
+    private void executeSql(MigrationContext ctx, String sqlToExec, boolean resume)
             throws MigrationException
     {
         JdbcMigrationContext context = (JdbcMigrationContext) ctx;
@@ -158,7 +245,12 @@ public class SqlScriptMigrationTask extends MigrationTaskSupport
         Connection conn = null;
         Statement stmt = null;
         String sqlStatement = "";
-        ListIterator listIterator = null;
+        int statementIndex = -1;
+        int batchSize = context.getDatabaseType().getStatementBatchSize();
+        List batch = new ArrayList();
+        int batchStartIndex = 0;
+        PatchCheckpointTable checkpoints = null;
+        int resumeIndex = 0;
         try
         {
             conn = context.getConnection();
@@ -169,10 +261,45 @@ public class SqlScriptMigrationTask extends MigrationTaskSupport
             // a if(sybase) conditional, we decided to clean the slate for everyone.
             context.commit();
 
-            List sqlStatements = getSqlStatements(context, sqlToExec);
-            for (listIterator = sqlStatements.listIterator(); listIterator.hasNext();)
+            List sqlStatements = getSqlStatements(context, sqlToExec, resume);
+            if (resume)
+            {
+                checkpoints = createCheckpointTable(context);
+                resumeIndex = getResumeIndex(checkpoints, sqlStatements.size());
+            }
+            for (ListIterator listIterator = sqlStatements.listIterator(); listIterator.hasNext();)
             {
                 sqlStatement = (String) listIterator.next();
+                statementIndex = listIterator.previousIndex();
+                if (statementIndex < resumeIndex)
+                {
+                    continue;
+                }
+
+                if (batchSize > 1 && isBatchable(context, sqlStatement))
+                {
+                    if (batch.isEmpty())
+                    {
+                        batchStartIndex = statementIndex;
+                    }
+                    batch.add(sqlStatement);
+                    if (batch.size() >= batchSize)
+                    {
+                        executeBatch(context, conn, batch);
+                        batch.clear();
+                        checkpoint(context, checkpoints, statementIndex + 1);
+                    }
+                    continue;
+                }
+
+                // anything that can't be batched has to wait for the statements before it
+                if (!batch.isEmpty())
+                {
+                    executeBatch(context, conn, batch);
+                    batch.clear();
+                    checkpoint(context, checkpoints, statementIndex);
+                }
+
                 log.debug(getName() + ": Attempting to execute: " + sqlStatement);
 
                 stmt = conn.createStatement();
@@ -196,14 +323,46 @@ public class SqlScriptMigrationTask extends MigrationTaskSupport
                 }
 
                 SqlUtil.close(null, stmt, null);
+                checkpoint(context, checkpoints, statementIndex + 1);
+            }
+
+            if (!batch.isEmpty())
+            {
+                executeBatch(context, conn, batch);
+                batch.clear();
             }
 
+            // the script is done, so a later run shouldn't resume it
+            if (checkpoints != null)
+            {
+                checkpoints.clearCheckpoint(getLevel().intValue());
+            }
             context.commit();
         }
         catch (Exception e)
         {
-            String message = getName() + ": Error running SQL at statement number "
-                    + listIterator.previousIndex() + " \"" + sqlStatement + "\"";
+            String message = null;
+            if (e instanceof BatchUpdateException && !batch.isEmpty())
+            {
+                int failedIndex = getFailedBatchIndex((BatchUpdateException) e, batch.size());
+                if (failedIndex >= 0)
+                {
+                    message = getName() + ": Error running SQL at statement number "
+                            + (batchStartIndex + failedIndex) + " \""
+                            + batch.get(failedIndex) + "\"";
+                }
+                else
+                {
+                    message = getName() + ": Error running SQL batch of statement numbers "
+                            + batchStartIndex + " to " + (batchStartIndex + batch.size() - 1)
+                            + "; the driver did not report which statement failed";
+                }
+            }
+            else
+            {
+                message = getName() + ": Error running SQL at statement number "
+                        + statementIndex + " \"" + sqlStatement + "\"";
+            }
             log.error(message, e);
 
             if (e instanceof SQLException)
@@ -223,6 +382,376 @@ public class SqlScriptMigrationTask extends MigrationTaskSupport
         }
     }
 
+    /**
+     * Creates the table that records the progress of resumable scripts.
+     *
+     * @param context the context the script is executed in
+     * @return the checkpoint table
+     * @throws MigrationException if the table could not be created
+     */
+    protected PatchCheckpointTable createCheckpointTable(JdbcMigrationContext context)
+            throws MigrationException
+    {
+        PatchCheckpointTable checkpoints = new PatchCheckpointTable(context);
+        checkpoints.createCheckpointTableIfNeeded();
+        return checkpoints;
+    }
+
+    /**
+     * Returns the index of the statement a resumable script should start at.
+     *
+     * @param checkpoints    the checkpoint table
+     * @param statementCount the number of statements in the script
+     * @return the number of statements completed by earlier runs
+     * @throws MigrationException if the checkpoint doesn't fit this script
+     */
+    private int getResumeIndex(PatchCheckpointTable checkpoints, int statementCount)
+            throws MigrationException
+    {
+        String checkpoint = checkpoints.getCheckpoint(getLevel().intValue());
+        if (checkpoint == null)
+        {
+            return 0;
+        }
+
+        int resumeIndex;
+        try
+        {
+            resumeIndex = Integer.parseInt(checkpoint.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new MigrationException(getName() + ": checkpoint \"" + checkpoint
+                    + "\" is not a statement number", e);
+        }
+        if (resumeIndex < 0 || resumeIndex > statementCount)
+        {
+            throw new MigrationException(getName() + ": checkpoint at statement number "
+                    + resumeIndex + " is past the end of the script, which has "
+                    + statementCount + " statements");
+        }
+
+        log.info(getName() + ": resuming at statement number " + resumeIndex + " of "
+                + statementCount + "; the statements before it were applied by an earlier run");
+        return resumeIndex;
+    }
+
+    /**
+     * Commits the work done so far, along with the number of statements it covers, if the
+     * script is resumable.
+     *
+     * @param context     the context the script is executed in
+     * @param checkpoints the checkpoint table, or <code>null</code> if the script isn't
+     *                    resumable
+     * @param completed   the number of statements completed
+     * @throws MigrationException if the checkpoint could not be recorded
+     */
+    private void checkpoint(JdbcMigrationContext context, PatchCheckpointTable checkpoints,
+            int completed) throws MigrationException
+    {
+        if (checkpoints != null)
+        {
+            checkpoints.saveCheckpoint(getLevel().intValue(), String.valueOf(completed));
+            context.commit();
+        }
+    }
+
+    /**
+     * Sends the given statements to the database as a JDBC batch.  If the database type has
+     * insert parameterization enabled, runs of single-row literal inserts of the same shape are
+     * executed through a <code>PreparedStatement</code> instead, collapsed into multi-row
+     * inserts where the database supports them.
+     * <p/>
+     * If part of the batch fails, the <code>BatchUpdateException</code> thrown carries update
+     * counts relative to the whole batch, so <code>getFailedBatchIndex</code> still points at
+     * the failing statement.  When a multi-row insert fails, the failing row can't be known and
+     * the whole batch is reported.
+     *
+     * @param context the context the statements are executed in
+     * @param conn    the connection to execute the statements on
+     * @param batch   the SQL statements to execute
+     * @throws SQLException if the batch could not be executed
+     */
+    private void executeBatch(JdbcMigrationContext context, Connection conn, List batch)
+            throws SQLException
+    {
+        if (log.isDebugEnabled())
+        {
+            log.debug(getName() + ": Attempting to execute a batch of " + batch.size()
+                    + " statements");
+        }
+
+        DatabaseType databaseType = context.getDatabaseType();
+        if (!databaseType.isInsertParameterizationEnabled())
+        {
+            executeStatementBatch(conn, batch);
+            return;
+        }
+
+        ParameterizedInsert[] inserts = new ParameterizedInsert[batch.size()];
+        for (int i = 0; i < inserts.length; i++)
+        {
+            inserts[i] = ParameterizedInsert.parse((String) batch.get(i));
+        }
+
+        int start = 0;
+        while (start < inserts.length)
+        {
+            int end = getEndOfInsertRun(inserts, start);
+            boolean parameterized = (end - start) > 1;
+            if (!parameterized)
+            {
+                // gather everything up to the next run of inserts into one plain batch
+                while (end < inserts.length && getEndOfInsertRun(inserts, end) - end < 2)
+                {
+                    end++;
+                }
+            }
+
+            try
+            {
+                if (parameterized)
+                {
+                    executeInsertBatch(conn, inserts, start, end,
+                            databaseType.isMultiRowInsertSupported());
+                }
+                else
+                {
+                    executeStatementBatch(conn, batch.subList(start, end));
+                }
+            }
+            catch (BatchUpdateException bue)
+            {
+                int failedIndex = getFailedBatchIndex(bue, end - start);
+                int[] updateCounts = new int[(failedIndex < 0) ? batch.size()
+                        : start + failedIndex];
+                Arrays.fill(updateCounts, Statement.SUCCESS_NO_INFO);
+                BatchUpdateException translated = new BatchUpdateException(bue.getMessage(),
+                        bue.getSQLState(), bue.getErrorCode(), updateCounts);
+                translated.initCause(bue);
+                translated.setNextException(bue.getNextException());
+                throw translated;
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Sends the given statements to the database as a single JDBC batch.
+     *
+     * @param conn  the connection to execute the statements on
+     * @param batch the SQL statements to execute
+     * @throws SQLException if the batch could not be executed
+     */
+    private void executeStatementBatch(Connection conn, List batch) throws SQLException
+    {
+        Statement stmt = null;
+        try
+        {
+            stmt = conn.createStatement();
+            for (Iterator i = batch.iterator(); i.hasNext();)
+            {
+                stmt.addBatch((String) i.next());
+            }
+            stmt.executeBatch();
+        }
+        finally
+        {
+            SqlUtil.close(null, stmt, null);
+        }
+    }
+
+    /**
+     * Executes a run of inserts of the same shape through one <code>PreparedStatement</code>.
+     * If it fails, the <code>BatchUpdateException</code> thrown has update counts relative to
+     * the start of the run, or none at all if the failing row can't be known.
+     *
+     * @param conn     the connection to execute the inserts on
+     * @param inserts  the parsed statements of the batch
+     * @param start    the index of the first insert of the run
+     * @param end      the index after the last insert of the run
+     * @param multiRow whether rows may be collapsed into multi-row inserts
+     * @throws SQLException if the inserts could not be executed
+     */
+    private void executeInsertBatch(Connection conn, ParameterizedInsert[] inserts, int start,
+            int end, boolean multiRow) throws SQLException
+    {
+        int rowsPerStatement = getRowsPerInsert(inserts[start], end - start, multiRow);
+        int fullStatements = (end - start) / rowsPerStatement;
+        int remainder = (end - start) % rowsPerStatement;
+        if (log.isDebugEnabled())
+        {
+            log.debug(getName() + ": Executing " + (end - start) + " inserts as "
+                    + (fullStatements + ((remainder > 0) ? 1 : 0)) + " prepared statements: "
+                    + inserts[start].getShape());
+        }
+
+        int row = start;
+        int[][] chunks = {{fullStatements, rowsPerStatement}, {(remainder > 0) ? 1 : 0, remainder}};
+        for (int i = 0; i < chunks.length; i++)
+        {
+            int statements = chunks[i][0];
+            int rows = chunks[i][1];
+            if (statements == 0)
+            {
+                continue;
+            }
+
+            try
+            {
+                executePreparedInserts(conn, inserts, row, statements, rows);
+            }
+            catch (BatchUpdateException bue)
+            {
+                int failedStatement = getFailedBatchIndex(bue, statements);
+                int[] updateCounts = null;
+                if (failedStatement >= 0 && rows == 1)
+                {
+                    updateCounts = new int[row - start + failedStatement];
+                    Arrays.fill(updateCounts, Statement.SUCCESS_NO_INFO);
+                }
+                BatchUpdateException relative = new BatchUpdateException(bue.getMessage(),
+                        bue.getSQLState(), bue.getErrorCode(), updateCounts);
+                relative.initCause(bue);
+                relative.setNextException(bue.getNextException());
+                throw relative;
+            }
+            row += statements * rows;
+        }
+    }
+
+    /**
+     * Executes a batch of identical, possibly multi-row, inserts.
+     *
+     * @param conn             the connection to execute the inserts on
+     * @param inserts          the parsed statements of the batch
+     * @param start            the index of the first row to insert
+     * @param statements       the number of statements in the batch
+     * @param rowsPerStatement the number of rows each statement inserts
+     * @throws SQLException if the inserts could not be executed
+     */
+    private void executePreparedInserts(Connection conn, ParameterizedInsert[] inserts,
+            int start, int statements, int rowsPerStatement) throws SQLException
+    {
+        PreparedStatement stmt = null;
+        try
+        {
+            stmt = conn.prepareStatement(inserts[start].getSql(rowsPerStatement));
+            int row = start;
+            for (int i = 0; i < statements; i++)
+            {
+                int offset = 0;
+                for (int j = 0; j < rowsPerStatement; j++)
+                {
+                    inserts[row].bind(stmt, offset);
+                    offset += inserts[row].getParameters().size();
+                    row++;
+                }
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+        finally
+        {
+            SqlUtil.close(null, stmt, null);
+        }
+    }
+
+    /**
+     * Returns how many rows of the given shape go into each insert statement, keeping the
+     * number of rows and bind parameters per statement below what all supported databases
+     * accept.
+     *
+     * @param insert   an insert of the shape being executed
+     * @param rows     the number of rows in the run
+     * @param multiRow whether rows may be collapsed into multi-row inserts
+     * @return the number of rows per insert statement
+     */
+    private int getRowsPerInsert(ParameterizedInsert insert, int rows, boolean multiRow)
+    {
+        if (!multiRow)
+        {
+            return 1;
+        }
+        int parameters = Math.max(1, insert.getParameters().size());
+        int maxRows = Math.min(MAX_INSERT_ROWS, MAX_INSERT_PARAMETERS / parameters);
+        return Math.max(1, Math.min(rows, maxRows));
+    }
+
+    /**
+     * Returns the end of the run of same-shaped inserts starting at the given index.
+     *
+     * @param inserts the parsed statements of the batch; <code>null</code> if not an insert
+     * @param start   the index to start the run at
+     * @return the index after the last insert of the run
+     */
+    private int getEndOfInsertRun(ParameterizedInsert[] inserts, int start)
+    {
+        if (inserts[start] == null)
+        {
+            return start + 1;
+        }
+        String shape = inserts[start].getShape();
+        int end = start + 1;
+        while (end < inserts.length && inserts[end] != null
+                && shape.equals(inserts[end].getShape()))
+        {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Works out which statement of a batch caused the given failure.  Drivers either stop at the
+     * first failing statement, in which case only the successful statements have update counts,
+     * or keep going and mark the failing statements with <code>EXECUTE_FAILED</code>.
+     *
+     * @param e         the exception thrown by <code>executeBatch</code>
+     * @param batchSize the number of statements in the failed batch
+     * @return the index within the batch of the failing statement, or -1 if it can't be known
+     */
+    protected int getFailedBatchIndex(BatchUpdateException e, int batchSize)
+    {
+        int[] updateCounts = e.getUpdateCounts();
+        if (updateCounts == null)
+        {
+            return -1;
+        }
+
+        for (int i = 0; i < updateCounts.length; i++)
+        {
+            if (updateCounts[i] == Statement.EXECUTE_FAILED)
+            {
+                return i;
+            }
+        }
+
+        if (updateCounts.length < batchSize)
+        {
+            return updateCounts.length;
+        }
+        return -1;
+    }
+
+    /**
+     * Determines if the statement may be added to a JDBC batch.  Only INSERT, UPDATE, DELETE and
+     * MERGE statements are batched; queries, DDL and anything Sybase forces us to commit around
+     * are always executed on their own.
+     *
+     * @param context   the context the statement will be executed in
+     * @param statement the SQL statement to check
+     * @return true if the statement can be executed as part of a batch
+     */
+    protected boolean isBatchable(JdbcMigrationContext context, String statement)
+    {
+        if (isSybase(context)
+                && SybaseUtil.containsIllegalMultiStatementTransactionCommand(statement))
+        {
+            return false;
+        }
+        return BATCHABLE_STATEMENT_PATTERN.matcher(statement).matches();
+    }
+
     public List getSqlStatements(JdbcMigrationContext context)
     {
         return getSqlStatements(context, sql);
@@ -239,9 +768,25 @@ public class SqlScriptMigrationTask extends MigrationTaskSupport
      * @return a list of SQL and DDL statements to execute
      */
     public List getSqlStatements(JdbcMigrationContext context, String sqlStatements)
+    {
+        return getSqlStatements(context, sqlStatements, false);
+    }
+
+    /**
+     * Parses the SQL/DDL to execute and returns a list of individual statements.
+     *
+     * @param context       the MigrationContext, to figure out db type and if it
+     *                      can handle multiple statements at once
+     * @param sqlStatements the SQL to parse
+     * @param alwaysSplit   true to split the SQL into statements even if the database could
+     *                      execute it in one go, so progress can be tracked statement by statement
+     * @return a list of SQL and DDL statements to execute
+     */
+    private List getSqlStatements(JdbcMigrationContext context, String sqlStatements,
+            boolean alwaysSplit)
     {
         List statements = new ArrayList();
-        if (context.getDatabaseType().isMultipleStatementsSupported())
+        if (!alwaysSplit && context.getDatabaseType().isMultipleStatementsSupported())
         {
             statements.add(sqlStatements);
             return statements;
@@ -19,6 +19,7 @@ import com.tacitknowledge.util.discovery.ClassDiscoveryUtil;
 import com.tacitknowledge.util.migration.MigrationException;
 import com.tacitknowledge.util.migration.MigrationTask;
 import com.tacitknowledge.util.migration.MigrationTaskSource;
+import com.tacitknowledge.util.migration.jdbc.loader.FileLoadingUtility;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -31,7 +32,8 @@ import java.util.regex.Pattern;
 /**
  * Search a package (directory) for SQL scripts that a specific pattern and
  * returns corresponding <code>SqlScriptMigrationTasks</code>. The name of
- * each script must follow the pattern of &quot;patch(\d+)(_.+)?\.sql&quot;.
+ * each script must follow the pattern of &quot;patch(\d+)(_.+)?\.sql&quot;,
+ * optionally followed by &quot;.gz&quot; for a gzip compressed script.
  *
  * @author Scott Askew (scott@tacitknowledge.com)
  */
@@ -46,12 +48,14 @@ public class SqlScriptMigrationTaskSource implements MigrationTaskSource
     /**
      * The regular expression used to match SQL patch files.
      */
-    private static final String SQL_PATCH_REGEX = "^patch(\\d++)(?!-rollback)_?(.+)?\\.sql";
+    private static final String SQL_PATCH_REGEX =
+            "^patch(\\d++)(?!-rollback)_?(.+)?\\.sql(?:\\.gz)?";
 
     /**
      * The regular expression used to match SQL rollback files
      */
-    private static final String SQL_ROLLBACK_REGEX = "^patch(\\d++)-rollback_?(.+)?\\.sql";
+    private static final String SQL_ROLLBACK_REGEX =
+            "^patch(\\d++)-rollback_?(.+)?\\.sql(?:\\.gz)?";
 
     /**
      * {@inheritDoc}
@@ -110,9 +114,10 @@ public class SqlScriptMigrationTaskSource implements MigrationTaskSource
 
             if (script != null)
             {
-                // get the file name
+                // get the file name, the same whether or not the script is compressed
                 File scriptFile = new File(script);
-                String scriptFileName = scriptFile.getName();
+                String scriptFileName =
+                        FileLoadingUtility.getUncompressedName(scriptFile.getName());
 
                 // Get the version out of the script name
                 int order = getOrder(upFileNamePattern, script, scriptFileName);
@@ -176,17 +181,27 @@ public class SqlScriptMigrationTaskSource implements MigrationTaskSource
     }
 
     /**
-     * Returns an input stream that points to the script name
+     * Returns an input stream that points to the script name, decompressing the script as it
+     * is read if it is compressed
      *
      * @param scriptName the name of the script to create an InputStream
      * @return an InputStream returns an InputStream based upon the scriptName
+     * @throws MigrationException if a compressed script can't be decompressed
      */
-    private InputStream getInputStream(String scriptName)
+    private InputStream getInputStream(String scriptName) throws MigrationException
     {
         scriptName = scriptName.replace('\\', '/');
         log.debug("Examining possible SQL patch file \"" + scriptName + "\"");
-        return Thread.currentThread().getContextClassLoader()
+        InputStream is = Thread.currentThread().getContextClassLoader()
                 .getResourceAsStream(scriptName);
+        try
+        {
+            return FileLoadingUtility.decompress(scriptName, is);
+        }
+        catch (IOException ioe)
+        {
+            throw new MigrationException("Could not decompress " + scriptName, ioe);
+        }
     }
 
     /**
@@ -0,0 +1,263 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc;
+
+import com.tacitknowledge.util.migration.MigrationException;
+import com.tacitknowledge.util.migration.PatchInfoStore;
+import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Migrates a batch of tenants that live in one database and share its "patches" table, each
+ * under its own system name.  Rather than one launcher, patch table and patch path search per
+ * tenant, the batch:
+ * <ul>
+ * <li>searches the patch path once and gives every tenant the same patches</li>
+ * <li>reads the patch levels of all tenants with one query, and creates their missing patch
+ * records in one batch (see {@link TenantPatchTable})</li>
+ * <li>migrates the tenants over the batch's <code>DataSource</code>, up to
+ * <code>maxConcurrentContexts</code> at a time, handing each tenant's connection back as soon
+ * as the tenant is done</li>
+ * <li>locks the patches table once, under the batch's own system name, instead of once per
+ * tenant</li>
+ * </ul>
+ * Tenants are independent of each other: a patch that succeeds for one tenant is only
+ * recorded for that tenant, and a tenant that fails can be retried and quarantined like any
+ * other concurrently migrated context.
+ * <p/>
+ * Tenants can share tables, told apart by their system names ({@link #addTenant(String)}), or
+ * each have a schema of their own ({@link #addSchema(String)}); either way their patches are
+ * recorded in the one patches table of the batch's default schema.
+ *
+ * @see JdbcMigrationLauncher#setMaxConcurrentContexts(int)
+ */
+public class TenantMigrationLauncher extends JdbcMigrationLauncher
+{
+    /**
+     * Class logger
+     */
+    private static Log log = LogFactory.getLog(TenantMigrationLauncher.class);
+
+    /**
+     * The context of the batch as a whole: it names the batch and supplies the connections
+     */
+    private DataSourceMigrationContext context = null;
+
+    /**
+     * The patch information of every tenant
+     */
+    private TenantPatchTable tenantPatchTable = null;
+
+    /**
+     * Create a new <code>TenantMigrationLauncher</code>.
+     *
+     * @param context the context of the batch; its system name is used to lock the batch,
+     *                and its data source, ideally a connection pool, is shared by the tenants
+     */
+    public TenantMigrationLauncher(DataSourceMigrationContext context)
+    {
+        super();
+        this.context = context;
+        this.tenantPatchTable = new TenantPatchTable(context);
+    }
+
+    /**
+     * Adds a tenant to the batch.
+     *
+     * @param systemName the system name the tenant's patches are recorded under
+     */
+    public void addTenant(String systemName)
+    {
+        DataSourceMigrationContext tenant = new DataSourceMigrationContext();
+        tenant.setDataSource(context.getDataSource());
+        tenant.setDatabaseType(context.getDatabaseType());
+        tenant.setDatabaseName(systemName);
+        tenant.setSystemName(systemName);
+        addContext(tenant);
+    }
+
+    /**
+     * Adds a tenant that has a schema of its own to the batch.  The tenant's patches are
+     * applied in its schema, over connections from the batch's data source, and recorded in
+     * the batch's patches table under the schema name.
+     *
+     * @param schemaName the name of the tenant's schema, which is also its system name
+     * @see SchemaMigrationContext
+     */
+    public void addSchema(String schemaName)
+    {
+        SchemaMigrationContext tenant = new SchemaMigrationContext();
+        tenant.setDataSource(context.getDataSource());
+        tenant.setDatabaseType(context.getDatabaseType());
+        tenant.setSchemaName(schemaName);
+        tenant.setDatabaseName(schemaName);
+        tenant.setSystemName(schemaName);
+        addContext(tenant);
+    }
+
+    /**
+     * Adds a tenant to the batch, keeping its patch information in the shared
+     * {@link TenantPatchTable}.
+     *
+     * @param tenant the context of the tenant, whose system name identifies the tenant
+     */
+    public void addContext(JdbcMigrationContext tenant)
+    {
+        getContexts().put(tenant, tenantPatchTable.getStore(tenant));
+    }
+
+    /**
+     * Migrates every tenant in the batch.
+     *
+     * @return the total number of patches applied across all tenants
+     * @throws MigrationException if the batch could not be locked or read, or if any tenant
+     *                            failed to migrate
+     */
+    public int doMigrations() throws MigrationException
+    {
+        if (getContexts().isEmpty())
+        {
+            throw new MigrationException("You must add at least one tenant");
+        }
+
+        PatchTable batchTable = new PatchTable(context);
+        batchTable.createPatchStoreIfNeeded();
+        lockBatch(batchTable);
+        try
+        {
+            List<String> systemNames = new ArrayList<String>();
+            for (Iterator i = getContexts().keySet().iterator(); i.hasNext();)
+            {
+                systemNames.add(((JdbcMigrationContext) i.next()).getSystemName());
+            }
+            long start = System.currentTimeMillis();
+            tenantPatchTable.load(systemNames);
+            log.info("Read the patch levels of " + systemNames.size() + " tenants in "
+                    + (System.currentTimeMillis() - start) + " millis");
+
+            getMigrationProcess().loadMigrationTaskCatalog();
+            try
+            {
+                super.doMigrations();
+            }
+            finally
+            {
+                getMigrationProcess().clearMigrationTaskCatalog();
+            }
+
+            int patchCount = 0;
+            for (ContextMigrationResult result : getContextResults())
+            {
+                patchCount += result.getPatchCount();
+            }
+            return patchCount;
+        }
+        finally
+        {
+            try
+            {
+                batchTable.unlockPatchStore();
+            }
+            catch (MigrationException e)
+            {
+                log.error("Error unlocking patch table: ", e);
+            }
+        }
+    }
+
+    /**
+     * Migrates one tenant, then hands its connection back to the data source so that idle
+     * tenants don't hold on to connections.
+     *
+     * @param tenant the tenant to migrate
+     * @return the number of patches applied
+     * @throws SQLException       if an unrecoverable database error occurs
+     * @throws MigrationException if an unrecoverable error occurs during the migration
+     */
+    protected int doMigrations(JdbcMigrationContext tenant)
+            throws SQLException, MigrationException
+    {
+        try
+        {
+            return super.doMigrations(tenant);
+        }
+        finally
+        {
+            SqlUtil.close(tenant.getConnection(), null, null);
+        }
+    }
+
+    /**
+     * Tenants are always patched independently of each other.
+     *
+     * @return true
+     */
+    public boolean isIndependentContexts()
+    {
+        return true;
+    }
+
+    /**
+     * Locks the patches table for the batch, waiting for another run to finish first.
+     *
+     * @param batchTable the patch record of the batch
+     * @throws MigrationException if the lock could not be read or obtained
+     */
+    private void lockBatch(PatchInfoStore batchTable) throws MigrationException
+    {
+        for (int i = 0;; i++)
+        {
+            if (!batchTable.isPatchStoreLocked())
+            {
+                try
+                {
+                    batchTable.lockPatchStore();
+                    return;
+                }
+                catch (IllegalStateException e)
+                {
+                    log.info("Another run locked tenant batch \"" + context.getSystemName()
+                            + "\" first");
+                }
+            }
+            else if ((getLockPollRetries() != -1) && (i >= getLockPollRetries()))
+            {
+                log.info("Reached maximum lock poll retries (" + getLockPollRetries()
+                        + "), overriding patch lock");
+                batchTable.unlockPatchStore();
+                continue;
+            }
+
+            log.info("Waiting for migration lock for tenant batch \"" + context.getSystemName()
+                    + "\"");
+            try
+            {
+                Thread.sleep(getLockPollMillis());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new MigrationException("Interrupted while waiting for the patch lock", e);
+            }
+        }
+    }
+}
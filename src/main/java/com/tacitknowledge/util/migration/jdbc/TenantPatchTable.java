@@ -0,0 +1,417 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc;
+
+import com.tacitknowledge.util.migration.MigrationException;
+import com.tacitknowledge.util.migration.PatchInfoStore;
+import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.MessageFormat;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The patch information of many systems that share one "patches" table, such as the tenants
+ * of a multi-tenant database.  {@link #load(Collection)} reads the patches of every system with
+ * a single query, and creates the missing patch records in one JDBC batch, instead of one
+ * query and commit per system.
+ * <p/>
+ * The <code>PatchInfoStore</code> of each system answers from memory, so it only sees the
+ * patches recorded through this table.  A patch level is written on the connection of the
+ * system's own context without committing, so it commits in the same transaction as the
+ * patch, just as a patch level in a <code>PatchTable</code> does.  The lock of each store
+ * does nothing: a {@link TenantMigrationLauncher} locks all its systems at once instead.
+ *
+ * @see TenantMigrationLauncher
+ */
+public class TenantPatchTable
+{
+    /**
+     * Class logger
+     */
+    private static Log log = LogFactory.getLog(TenantPatchTable.class);
+
+    /**
+     * The context to read and write the patches table with
+     */
+    private JdbcMigrationContext context = null;
+
+    /**
+     * The patches applied to each system, keyed by system name
+     */
+    private Map<String, Set<Integer>> patchesApplied = new HashMap<String, Set<Integer>>();
+
+    /**
+     * The schema of the patches table, which systems with a schema of their own switch to
+     * while they write their patch levels; <code>null</code> if the database type can't tell
+     */
+    private String patchesSchema = null;
+
+    /**
+     * Create a new <code>TenantPatchTable</code>.
+     *
+     * @param context the context to read and write the patches table with
+     */
+    public TenantPatchTable(JdbcMigrationContext context)
+    {
+        this.context = context;
+
+        if (context.getDatabaseType() == null)
+        {
+            throw new IllegalArgumentException("The JDBC database type is required");
+        }
+    }
+
+    /**
+     * Reads the patches applied to each of the given systems with one query, and creates the
+     * patch record of any system that doesn't have one yet in a single batch.  The patches
+     * table must already exist.
+     *
+     * @param systemNames the systems to read
+     * @throws MigrationException if the patches table can't be read or written
+     */
+    public synchronized void load(Collection<String> systemNames) throws MigrationException
+    {
+        Map<String, Set<Integer>> patches = new HashMap<String, Set<Integer>>();
+        for (String systemName : systemNames)
+        {
+            patches.put(systemName, new HashSet<Integer>());
+        }
+
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            conn = context.getConnection();
+            stmt = conn.prepareStatement(getSql("patches.all.systems"));
+            rs = stmt.executeQuery();
+            while (rs.next())
+            {
+                Set<Integer> systemPatches = patches.get(rs.getString(1));
+                if (systemPatches != null)
+                {
+                    systemPatches.add(new Integer(rs.getInt(2)));
+                }
+            }
+            SqlUtil.close(null, stmt, rs);
+            rs = null;
+            stmt = null;
+
+            String currentSchemaSql = getSql("schema.current");
+            if (currentSchemaSql != null)
+            {
+                stmt = conn.prepareStatement(currentSchemaSql);
+                rs = stmt.executeQuery();
+                patchesSchema = rs.next() ? rs.getString(1) : null;
+                SqlUtil.close(null, stmt, rs);
+                rs = null;
+                stmt = null;
+            }
+
+            // systems that have never been patched need a patch record
+            int created = 0;
+            stmt = conn.prepareStatement(getSql("level.create"));
+            for (Map.Entry<String, Set<Integer>> entry : patches.entrySet())
+            {
+                if (entry.getValue().isEmpty())
+                {
+                    stmt.setString(1, entry.getKey());
+                    stmt.addBatch();
+                    entry.getValue().add(new Integer(0));
+                    created++;
+                }
+            }
+            if (created > 0)
+            {
+                stmt.executeBatch();
+                context.commit();
+                log.info("Created patch records for " + created + " systems");
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new MigrationException("Unable to read the patch levels of "
+                    + systemNames.size() + " systems", e);
+        }
+        finally
+        {
+            SqlUtil.close(conn, stmt, rs);
+        }
+        patchesApplied = patches;
+    }
+
+    /**
+     * Returns the patch information of one of the systems read by {@link #load(Collection)}.
+     *
+     * @param system the context of the system, whose patches are applied and whose patch
+     *               levels are written over its connection
+     * @return the system's patch information
+     */
+    public PatchInfoStore getStore(JdbcMigrationContext system)
+    {
+        return new TenantPatchStore(system);
+    }
+
+    /**
+     * Returns the SQL to execute for the database type of the patches table.
+     *
+     * @param key the key within <code><i>database</i>.properties</code> whose
+     *            SQL should be returned
+     * @return the SQL to execute for the database type of the patches table
+     */
+    protected String getSql(String key)
+    {
+        return context.getDatabaseType().getProperty(key);
+    }
+
+    /**
+     * Returns the patches applied to a system.
+     *
+     * @param systemName the name of the system
+     * @return the patches applied to the system
+     * @throws MigrationException if the system was not loaded
+     */
+    private Set<Integer> getPatches(String systemName) throws MigrationException
+    {
+        Set<Integer> patches = patchesApplied.get(systemName);
+        if (patches == null)
+        {
+            throw new MigrationException("The patch levels of system " + systemName
+                    + " have not been loaded");
+        }
+        return patches;
+    }
+
+    /**
+     * The patch information of one system, kept by the <code>TenantPatchTable</code>.
+     */
+    private class TenantPatchStore implements PatchInfoStore
+    {
+        /**
+         * The context of the system
+         */
+        private JdbcMigrationContext system;
+
+        /**
+         * The name of the system
+         */
+        private String systemName;
+
+        /**
+         * Create a new <code>TenantPatchStore</code>.
+         *
+         * @param system the context of the system
+         */
+        TenantPatchStore(JdbcMigrationContext system)
+        {
+            this.system = system;
+            this.systemName = system.getSystemName();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void createPatchStoreIfNeeded() throws MigrationException
+        {
+            synchronized (TenantPatchTable.this)
+            {
+                getPatches(systemName);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int getPatchLevel() throws MigrationException
+        {
+            synchronized (TenantPatchTable.this)
+            {
+                int level = 0;
+                for (Integer patch : getPatches(systemName))
+                {
+                    level = Math.max(level, patch.intValue());
+                }
+                return level;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void updatePatchLevel(int level) throws MigrationException
+        {
+            writeLevel("level.update", level);
+            synchronized (TenantPatchTable.this)
+            {
+                getPatches(systemName).add(new Integer(level));
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean isPatchStoreLocked()
+        {
+            return false;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void lockPatchStore()
+        {
+            // the launcher locks all the systems at once
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void unlockPatchStore()
+        {
+            // the launcher locks all the systems at once
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean isPatchApplied(int level) throws MigrationException
+        {
+            synchronized (TenantPatchTable.this)
+            {
+                return getPatches(systemName).contains(new Integer(level));
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void updatePatchLevelAfterRollBack(int rollbackLevel) throws MigrationException
+        {
+            writeLevel("level.rollback", rollbackLevel);
+            synchronized (TenantPatchTable.this)
+            {
+                getPatches(systemName).remove(new Integer(rollbackLevel));
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Set<Integer> getPatchesApplied() throws MigrationException
+        {
+            synchronized (TenantPatchTable.this)
+            {
+                return new HashSet<Integer>(getPatches(systemName));
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String toString()
+        {
+            return "TenantPatchStore[" + systemName + "]";
+        }
+
+        /**
+         * Writes a patch level over the system's connection, leaving it to be committed with
+         * the patch.  A system with a schema of its own switches to the schema of the patches
+         * table for the write, and back again afterwards.
+         *
+         * @param key   the key of the SQL that writes the patch level
+         * @param level the patch level
+         * @throws MigrationException if the patch level could not be written
+         */
+        private void writeLevel(String key, int level) throws MigrationException
+        {
+            String schemaSql = getSql("schema.set");
+            String systemSchema = null;
+            if (system instanceof SchemaMigrationContext)
+            {
+                if ((patchesSchema == null) || (schemaSql == null))
+                {
+                    throw new MigrationException("Can't find the schema of the patches table "
+                            + "to record the patches of " + system);
+                }
+                systemSchema = ((SchemaMigrationContext) system).getSchemaName();
+            }
+
+            PreparedStatement stmt = null;
+            try
+            {
+                Connection conn = system.getConnection();
+                if (systemSchema != null)
+                {
+                    execute(conn, MessageFormat.format(schemaSql, new Object[] {patchesSchema}));
+                }
+                try
+                {
+                    stmt = conn.prepareStatement(getSql(key));
+                    stmt.setInt(1, level);
+                    stmt.setString(2, systemName);
+                    stmt.execute();
+                }
+                finally
+                {
+                    if (systemSchema != null)
+                    {
+                        execute(conn, MessageFormat.format(schemaSql,
+                                new Object[] {systemSchema}));
+                    }
+                }
+            }
+            catch (SQLException e)
+            {
+                throw new MigrationException("Unable to update patch level", e);
+            }
+            finally
+            {
+                SqlUtil.close(null, stmt, null);
+            }
+        }
+
+        /**
+         * Executes a statement that returns nothing.
+         *
+         * @param conn the connection to execute the statement on
+         * @param sql  the statement
+         * @throws SQLException if the statement fails
+         */
+        private void execute(Connection conn, String sql) throws SQLException
+        {
+            Statement stmt = conn.createStatement();
+            try
+            {
+                stmt.execute(sql);
+            }
+            finally
+            {
+                SqlUtil.close(null, stmt, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.tacitknowledge.util.migration.jdbc.BulkRowReader;
+
+/**
+ * Streams rows as UTF-8 encoded, comma separated text, for bulk loading commands that read
+ * such text from the client.  Each row is formatted only when the previous one has been read,
+ * so the rows are never all held in memory.
+ * <p/>
+ * Every value is quoted, with quote characters inside it doubled, and a <code>null</code>
+ * value is written unquoted as the given null text.  Rows end with a LF.
+ */
+public class BulkRowInputStream extends InputStream
+{
+    /**
+     * The rows to stream
+     */
+    private BulkRowReader rows;
+
+    /**
+     * The text that stands for a <code>null</code> value
+     */
+    private String nullText;
+
+    /**
+     * The current row, formatted and encoded
+     */
+    private byte[] line = new byte[0];
+
+    /**
+     * The position of the next byte to read in <code>line</code>
+     */
+    private int position = 0;
+
+    /**
+     * The number of rows read so far
+     */
+    private long rowCount = 0;
+
+    /**
+     * Whether the last row has been read
+     */
+    private boolean done = false;
+
+    /**
+     * Holds a row while it is formatted
+     */
+    private StringBuffer buffer = new StringBuffer(256);
+
+    /**
+     * Create a new <code>BulkRowInputStream</code>.
+     *
+     * @param rows     the rows to stream
+     * @param nullText the text that stands for a <code>null</code> value
+     */
+    public BulkRowInputStream(BulkRowReader rows, String nullText)
+    {
+        this.rows = rows;
+        this.nullText = nullText;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int read() throws IOException
+    {
+        if (!fill())
+        {
+            return -1;
+        }
+        return line[position++] & 0xff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (!fill())
+        {
+            return -1;
+        }
+        int count = Math.min(len, line.length - position);
+        System.arraycopy(line, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    /**
+     * @return the number of rows read so far
+     */
+    public long getRowCount()
+    {
+        return rowCount;
+    }
+
+    /**
+     * Formats a row.
+     *
+     * @param row the values of the row
+     * @return the row as a line of text, with its line break
+     */
+    protected String format(String[] row)
+    {
+        buffer.setLength(0);
+        for (int i = 0; i < row.length; i++)
+        {
+            if (i > 0)
+            {
+                buffer.append(',');
+            }
+            String value = row[i];
+            if (value == null)
+            {
+                buffer.append(nullText);
+                continue;
+            }
+            buffer.append('"');
+            for (int j = 0; j < value.length(); j++)
+            {
+                char c = value.charAt(j);
+                if (c == '"')
+                {
+                    buffer.append('"');
+                }
+                buffer.append(c);
+            }
+            buffer.append('"');
+        }
+        buffer.append('\n');
+        return buffer.toString();
+    }
+
+    /**
+     * Makes sure there is a byte to read, formatting the next row if need be.
+     *
+     * @return false if there are no more rows
+     * @throws IOException if the next row could not be read
+     */
+    private boolean fill() throws IOException
+    {
+        while (position == line.length)
+        {
+            if (done)
+            {
+                return false;
+            }
+            String[] row = rows.next();
+            if (row == null)
+            {
+                done = true;
+                return false;
+            }
+            line = format(row).getBytes("UTF-8");
+            position = 0;
+            rowCount++;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,286 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Splits a delimited file into chunks of whole records, so that the chunks can be parsed
+ * independently of one another.  The file is memory-mapped a window at a time and scanned
+ * byte by byte, following quotes the same way {@link DelimitedRowParser} does, so a line
+ * break inside a quoted field never ends a chunk.
+ * <p/>
+ * Scanning bytes rather than characters only works for encodings that store the delimiters,
+ * the quote character and line breaks as the single ASCII bytes they stand for, and never
+ * use those bytes within other characters; UTF-8, US-ASCII and the ISO-8859 encodings do.
+ * Use {@link #isSupported(Charset, String, char)} to check an encoding.
+ */
+public class DelimitedFileChunker
+{
+    /**
+     * The most bytes of the file mapped at once while scanning
+     */
+    private static final int WINDOW_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * Outside a quoted field
+     */
+    private static final int UNQUOTED = 0;
+
+    /**
+     * Inside a quoted field
+     */
+    private static final int QUOTED = 1;
+
+    /**
+     * Just after a quote character inside a quoted field
+     */
+    private static final int QUOTE_IN_QUOTED = 2;
+
+    /**
+     * The file being split
+     */
+    private FileChannel channel;
+
+    /**
+     * The size of the file
+     */
+    private long size;
+
+    /**
+     * The smallest size of a chunk; chunks end at the first record break after this size
+     */
+    private int chunkSize;
+
+    /**
+     * Which ASCII characters separate fields
+     */
+    private boolean[] delimiters = new boolean[128];
+
+    /**
+     * The character that quotes a field
+     */
+    private byte quote;
+
+    /**
+     * The part of the file being scanned
+     */
+    private MappedByteBuffer window = null;
+
+    /**
+     * Where <code>window</code> starts in the file
+     */
+    private long windowStart = 0;
+
+    /**
+     * The position of the next byte to scan
+     */
+    private long position = 0;
+
+    /**
+     * The state of the scan within a field
+     */
+    private int state = UNQUOTED;
+
+    /**
+     * Whether the scan is at the start of a field
+     */
+    private boolean fieldStart = true;
+
+    /**
+     * Where the current chunk starts in the file
+     */
+    private long chunkStart = 0;
+
+    /**
+     * The number of bytes in the current chunk
+     */
+    private int chunkLength = 0;
+
+    /**
+     * Create a new <code>DelimitedFileChunker</code>.
+     *
+     * @param channel    the file to split
+     * @param delimiters the characters that separate fields; each must be an ASCII character
+     * @param quote      the character that quotes a field; must be an ASCII character
+     * @param chunkSize  the smallest size of a chunk, in bytes
+     * @throws IOException if the size of the file can't be read
+     */
+    public DelimitedFileChunker(FileChannel channel, String delimiters, char quote,
+            int chunkSize) throws IOException
+    {
+        if (chunkSize < 1)
+        {
+            throw new IllegalArgumentException("chunkSize must be at least 1");
+        }
+        for (int i = 0; i < delimiters.length(); i++)
+        {
+            char delimiter = delimiters.charAt(i);
+            if (delimiter >= 128)
+            {
+                throw new IllegalArgumentException("Delimiters must be ASCII characters");
+            }
+            this.delimiters[delimiter] = true;
+        }
+        if (quote >= 128)
+        {
+            throw new IllegalArgumentException(
+                    "The quote character must be an ASCII character");
+        }
+        this.channel = channel;
+        this.size = channel.size();
+        this.chunkSize = chunkSize;
+        this.quote = (byte) quote;
+    }
+
+    /**
+     * Determines whether files in an encoding can be split by this class.
+     *
+     * @param charset    the encoding of the file
+     * @param delimiters the characters that separate fields
+     * @param quote      the character that quotes a field
+     * @return true if each special character is stored as the ASCII byte it stands for
+     */
+    public static boolean isSupported(Charset charset, String delimiters, char quote)
+    {
+        String special = delimiters + quote + "\r\n";
+        byte[] encoded = special.getBytes(charset);
+        if (encoded.length != special.length())
+        {
+            return false;
+        }
+        for (int i = 0; i < encoded.length; i++)
+        {
+            if ((special.charAt(i) >= 128) || (encoded[i] != special.charAt(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the next chunk of the file: at least <code>chunkSize</code> bytes, up to and
+     * including the line break that ends a record, or the rest of the file.
+     *
+     * @return <code>false</code> at the end of the file, <code>true</code> otherwise
+     * @throws IOException if the file could not be mapped, or a record is larger than the
+     *         largest chunk that can be mapped
+     */
+    public boolean next() throws IOException
+    {
+        if (position >= size)
+        {
+            return false;
+        }
+        chunkStart = position;
+        long target = chunkStart + chunkSize;
+        boolean found = false;
+        while (!found && (position < size))
+        {
+            if ((window == null) || (position >= windowStart + window.limit()))
+            {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                        Math.min(WINDOW_SIZE, size - windowStart));
+            }
+            int offset = (int) (position - windowStart);
+            int end = window.limit();
+            while (offset < end)
+            {
+                if (endsRecord(window.get(offset++)) && (windowStart + offset >= target))
+                {
+                    found = true;
+                    break;
+                }
+            }
+            position = windowStart + offset;
+        }
+        if (position - chunkStart > Integer.MAX_VALUE)
+        {
+            throw new IOException("The record at byte " + chunkStart + " is too large to load");
+        }
+        chunkLength = (int) (position - chunkStart);
+        return true;
+    }
+
+    /**
+     * @return where the current chunk starts in the file
+     */
+    public long getChunkStart()
+    {
+        return chunkStart;
+    }
+
+    /**
+     * @return the number of bytes in the current chunk
+     */
+    public int getChunkLength()
+    {
+        return chunkLength;
+    }
+
+    /**
+     * Follows one byte of the file through the quoting rules.
+     *
+     * @param b the next byte of the file
+     * @return true if the byte is the line break at the end of a record
+     */
+    private boolean endsRecord(byte b)
+    {
+        if (state == QUOTED)
+        {
+            if (b == quote)
+            {
+                state = QUOTE_IN_QUOTED;
+            }
+            return false;
+        }
+        if (state == QUOTE_IN_QUOTED)
+        {
+            if (b == quote)
+            {
+                // a doubled quote stands for one quote character
+                state = QUOTED;
+                return false;
+            }
+            state = UNQUOTED;
+        }
+
+        if (b == '\n')
+        {
+            fieldStart = true;
+            return true;
+        }
+        if ((b >= 0) && delimiters[b])
+        {
+            fieldStart = true;
+        }
+        else if ((b == quote) && fieldStart)
+        {
+            state = QUOTED;
+            fieldStart = false;
+        }
+        else
+        {
+            fieldStart = false;
+        }
+        return false;
+    }
+}
@@ -15,16 +15,24 @@
 
 package com.tacitknowledge.util.migration.jdbc.loader;
 
+import com.tacitknowledge.util.migration.MigrationContext;
+import com.tacitknowledge.util.migration.MigrationException;
+import com.tacitknowledge.util.migration.jdbc.BulkLoader;
+import com.tacitknowledge.util.migration.jdbc.BulkRowReader;
+import com.tacitknowledge.util.migration.jdbc.DataSourceMigrationContext;
+import com.tacitknowledge.util.migration.jdbc.DatabaseType;
 import com.tacitknowledge.util.migration.jdbc.SqlLoadMigrationTask;
+import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.StringTokenizer;
 
 /**
  * Loads files assumed to be in a delimited format and representing a
@@ -32,6 +40,26 @@ import java.util.StringTokenizer;
  * "&lt;tablename&gt;_tb".  The file's first row should represent the name of
  * each column in the table that the underlying data elements (rows 2
  * through n) will be mapped to.
+ * <p/>
+ * Fields are read as described by RFC 4180 (see {@link DelimitedRowParser}), so a field in
+ * quotes may contain the delimiter, line breaks and doubled quotes.
+ * <p/>
+ * Very large files can be parsed on several threads by setting <code>parserThreads</code>.
+ * The file is then memory-mapped and split into chunks of about <code>chunkSize</code> bytes
+ * that are parsed in parallel (see {@link ParallelDelimitedReader}), while rows are still
+ * inserted in file order through the migration's connection.  This needs the file to be a
+ * file of its own on the file system, in an encoding such as UTF-8 or ISO-8859-1 (see
+ * {@link DelimitedFileChunker}); otherwise the file is parsed on the loading thread.
+ * <p/>
+ * When rows are spread over several connections (see {@link SqlLoadMigrationTask}), a
+ * <code>partitionColumn</code> named in the header sends rows with the same value in that
+ * column through the same connection.
+ * <p/>
+ * When migration.properties names a {@link BulkLoader} for the database type (none of the
+ * bundled types name one by default), and the connection's driver supports it, the file is loaded through the database's own bulk loading path instead, over the
+ * migration's connection; batch sizes and connection counts don't apply then.  Loaders that
+ * override {@link #insert(String, PreparedStatement)} to bind rows their own way are always
+ * loaded with inserts, and <code>bulkLoadEnabled</code> turns bulk loading off for a loader.
  *
  * @author Chris A. (chris@tacitknowledge.com)
  */
@@ -42,6 +70,16 @@ public abstract class DelimitedFileLoader extends SqlLoadMigrationTask
      */
     public static final String PATH_SEPARATOR = File.separator;
 
+    /**
+     * The value of a field that is loaded as <code>null</code>
+     */
+    public static final String NULL_TOKEN = "<null>";
+
+    /**
+     * The default smallest size of a chunk parsed on its own thread, in bytes
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
     /**
      * Class logger
      */
@@ -52,6 +90,66 @@ public abstract class DelimitedFileLoader extends SqlLoadMigrationTask
      */
     private boolean parsedHeader = false;
 
+    /**
+     * The parser over the file being loaded
+     */
+    private DelimitedRowParser parser = null;
+
+    /**
+     * The reader the parser reads from
+     */
+    private BufferedReader parserReader = null;
+
+    /**
+     * The record the parser read last
+     */
+    private String currentRow = null;
+
+    /**
+     * The fields of <code>currentRow</code>, when it was parsed on another thread
+     */
+    private String[] currentFields = null;
+
+    /**
+     * The number of threads to parse the file on, or 0 to parse it on the loading thread
+     */
+    private int parserThreads = 0;
+
+    /**
+     * The smallest size of a chunk parsed on its own thread, in bytes
+     */
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * Reads the file when it is parsed on several threads
+     */
+    private ParallelDelimitedReader parallelReader = null;
+
+    /**
+     * The column that decides which connection each row is inserted through, if any
+     */
+    private String partitionColumn = null;
+
+    /**
+     * The index of <code>partitionColumn</code> in the header, or -1
+     */
+    private int partitionIndex = -1;
+
+    /**
+     * Whether the file may be loaded with the database type's bulk loader
+     */
+    private boolean bulkLoadEnabled = true;
+
+    /**
+     * The columns named by the header, in file order
+     */
+    private String[] headerColumns = null;
+
+    /**
+     * Binds values with the setters of their columns' types; created at the first row
+     */
+    private TypedParameterBinder binder = null;
+
     /**
      * Gets the expected file delimiter.  A pipe-delimited
      * reader should return "|", for example.
@@ -69,12 +167,173 @@ public abstract class DelimitedFileLoader extends SqlLoadMigrationTask
      */
     public abstract String getName();
 
+    /**
+     * Loads the file, treating its first row as the header again.
+     *
+     * @param ctx the <code>DataSourceMigrationContext</code> to load the data into
+     * @throws MigrationException if a row can't be read or inserted
+     */
+    public void migrate(MigrationContext ctx) throws MigrationException
+    {
+        parsedHeader = false;
+        parser = null;
+        parserReader = null;
+        currentRow = null;
+        currentFields = null;
+        partitionIndex = -1;
+        headerColumns = null;
+        binder = null;
+        DataSourceMigrationContext context = (DataSourceMigrationContext) ctx;
+        BulkLoader bulkLoader = findBulkLoader(context);
+        parallelReader = (parserThreads > 0) ? openParallelReader() : null;
+        try
+        {
+            if (bulkLoader != null)
+            {
+                bulkLoad(context, bulkLoader);
+            }
+            else
+            {
+                super.migrate(ctx);
+            }
+        }
+        finally
+        {
+            if (parallelReader != null)
+            {
+                try
+                {
+                    parallelReader.close();
+                }
+                catch (IOException e)
+                {
+                    log.error("Error closing " + getName(), e);
+                }
+                parallelReader = null;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the file may be loaded with the database type's bulk loader.
+     *
+     * @return true if the file is bulk loaded whenever the database allows it
+     */
+    public boolean isBulkLoadEnabled()
+    {
+        return bulkLoadEnabled;
+    }
+
+    /**
+     * Sets whether the file may be loaded with the database type's bulk loader.
+     *
+     * @param bulkLoadEnabled false to always load the file with inserts
+     */
+    public void setBulkLoadEnabled(boolean bulkLoadEnabled)
+    {
+        this.bulkLoadEnabled = bulkLoadEnabled;
+    }
+
+    /**
+     * Returns the number of threads the file is parsed on.
+     *
+     * @return the number of threads the file is parsed on, or 0 if it is parsed on the
+     *         loading thread
+     */
+    public int getParserThreads()
+    {
+        return parserThreads;
+    }
+
+    /**
+     * Sets the number of threads to parse the file on.
+     *
+     * @param parserThreads the number of threads to parse the file on, or 0 to parse it on
+     *                      the loading thread
+     */
+    public void setParserThreads(int parserThreads)
+    {
+        if (parserThreads < 0)
+        {
+            throw new IllegalArgumentException("parserThreads can't be negative");
+        }
+        this.parserThreads = parserThreads;
+    }
+
+    /**
+     * Returns the smallest size of a chunk parsed on its own thread.
+     *
+     * @return the smallest size of a chunk, in bytes
+     */
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the smallest size of a chunk parsed on its own thread.  Chunks end at the first
+     * record break after this size.
+     *
+     * @param chunkSize the smallest size of a chunk, in bytes
+     */
+    public void setChunkSize(int chunkSize)
+    {
+        if (chunkSize < 1)
+        {
+            throw new IllegalArgumentException("chunkSize must be at least 1");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Reads the next record of the file, which may span several lines if it has quoted fields
+     * with line breaks in them.  Blank lines are skipped.  When the file is parsed on several
+     * threads, records come from the memory-mapped file instead, and the reader is not read.
+     *
+     * @param reader the reader over the file
+     * @return the next record, or <code>null</code> at the end of the file
+     * @throws IOException if the file could not be read or a record is malformed
+     */
+    protected String readRow(BufferedReader reader) throws IOException
+    {
+        if (parallelReader != null)
+        {
+            if (parallelReader.next())
+            {
+                currentRow = parallelReader.getRecord();
+                currentFields = parallelReader.getFields();
+                return currentRow;
+            }
+            currentRow = null;
+            currentFields = null;
+            return null;
+        }
+        if ((parser == null) || (parserReader != reader))
+        {
+            parser = new DelimitedRowParser(reader, getDelimiter(), getQuoteCharacter(),
+                    DelimitedRowParser.DEFAULT_BUFFER_SIZE);
+            parserReader = reader;
+        }
+        while (parser.next())
+        {
+            if (parser.getRecordLength() > 0)
+            {
+                currentRow = parser.getRecord();
+                return currentRow;
+            }
+        }
+        currentRow = null;
+        return null;
+    }
+
     /**
      * Parses a line of data, and sets the prepared statement with the
      * values.  If a token contains "&lt;null&gt;" then a null value is passed
-     * in.
+     * in.  Fields may be quoted, and empty fields are loaded as empty strings.
+     * Values are bound with the setter of their column's type, read once from
+     * the table's metadata; see {@link TypedParameterBinder}.
      *
-     * @param data the tokenized string that is mapped to a row
+     * @param data the delimited record that is mapped to a row
      * @param stmt the statement to populate with data to be inserted
      * @return false if the header is returned, true otherwise
      * @throws SQLException if an error occurs while inserting data into the database
@@ -85,27 +344,375 @@ public abstract class DelimitedFileLoader extends SqlLoadMigrationTask
         {
             parsedHeader = true;
             log.info("Header returned: " + data);
+            DelimitedRowParser header = getParsedRow(data);
+            headerColumns = new String[header.getFieldCount()];
+            for (int i = 0; i < headerColumns.length; i++)
+            {
+                headerColumns[i] = header.getField(i).trim();
+            }
+            if (partitionColumn != null)
+            {
+                partitionIndex = findColumn(data, partitionColumn);
+            }
             return false;
         }
-        StringTokenizer st = new StringTokenizer(data, getDelimiter());
-        int counter = 1;
-        log.info("Row being parsed: " + data);
-        while (st.hasMoreTokens())
+        if (binder == null)
+        {
+            binder = TypedParameterBinder.forTable(stmt.getConnection(), getTableFromName(),
+                    headerColumns);
+        }
+
+        // the record just read has already been parsed; any other string is parsed here
+        if ((currentFields != null) && (data == currentRow))
+        {
+            for (int i = 0; i < currentFields.length; i++)
+            {
+                String value = currentFields[i];
+                binder.bind(stmt, i + 1, i, value.equalsIgnoreCase(NULL_TOKEN) ? null : value);
+            }
+            return true;
+        }
+        DelimitedRowParser row = getParsedRow(data);
+        int fieldCount = row.getFieldCount();
+        for (int i = 0; i < fieldCount; i++)
         {
-            String colVal = st.nextToken();
-            if (colVal.equalsIgnoreCase("<null>"))
+            if (row.fieldEqualsIgnoreCase(i, NULL_TOKEN))
             {
-                stmt.setString(counter, null);
+                binder.bind(stmt, i + 1, i, null);
             }
             else
             {
-                stmt.setString(counter, colVal);
+                binder.bind(stmt, i + 1, i, row.getField(i));
             }
-            counter++;
         }
         return true;
     }
 
+    /**
+     * Returns the value of the partition column of a row, when rows are spread over several
+     * connections and a partition column is set.
+     *
+     * @param data the row that is about to be inserted
+     * @return the value of the partition column, or <code>null</code> if no partition column
+     *         is set
+     * @throws SQLException if the row can't be parsed
+     */
+    protected Object getPartitionKey(String data) throws SQLException
+    {
+        if ((partitionIndex == -1) || !parsedHeader)
+        {
+            return null;
+        }
+        if ((currentFields != null) && (data == currentRow))
+        {
+            return (partitionIndex < currentFields.length) ? currentFields[partitionIndex] : null;
+        }
+        DelimitedRowParser row = getParsedRow(data);
+        return (partitionIndex < row.getFieldCount()) ? row.getField(partitionIndex) : null;
+    }
+
+    /**
+     * Returns the column whose values decide which connection each row is inserted through,
+     * when rows are spread over several connections.
+     *
+     * @return the name of the partition column, or <code>null</code> to send batches of
+     *         consecutive rows to each connection in turn
+     */
+    public String getPartitionColumn()
+    {
+        return partitionColumn;
+    }
+
+    /**
+     * Sets the column whose values decide which connection each row is inserted through,
+     * when rows are spread over several connections.  Rows with the same value in this column
+     * are inserted through the same connection.
+     *
+     * @param partitionColumn the name of a column in the file's header, or <code>null</code>
+     *                        to send batches of consecutive rows to each connection in turn
+     */
+    public void setPartitionColumn(String partitionColumn)
+    {
+        this.partitionColumn = partitionColumn;
+    }
+
+    /**
+     * Returns the character that quotes fields containing delimiters, quotes or line breaks.
+     *
+     * @return the quote character, a double quote unless overridden
+     */
+    protected char getQuoteCharacter()
+    {
+        return '"';
+    }
+
+    /**
+     * Returns the data file as a file on the file system, for it to be memory-mapped when it
+     * is parsed on several threads.
+     *
+     * @return the file, or <code>null</code> if it is not a file of its own or is compressed
+     */
+    protected File getFile()
+    {
+        return new FileLoadingUtility(getName()).getFile();
+    }
+
+    /**
+     * Finds the bulk loader to load the file with, if there is one that can be used.
+     *
+     * @param context the context to load the file into
+     * @return the bulk loader, or <code>null</code> to load the file with inserts
+     * @throws MigrationException if the connection can't be opened
+     */
+    private BulkLoader findBulkLoader(DataSourceMigrationContext context)
+        throws MigrationException
+    {
+        DatabaseType databaseType = context.getDatabaseType();
+        if (!bulkLoadEnabled || (databaseType == null) || isInsertOverridden())
+        {
+            return null;
+        }
+        BulkLoader bulkLoader = databaseType.getBulkLoader();
+        if (bulkLoader == null)
+        {
+            return null;
+        }
+        try
+        {
+            if (bulkLoader.isSupported(context.getConnection()))
+            {
+                return bulkLoader;
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new MigrationException("Could not open a connection to load " + getName(), e);
+        }
+        log.info(getName() + ": " + bulkLoader.getClass().getName()
+                + " is not supported by the connection; loading with inserts");
+        return null;
+    }
+
+    /**
+     * Determines whether a subclass binds rows its own way, which a bulk loader would bypass.
+     *
+     * @return true if a subclass overrides {@link #insert(String, PreparedStatement)}
+     */
+    private boolean isInsertOverridden()
+    {
+        for (Class c = getClass(); c != DelimitedFileLoader.class; c = c.getSuperclass())
+        {
+            try
+            {
+                c.getDeclaredMethod("insert", new Class[] {String.class, PreparedStatement.class});
+                return true;
+            }
+            catch (NoSuchMethodException e)
+            {
+                // look in the superclass
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Loads the file with a bulk loader over the migration's connection, committing once it
+     * is all in.
+     *
+     * @param context    the context to load the file into
+     * @param bulkLoader the bulk loader
+     * @throws MigrationException if the file can't be read or loaded
+     */
+    private void bulkLoad(DataSourceMigrationContext context, BulkLoader bulkLoader)
+        throws MigrationException
+    {
+        Connection conn = null;
+        BufferedReader reader = null;
+        try
+        {
+            conn = context.getConnection();
+            reader = getReader(getResourceAsStream());
+            final BufferedReader rows = reader;
+            String header = readRow(rows);
+            if (header == null)
+            {
+                log.info(getName() + " is empty");
+                return;
+            }
+            parsedHeader = true;
+            log.info("Header returned: " + header);
+            DelimitedRowParser headerRow = getParsedRow(header);
+            String[] columns = new String[headerRow.getFieldCount()];
+            for (int i = 0; i < columns.length; i++)
+            {
+                columns[i] = headerRow.getField(i).trim();
+            }
+
+            long count = bulkLoader.load(conn, getTableFromName(), columns, new BulkRowReader()
+            {
+                public String[] next() throws IOException
+                {
+                    String row = readRow(rows);
+                    return (row == null) ? null : getValues(row);
+                }
+            });
+            context.commit();
+            log.debug(getName() + ": bulk loaded " + count + " rows");
+        }
+        catch (Exception e)
+        {
+            String message = getName() + ": Error bulk loading with "
+                    + bulkLoader.getClass().getName();
+            log.error(message, e);
+            if (e instanceof SQLException)
+            {
+                if (((SQLException) e).getNextException() != null)
+                {
+                    log.error("Chained SQL Exception", ((SQLException) e).getNextException());
+                }
+            }
+
+            context.rollback();
+
+            throw new MigrationException(message, e);
+        }
+        finally
+        {
+            SqlUtil.close(conn, null, null);
+            if (reader != null)
+            {
+                try
+                {
+                    reader.close();
+                }
+                catch (IOException e)
+                {
+                    log.error("Error closing " + getName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the values of the record just read, with <code>null</code> for each
+     * <code>&lt;null&gt;</code> field.
+     *
+     * @param data the record just read
+     * @return the values of the record
+     * @throws IOException if the record can't be parsed
+     */
+    private String[] getValues(String data) throws IOException
+    {
+        if ((currentFields != null) && (data == currentRow))
+        {
+            String[] values = new String[currentFields.length];
+            for (int i = 0; i < values.length; i++)
+            {
+                String value = currentFields[i];
+                values[i] = value.equalsIgnoreCase(NULL_TOKEN) ? null : value;
+            }
+            return values;
+        }
+        DelimitedRowParser row = null;
+        try
+        {
+            row = getParsedRow(data);
+        }
+        catch (SQLException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+        String[] values = new String[row.getFieldCount()];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = row.fieldEqualsIgnoreCase(i, NULL_TOKEN) ? null : row.getField(i);
+        }
+        return values;
+    }
+
+    /**
+     * Returns a parser holding the fields of a record: the one that read the record, or a
+     * new one if the record was not the last one read.
+     *
+     * @param data the record
+     * @return a parser whose current record is <code>data</code>
+     * @throws SQLException if the record can't be parsed
+     */
+    private DelimitedRowParser getParsedRow(String data) throws SQLException
+    {
+        if ((parser != null) && (data == currentRow))
+        {
+            return parser;
+        }
+        DelimitedRowParser row = new DelimitedRowParser(getDelimiter(), getQuoteCharacter());
+        try
+        {
+            row.parse(data);
+        }
+        catch (IOException e)
+        {
+            throw new SQLException("Could not parse row: " + e.getMessage());
+        }
+        return row;
+    }
+
+    /**
+     * Finds a column in the header of the file.
+     *
+     * @param header the header of the file
+     * @param column the name of the column to find
+     * @return the index of the column
+     * @throws SQLException if the header can't be parsed
+     * @throws IllegalArgumentException if the header has no such column
+     */
+    private int findColumn(String header, String column) throws SQLException
+    {
+        DelimitedRowParser row = getParsedRow(header);
+        for (int i = 0; i < row.getFieldCount(); i++)
+        {
+            if (row.getField(i).trim().equalsIgnoreCase(column))
+            {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("The header of " + getName()
+                + " has no column named " + column);
+    }
+
+    /**
+     * Opens the file to be parsed on several threads, if it can be.
+     *
+     * @return the reader over the file, or <code>null</code> to parse the file on the loading
+     *         thread
+     * @throws MigrationException if the file could not be opened
+     */
+    private ParallelDelimitedReader openParallelReader() throws MigrationException
+    {
+        File file = getFile();
+        if (file == null)
+        {
+            log.info(getName() + " is compressed or not a file of its own; parsing it on one "
+                    + "thread");
+            return null;
+        }
+        Charset charset = Charset.defaultCharset();
+        if (!DelimitedFileChunker.isSupported(charset, getDelimiter(), getQuoteCharacter()))
+        {
+            log.info(getName() + " can't be split into chunks in " + charset
+                    + "; parsing it on one thread");
+            return null;
+        }
+        try
+        {
+            return new ParallelDelimitedReader(file, getDelimiter(), getQuoteCharacter(),
+                    charset, parserThreads, chunkSize);
+        }
+        catch (IOException e)
+        {
+            throw new MigrationException("Could not open " + file, e);
+        }
+    }
+
     /**
      * Returns the table name from the full path name
      * by parsing it out of a file in the format
@@ -132,13 +739,26 @@ public abstract class DelimitedFileLoader extends SqlLoadMigrationTask
     {
         try
         {
-            String columnHeader = getHeader(getResourceAsStream());
-            String delimiter = getDelimiter();
-            StringTokenizer st = new StringTokenizer(columnHeader, delimiter);
+            String columnHeader = null;
+            InputStream is = getResourceAsStream();
+            try
+            {
+                columnHeader = getHeader(is);
+            }
+            finally
+            {
+                if (is != null)
+                {
+                    is.close();
+                }
+            }
+            DelimitedRowParser header = new DelimitedRowParser(getDelimiter(),
+                    getQuoteCharacter());
+            header.parse(columnHeader);
             ArrayList columnNames = new ArrayList();
-            while (st.hasMoreTokens())
+            for (int i = 0; i < header.getFieldCount(); i++)
             {
-                columnNames.add((st.nextToken().trim()));
+                columnNames.add(header.getField(i).trim());
             }
             StringBuffer query = new StringBuffer("INSERT INTO ");
             query.append(getTableFromName());
@@ -199,7 +819,8 @@ public abstract class DelimitedFileLoader extends SqlLoadMigrationTask
      */
     protected String getHeader(InputStream is) throws IOException
     {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-        return reader.readLine();
+        DelimitedRowParser header = new DelimitedRowParser(getReader(is), getDelimiter(),
+                getQuoteCharacter(), DelimitedRowParser.DEFAULT_BUFFER_SIZE);
+        return header.next() ? header.getRecord() : null;
     }
 }
@@ -0,0 +1,511 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Reads the records of a delimited file as described by RFC 4180: fields may be quoted, and
+ * a quoted field may contain delimiters, line breaks and doubled quote characters.  Empty
+ * fields are kept, and a record may end with either a LF or a CRLF line break.
+ * <p/>
+ * The parser reads its input in blocks and keeps one record at a time in a reusable buffer.
+ * Fields are not split out into strings of their own; {@link #getField(int)} slices a field
+ * from the buffer when it is asked for.  Reading the next record overwrites the current one.
+ * <p/>
+ * Like <code>StringTokenizer</code>, every character of the delimiter string is a delimiter
+ * on its own.
+ */
+public class DelimitedRowParser
+{
+    /**
+     * The default size of the block of input read at once
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * The states of the parser within a field
+     */
+    private static final int UNQUOTED = 0;
+
+    /**
+     * Inside a quoted field
+     */
+    private static final int QUOTED = 1;
+
+    /**
+     * Just after a quote character inside a quoted field
+     */
+    private static final int QUOTE_IN_QUOTED = 2;
+
+    /**
+     * After the closing quote of a quoted field
+     */
+    private static final int AFTER_QUOTED = 3;
+
+    /**
+     * The characters that separate fields
+     */
+    private String delimiters;
+
+    /**
+     * The delimiter, if there is only one, or -1
+     */
+    private int delimiter;
+
+    /**
+     * The character that quotes a field
+     */
+    private char quote;
+
+    /**
+     * The input being parsed
+     */
+    private Reader reader = null;
+
+    /**
+     * The block of input being parsed
+     */
+    private char[] buffer;
+
+    /**
+     * The position of the next character to parse in <code>buffer</code>
+     */
+    private int position = 0;
+
+    /**
+     * The number of characters in <code>buffer</code>
+     */
+    private int limit = 0;
+
+    /**
+     * The characters of the current record, as they appear in the input
+     */
+    private char[] record = new char[256];
+
+    /**
+     * The number of characters in <code>record</code>
+     */
+    private int recordLength = 0;
+
+    /**
+     * The number of fields in the current record
+     */
+    private int fieldCount = 0;
+
+    /**
+     * Where the value of each field starts in <code>record</code>
+     */
+    private int[] fieldStarts = new int[16];
+
+    /**
+     * Where the value of each field ends in <code>record</code>
+     */
+    private int[] fieldEnds = new int[16];
+
+    /**
+     * Whether each field contains doubled quote characters
+     */
+    private boolean[] fieldEscaped = new boolean[16];
+
+    /**
+     * The number of records read so far
+     */
+    private int recordNumber = 0;
+
+    /**
+     * Create a new <code>DelimitedRowParser</code>.
+     *
+     * @param delimiters the characters that separate fields
+     * @param quote      the character that quotes a field
+     */
+    public DelimitedRowParser(String delimiters, char quote)
+    {
+        this(null, delimiters, quote, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create a new <code>DelimitedRowParser</code>.
+     *
+     * @param reader     the input to read records from
+     * @param delimiters the characters that separate fields
+     * @param quote      the character that quotes a field
+     * @param bufferSize the number of characters to read from the input at once
+     */
+    public DelimitedRowParser(Reader reader, String delimiters, char quote, int bufferSize)
+    {
+        if ((delimiters == null) || (delimiters.length() == 0))
+        {
+            throw new IllegalArgumentException("A delimiter is required");
+        }
+        if (delimiters.indexOf(quote) != -1)
+        {
+            throw new IllegalArgumentException("The quote character can't be a delimiter");
+        }
+        this.reader = reader;
+        this.delimiters = delimiters;
+        this.delimiter = (delimiters.length() == 1) ? delimiters.charAt(0) : -1;
+        this.quote = quote;
+        this.buffer = new char[Math.max(1, bufferSize)];
+    }
+
+    /**
+     * Create a new <code>DelimitedRowParser</code> that reads records straight out of an
+     * array of characters, without copying them into a buffer of its own.
+     *
+     * @param input      the characters to read records from
+     * @param offset     where the first record starts in <code>input</code>
+     * @param length     the number of characters to read
+     * @param delimiters the characters that separate fields
+     * @param quote      the character that quotes a field
+     */
+    public DelimitedRowParser(char[] input, int offset, int length, String delimiters,
+            char quote)
+    {
+        this(null, delimiters, quote, 1);
+        this.buffer = input;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * Reads the next record from the input.
+     *
+     * @return <code>false</code> at the end of the input, <code>true</code> otherwise
+     * @throws IOException if the input could not be read, or ends inside a quoted field
+     */
+    public boolean next() throws IOException
+    {
+        recordLength = 0;
+        fieldCount = 0;
+        int state = UNQUOTED;
+        int fieldStart = 0;
+        int valueStart = 0;
+        int valueEnd = 0;
+        boolean escaped = false;
+        boolean read = false;
+
+        while (true)
+        {
+            if ((position == limit) && !fill())
+            {
+                if (!read)
+                {
+                    return false;
+                }
+                if (state == QUOTED)
+                {
+                    throw new IOException("Record " + (recordNumber + 1)
+                            + " ends inside a quoted field");
+                }
+                break;
+            }
+            char c = buffer[position++];
+            read = true;
+
+            if (state == QUOTED)
+            {
+                if (c == quote)
+                {
+                    state = QUOTE_IN_QUOTED;
+                }
+                append(c);
+                continue;
+            }
+            if (state == QUOTE_IN_QUOTED)
+            {
+                if (c == quote)
+                {
+                    // a doubled quote stands for one quote character
+                    escaped = true;
+                    state = QUOTED;
+                    append(c);
+                    continue;
+                }
+                valueEnd = recordLength - 1;
+                state = AFTER_QUOTED;
+            }
+
+            if (c == '\n')
+            {
+                break;
+            }
+            if (isDelimiter(c))
+            {
+                endField(fieldStart, valueStart, valueEnd, state, escaped);
+                append(c);
+                state = UNQUOTED;
+                fieldStart = recordLength;
+                escaped = false;
+                continue;
+            }
+            if (state == AFTER_QUOTED)
+            {
+                if (c != '\r')
+                {
+                    throw new IOException("Record " + (recordNumber + 1)
+                            + " has characters after the closing quote of field "
+                            + (fieldCount + 1));
+                }
+            }
+            else if ((c == quote) && (recordLength == fieldStart))
+            {
+                state = QUOTED;
+                valueStart = recordLength + 1;
+            }
+            append(c);
+        }
+
+        if (state == QUOTE_IN_QUOTED)
+        {
+            valueEnd = recordLength - 1;
+            state = AFTER_QUOTED;
+        }
+        if ((recordLength > 0) && (record[recordLength - 1] == '\r'))
+        {
+            recordLength--;
+        }
+        endField(fieldStart, valueStart, valueEnd, state, escaped);
+        recordNumber++;
+        return true;
+    }
+
+    /**
+     * Parses a single record held in a string, replacing the current record.
+     *
+     * @param line the record to parse
+     * @throws IOException if the record ends inside a quoted field
+     */
+    public void parse(String line) throws IOException
+    {
+        reader = new StringReader(line);
+        position = 0;
+        limit = 0;
+        if (!next())
+        {
+            recordLength = 0;
+            fieldCount = 1;
+            fieldStarts[0] = 0;
+            fieldEnds[0] = 0;
+            fieldEscaped[0] = false;
+        }
+    }
+
+    /**
+     * @return the number of fields in the current record
+     */
+    public int getFieldCount()
+    {
+        return fieldCount;
+    }
+
+    /**
+     * Returns the value of a field of the current record, without its quotes.
+     *
+     * @param index the index of the field, starting at 0
+     * @return the value of the field
+     */
+    public String getField(int index)
+    {
+        checkIndex(index);
+        int start = fieldStarts[index];
+        int end = fieldEnds[index];
+        if (!fieldEscaped[index])
+        {
+            return new String(record, start, end - start);
+        }
+
+        StringBuffer value = new StringBuffer(end - start);
+        for (int i = start; i < end; i++)
+        {
+            value.append(record[i]);
+            if (record[i] == quote)
+            {
+                i++;
+            }
+        }
+        return value.toString();
+    }
+
+    /**
+     * Compares the value of a field of the current record with a string, ignoring case,
+     * without slicing the field out of the record.
+     *
+     * @param index the index of the field, starting at 0
+     * @param value the string to compare the field with
+     * @return true if the field has the same value as <code>value</code>, ignoring case
+     */
+    public boolean fieldEqualsIgnoreCase(int index, String value)
+    {
+        checkIndex(index);
+        if (fieldEscaped[index])
+        {
+            return getField(index).equalsIgnoreCase(value);
+        }
+        int start = fieldStarts[index];
+        if (fieldEnds[index] - start != value.length())
+        {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = record[start + i];
+            char v = value.charAt(i);
+            if ((c != v) && (Character.toUpperCase(c) != Character.toUpperCase(v))
+                    && (Character.toLowerCase(c) != Character.toLowerCase(v)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the current record as it appears in the input, without its line break
+     */
+    public String getRecord()
+    {
+        return new String(record, 0, recordLength);
+    }
+
+    /**
+     * @return the number of characters in the current record, without its line break
+     */
+    public int getRecordLength()
+    {
+        return recordLength;
+    }
+
+    /**
+     * @return the number of records read so far
+     */
+    public int getRecordNumber()
+    {
+        return recordNumber;
+    }
+
+    /**
+     * Reads the next block of input.
+     *
+     * @return false at the end of the input
+     * @throws IOException if the input could not be read
+     */
+    private boolean fill() throws IOException
+    {
+        if (reader == null)
+        {
+            return false;
+        }
+        int count = reader.read(buffer, 0, buffer.length);
+        while (count == 0)
+        {
+            count = reader.read(buffer, 0, buffer.length);
+        }
+        if (count < 0)
+        {
+            return false;
+        }
+        position = 0;
+        limit = count;
+        return true;
+    }
+
+    /**
+     * Determines whether a character separates fields.
+     *
+     * @param c the character
+     * @return true if <code>c</code> is a delimiter
+     */
+    private boolean isDelimiter(char c)
+    {
+        if (delimiter != -1)
+        {
+            return c == delimiter;
+        }
+        return delimiters.indexOf(c) != -1;
+    }
+
+    /**
+     * Adds a character to the current record.
+     *
+     * @param c the character to add
+     */
+    private void append(char c)
+    {
+        if (recordLength == record.length)
+        {
+            char[] larger = new char[record.length * 2];
+            System.arraycopy(record, 0, larger, 0, recordLength);
+            record = larger;
+        }
+        record[recordLength++] = c;
+    }
+
+    /**
+     * Records where the value of the field just parsed starts and ends.
+     *
+     * @param fieldStart where the field starts in the record
+     * @param valueStart where a quoted field's value starts, after the opening quote
+     * @param valueEnd   where a quoted field's value ends, before the closing quote
+     * @param state      the state of the parser at the end of the field
+     * @param escaped    whether the field contains doubled quote characters
+     */
+    private void endField(int fieldStart, int valueStart, int valueEnd, int state,
+            boolean escaped)
+    {
+        if (fieldCount == fieldStarts.length)
+        {
+            int[] starts = new int[fieldCount * 2];
+            int[] ends = new int[fieldCount * 2];
+            boolean[] escapes = new boolean[fieldCount * 2];
+            System.arraycopy(fieldStarts, 0, starts, 0, fieldCount);
+            System.arraycopy(fieldEnds, 0, ends, 0, fieldCount);
+            System.arraycopy(fieldEscaped, 0, escapes, 0, fieldCount);
+            fieldStarts = starts;
+            fieldEnds = ends;
+            fieldEscaped = escapes;
+        }
+        if (state == AFTER_QUOTED)
+        {
+            fieldStarts[fieldCount] = valueStart;
+            fieldEnds[fieldCount] = valueEnd;
+        }
+        else
+        {
+            fieldStarts[fieldCount] = fieldStart;
+            fieldEnds[fieldCount] = recordLength;
+        }
+        fieldEscaped[fieldCount] = escaped;
+        fieldCount++;
+    }
+
+    /**
+     * Makes sure a field exists in the current record.
+     *
+     * @param index the index of the field
+     * @throws IndexOutOfBoundsException if the record doesn't have the field
+     */
+    private void checkIndex(int index)
+    {
+        if ((index < 0) || (index >= fieldCount))
+        {
+            throw new IndexOutOfBoundsException("Record " + recordNumber + " has "
+                    + fieldCount + " fields, not " + (index + 1));
+        }
+    }
+}
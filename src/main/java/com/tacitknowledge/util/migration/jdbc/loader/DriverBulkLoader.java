@@ -0,0 +1,150 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import com.tacitknowledge.util.migration.jdbc.BulkLoader;
+
+/**
+ * Base class for <code>BulkLoader</code>s that use extensions of a particular JDBC driver.
+ * AutoPatch doesn't depend on any driver, so the extensions are looked up and called through
+ * reflection, and a loader whose driver isn't there reports itself as unsupported.
+ */
+public abstract class DriverBulkLoader implements BulkLoader
+{
+    /**
+     * Loads the first of several driver classes that can be found.  Different versions of a
+     * driver often name the same interface differently.
+     *
+     * @param conn  a connection from the driver
+     * @param names the names of the classes to look for
+     * @return the first class found, or <code>null</code> if none is available
+     */
+    protected Class findDriverClass(Connection conn, String[] names)
+    {
+        ClassLoader loader = conn.getClass().getClassLoader();
+        if (loader == null)
+        {
+            loader = Thread.currentThread().getContextClassLoader();
+        }
+        for (int i = 0; i < names.length; i++)
+        {
+            try
+            {
+                return Class.forName(names[i], true, loader);
+            }
+            catch (ClassNotFoundException e)
+            {
+                // try the next name
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Determines whether a connection is, or wraps, a connection of the given driver class.
+     *
+     * @param conn           the connection
+     * @param connectionType the driver's connection class; may be <code>null</code>
+     * @return true if the connection can be unwrapped to <code>connectionType</code>
+     */
+    protected boolean isWrapperFor(Connection conn, Class connectionType)
+    {
+        if (connectionType == null)
+        {
+            return false;
+        }
+        try
+        {
+            return connectionType.isInstance(conn) || conn.isWrapperFor(connectionType);
+        }
+        catch (SQLException e)
+        {
+            return false;
+        }
+        catch (AbstractMethodError e)
+        {
+            // a pre-JDBC 4 driver can't be unwrapped
+            return false;
+        }
+    }
+
+    /**
+     * Calls a public method of a driver object.
+     *
+     * @param target     the object to call the method on
+     * @param methodName the name of the method
+     * @param types      the parameter types of the method
+     * @param args       the arguments to pass
+     * @return the result of the method
+     * @throws SQLException if the method throws one, or can't be called
+     * @throws IOException  if the method throws one
+     */
+    protected Object invoke(Object target, String methodName, Class[] types, Object[] args)
+            throws SQLException, IOException
+    {
+        try
+        {
+            return target.getClass().getMethod(methodName, types).invoke(target, args);
+        }
+        catch (InvocationTargetException e)
+        {
+            Throwable cause = e.getTargetException();
+            if (cause instanceof SQLException)
+            {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException("Error calling " + methodName + ": " + cause);
+        }
+        catch (Exception e)
+        {
+            throw new SQLException("Could not call " + methodName + " on "
+                    + target.getClass().getName() + ": " + e);
+        }
+    }
+
+    /**
+     * Joins column names into a comma separated list.
+     *
+     * @param columns the column names
+     * @return the columns as a list
+     */
+    protected String join(String[] columns)
+    {
+        StringBuffer list = new StringBuffer();
+        for (int i = 0; i < columns.length; i++)
+        {
+            if (i > 0)
+            {
+                list.append(", ");
+            }
+            list.append(columns[i]);
+        }
+        return list.toString();
+    }
+}
@@ -32,7 +32,8 @@ import java.sql.SQLException;
 /**
  * This is a utility class for reading excel files and
  * performing a database insert based upon a cell value
- * provided.
+ * provided.  The whole workbook is read into memory; large
+ * spreadsheets load better with {@link StreamingExcelFileLoader}.
  *
  * @author Chris A. (chris@tacitknowledge.com)
  */
@@ -0,0 +1,50 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import com.tacitknowledge.util.migration.MigrationException;
+
+/**
+ * Receives the rows of an Excel workbook as an {@link ExcelRowListener} reads them, one sheet
+ * after another.
+ */
+public interface ExcelRowHandler
+{
+    /**
+     * Called when a worksheet starts.
+     *
+     * @param sheetName the name of the sheet
+     * @throws MigrationException if the sheet can't be handled
+     */
+    void startSheet(String sheetName) throws MigrationException;
+
+    /**
+     * Called for each row of the current sheet that has at least one value.
+     *
+     * @param rowNumber the number of the row in the sheet, starting at 0
+     * @param values    the text of the row's cells by column, <code>null</code> for blank cells;
+     *                  the array is the handler's to keep
+     * @throws MigrationException if the row can't be handled
+     */
+    void row(int rowNumber, String[] values) throws MigrationException;
+
+    /**
+     * Called when the current sheet ends.
+     *
+     * @throws MigrationException if the end of the sheet can't be handled
+     */
+    void endSheet() throws MigrationException;
+}
@@ -0,0 +1,380 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.math.BigDecimal;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.hssf.eventusermodel.AbortableHSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFUserException;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BoolErrRecord;
+import org.apache.poi.hssf.record.BoundSheetRecord;
+import org.apache.poi.hssf.record.DateWindow1904Record;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.ExtendedFormatRecord;
+import org.apache.poi.hssf.record.FormatRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.record.SSTRecord;
+import org.apache.poi.hssf.record.StringRecord;
+import org.apache.poi.hssf.usermodel.HSSFDateUtil;
+
+import com.tacitknowledge.util.migration.MigrationException;
+
+/**
+ * Reads the rows of an Excel workbook from the records POI's event API streams past it, and
+ * hands them to an {@link ExcelRowHandler}.  Unlike <code>HSSFWorkbook</code> it never holds
+ * more than the shared strings table, the cell formats and the current row.
+ * <p/>
+ * Cell values are passed as text: numbers without a fraction as whole numbers, others in
+ * plain decimal notation, dates as <code>yyyy-mm-dd</code> (or
+ * <code>yyyy-mm-dd hh:mm:ss</code> when they have a time), booleans as <code>true</code> or
+ * <code>false</code>, and formulas by their cached result.  Blank and error cells are
+ * <code>null</code>.
+ */
+public class ExcelRowListener extends AbortableHSSFListener
+{
+    /**
+     * The handler rows are passed to
+     */
+    private ExcelRowHandler handler;
+
+    /**
+     * The workbook's shared strings
+     */
+    private SSTRecord strings = null;
+
+    /**
+     * The names of the workbook's sheets, in order
+     */
+    private List sheetNames = new ArrayList();
+
+    /**
+     * The workbook's custom number formats, by format index
+     */
+    private Map customFormats = new HashMap();
+
+    /**
+     * The number of cell formats (XF records) read so far
+     */
+    private int cellFormatCount = 0;
+
+    /**
+     * The cell formats that display numbers as dates
+     */
+    private BitSet dateCellFormats = new BitSet();
+
+    /**
+     * Whether the workbook counts dates from 1904 instead of 1900
+     */
+    private boolean date1904 = false;
+
+    /**
+     * The nesting depth of the current substream
+     */
+    private int depth = 0;
+
+    /**
+     * The index of the current sheet, or -1 before the first
+     */
+    private int sheetIndex = -1;
+
+    /**
+     * Whether the current substream is a worksheet
+     */
+    private boolean inWorksheet = false;
+
+    /**
+     * The number of the row being read, or -1
+     */
+    private int rowNumber = -1;
+
+    /**
+     * The values of the row being read, by column
+     */
+    private List rowValues = new ArrayList();
+
+    /**
+     * The column of a formula whose string result follows it, or -1
+     */
+    private int formulaColumn = -1;
+
+    /**
+     * Formats date cells
+     */
+    private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+    /**
+     * Formats date cells that have a time
+     */
+    private SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * Create a new <code>ExcelRowListener</code>.
+     *
+     * @param handler the handler rows are passed to
+     */
+    public ExcelRowListener(ExcelRowHandler handler)
+    {
+        this.handler = handler;
+    }
+
+    /**
+     * Reads a record, passing each finished row to the handler.
+     *
+     * @param record the record
+     * @return 0, to keep reading
+     * @throws HSSFUserException wrapping the handler's <code>MigrationException</code>, to stop
+     *                           reading
+     */
+    public short abortableProcessRecord(Record record) throws HSSFUserException
+    {
+        try
+        {
+            processRecord(record, record.getSid());
+        }
+        catch (MigrationException e)
+        {
+            throw new HSSFUserException(e.getMessage(), e);
+        }
+        return 0;
+    }
+
+    /**
+     * Reads a record.
+     *
+     * @param record the record
+     * @param sid    the type of the record
+     * @throws MigrationException if the handler fails
+     */
+    private void processRecord(Record record, short sid) throws MigrationException
+    {
+        switch (sid)
+        {
+            case BOFRecord.sid:
+                depth++;
+                short type = ((BOFRecord) record).getType();
+                if ((depth == 1) && (type != BOFRecord.TYPE_WORKBOOK))
+                {
+                    sheetIndex++;
+                    if (type == BOFRecord.TYPE_WORKSHEET)
+                    {
+                        inWorksheet = true;
+                        rowNumber = -1;
+                        handler.startSheet(getSheetName());
+                    }
+                }
+                break;
+            case EOFRecord.sid:
+                if ((depth == 1) && inWorksheet)
+                {
+                    finishRow();
+                    inWorksheet = false;
+                    handler.endSheet();
+                }
+                depth--;
+                break;
+            case BoundSheetRecord.sid:
+                sheetNames.add(((BoundSheetRecord) record).getSheetname());
+                break;
+            case SSTRecord.sid:
+                strings = (SSTRecord) record;
+                break;
+            case FormatRecord.sid:
+                FormatRecord format = (FormatRecord) record;
+                customFormats.put(new Integer(format.getIndexCode()), format.getFormatString());
+                break;
+            case ExtendedFormatRecord.sid:
+                if (isDateFormat(((ExtendedFormatRecord) record).getFormatIndex()))
+                {
+                    dateCellFormats.set(cellFormatCount);
+                }
+                cellFormatCount++;
+                break;
+            case DateWindow1904Record.sid:
+                date1904 = ((DateWindow1904Record) record).getWindowing() == 1;
+                break;
+            default:
+                if ((depth == 1) && inWorksheet)
+                {
+                    processCell(record, sid);
+                }
+        }
+    }
+
+    /**
+     * Reads a record of a worksheet, keeping the value of any cell it holds.
+     *
+     * @param record the record
+     * @param sid    the type of the record
+     * @throws MigrationException if the handler fails
+     */
+    private void processCell(Record record, short sid) throws MigrationException
+    {
+        switch (sid)
+        {
+            case NumberRecord.sid:
+                NumberRecord number = (NumberRecord) record;
+                setCell(number.getRow(), number.getColumn(),
+                        formatNumber(number.getValue(), number.getXFIndex()));
+                break;
+            case LabelSSTRecord.sid:
+                LabelSSTRecord label = (LabelSSTRecord) record;
+                setCell(label.getRow(), label.getColumn(), strings.getString(label.getSSTIndex()));
+                break;
+            case LabelRecord.sid:
+                LabelRecord text = (LabelRecord) record;
+                setCell(text.getRow(), text.getColumn(), text.getValue());
+                break;
+            case BoolErrRecord.sid:
+                BoolErrRecord bool = (BoolErrRecord) record;
+                setCell(bool.getRow(), bool.getColumn(),
+                        bool.isBoolean() ? String.valueOf(bool.getBooleanValue()) : null);
+                break;
+            case FormulaRecord.sid:
+                FormulaRecord formula = (FormulaRecord) record;
+                double value = formula.getValue();
+
+                // a string result isn't a number, and comes in the record that follows
+                setCell(formula.getRow(), formula.getColumn(), Double.isNaN(value) ? null
+                        : formatNumber(value, formula.getXFIndex()));
+                formulaColumn = formula.getColumn();
+                return;
+            case StringRecord.sid:
+                if (formulaColumn != -1)
+                {
+                    rowValues.set(formulaColumn, ((StringRecord) record).getString());
+                }
+                break;
+            default:
+                break;
+        }
+        formulaColumn = -1;
+    }
+
+    /**
+     * Keeps the value of a cell, first passing the previous row to the handler if the cell
+     * starts a new one.  The cells of a sheet come row by row.
+     *
+     * @param row    the row of the cell
+     * @param column the column of the cell
+     * @param value  the value of the cell
+     * @throws MigrationException if the handler fails
+     */
+    private void setCell(int row, int column, String value) throws MigrationException
+    {
+        if (row != rowNumber)
+        {
+            finishRow();
+            rowNumber = row;
+        }
+        while (rowValues.size() <= column)
+        {
+            rowValues.add(null);
+        }
+        rowValues.set(column, value);
+    }
+
+    /**
+     * Passes the row being read to the handler, unless it has no values.
+     *
+     * @throws MigrationException if the handler fails
+     */
+    private void finishRow() throws MigrationException
+    {
+        String[] values = new String[rowValues.size()];
+        boolean empty = true;
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = (String) rowValues.get(i);
+            empty &= (values[i] == null);
+        }
+        rowValues.clear();
+        if (!empty)
+        {
+            handler.row(rowNumber, values);
+        }
+    }
+
+    /**
+     * Returns the text of a number, as a date if its cell is formatted as one.
+     *
+     * @param value           the number
+     * @param cellFormatIndex the index of the cell's format
+     * @return the text of the number
+     */
+    private String formatNumber(double value, short cellFormatIndex)
+    {
+        if (dateCellFormats.get(cellFormatIndex) && HSSFDateUtil.isValidExcelDate(value))
+        {
+            Date date = HSSFDateUtil.getJavaDate(value, date1904);
+            return (value == Math.floor(value)) ? dateFormat.format(date)
+                    : timestampFormat.format(date);
+        }
+        if ((value == Math.rint(value)) && (Math.abs(value) < 1e15))
+        {
+            return Long.toString((long) value);
+        }
+        return new BigDecimal(Double.toString(value)).toPlainString();
+    }
+
+    /**
+     * Determines whether a number format displays numbers as dates.
+     *
+     * @param formatIndex the index of the format
+     * @return true if the format is a date format
+     */
+    private boolean isDateFormat(short formatIndex)
+    {
+        if (HSSFDateUtil.isInternalDateFormat(formatIndex))
+        {
+            return true;
+        }
+        String format = (String) customFormats.get(new Integer(formatIndex));
+        if (format == null)
+        {
+            return false;
+        }
+
+        // ignore colors, conditions, quoted text and escaped characters
+        String codes = format.replaceAll("\\[[^\\]]*\\]|\"[^\"]*\"|\\\\.", "").toLowerCase();
+        return codes.matches(".*[ydhs].*") && !codes.matches(".*[0#?@].*");
+    }
+
+    /**
+     * Returns the name of the current sheet.
+     *
+     * @return the name of the current sheet
+     */
+    private String getSheetName()
+    {
+        if (sheetIndex < sheetNames.size())
+        {
+            return (String) sheetNames.get(sheetIndex);
+        }
+        return "Sheet" + (sheetIndex + 1);
+    }
+}
@@ -21,12 +21,17 @@ import org.apache.commons.logging.LogFactory;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
 
 /**
  * This is a very simple utility that looks for a file
  * based upon its existence in the classpath or the
- * absolute path if provided.
+ * absolute path if provided.  Files whose names end in
+ * <code>.gz</code> are decompressed as they are read.
  *
  * @author Chris A. (chris@tacitknowledge.com)
  */
@@ -37,6 +42,16 @@ public class FileLoadingUtility
      */
     private static Log log = LogFactory.getLog(FileLoadingUtility.class);
 
+    /**
+     * The suffix of gzip compressed file names
+     */
+    public static final String GZIP_SUFFIX = ".gz";
+
+    /**
+     * The size of the buffer compressed files are inflated through
+     */
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
     /**
      * The name of the file to load
      */
@@ -56,7 +71,8 @@ public class FileLoadingUtility
      * Gets an input stream by first checking the current classloader,
      * then trying to use the system classloader, and finally, trying
      * to access the file on the file system.  If the file is not found,
-     * an <code>IllegalArgumentException</code> will be thrown.
+     * an <code>IllegalArgumentException</code> will be thrown.  A compressed
+     * file is decompressed as the stream is read.
      *
      * @return the file as an input stream
      */
@@ -82,6 +98,105 @@ public class FileLoadingUtility
                 throw new IllegalArgumentException("Must have a valid file name.");
             }
         }
-        return stream;
+        try
+        {
+            return decompress(fileName, stream);
+        }
+        catch (IOException e)
+        {
+            log.error("The file: " + fileName + " could not be decompressed.", e);
+            throw new IllegalArgumentException("Must have a valid gzip file.");
+        }
+    }
+
+    /**
+     * Determines whether a file is gzip compressed, by its name.
+     *
+     * @param fileName the name of the file
+     * @return true if the file is compressed
+     */
+    public static boolean isCompressed(String fileName)
+    {
+        return fileName.endsWith(GZIP_SUFFIX);
+    }
+
+    /**
+     * Returns the name of a file without its compression suffix.
+     *
+     * @param fileName the name of the file
+     * @return the name the file has when it isn't compressed
+     */
+    public static String getUncompressedName(String fileName)
+    {
+        if (isCompressed(fileName))
+        {
+            return fileName.substring(0, fileName.length() - GZIP_SUFFIX.length());
+        }
+        return fileName;
+    }
+
+    /**
+     * Wraps the stream of a compressed file in one that decompresses it as it is read.  The
+     * stream of a file that isn't compressed is returned as is.  If the stream can't be
+     * decompressed it is closed.
+     *
+     * @param fileName the name of the file
+     * @param stream   the stream of the file's contents
+     * @return the stream of the file's uncompressed contents
+     * @throws IOException if the stream doesn't start with a gzip header
+     */
+    public static InputStream decompress(String fileName, InputStream stream)
+            throws IOException
+    {
+        if (!isCompressed(fileName))
+        {
+            return stream;
+        }
+        try
+        {
+            return new GZIPInputStream(stream, GZIP_BUFFER_SIZE);
+        }
+        catch (IOException e)
+        {
+            stream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Finds the file on the file system, looking in the same places as
+     * {@link #getResourceAsStream()}.
+     *
+     * @return the file, or <code>null</code> if it is not a file of its own, such as an entry
+     *         in a jar, if it is compressed, or if it doesn't exist
+     */
+    public File getFile()
+    {
+        if (isCompressed(fileName))
+        {
+            return null;
+        }
+        URL url = Thread.currentThread().getContextClassLoader().getResource(fileName);
+        if (url == null)
+        {
+            url = ClassLoader.getSystemResource(fileName);
+        }
+        if (url != null)
+        {
+            if (!"file".equals(url.getProtocol()))
+            {
+                return null;
+            }
+            try
+            {
+                return new File(url.toURI());
+            }
+            catch (URISyntaxException e)
+            {
+                return new File(url.getPath());
+            }
+        }
+        File f = new File(fileName);
+        return f.isFile() ? f : null;
     }
 }
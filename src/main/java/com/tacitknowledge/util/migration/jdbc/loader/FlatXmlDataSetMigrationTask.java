@@ -15,35 +15,67 @@
 
 package com.tacitknowledge.util.migration.jdbc.loader;
 
+import com.tacitknowledge.util.migration.CopyableMigrationTask;
 import com.tacitknowledge.util.migration.MigrationContext;
 import com.tacitknowledge.util.migration.MigrationException;
+import com.tacitknowledge.util.migration.MigrationTask;
 import com.tacitknowledge.util.migration.MigrationTaskSupport;
+import com.tacitknowledge.util.migration.jdbc.DatabaseType;
 import com.tacitknowledge.util.migration.jdbc.JdbcMigrationContext;
 import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.dbunit.database.DatabaseConfig;
 import org.dbunit.database.DatabaseConnection;
 import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.database.statement.IPreparedBatchStatement;
+import org.dbunit.database.statement.PreparedStatementFactory;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.dataset.datatype.TypeCastException;
+import org.dbunit.dataset.stream.StreamingDataSet;
 import org.dbunit.dataset.xml.FlatXmlDataSet;
+import org.dbunit.dataset.xml.FlatXmlProducer;
 import org.dbunit.operation.DatabaseOperation;
+import org.xml.sax.InputSource;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Connection;
+import java.sql.SQLException;
 
 /**
  * A loader class that supports DbUnit's FlatXmlDataSet format.
  * The data in the xml file is loaded via a dbunit INSERT operation.
+ * <p/>
+ * By default the whole data set is read into memory before it is inserted, one row at a
+ * time.  In streaming mode, turned on for the task or by the database type's
+ * <code>streamXmlDataSets</code> property, rows are inserted as the file is parsed, in JDBC
+ * batches of <code>batchSize</code> rows (or the database type's <code>loadBatchSize</code>),
+ * so large data sets load in bounded memory.  Each table's columns are then taken from its
+ * first row in the file.
  *
  * @author Alex Soto (apsoto@gmail.com)
  */
 public class FlatXmlDataSetMigrationTask extends MigrationTaskSupport
+        implements CopyableMigrationTask
 {
     /**
      * Class logger
      */
     private static Log log = LogFactory.getLog(FlatXmlDataSetMigrationTask.class);
 
+    /**
+     * Whether the data set is always streamed, whatever the database type says
+     */
+    private boolean streaming = false;
+
+    /**
+     * The number of rows inserted in each JDBC batch when streaming, or 0 to use the
+     * database type's
+     */
+    private int batchSize = 0;
+
     /**
      * Default ctor
      */
@@ -52,6 +84,20 @@ public class FlatXmlDataSetMigrationTask extends MigrationTaskSupport
         // does nothing
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public MigrationTask copy()
+    {
+        FlatXmlDataSetMigrationTask copy = new FlatXmlDataSetMigrationTask();
+        copy.setName(getName());
+        copy.setLevel(getLevel());
+        copy.setRollbackSupported(isRollbackSupported());
+        copy.streaming = streaming;
+        copy.batchSize = batchSize;
+        return copy;
+    }
+
     /**
      * Run the migration using the given context.
      *
@@ -63,16 +109,31 @@ public class FlatXmlDataSetMigrationTask extends MigrationTaskSupport
         log.debug("Executing patch " + getLevel());
         // down casting, technically not safe, but everyone else is doing it.
         JdbcMigrationContext jdbcContext = (JdbcMigrationContext) context;
+        DatabaseType databaseType = jdbcContext.getDatabaseType();
+        boolean stream = streaming
+                || ((databaseType != null) && databaseType.isXmlDataSetStreamingEnabled());
         // used to close connection in finally block
         Connection contextConnection = null;
+        InputStream xml = null;
         try
         {
-            FlatXmlDataSet xmlDataSet = new FlatXmlDataSet(getXmlAsStream());
+            xml = getXmlAsStream();
+            IDataSet xmlDataSet = stream ? (IDataSet) new StreamingDataSet(
+                    new FlatXmlProducer(new InputSource(xml))) : new FlatXmlDataSet(xml);
             // Set contextConnection so it can be accessed in the finally block.
             contextConnection = jdbcContext.getConnection();
 
             // run the data load
             IDatabaseConnection connection = new DatabaseConnection(contextConnection);
+            if (stream)
+            {
+                int rowsPerBatch = getBatchSize(databaseType);
+                DatabaseConfig config = connection.getConfig();
+                config.setProperty(DatabaseConfig.FEATURE_BATCHED_STATEMENTS, Boolean.TRUE);
+                config.setProperty(DatabaseConfig.PROPERTY_BATCH_SIZE, new Integer(rowsPerBatch));
+                config.setProperty(DatabaseConfig.PROPERTY_STATEMENT_FACTORY,
+                        new BatchStatementFactory(rowsPerBatch));
+            }
             DatabaseOperation.INSERT.execute(connection, xmlDataSet);
             context.commit();
 
@@ -94,9 +155,82 @@ public class FlatXmlDataSetMigrationTask extends MigrationTaskSupport
             // exception occurred the DBUnit based connection wrapper didn't get closed, so we 
             // catch that case here.
             SqlUtil.close(contextConnection, null, null);
+            if (xml != null)
+            {
+                try
+                {
+                    xml.close();
+                }
+                catch (IOException e)
+                {
+                    log.debug("Unable to close " + getName(), e);
+                }
+            }
         }
     }
 
+    /**
+     * Returns whether the data set is always streamed.
+     *
+     * @return true if the data set is streamed whatever the database type says
+     */
+    public boolean isStreaming()
+    {
+        return streaming;
+    }
+
+    /**
+     * Sets whether the data set is always streamed.  When this is <code>false</code>, the
+     * database type's <code>streamXmlDataSets</code> property decides.
+     *
+     * @param streaming true to stream the data set into the database in batches
+     */
+    public void setStreaming(boolean streaming)
+    {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Returns the number of rows inserted in each JDBC batch when streaming.
+     *
+     * @return the batch size, or 0 if the database type's <code>loadBatchSize</code> is used
+     */
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of rows inserted in each JDBC batch when streaming.
+     *
+     * @param batchSize the batch size, or 0 to use the database type's
+     *                  <code>loadBatchSize</code>
+     */
+    public void setBatchSize(int batchSize)
+    {
+        if (batchSize < 0)
+        {
+            throw new IllegalArgumentException("batchSize can't be negative");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the batch size to stream with.
+     *
+     * @param databaseType the type of database being loaded, or <code>null</code>
+     * @return the batch size
+     */
+    private int getBatchSize(DatabaseType databaseType)
+    {
+        if (batchSize > 0)
+        {
+            return batchSize;
+        }
+        return (databaseType == null) ? DatabaseType.DEFAULT_LOAD_BATCH_SIZE
+                : Math.max(1, databaseType.getLoadBatchSize());
+    }
+
     /**
      * get the file with name getName() as a stream.
      *
@@ -116,5 +250,73 @@ public class FlatXmlDataSetMigrationTask extends MigrationTaskSupport
         }
     }
 
+    /**
+     * Creates DbUnit's batched insert statements, making sure they never execute an empty
+     * batch.  DbUnit executes the rest of each table's batch even when the table's rows have
+     * filled the batches exactly, and some drivers, HSQLDB's among them, reject that.
+     */
+    private static class BatchStatementFactory extends PreparedStatementFactory
+    {
+        /**
+         * The number of rows DbUnit executes in each batch
+         */
+        private int batchSize;
+
+        /**
+         * Create a new <code>BatchStatementFactory</code>.
+         *
+         * @param batchSize the number of rows DbUnit executes in each batch
+         */
+        BatchStatementFactory(int batchSize)
+        {
+            this.batchSize = batchSize;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public IPreparedBatchStatement createPreparedBatchStatement(String sql,
+                IDatabaseConnection connection) throws SQLException
+        {
+            final IPreparedBatchStatement statement =
+                    super.createPreparedBatchStatement(sql, connection);
+            return new IPreparedBatchStatement()
+            {
+                private int pendingRows = 0;
+
+                public void addValue(Object value, DataType dataType)
+                        throws TypeCastException, SQLException
+                {
+                    statement.addValue(value, dataType);
+                }
+
+                public void addBatch() throws SQLException
+                {
+                    statement.addBatch();
+                    // DbUnit executes the batch itself when it is full
+                    pendingRows = (pendingRows + 1) % batchSize;
+                }
+
+                public int executeBatch() throws SQLException
+                {
+                    if (pendingRows == 0)
+                    {
+                        return 0;
+                    }
+                    pendingRows = 0;
+                    return statement.executeBatch();
+                }
 
+                public void clearBatch() throws SQLException
+                {
+                    statement.clearBatch();
+                }
+
+                public void close() throws SQLException
+                {
+                    statement.close();
+                }
+            };
+        }
+    }
 }
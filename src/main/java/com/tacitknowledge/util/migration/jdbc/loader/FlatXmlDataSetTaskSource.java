@@ -31,7 +31,8 @@ import java.util.regex.Pattern;
 /**
  * Search a package (directory) for xml files that match a specific pattern
  * and returns corresponding {@link FlatXmlDataSetMigrationTask}s.  The name
- * of each script must follow the pattern of &quot;patch(\d+)(_.+)?\.xml&quot;.
+ * of each script must follow the pattern of &quot;patch(\d+)(_.+)?\.xml&quot;,
+ * optionally followed by &quot;.gz&quot; for a gzip compressed data set.
  *
  * @author Alex Soto (apsoto@gmail.com)
  */
@@ -46,7 +47,7 @@ public class FlatXmlDataSetTaskSource implements MigrationTaskSource
     /**
      * The regular expression used to match XML patch files.
      */
-    private static final String XML_PATCH_REGEX = "^patch(\\d+)(_.+)?\\.xml";
+    private static final String XML_PATCH_REGEX = "^patch(\\d+)(_.+)?\\.xml(?:\\.gz)?";
 
 
     /**
@@ -0,0 +1,186 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.tacitknowledge.util.migration.jdbc.BulkLoader;
+import com.tacitknowledge.util.migration.jdbc.BulkRowReader;
+import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
+
+/**
+ * Loads rows with <code>INSERT</code> statements that each insert many rows, as in
+ * <code>INSERT INTO t (a, b) VALUES (?, ?), (?, ?), ...</code>, sent in JDBC batches.  It
+ * needs nothing from the driver, so it works with any database that supports multi-row
+ * inserts, HSQLDB among them.
+ */
+public class MultiRowInsertBulkLoader implements BulkLoader
+{
+    /**
+     * The most rows inserted by one statement
+     */
+    public static final int ROWS_PER_STATEMENT = 100;
+
+    /**
+     * The most parameters in one statement; many databases limit them
+     */
+    public static final int MAX_PARAMETERS = 2000;
+
+    /**
+     * The number of statements sent in each JDBC batch
+     */
+    private static final int STATEMENTS_PER_BATCH = 10;
+
+    /**
+     * Always true: only standard JDBC is used.
+     *
+     * @param conn the connection to load through
+     * @return <code>true</code>
+     */
+    public boolean isSupported(Connection conn)
+    {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long load(Connection conn, String table, String[] columns, BulkRowReader rows)
+            throws SQLException, IOException
+    {
+        int rowsPerStatement =
+                Math.max(1, Math.min(ROWS_PER_STATEMENT, MAX_PARAMETERS / columns.length));
+        TypedParameterBinder binder = TypedParameterBinder.forTable(conn, table, columns);
+        List pending = new ArrayList(rowsPerStatement);
+        PreparedStatement stmt = null;
+        long count = 0;
+        try
+        {
+            stmt = conn.prepareStatement(getSql(table, columns, rowsPerStatement));
+            int statements = 0;
+            String[] row = null;
+            while ((row = rows.next()) != null)
+            {
+                pending.add(row);
+                if (pending.size() == rowsPerStatement)
+                {
+                    bind(stmt, binder, pending, columns.length);
+                    stmt.addBatch();
+                    count += pending.size();
+                    pending.clear();
+                    if (++statements == STATEMENTS_PER_BATCH)
+                    {
+                        stmt.executeBatch();
+                        statements = 0;
+                    }
+                }
+            }
+            if (statements > 0)
+            {
+                stmt.executeBatch();
+            }
+        }
+        finally
+        {
+            SqlUtil.close(null, stmt, null);
+        }
+
+        if (!pending.isEmpty())
+        {
+            PreparedStatement last = null;
+            try
+            {
+                last = conn.prepareStatement(getSql(table, columns, pending.size()));
+                bind(last, binder, pending, columns.length);
+                last.executeUpdate();
+                count += pending.size();
+            }
+            finally
+            {
+                SqlUtil.close(null, last, null);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the statement that inserts a number of rows.
+     *
+     * @param table   the table to load
+     * @param columns the columns to load
+     * @param rows    the number of rows the statement inserts
+     * @return the insert statement
+     */
+    private String getSql(String table, String[] columns, int rows)
+    {
+        StringBuffer sql = new StringBuffer("INSERT INTO ");
+        sql.append(table).append(" (");
+        StringBuffer values = new StringBuffer("(");
+        for (int i = 0; i < columns.length; i++)
+        {
+            if (i > 0)
+            {
+                sql.append(", ");
+                values.append(", ");
+            }
+            sql.append(columns[i]);
+            values.append('?');
+        }
+        values.append(')');
+        sql.append(") VALUES ");
+        for (int i = 0; i < rows; i++)
+        {
+            if (i > 0)
+            {
+                sql.append(", ");
+            }
+            sql.append(values);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Binds rows to a multi-row insert statement.
+     *
+     * @param stmt    the statement
+     * @param binder  binds each value with the setter of its column's type
+     * @param rows    the rows to bind, as <code>String[]</code>s
+     * @param columns the number of columns in each row
+     * @throws SQLException if a row doesn't have a value for each column
+     */
+    private void bind(PreparedStatement stmt, TypedParameterBinder binder, List rows,
+            int columns) throws SQLException
+    {
+        for (int i = 0; i < rows.size(); i++)
+        {
+            String[] row = (String[]) rows.get(i);
+            if (row.length != columns)
+            {
+                throw new SQLException("A row has " + row.length + " values for "
+                        + columns + " columns");
+            }
+            for (int j = 0; j < columns; j++)
+            {
+                binder.bind(stmt, i * columns + j + 1, j, row[j]);
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+
+import com.tacitknowledge.util.migration.jdbc.BulkRowReader;
+import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
+
+/**
+ * Loads rows into MySQL with <code>LOAD DATA LOCAL INFILE</code>, streaming them to the
+ * server from memory through MySQL Connector/J's <code>setLocalInfileInputStream</code>
+ * instead of from a file.
+ * <p/>
+ * This loader is not used unless <code>mysql.bulkLoader</code> names it in
+ * <i>migration.properties</i>.  Even then it is only used on connections that allow it: the
+ * server must have <code>local_infile</code> on, and the driver must be given
+ * <code>allowLoadLocalInfile=true</code>, which Connector/J 8 turns off by default.
+ * <p/>
+ * <code>LOAD DATA LOCAL</code> skips rows that duplicate a key or can't be converted instead
+ * of failing, so a load that inserts fewer rows than it was given fails, listing the
+ * server's warnings.
+ */
+public class MySqlLoadDataBulkLoader extends DriverBulkLoader
+{
+    /**
+     * The driver's connection interfaces, in Connector/J 8 and 5
+     */
+    private static final String[] CONNECTION_CLASSES =
+            {"com.mysql.cj.jdbc.JdbcConnection", "com.mysql.jdbc.Connection"};
+
+    /**
+     * The driver's statement interfaces, in Connector/J 8 and 5
+     */
+    private static final String[] STATEMENT_CLASSES =
+            {"com.mysql.cj.jdbc.JdbcStatement", "com.mysql.jdbc.Statement"};
+
+    /**
+     * The driver property that lets the connection send local files
+     */
+    private static final String ALLOW_LOCAL_INFILE = "allowLoadLocalInfile";
+
+    /**
+     * The most server warnings listed when a load skips rows
+     */
+    private static final int MAX_WARNINGS = 10;
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isSupported(Connection conn)
+    {
+        Class connectionType = findDriverClass(conn, CONNECTION_CLASSES);
+        if (!isWrapperFor(conn, connectionType)
+                || (findDriverClass(conn, STATEMENT_CLASSES) == null))
+        {
+            return false;
+        }
+        try
+        {
+            Object mysqlConnection = connectionType.isInstance(conn) ? conn
+                    : conn.unwrap(connectionType);
+            return isLocalInfileAllowed(connectionType, mysqlConnection)
+                    && isLocalInfileEnabled(conn);
+        }
+        catch (SQLException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long load(Connection conn, String table, String[] columns, BulkRowReader rows)
+            throws SQLException, IOException
+    {
+        Class statementType = findDriverClass(conn, STATEMENT_CLASSES);
+
+        // an unquoted NULL is read as NULL, and a quoted one as the string 'NULL'
+        String sql = "LOAD DATA LOCAL INFILE 'autopatch.csv' INTO TABLE " + table
+                + " CHARACTER SET utf8mb4 FIELDS TERMINATED BY ',' OPTIONALLY ENCLOSED BY '\"'"
+                + " ESCAPED BY '' LINES TERMINATED BY '\\n' (" + join(columns) + ")";
+        BulkRowInputStream in = new BulkRowInputStream(rows, "NULL");
+        Statement stmt = null;
+        try
+        {
+            stmt = conn.createStatement();
+            Object mysqlStatement = statementType.isInstance(stmt) ? stmt
+                    : stmt.unwrap(statementType);
+            invoke(mysqlStatement, "setLocalInfileInputStream",
+                    new Class[] {InputStream.class}, new Object[] {in});
+            long loaded = stmt.executeUpdate(sql);
+            checkRowCount(table, in.getRowCount(), loaded, stmt.getWarnings());
+            return loaded;
+        }
+        finally
+        {
+            SqlUtil.close(null, stmt, null);
+        }
+    }
+
+    /**
+     * Makes sure a load inserted every row it was given.
+     *
+     * @param table    the table loaded
+     * @param rowCount the number of rows sent to the server
+     * @param loaded   the number of rows the server inserted
+     * @param warnings the warnings the load raised, if any
+     * @throws SQLException if any rows were skipped
+     */
+    protected void checkRowCount(String table, long rowCount, long loaded, SQLWarning warnings)
+            throws SQLException
+    {
+        if (loaded >= rowCount)
+        {
+            return;
+        }
+        StringBuffer message = new StringBuffer();
+        message.append("LOAD DATA skipped ").append(rowCount - loaded).append(" of ")
+                .append(rowCount).append(" rows loading ").append(table);
+        int count = 0;
+        for (SQLWarning w = warnings; w != null; w = w.getNextWarning())
+        {
+            if (++count > MAX_WARNINGS)
+            {
+                message.append("\n  ...");
+                break;
+            }
+            message.append("\n  ").append(w.getMessage());
+        }
+        throw new SQLException(message.toString());
+    }
+
+    /**
+     * Determines whether the driver was told it may send local files to the server.
+     *
+     * @param connectionType  the driver's connection interface
+     * @param mysqlConnection the driver's connection
+     * @return true if <code>allowLoadLocalInfile</code> is set on the connection, false if it
+     *         isn't or can't be determined
+     */
+    private boolean isLocalInfileAllowed(Class connectionType, Object mysqlConnection)
+    {
+        try
+        {
+            // Connector/J 5
+            Method getter = findMethod(connectionType, "getAllowLoadLocalInfile");
+            if (getter != null)
+            {
+                return Boolean.TRUE.equals(getter.invoke(mysqlConnection));
+            }
+
+            // Connector/J 8 names the property with a String or, later, a PropertyKey
+            Method getPropertySet = findMethod(connectionType, "getPropertySet");
+            if (getPropertySet == null)
+            {
+                return false;
+            }
+            Object propertySet = getPropertySet.invoke(mysqlConnection);
+            Method[] methods = getPropertySet.getReturnType().getMethods();
+            for (int i = 0; i < methods.length; i++)
+            {
+                Method method = methods[i];
+                if (!method.getName().equals("getBooleanProperty")
+                        || (method.getParameterTypes().length != 1))
+                {
+                    continue;
+                }
+                Class keyType = method.getParameterTypes()[0];
+                Object key = keyType.isEnum() ? Enum.valueOf(keyType, ALLOW_LOCAL_INFILE)
+                        : ALLOW_LOCAL_INFILE;
+                Object property = method.invoke(propertySet, key);
+                Object value = method.getReturnType().getMethod("getValue").invoke(property);
+                return Boolean.TRUE.equals(value);
+            }
+        }
+        catch (Exception e)
+        {
+            // can't tell, so don't rely on it
+        }
+        return false;
+    }
+
+    /**
+     * Determines whether the server accepts <code>LOAD DATA LOCAL</code>.
+     *
+     * @param conn the connection to ask through
+     * @return true if the server has <code>local_infile</code> on
+     */
+    private boolean isLocalInfileEnabled(Connection conn)
+    {
+        Statement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = conn.createStatement();
+            rs = stmt.executeQuery("SELECT @@GLOBAL.local_infile");
+            if (!rs.next())
+            {
+                return false;
+            }
+            String value = rs.getString(1);
+            return "1".equals(value) || "ON".equalsIgnoreCase(value);
+        }
+        catch (SQLException e)
+        {
+            return false;
+        }
+        finally
+        {
+            SqlUtil.close(null, stmt, rs);
+        }
+    }
+
+    /**
+     * Finds a public method with no parameters.
+     *
+     * @param type the type to look in
+     * @param name the name of the method
+     * @return the method, or <code>null</code> if there is none
+     */
+    private Method findMethod(Class type, String name)
+    {
+        try
+        {
+            return type.getMethod(name);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Reads the records of a large delimited file, parsing several parts of it at once.  The
+ * file is split into chunks of whole records by a {@link DelimitedFileChunker}, and each
+ * chunk is memory-mapped, decoded and parsed into fields on a pool of threads.  Records are
+ * still returned one at a time and in file order, so the caller can insert them as they
+ * come.
+ * <p/>
+ * Only a bounded number of chunks is parsed ahead of the caller: twice the number of threads.
+ * As a parsed chunk takes several times its size on disk in memory, keep the chunk size
+ * down when using many threads.
+ */
+public class ParallelDelimitedReader
+{
+    /**
+     * Class logger
+     */
+    private static Log log = LogFactory.getLog(ParallelDelimitedReader.class);
+
+    /**
+     * The file being read
+     */
+    private FileInputStream file;
+
+    /**
+     * The channel chunks are mapped from
+     */
+    private FileChannel channel;
+
+    /**
+     * Splits the file into chunks
+     */
+    private DelimitedFileChunker chunker;
+
+    /**
+     * Parses chunks
+     */
+    private ExecutorService executor;
+
+    /**
+     * The chunks being parsed, in file order
+     */
+    private LinkedList pending = new LinkedList();
+
+    /**
+     * The most chunks to parse ahead of the caller
+     */
+    private int window;
+
+    /**
+     * The characters that separate fields
+     */
+    private String delimiters;
+
+    /**
+     * The character that quotes a field
+     */
+    private char quote;
+
+    /**
+     * The encoding of the file
+     */
+    private Charset charset;
+
+    /**
+     * The chunk records are being returned from
+     */
+    private ParsedChunk chunk = null;
+
+    /**
+     * The index of the current record in <code>chunk</code>
+     */
+    private int index = -1;
+
+    /**
+     * Whether the whole file has been split into chunks
+     */
+    private boolean split = false;
+
+    /**
+     * Create a new <code>ParallelDelimitedReader</code>.
+     *
+     * @param path       the file to read
+     * @param delimiters the characters that separate fields
+     * @param quote      the character that quotes a field
+     * @param charset    the encoding of the file; see
+     *                   {@link DelimitedFileChunker#isSupported(Charset, String, char)}
+     * @param threads    the number of threads to parse chunks on
+     * @param chunkSize  the smallest size of a chunk, in bytes
+     * @throws IOException if the file could not be opened
+     */
+    public ParallelDelimitedReader(File path, String delimiters, char quote, Charset charset,
+            int threads, int chunkSize) throws IOException
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.file = new FileInputStream(path);
+        try
+        {
+            this.channel = file.getChannel();
+            this.chunker = new DelimitedFileChunker(channel, delimiters, quote, chunkSize);
+        }
+        catch (IOException e)
+        {
+            file.close();
+            throw e;
+        }
+        this.delimiters = delimiters;
+        this.quote = quote;
+        this.charset = charset;
+        this.window = threads * 2;
+        this.executor = Executors.newFixedThreadPool(threads);
+        log.debug("Parsing " + path + " on " + threads + " threads in chunks of "
+                + chunkSize + " bytes");
+    }
+
+    /**
+     * Moves to the next record of the file.  Blank records are skipped.
+     *
+     * @return <code>false</code> at the end of the file, <code>true</code> otherwise
+     * @throws IOException if the file could not be read, or a record is malformed
+     */
+    public boolean next() throws IOException
+    {
+        while ((chunk == null) || (index + 1 >= chunk.records.size()))
+        {
+            while (!split && (pending.size() < window))
+            {
+                if (chunker.next())
+                {
+                    pending.addLast(executor.submit(new ChunkParser(chunker.getChunkStart(),
+                            chunker.getChunkLength())));
+                }
+                else
+                {
+                    split = true;
+                }
+            }
+            if (pending.isEmpty())
+            {
+                chunk = null;
+                return false;
+            }
+            chunk = take((Future) pending.removeFirst());
+            index = -1;
+        }
+        index++;
+        return true;
+    }
+
+    /**
+     * @return the current record as it appears in the file, without its line break
+     */
+    public String getRecord()
+    {
+        return (String) chunk.records.get(index);
+    }
+
+    /**
+     * @return the values of the fields of the current record, without their quotes
+     */
+    public String[] getFields()
+    {
+        return (String[]) chunk.fields.get(index);
+    }
+
+    /**
+     * Stops the parsing threads and closes the file.
+     *
+     * @throws IOException if the file could not be closed
+     */
+    public void close() throws IOException
+    {
+        executor.shutdownNow();
+        pending.clear();
+        chunk = null;
+        file.close();
+    }
+
+    /**
+     * Waits for a chunk to be parsed.
+     *
+     * @param future the chunk being parsed
+     * @return the parsed chunk
+     * @throws IOException if the chunk could not be read or parsed
+     */
+    private ParsedChunk take(Future future) throws IOException
+    {
+        try
+        {
+            return (ParsedChunk) future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing the file");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not parse the file: " + e.getCause());
+        }
+    }
+
+    /**
+     * The records of a chunk, and their fields.
+     */
+    private static class ParsedChunk
+    {
+        /**
+         * The records, as they appear in the file
+         */
+        private List records = new ArrayList();
+
+        /**
+         * The fields of each record, as <code>String[]</code>s
+         */
+        private List fields = new ArrayList();
+    }
+
+    /**
+     * Maps, decodes and parses one chunk of the file.
+     */
+    private class ChunkParser implements Callable
+    {
+        /**
+         * Where the chunk starts in the file
+         */
+        private long start;
+
+        /**
+         * The number of bytes in the chunk
+         */
+        private int length;
+
+        /**
+         * Create a new <code>ChunkParser</code>.
+         *
+         * @param start  where the chunk starts in the file
+         * @param length the number of bytes in the chunk
+         */
+        ChunkParser(long start, int length)
+        {
+            this.start = start;
+            this.length = length;
+        }
+
+        /**
+         * Parses the chunk.
+         *
+         * @return the parsed chunk
+         * @throws IOException if the chunk could not be read or parsed
+         */
+        public Object call() throws IOException
+        {
+            CharsetDecoder decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer chars = decoder.decode(
+                    channel.map(FileChannel.MapMode.READ_ONLY, start, length));
+            DelimitedRowParser parser = new DelimitedRowParser(chars.array(),
+                    chars.arrayOffset() + chars.position(), chars.remaining(), delimiters,
+                    quote);
+
+            ParsedChunk parsed = new ParsedChunk();
+            try
+            {
+                while (parser.next())
+                {
+                    if (parser.getRecordLength() == 0)
+                    {
+                        continue;
+                    }
+                    String[] values = new String[parser.getFieldCount()];
+                    for (int i = 0; i < values.length; i++)
+                    {
+                        values[i] = parser.getField(i);
+                    }
+                    parsed.records.add(parser.getRecord());
+                    parsed.fields.add(values);
+                }
+            }
+            catch (IOException e)
+            {
+                throw new IOException("In the chunk starting at byte " + start + ": "
+                        + e.getMessage());
+            }
+            return parsed;
+        }
+    }
+}
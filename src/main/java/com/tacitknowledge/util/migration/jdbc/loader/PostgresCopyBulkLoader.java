@@ -0,0 +1,62 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import com.tacitknowledge.util.migration.jdbc.BulkRowReader;
+
+/**
+ * Loads rows into PostgreSQL with <code>COPY ... FROM STDIN</code>, streaming them to the
+ * server as CSV through the PostgreSQL JDBC driver's <code>CopyManager</code>.
+ */
+public class PostgresCopyBulkLoader extends DriverBulkLoader
+{
+    /**
+     * The driver's connection interface
+     */
+    private static final String[] CONNECTION_CLASSES = {"org.postgresql.PGConnection"};
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isSupported(Connection conn)
+    {
+        return isWrapperFor(conn, findDriverClass(conn, CONNECTION_CLASSES));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long load(Connection conn, String table, String[] columns, BulkRowReader rows)
+            throws SQLException, IOException
+    {
+        Class connectionType = findDriverClass(conn, CONNECTION_CLASSES);
+        Object pgConnection = connectionType.isInstance(conn) ? conn
+                : conn.unwrap(connectionType);
+        Object copyManager = invoke(pgConnection, "getCopyAPI", new Class[0], new Object[0]);
+
+        // CSV reads an unquoted empty value as NULL, and a quoted one as an empty string
+        String sql = "COPY " + table + " (" + join(columns) + ") FROM STDIN WITH CSV";
+        BulkRowInputStream in = new BulkRowInputStream(rows, "");
+        Object count = invoke(copyManager, "copyIn",
+                new Class[] {String.class, InputStream.class}, new Object[] {sql, in});
+        return (count instanceof Number) ? ((Number) count).longValue() : in.getRowCount();
+    }
+}
@@ -0,0 +1,816 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.eventusermodel.HSSFUserException;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+
+import com.tacitknowledge.util.migration.MigrationContext;
+import com.tacitknowledge.util.migration.MigrationException;
+import com.tacitknowledge.util.migration.MigrationTaskSupport;
+import com.tacitknowledge.util.migration.jdbc.DataSourceMigrationContext;
+import com.tacitknowledge.util.migration.jdbc.DatabaseType;
+import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
+
+/**
+ * Loads each sheet of an Excel workbook into the table of the same name, reading the
+ * workbook with POI's event API rather than building an <code>HSSFWorkbook</code>, so large
+ * spreadsheets load in little memory.  The first row of each sheet names the columns, and
+ * the rows below it are inserted in JDBC batches, each value bound by its column's type.
+ * <p/>
+ * With more than one load connection, sheets load at the same time on separate connections
+ * while the workbook is still being read.  None of the connections commits until every sheet
+ * is in, and all roll back if any row fails.  The connections then commit one after another:
+ * JDBC has no way to commit several connections at once, so if one of them fails to commit,
+ * the sheets loaded over the connections committed before it stay loaded, the rest are rolled
+ * back, and the error names both.  Sheet values are read as described in
+ * {@link ExcelRowListener}.
+ *
+ * @see ExcelFileLoader
+ */
+public abstract class StreamingExcelFileLoader extends MigrationTaskSupport
+{
+    /**
+     * Class logger
+     */
+    private static Log log = LogFactory.getLog(StreamingExcelFileLoader.class);
+
+    /**
+     * Marks the end of a sheet in a sheet's queue of batches
+     */
+    private static final List END_OF_SHEET = new ArrayList(0);
+
+    /**
+     * The number of batches read ahead of a sheet's inserts
+     */
+    private static final int QUEUED_BATCHES = 2;
+
+    /**
+     * The number of rows to insert in each JDBC batch, or 0 to use the database type's
+     */
+    private int batchSize = 0;
+
+    /**
+     * The number of connections sheets load over, or 0 to use the database type's
+     */
+    private int loadConnections = 0;
+
+    /**
+     * Reads the workbook named by <code>getName()</code> and loads its sheets.
+     *
+     * @param ctx the <code>DataSourceMigrationContext</code> to load the data into
+     * @throws MigrationException if the workbook can't be read or a row can't be inserted
+     */
+    public void migrate(MigrationContext ctx) throws MigrationException
+    {
+        DataSourceMigrationContext context = (DataSourceMigrationContext) ctx;
+        DatabaseType databaseType = context.getDatabaseType();
+        int connections = context.isTransactionGroupOpen() ? 1
+                : getLoadConnections(databaseType);
+        WorkbookLoader loader = new WorkbookLoader(context, connections,
+                getBatchSize(databaseType));
+        InputStream is = null;
+        try
+        {
+            loader.open();
+            is = new FileLoadingUtility(getName()).getResourceAsStream();
+            HSSFRequest request = new HSSFRequest();
+            request.addListenerForAllRecords(new ExcelRowListener(loader));
+            new HSSFEventFactory().abortableProcessWorkbookEvents(request,
+                    new POIFSFileSystem(is));
+            loader.finish();
+            loader.commit();
+        }
+        catch (Exception e)
+        {
+            Throwable cause = e;
+            if ((e instanceof HSSFUserException) && (((HSSFUserException) e).getReason() != null))
+            {
+                cause = ((HSSFUserException) e).getReason();
+            }
+            String message = getName() + ": Error loading " + loader.getSheetName();
+            log.error(message, cause);
+            if ((cause instanceof SQLException)
+                    && (((SQLException) cause).getNextException() != null))
+            {
+                log.error("Chained SQL Exception", ((SQLException) cause).getNextException());
+            }
+            loader.rollback();
+            throw new MigrationException(message, cause);
+        }
+        finally
+        {
+            loader.close();
+            if (is != null)
+            {
+                try
+                {
+                    is.close();
+                }
+                catch (IOException e)
+                {
+                    log.error("Could not close " + getName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the table a sheet is loaded into.  Override this to map sheet names to tables,
+     * or to skip sheets.
+     *
+     * @param sheetName the name of the sheet
+     * @return the table to load the sheet into, or <code>null</code> to skip the sheet
+     */
+    protected String getTableName(String sheetName)
+    {
+        return sheetName;
+    }
+
+    /**
+     * Returns the number of rows inserted in each JDBC batch.
+     *
+     * @return the batch size, or 0 if the database type's <code>loadBatchSize</code> is used
+     */
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of rows inserted in each JDBC batch.
+     *
+     * @param batchSize the batch size, or 0 to use the database type's
+     *                  <code>loadBatchSize</code>
+     */
+    public void setBatchSize(int batchSize)
+    {
+        if (batchSize < 0)
+        {
+            throw new IllegalArgumentException("batchSize can't be negative");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the number of connections sheets load over.
+     *
+     * @return the number of connections, or 0 if the database type's
+     *         <code>loadConnections</code> is used
+     */
+    public int getLoadConnections()
+    {
+        return loadConnections;
+    }
+
+    /**
+     * Sets the number of connections sheets load over.  Each sheet loads on one connection,
+     * so more connections than sheets don't help.
+     *
+     * @param loadConnections the number of connections, or 0 to use the database type's
+     *                        <code>loadConnections</code>
+     */
+    public void setLoadConnections(int loadConnections)
+    {
+        if (loadConnections < 0)
+        {
+            throw new IllegalArgumentException("loadConnections can't be negative");
+        }
+        this.loadConnections = loadConnections;
+    }
+
+    /**
+     * Returns the batch size to load with.
+     *
+     * @param databaseType the type of database being loaded, or <code>null</code>
+     * @return the batch size
+     */
+    private int getBatchSize(DatabaseType databaseType)
+    {
+        if (batchSize > 0)
+        {
+            return batchSize;
+        }
+        return (databaseType == null) ? DatabaseType.DEFAULT_LOAD_BATCH_SIZE
+                : Math.max(1, databaseType.getLoadBatchSize());
+    }
+
+    /**
+     * Returns the number of connections to load over.
+     *
+     * @param databaseType the type of database being loaded, or <code>null</code>
+     * @return the number of connections
+     */
+    private int getLoadConnections(DatabaseType databaseType)
+    {
+        if ((loadConnections > 0) || (databaseType == null))
+        {
+            return Math.max(1, loadConnections);
+        }
+        return Math.max(1, databaseType.getLoadConnections());
+    }
+
+    /**
+     * Receives the rows of the workbook and batches them into the sheets' tables.
+     */
+    private class WorkbookLoader implements ExcelRowHandler
+    {
+        /**
+         * The context of the load
+         */
+        private DataSourceMigrationContext context;
+
+        /**
+         * The connections the sheets load over; the first is the context's
+         */
+        private Connection[] connections;
+
+        /**
+         * Whether each connection was in auto-commit mode before the load
+         */
+        private boolean[] autoCommit;
+
+        /**
+         * The connections not loading a sheet
+         */
+        private BlockingQueue idleConnections = new LinkedBlockingQueue();
+
+        /**
+         * The number of rows to insert in each JDBC batch
+         */
+        private int batchSize;
+
+        /**
+         * Runs the sheets' inserts when there is more than one connection
+         */
+        private ExecutorService executor = null;
+
+        /**
+         * The sheets loading on other threads
+         */
+        private List sheetLoads = new ArrayList();
+
+        /**
+         * The sheets that have inserted rows, in the order they started inserting
+         */
+        private List insertedSheets = Collections.synchronizedList(new ArrayList());
+
+        /**
+         * The sheet being read, or <code>null</code> if it is skipped
+         */
+        private SheetLoad sheet = null;
+
+        /**
+         * The name of the sheet being read
+         */
+        private String sheetName = null;
+
+        /**
+         * Create a new <code>WorkbookLoader</code>.
+         *
+         * @param context     the context of the load
+         * @param connections the number of connections to load over
+         * @param batchSize   the number of rows to insert in each JDBC batch
+         */
+        WorkbookLoader(DataSourceMigrationContext context, int connections, int batchSize)
+        {
+            this.context = context;
+            this.connections = new Connection[connections];
+            this.autoCommit = new boolean[connections];
+            this.batchSize = batchSize;
+        }
+
+        /**
+         * Opens the connections, turning off auto-commit so that they commit together.
+         *
+         * @throws SQLException if a connection can't be opened
+         */
+        void open() throws SQLException
+        {
+            for (int i = 0; i < connections.length; i++)
+            {
+                connections[i] = (i == 0) ? context.getConnection() : context.openConnection();
+                autoCommit[i] = connections[i].getAutoCommit();
+                if (autoCommit[i])
+                {
+                    connections[i].setAutoCommit(false);
+                }
+                idleConnections.add(connections[i]);
+            }
+            if (connections.length > 1)
+            {
+                executor = Executors.newFixedThreadPool(connections.length);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void startSheet(String name) throws MigrationException
+        {
+            sheetName = name;
+            String table = getTableName(name);
+            sheet = (table == null) ? null : new SheetLoad(name, table);
+            if (sheet == null)
+            {
+                log.info(getName() + ": skipping sheet " + name);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void row(int rowNumber, String[] values) throws MigrationException
+        {
+            if (sheet == null)
+            {
+                return;
+            }
+            if (sheet.columns == null)
+            {
+                sheet.setHeader(values);
+                return;
+            }
+            sheet.batch.add(values);
+            if (sheet.batch.size() >= batchSize)
+            {
+                dispatch(sheet.batch);
+                sheet.batch = new ArrayList(batchSize);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void endSheet() throws MigrationException
+        {
+            if (sheet == null)
+            {
+                return;
+            }
+            if (!sheet.batch.isEmpty())
+            {
+                dispatch(sheet.batch);
+            }
+            if (sheet.future != null)
+            {
+                dispatch(END_OF_SHEET);
+            }
+            else
+            {
+                sheet.close();
+            }
+            sheet = null;
+        }
+
+        /**
+         * Waits for every sheet to finish loading.
+         *
+         * @throws Exception if a sheet failed
+         */
+        void finish() throws Exception
+        {
+            for (int i = 0; i < sheetLoads.size(); i++)
+            {
+                SheetLoad load = (SheetLoad) sheetLoads.get(i);
+                sheetName = load.name;
+                await(load.future);
+            }
+        }
+
+        /**
+         * Commits every connection, one after another.
+         *
+         * @throws MigrationException if a connection can't commit; the sheets loaded over the
+         *                            connections committed before it are named in the message
+         */
+        void commit() throws MigrationException
+        {
+            sheetName = null;
+            for (int i = 0; i < connections.length; i++)
+            {
+                try
+                {
+                    if (i == 0)
+                    {
+                        context.commit();
+                    }
+                    else
+                    {
+                        connections[i].commit();
+                    }
+                }
+                catch (MigrationException e)
+                {
+                    throw commitFailed(i, e);
+                }
+                catch (SQLException e)
+                {
+                    throw commitFailed(i, e);
+                }
+            }
+        }
+
+        /**
+         * Describes a failed commit, naming the sheets already committed.
+         *
+         * @param failed the connection that failed to commit
+         * @param cause  why it failed
+         * @return the exception to fail the load with
+         */
+        private MigrationException commitFailed(int failed, Exception cause)
+        {
+            if (failed == 0)
+            {
+                return new MigrationException("Error committing SQL transaction", cause);
+            }
+            List committed = new ArrayList();
+            List rolledBack = new ArrayList();
+            synchronized (insertedSheets)
+            {
+                for (int i = 0; i < insertedSheets.size(); i++)
+                {
+                    SheetLoad load = (SheetLoad) insertedSheets.get(i);
+                    int connection = 0;
+                    while (connections[connection] != load.connection)
+                    {
+                        connection++;
+                    }
+                    ((connection < failed) ? committed : rolledBack).add(load.name);
+                }
+            }
+            return new MigrationException("Error committing SQL transaction on load connection "
+                    + failed + "; sheets " + committed + " were already committed and stay "
+                    + "loaded, while sheets " + rolledBack + " are rolled back", cause);
+        }
+
+        /**
+         * Stops the sheets still loading and rolls back every connection.
+         */
+        void rollback()
+        {
+            if (executor != null)
+            {
+                executor.shutdownNow();
+                try
+                {
+                    executor.awaitTermination(1, TimeUnit.MINUTES);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            for (int i = 0; i < connections.length; i++)
+            {
+                if (connections[i] == null)
+                {
+                    continue;
+                }
+                try
+                {
+                    if (i == 0)
+                    {
+                        context.rollback();
+                    }
+                    else
+                    {
+                        connections[i].rollback();
+                    }
+                }
+                catch (Exception e)
+                {
+                    log.error("Could not roll back connection " + i, e);
+                }
+            }
+        }
+
+        /**
+         * Closes the connections, restoring their auto-commit mode.
+         */
+        void close()
+        {
+            if (executor != null)
+            {
+                executor.shutdownNow();
+            }
+            if (sheet != null)
+            {
+                sheet.close();
+            }
+            for (int i = 0; i < connections.length; i++)
+            {
+                if (connections[i] == null)
+                {
+                    continue;
+                }
+                try
+                {
+                    if (autoCommit[i])
+                    {
+                        connections[i].setAutoCommit(true);
+                    }
+                }
+                catch (SQLException e)
+                {
+                    log.error("Could not restore auto-commit on connection " + i, e);
+                }
+                SqlUtil.close(connections[i], null, null);
+            }
+        }
+
+        /**
+         * Returns the name of the sheet being read or waited for.
+         *
+         * @return the name of the sheet
+         */
+        String getSheetName()
+        {
+            return (sheetName == null) ? "the workbook" : "sheet " + sheetName;
+        }
+
+        /**
+         * Inserts a batch of the current sheet's rows.  With one connection the rows are
+         * inserted right away; otherwise they are queued for the sheet's thread, which is
+         * started with the first batch.
+         *
+         * @param batch the rows to insert, or <code>END_OF_SHEET</code>
+         * @throws MigrationException if the rows can't be inserted
+         */
+        private void dispatch(List batch) throws MigrationException
+        {
+            try
+            {
+                if (executor == null)
+                {
+                    sheet.insert(batch, connections[0]);
+                    return;
+                }
+                if (sheet.future == null)
+                {
+                    sheet.queue = new ArrayBlockingQueue(QUEUED_BATCHES);
+                    sheet.future = executor.submit(sheet);
+                    sheetLoads.add(sheet);
+                }
+
+                // don't wait on a sheet that has stopped taking batches
+                while (!sheet.queue.offer(batch, 100, TimeUnit.MILLISECONDS))
+                {
+                    if (sheet.future.isDone())
+                    {
+                        await(sheet.future);
+                        throw new MigrationException("Sheet " + sheet.name + " stopped loading");
+                    }
+                }
+            }
+            catch (MigrationException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
+            {
+                throw new MigrationException("Error loading sheet " + sheet.name, e);
+            }
+        }
+
+        /**
+         * Waits for a sheet's thread to finish.
+         *
+         * @param future the sheet's thread
+         * @throws Exception the exception the sheet failed with, if any
+         */
+        private void await(Future future) throws Exception
+        {
+            try
+            {
+                future.get();
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception)
+                {
+                    throw (Exception) cause;
+                }
+                throw new MigrationException("Error loading sheet", cause);
+            }
+        }
+
+        /**
+         * Inserts the rows of one sheet.
+         */
+        private class SheetLoad implements Callable
+        {
+            /**
+             * The name of the sheet
+             */
+            private String name;
+
+            /**
+             * The table the sheet is loaded into
+             */
+            private String table;
+
+            /**
+             * The columns named by the sheet's first row
+             */
+            private String[] columns = null;
+
+            /**
+             * The rows read but not yet dispatched
+             */
+            private List batch = new ArrayList(batchSize);
+
+            /**
+             * The batches waiting for the sheet's thread, if it has one
+             */
+            private BlockingQueue queue = null;
+
+            /**
+             * The sheet's thread, if it has one
+             */
+            private Future future = null;
+
+            /**
+             * The statement rows are inserted with
+             */
+            private PreparedStatement stmt = null;
+
+            /**
+             * The connection the rows are inserted through, once there are any
+             */
+            private Connection connection = null;
+
+            /**
+             * Binds the values of each row
+             */
+            private TypedParameterBinder binder = null;
+
+            /**
+             * The number of rows inserted
+             */
+            private long rowCount = 0;
+
+            /**
+             * Create a new <code>SheetLoad</code>.
+             *
+             * @param name  the name of the sheet
+             * @param table the table the sheet is loaded into
+             */
+            SheetLoad(String name, String table)
+            {
+                this.name = name;
+                this.table = table;
+            }
+
+            /**
+             * Reads the columns from the sheet's first row, up to the first blank cell.
+             *
+             * @param values the values of the first row
+             */
+            void setHeader(String[] values)
+            {
+                List names = new ArrayList();
+                for (int i = 0; (i < values.length) && (values[i] != null)
+                        && (values[i].trim().length() > 0); i++)
+                {
+                    names.add(values[i].trim());
+                }
+                columns = (String[]) names.toArray(new String[names.size()]);
+                log.info(getName() + ": loading sheet " + name + " into " + table + " "
+                        + names);
+            }
+
+            /**
+             * Inserts queued batches on a connection of its own until the end of the sheet.
+             *
+             * @return <code>null</code>
+             * @throws Exception if the rows can't be inserted
+             */
+            public Object call() throws Exception
+            {
+                Connection conn = (Connection) idleConnections.take();
+                try
+                {
+                    List rows = null;
+                    while ((rows = (List) queue.take()) != END_OF_SHEET)
+                    {
+                        insert(rows, conn);
+                    }
+                }
+                finally
+                {
+                    close();
+                    idleConnections.put(conn);
+                }
+                return null;
+            }
+
+            /**
+             * Inserts a batch of rows.
+             *
+             * @param rows the rows to insert
+             * @param conn the connection to insert them through
+             * @throws SQLException if the rows can't be inserted
+             */
+            void insert(List rows, Connection conn) throws SQLException
+            {
+                if (columns.length == 0)
+                {
+                    throw new SQLException("The first row of sheet " + name
+                            + " doesn't name any columns");
+                }
+                if (stmt == null)
+                {
+                    stmt = conn.prepareStatement(getSql());
+                    binder = TypedParameterBinder.forTable(conn, table, columns);
+                    connection = conn;
+                    insertedSheets.add(this);
+                }
+                for (int i = 0; i < rows.size(); i++)
+                {
+                    String[] values = (String[]) rows.get(i);
+                    for (int j = 0; j < columns.length; j++)
+                    {
+                        binder.bind(stmt, j + 1, j, (j < values.length) ? values[j] : null);
+                    }
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                rowCount += rows.size();
+            }
+
+            /**
+             * Closes the statement.
+             */
+            void close()
+            {
+                if (stmt != null)
+                {
+                    log.debug(getName() + ": loaded " + rowCount + " rows from sheet " + name);
+                    SqlUtil.close(null, stmt, null);
+                    stmt = null;
+                }
+            }
+
+            /**
+             * Returns the statement that inserts a row.
+             *
+             * @return the insert statement
+             */
+            private String getSql()
+            {
+                StringBuffer sql = new StringBuffer("INSERT INTO ");
+                sql.append(table).append(" (");
+                StringBuffer values = new StringBuffer();
+                for (int i = 0; i < columns.length; i++)
+                {
+                    if (i > 0)
+                    {
+                        sql.append(", ");
+                        values.append(", ");
+                    }
+                    sql.append(columns[i]);
+                    values.append('?');
+                }
+                sql.append(") VALUES (").append(values).append(')');
+                return sql.toString();
+            }
+        }
+    }
+}
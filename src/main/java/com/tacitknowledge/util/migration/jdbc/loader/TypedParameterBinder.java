@@ -0,0 +1,557 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
+
+/**
+ * Binds the text values of a data file to insert statement parameters with the setter that
+ * matches each column's type, such as <code>setLong</code> or <code>setTimestamp</code>, so
+ * that the database doesn't have to convert every value from a string.  The column types are
+ * read from <code>DatabaseMetaData</code> once, when the binder is created, and each column
+ * keeps one binder for every row.  A table named without a schema is looked for in the
+ * connection's current schema first; a column whose table can't be told apart from another
+ * with the same name, but a different type for the column, is bound as a string.
+ * <p/>
+ * Numbers are expected in Java's format, dates as <code>yyyy-mm-dd</code>, times as
+ * <code>hh:mm:ss</code> and timestamps as <code>yyyy-mm-dd hh:mm:ss[.f...]</code>, all in the
+ * JVM's time zone.  A value that doesn't parse, or belongs to a column whose type isn't known,
+ * is bound with <code>setString</code> as before, leaving the conversion to the database.
+ */
+public class TypedParameterBinder
+{
+    /**
+     * Class logger
+     */
+    private static Log log = LogFactory.getLog(TypedParameterBinder.class);
+
+    /**
+     * Binds values with <code>setString</code>
+     */
+    private static final Binder STRING = new Binder(Types.VARCHAR);
+
+    /**
+     * A plain decimal number with an optional exponent, without the suffixes, hexadecimal
+     * forms, <code>NaN</code> and <code>Infinity</code> that only Java accepts
+     */
+    private static final Pattern DECIMAL_NUMBER =
+            Pattern.compile("[+-]?(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?");
+
+    /**
+     * The binder of each column
+     */
+    private Binder[] binders;
+
+    /**
+     * Create a new <code>TypedParameterBinder</code> that binds every value as a string.
+     *
+     * @param columns the number of columns
+     */
+    public TypedParameterBinder(int columns)
+    {
+        binders = new Binder[columns];
+        for (int i = 0; i < columns; i++)
+        {
+            binders[i] = STRING;
+        }
+    }
+
+    /**
+     * Creates a binder for columns of a table, reading their types from the database.
+     *
+     * @param conn    the connection to read the table's metadata through
+     * @param table   the table, optionally qualified by its schema
+     * @param columns the columns that will be bound, in parameter order
+     * @return the binder
+     * @throws SQLException if the metadata could not be read
+     */
+    public static TypedParameterBinder forTable(Connection conn, String table, String[] columns)
+            throws SQLException
+    {
+        TypedParameterBinder binder = new TypedParameterBinder(columns.length);
+        Map types = readColumnTypes(conn, table);
+        for (int i = 0; i < columns.length; i++)
+        {
+            Integer type = (Integer) types.get(columns[i].trim().toUpperCase());
+            if (type == null)
+            {
+                log.debug("No type found for column " + columns[i] + " of " + table
+                        + "; binding it as a string");
+            }
+            else
+            {
+                binder.binders[i] = createBinder(type.intValue());
+            }
+        }
+        return binder;
+    }
+
+    /**
+     * Binds a value of a column to a statement parameter.
+     *
+     * @param stmt           the statement
+     * @param parameterIndex the index of the parameter, starting at 1
+     * @param column         the index of the column, starting at 0
+     * @param value          the value, or <code>null</code> for a SQL <code>NULL</code>
+     * @throws SQLException if the value can't be bound
+     */
+    public void bind(PreparedStatement stmt, int parameterIndex, int column, String value)
+            throws SQLException
+    {
+        Binder binder = (column < binders.length) ? binders[column] : STRING;
+        if (value == null)
+        {
+            stmt.setNull(parameterIndex, binder.sqlType);
+            return;
+        }
+        if (!binder.bind(stmt, parameterIndex, value))
+        {
+            stmt.setString(parameterIndex, value);
+        }
+    }
+
+    /**
+     * Reads the types of a table's columns.  A table without a schema is looked for in the
+     * connection's current schema, and then in any schema.  The names are looked up as given,
+     * and then in the case the database stores unquoted identifiers in.
+     *
+     * @param conn  the connection to read the metadata through
+     * @param table the table, optionally qualified by its schema
+     * @return the <code>java.sql.Types</code> of the columns, by upper case column name
+     * @throws SQLException if the metadata could not be read
+     */
+    private static Map readColumnTypes(Connection conn, String table) throws SQLException
+    {
+        DatabaseMetaData metaData = conn.getMetaData();
+        int dot = table.lastIndexOf('.');
+        if (dot != -1)
+        {
+            return readColumnTypes(metaData, table.substring(0, dot), table.substring(dot + 1));
+        }
+
+        String schema = getCurrentSchema(conn);
+        Map types = new HashMap();
+        if (schema != null)
+        {
+            types = readColumnTypes(metaData, schema, table);
+        }
+        if (types.isEmpty())
+        {
+            types = readColumnTypes(metaData, null, table);
+        }
+        return types;
+    }
+
+    /**
+     * Reads the types of the columns of a table in a schema, looking the names up as given,
+     * and then in the case the database stores unquoted identifiers in.
+     *
+     * @param metaData the database's metadata
+     * @param schema   the schema of the table, or <code>null</code> for any
+     * @param table    the name of the table
+     * @return the <code>java.sql.Types</code> of the columns, by upper case column name
+     * @throws SQLException if the metadata could not be read
+     */
+    private static Map readColumnTypes(DatabaseMetaData metaData, String schema, String table)
+            throws SQLException
+    {
+        Map types = readExactColumnTypes(metaData, schema, table);
+        if (types.isEmpty())
+        {
+            boolean upper = metaData.storesUpperCaseIdentifiers();
+            types = readExactColumnTypes(metaData,
+                    (schema == null) ? null : (upper ? schema.toUpperCase() : schema.toLowerCase()),
+                    upper ? table.toUpperCase() : table.toLowerCase());
+        }
+        return types;
+    }
+
+    /**
+     * Reads the types of the columns of the tables with exactly the given name.  A column
+     * that more than one table has, with different types, is left out, so that it is bound as
+     * a string rather than as the type of the wrong table.
+     *
+     * @param metaData the database's metadata
+     * @param schema   the schema of the table, or <code>null</code> for any
+     * @param table    the name of the table
+     * @return the <code>java.sql.Types</code> of the columns, by upper case column name
+     * @throws SQLException if the metadata could not be read
+     */
+    private static Map readExactColumnTypes(DatabaseMetaData metaData, String schema,
+            String table) throws SQLException
+    {
+        String escape = metaData.getSearchStringEscape();
+        Map types = new HashMap();
+        Set ambiguous = new HashSet();
+        ResultSet rs = null;
+        try
+        {
+            rs = metaData.getColumns(null, escapePattern(schema, escape),
+                    escapePattern(table, escape), null);
+            while (rs.next())
+            {
+                String column = rs.getString("COLUMN_NAME").toUpperCase();
+                Integer type = new Integer(rs.getInt("DATA_TYPE"));
+                Integer other = (Integer) types.put(column, type);
+                if ((other != null) && !other.equals(type))
+                {
+                    ambiguous.add(column);
+                }
+            }
+        }
+        finally
+        {
+            SqlUtil.close(null, null, rs);
+        }
+        if (!ambiguous.isEmpty())
+        {
+            log.info("Columns " + ambiguous + " have different types in more than one table "
+                    + "named " + table + "; binding them as strings");
+            types.keySet().removeAll(ambiguous);
+        }
+        return types;
+    }
+
+    /**
+     * Escapes the wildcards of a metadata search pattern, so that a name like
+     * <code>line_items</code> matches only itself.
+     *
+     * @param name   the name to match; may be <code>null</code>
+     * @param escape the database's search string escape; may be <code>null</code>
+     * @return the escaped pattern
+     */
+    private static String escapePattern(String name, String escape)
+    {
+        if ((name == null) || (escape == null) || (escape.length() == 0))
+        {
+            return name;
+        }
+        StringBuffer pattern = new StringBuffer(name.length() + 8);
+        for (int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            if ((c == '_') || (c == '%') || escape.equals(String.valueOf(c)))
+            {
+                pattern.append(escape);
+            }
+            pattern.append(c);
+        }
+        return pattern.toString();
+    }
+
+    /**
+     * Returns the connection's current schema, where it can be found.
+     *
+     * @param conn the connection
+     * @return the current schema, or <code>null</code> if the driver can't tell
+     */
+    private static String getCurrentSchema(Connection conn)
+    {
+        try
+        {
+            // Connection.getSchema() is JDBC 4.1; older drivers throw an AbstractMethodError,
+            // which reaches us wrapped in an InvocationTargetException
+            return (String) Connection.class.getMethod("getSchema").invoke(conn);
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Creates the binder for a type of column.
+     *
+     * @param sqlType the <code>java.sql.Types</code> of the column
+     * @return the binder
+     */
+    private static Binder createBinder(int sqlType)
+    {
+        switch (sqlType)
+        {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return new LongBinder(sqlType);
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return new DecimalBinder(sqlType);
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return new DoubleBinder(sqlType);
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return new BooleanBinder(sqlType);
+            case Types.DATE:
+                return new DateBinder(sqlType);
+            case Types.TIME:
+                return new TimeBinder(sqlType);
+            case Types.TIMESTAMP:
+                return new TimestampBinder(sqlType);
+            default:
+                return new Binder(sqlType);
+        }
+    }
+
+    /**
+     * Binds the values of a column.  This one binds them as strings.
+     */
+    private static class Binder
+    {
+        /**
+         * The <code>java.sql.Types</code> of the column
+         */
+        private int sqlType;
+
+        /**
+         * Create a new <code>Binder</code>.
+         *
+         * @param sqlType the <code>java.sql.Types</code> of the column
+         */
+        Binder(int sqlType)
+        {
+            this.sqlType = sqlType;
+        }
+
+        /**
+         * Binds a value.
+         *
+         * @param stmt  the statement
+         * @param index the index of the parameter
+         * @param value the value; never <code>null</code>
+         * @return false if the value couldn't be parsed, and should be bound as a string
+         * @throws SQLException if the value can't be bound
+         */
+        boolean bind(PreparedStatement stmt, int index, String value) throws SQLException
+        {
+            stmt.setString(index, value);
+            return true;
+        }
+    }
+
+    /**
+     * Binds whole numbers with <code>setLong</code>.
+     */
+    private static class LongBinder extends Binder
+    {
+        LongBinder(int sqlType)
+        {
+            super(sqlType);
+        }
+
+        boolean bind(PreparedStatement stmt, int index, String value) throws SQLException
+        {
+            long number;
+            try
+            {
+                number = Long.parseLong(value.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                return false;
+            }
+            stmt.setLong(index, number);
+            return true;
+        }
+    }
+
+    /**
+     * Binds exact numbers with <code>setBigDecimal</code>.
+     */
+    private static class DecimalBinder extends Binder
+    {
+        DecimalBinder(int sqlType)
+        {
+            super(sqlType);
+        }
+
+        boolean bind(PreparedStatement stmt, int index, String value) throws SQLException
+        {
+            BigDecimal number;
+            try
+            {
+                number = new BigDecimal(value.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                return false;
+            }
+            stmt.setBigDecimal(index, number);
+            return true;
+        }
+    }
+
+    /**
+     * Binds approximate numbers written as plain decimals with <code>setDouble</code>.
+     */
+    private static class DoubleBinder extends Binder
+    {
+        DoubleBinder(int sqlType)
+        {
+            super(sqlType);
+        }
+
+        boolean bind(PreparedStatement stmt, int index, String value) throws SQLException
+        {
+            String number = value.trim();
+            if (!DECIMAL_NUMBER.matcher(number).matches())
+            {
+                return false;
+            }
+            stmt.setDouble(index, Double.parseDouble(number));
+            return true;
+        }
+    }
+
+    /**
+     * Binds <code>true</code>/<code>false</code>, <code>1</code>/<code>0</code>,
+     * <code>t</code>/<code>f</code> and <code>y</code>/<code>n</code> with
+     * <code>setBoolean</code>.
+     */
+    private static class BooleanBinder extends Binder
+    {
+        BooleanBinder(int sqlType)
+        {
+            super(sqlType);
+        }
+
+        boolean bind(PreparedStatement stmt, int index, String value) throws SQLException
+        {
+            String flag = value.trim();
+            if (flag.equalsIgnoreCase("true") || flag.equals("1") || flag.equalsIgnoreCase("t")
+                    || flag.equalsIgnoreCase("y"))
+            {
+                stmt.setBoolean(index, true);
+                return true;
+            }
+            if (flag.equalsIgnoreCase("false") || flag.equals("0") || flag.equalsIgnoreCase("f")
+                    || flag.equalsIgnoreCase("n"))
+            {
+                stmt.setBoolean(index, false);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Binds <code>yyyy-mm-dd</code> dates with <code>setDate</code>.
+     */
+    private static class DateBinder extends Binder
+    {
+        DateBinder(int sqlType)
+        {
+            super(sqlType);
+        }
+
+        boolean bind(PreparedStatement stmt, int index, String value) throws SQLException
+        {
+            Date date;
+            try
+            {
+                date = Date.valueOf(value.trim());
+            }
+            catch (IllegalArgumentException e)
+            {
+                return false;
+            }
+            stmt.setDate(index, date);
+            return true;
+        }
+    }
+
+    /**
+     * Binds <code>hh:mm:ss</code> times with <code>setTime</code>.
+     */
+    private static class TimeBinder extends Binder
+    {
+        TimeBinder(int sqlType)
+        {
+            super(sqlType);
+        }
+
+        boolean bind(PreparedStatement stmt, int index, String value) throws SQLException
+        {
+            Time time;
+            try
+            {
+                time = Time.valueOf(value.trim());
+            }
+            catch (IllegalArgumentException e)
+            {
+                return false;
+            }
+            stmt.setTime(index, time);
+            return true;
+        }
+    }
+
+    /**
+     * Binds <code>yyyy-mm-dd hh:mm:ss[.f...]</code> timestamps, or <code>yyyy-mm-dd</code>
+     * dates at midnight, with <code>setTimestamp</code>.
+     */
+    private static class TimestampBinder extends Binder
+    {
+        TimestampBinder(int sqlType)
+        {
+            super(sqlType);
+        }
+
+        boolean bind(PreparedStatement stmt, int index, String value) throws SQLException
+        {
+            String text = value.trim();
+            Timestamp timestamp;
+            try
+            {
+                if (text.length() <= 10)
+                {
+                    timestamp = new Timestamp(Date.valueOf(text).getTime());
+                }
+                else
+                {
+                    timestamp = Timestamp.valueOf(text);
+                }
+            }
+            catch (IllegalArgumentException e)
+            {
+                return false;
+            }
+            stmt.setTimestamp(index, timestamp);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves JDBC drivers by class name once and connects through them directly.
+ * <code>DriverManager</code> loads the driver class on every call, then asks each registered
+ * driver in turn whether it accepts the URL, which serializes threads that open many
+ * connections at once.  The registry instead keeps one <code>Driver</code> per class name
+ * and class loader, and calls its <code>connect</code> method.
+ * <p/>
+ * Drivers are loaded through the thread's context class loader, falling back to the class
+ * loader of this class, so drivers injected into a child class loader (as Maven does for its
+ * build phases) are found.  Cached drivers don't keep their class loader from being
+ * garbage collected: a driver loaded by a class loader the registry can't see is only
+ * weakly referenced, and created again if it has been collected.
+ */
+public final class DriverRegistry
+{
+    /**
+     * Class logger
+     */
+    private static Log log = LogFactory.getLog(DriverRegistry.class);
+
+    /**
+     * The drivers resolved so far, keyed by the class loader they were loaded through, then
+     * by class name.  Each driver is either the <code>Driver</code> itself or a
+     * <code>WeakReference</code> to it, so that no value refers back to its key.
+     */
+    private static Map<ClassLoader, Map<String, Object>> drivers =
+            new WeakHashMap<ClassLoader, Map<String, Object>>();
+
+    /**
+     * Hidden constructor for utility class
+     */
+    private DriverRegistry()
+    {
+        // Hidden
+    }
+
+    /**
+     * Opens a connection through the given driver.
+     *
+     * @param driver the class name of the JDBC driver to use
+     * @param url    the database URL
+     * @param user   the username
+     * @param pass   the password
+     * @return a JDBC connection
+     * @throws ClassNotFoundException if the driver could not be loaded
+     * @throws SQLException           if the driver could not be created, does not accept the
+     *                                URL, or could not connect to the database
+     */
+    public static Connection connect(String driver, String url, String user, String pass)
+            throws ClassNotFoundException, SQLException
+    {
+        Properties props = new Properties();
+        if (user != null)
+        {
+            props.put("user", user);
+        }
+        if (pass != null)
+        {
+            props.put("password", pass);
+        }
+
+        log.debug("Getting Connection to " + url);
+        Connection conn = getDriver(driver).connect(url, props);
+        if (conn == null)
+        {
+            throw new SQLException("JDBC driver " + driver + " does not accept URL " + url);
+        }
+        return conn;
+    }
+
+    /**
+     * Returns the driver with the given class name, loading and creating it the first time
+     * it is asked for from the current class loader.
+     *
+     * @param driver the class name of the JDBC driver
+     * @return the driver
+     * @throws ClassNotFoundException if the driver could not be loaded
+     * @throws SQLException           if the driver could not be created
+     */
+    public static Driver getDriver(String driver) throws ClassNotFoundException, SQLException
+    {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null)
+        {
+            loader = DriverRegistry.class.getClassLoader();
+        }
+
+        Map<String, Object> loaderDrivers;
+        synchronized (drivers)
+        {
+            loaderDrivers = drivers.get(loader);
+            if (loaderDrivers == null)
+            {
+                loaderDrivers = new ConcurrentHashMap<String, Object>();
+                drivers.put(loader, loaderDrivers);
+            }
+        }
+
+        Object cached = loaderDrivers.get(driver);
+        Driver driverImpl = (cached instanceof Reference)
+                ? (Driver) ((Reference) cached).get() : (Driver) cached;
+        if (driverImpl == null)
+        {
+            // two threads may both create the driver; either instance will do
+            driverImpl = loadDriver(driver, loader);
+            if (isVisible(driverImpl.getClass().getClassLoader()))
+            {
+                loaderDrivers.put(driver, driverImpl);
+            }
+            else
+            {
+                loaderDrivers.put(driver, new WeakReference<Driver>(driverImpl));
+            }
+        }
+        return driverImpl;
+    }
+
+    /**
+     * Determines whether a class loader is the registry's own class loader or one of its
+     * parents, which live at least as long as the registry, so that holding on to their
+     * classes can't keep any other class loader from being collected.
+     *
+     * @param loader the class loader; <code>null</code> for the bootstrap class loader
+     * @return true if the class loader is visible to the registry
+     */
+    private static boolean isVisible(ClassLoader loader)
+    {
+        if (loader == null)
+        {
+            return true;
+        }
+        for (ClassLoader l = DriverRegistry.class.getClassLoader(); l != null; l = l.getParent())
+        {
+            if (l == loader)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forgets every driver resolved so far.
+     */
+    public static void clear()
+    {
+        synchronized (drivers)
+        {
+            drivers.clear();
+        }
+    }
+
+    /**
+     * Loads and creates a driver.
+     *
+     * @param driver the class name of the JDBC driver
+     * @param loader the class loader to try first
+     * @return a new instance of the driver
+     * @throws ClassNotFoundException if the driver could not be loaded
+     * @throws SQLException           if the driver could not be created
+     */
+    private static Driver loadDriver(String driver, ClassLoader loader)
+            throws ClassNotFoundException, SQLException
+    {
+        Class driverClass;
+        try
+        {
+            driverClass = Class.forName(driver, true, loader);
+        }
+        catch (ClassNotFoundException e)
+        {
+            driverClass = Class.forName(driver);
+        }
+
+        try
+        {
+            log.debug("Resolved JDBC driver " + driver);
+            return (Driver) driverClass.newInstance();
+        }
+        catch (InstantiationException e)
+        {
+            log.debug(e);
+            throw new SQLException("Could not create JDBC driver " + driver + ": "
+                    + e.getMessage());
+        }
+        catch (IllegalAccessException e)
+        {
+            log.debug(e);
+            throw new SQLException("Could not create JDBC driver " + driver + ": "
+                    + e.getMessage());
+        }
+        catch (ClassCastException e)
+        {
+            throw new SQLException(driver + " is not a JDBC driver");
+        }
+    }
+}
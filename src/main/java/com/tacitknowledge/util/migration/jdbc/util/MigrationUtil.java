@@ -43,7 +43,14 @@ public class MigrationUtil
         JdbcMigrationLauncherFactory launcherFactory =
                 new JdbcMigrationLauncherFactoryLoader().createFactory();
         JdbcMigrationLauncher launcher = launcherFactory.createMigrationLauncher(sce);
-        launcher.doMigrations();
+        try
+        {
+            launcher.doMigrations();
+        }
+        finally
+        {
+            launcher.close();
+        }
     }
 
     /**
@@ -72,7 +79,14 @@ public class MigrationUtil
                     migrationSettings);
         }
 
-        launcher.doMigrations();
+        try
+        {
+            launcher.doMigrations();
+        }
+        finally
+        {
+            launcher.close();
+        }
     }
 
     /**
@@ -101,6 +115,13 @@ public class MigrationUtil
                     migrationSettings);
         }
 
-        launcher.doRollbacks(rollbackLevel, forceRollback);
+        try
+        {
+            launcher.doRollbacks(rollbackLevel, forceRollback);
+        }
+        finally
+        {
+            launcher.close();
+        }
     }
 }
@@ -0,0 +1,86 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+
+/**
+ * Wraps a <code>Connection</code> so that calls to <code>close</code> are ignored.  This
+ * lets a migration context keep one connection, and the transaction on it, open while
+ * patch tasks and the patch table go on closing the connections they are handed.
+ */
+public class NonClosingConnectionHandler implements InvocationHandler
+{
+    /**
+     * The connection being protected
+     */
+    private Connection connection;
+
+    /**
+     * Creates a new <code>NonClosingConnectionHandler</code>.
+     *
+     * @param connection the connection to protect from being closed
+     */
+    protected NonClosingConnectionHandler(Connection connection)
+    {
+        this.connection = connection;
+    }
+
+    /**
+     * Returns a connection that delegates to the given one, except that it can't be closed.
+     *
+     * @param connection the connection to protect from being closed
+     * @return a connection whose <code>close</code> method does nothing
+     */
+    public static Connection wrap(Connection connection)
+    {
+        return (Connection) Proxy.newProxyInstance(NonClosingConnectionHandler.class
+                .getClassLoader(), new Class[] {Connection.class},
+                new NonClosingConnectionHandler(connection));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+        if ("close".equals(method.getName()) && method.getParameterTypes().length == 0)
+        {
+            return null;
+        }
+        if ("equals".equals(method.getName()) && method.getParameterTypes().length == 1)
+        {
+            return Boolean.valueOf(proxy == args[0]);
+        }
+        if ("hashCode".equals(method.getName()) && method.getParameterTypes().length == 0)
+        {
+            return new Integer(System.identityHashCode(proxy));
+        }
+
+        try
+        {
+            return method.invoke(connection, args);
+        }
+        catch (InvocationTargetException e)
+        {
+            throw e.getTargetException();
+        }
+    }
+}
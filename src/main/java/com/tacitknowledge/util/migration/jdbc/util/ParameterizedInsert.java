@@ -0,0 +1,347 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.util;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A single-row <code>INSERT INTO table (columns) VALUES (literals)</code> statement whose
+ * literals have been pulled out into bind parameters.  Inserts with the same table, columns
+ * and kinds of literals have the same {@link #getShape() shape}, so a run of them can be
+ * executed through one <code>PreparedStatement</code> instead of being parsed by the
+ * database one at a time.
+ * <p/>
+ * Parsing is deliberately conservative.  Only quoted strings, plain decimal numbers and
+ * <code>NULL</code> are recognised; any other expression, a multi-row insert, a column count
+ * that doesn't match the value count, or a string containing a backslash (which MySQL treats
+ * as an escape character) means the statement is left alone.  <code>NULL</code>s stay in the
+ * SQL rather than being bound, since drivers don't agree on how to bind an untyped null.
+ * <p/>
+ * String literals are bound with <code>setString</code>, so the database has to convert a
+ * character parameter to the column type the same way it converts a quoted literal.  On
+ * PostgreSQL that means connecting with <code>stringtype=unspecified</code> if string
+ * literals are inserted into non-character columns.
+ */
+public final class ParameterizedInsert
+{
+    /**
+     * Matches a single-row insert with an explicit column list
+     */
+    private static final Pattern INSERT_PATTERN = Pattern.compile(
+            "(?is)^\\s*insert\\s+into\\s+([\\w.$#\"\\[\\]]+)\\s*\\(([\\w\\s,$#\"\\[\\]]+)\\)"
+                    + "\\s*values\\s*\\((.*)\\)\\s*$");
+
+    /**
+     * Matches the numeric literals we are willing to bind
+     */
+    private static final Pattern NUMBER_PATTERN = Pattern.compile("[-+]?\\d+(\\.\\d+)?");
+
+    /**
+     * The "INSERT INTO table (columns)" part of the statement, normalised
+     */
+    private String prefix;
+
+    /**
+     * The "(?, ?, NULL)" part of the statement
+     */
+    private String valuesClause;
+
+    /**
+     * The literal values to bind, in order; <code>String</code>s, <code>Long</code>s or
+     * <code>BigDecimal</code>s
+     */
+    private List parameters;
+
+    /**
+     * Hidden constructor; use {@link #parse(String)}
+     *
+     * @param prefix       the "INSERT INTO table (columns)" part of the statement
+     * @param valuesClause the parameterised values clause
+     * @param parameters   the values to bind
+     */
+    private ParameterizedInsert(String prefix, String valuesClause, List parameters)
+    {
+        this.prefix = prefix;
+        this.valuesClause = valuesClause;
+        this.parameters = Collections.unmodifiableList(parameters);
+    }
+
+    /**
+     * Parses the given statement.
+     *
+     * @param sql the SQL statement to parse
+     * @return the parameterised insert, or <code>null</code> if the statement is not a
+     *         single-row insert of simple literals
+     */
+    public static ParameterizedInsert parse(String sql)
+    {
+        Matcher matcher = INSERT_PATTERN.matcher(sql);
+        if (!matcher.matches())
+        {
+            return null;
+        }
+
+        String table = matcher.group(1);
+        String[] columns = matcher.group(2).split(",");
+        String values = matcher.group(3);
+
+        StringBuffer columnList = new StringBuffer();
+        for (int i = 0; i < columns.length; i++)
+        {
+            String column = columns[i].trim();
+            if (column.length() == 0)
+            {
+                return null;
+            }
+            if (i > 0)
+            {
+                columnList.append(", ");
+            }
+            columnList.append(column);
+        }
+
+        List parameters = new ArrayList();
+        StringBuffer valuesClause = new StringBuffer("(");
+        int valueCount = 0;
+        int i = skipWhitespace(values, 0);
+        while (i < values.length())
+        {
+            if (valueCount > 0)
+            {
+                valuesClause.append(", ");
+            }
+
+            int end;
+            char c = values.charAt(i);
+            if (c == '\'')
+            {
+                StringBuffer literal = new StringBuffer();
+                end = readString(values, i, literal);
+                if (end < 0)
+                {
+                    return null;
+                }
+                parameters.add(literal.toString());
+                valuesClause.append('?');
+            }
+            else
+            {
+                end = i;
+                while (end < values.length() && values.charAt(end) != ','
+                        && !Character.isWhitespace(values.charAt(end)))
+                {
+                    end++;
+                }
+                String token = values.substring(i, end);
+                if ("null".equalsIgnoreCase(token))
+                {
+                    valuesClause.append("NULL");
+                }
+                else if (NUMBER_PATTERN.matcher(token).matches())
+                {
+                    parameters.add(toNumber(token));
+                    valuesClause.append('?');
+                }
+                else
+                {
+                    return null;
+                }
+            }
+            valueCount++;
+
+            i = skipWhitespace(values, end);
+            if (i < values.length())
+            {
+                if (values.charAt(i) != ',')
+                {
+                    return null;
+                }
+                i = skipWhitespace(values, i + 1);
+                if (i >= values.length())
+                {
+                    // trailing comma
+                    return null;
+                }
+            }
+        }
+        valuesClause.append(')');
+
+        if (valueCount != columns.length)
+        {
+            return null;
+        }
+
+        return new ParameterizedInsert("INSERT INTO " + table + " (" + columnList + ")",
+                valuesClause.toString(), parameters);
+    }
+
+    /**
+     * Returns a key that is equal for inserts that can share a <code>PreparedStatement</code>.
+     *
+     * @return the shape of this insert
+     */
+    public String getShape()
+    {
+        return getSql(1);
+    }
+
+    /**
+     * Returns the parameterised SQL for inserting the given number of rows of this shape in one
+     * statement.  Anything more than one row needs a database that supports multi-row
+     * <code>VALUES</code> lists.
+     *
+     * @param rows the number of rows the statement should insert
+     * @return the parameterised SQL
+     */
+    public String getSql(int rows)
+    {
+        StringBuffer sql = new StringBuffer(prefix).append(" VALUES ");
+        for (int i = 0; i < rows; i++)
+        {
+            if (i > 0)
+            {
+                sql.append(", ");
+            }
+            sql.append(valuesClause);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * @return the values to bind, in order
+     */
+    public List getParameters()
+    {
+        return parameters;
+    }
+
+    /**
+     * Binds this insert's values to the given statement.
+     *
+     * @param stmt   the statement to bind to
+     * @param offset the number of parameters already bound to the statement by earlier rows
+     * @throws SQLException if a parameter could not be bound
+     */
+    public void bind(PreparedStatement stmt, int offset) throws SQLException
+    {
+        for (int i = 0; i < parameters.size(); i++)
+        {
+            Object value = parameters.get(i);
+            if (value instanceof String)
+            {
+                stmt.setString(offset + i + 1, (String) value);
+            }
+            else if (value instanceof Long)
+            {
+                stmt.setLong(offset + i + 1, ((Long) value).longValue());
+            }
+            else
+            {
+                stmt.setBigDecimal(offset + i + 1, (BigDecimal) value);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString()
+    {
+        return getShape() + " " + parameters;
+    }
+
+    /**
+     * Reads a quoted string literal.
+     *
+     * @param values  the values clause being parsed
+     * @param start   the index of the opening quote
+     * @param literal receives the unescaped value of the literal
+     * @return the index after the closing quote, or -1 if the literal can't be handled
+     */
+    private static int readString(String values, int start, StringBuffer literal)
+    {
+        for (int i = start + 1; i < values.length(); i++)
+        {
+            char c = values.charAt(i);
+            if (c == '\\')
+            {
+                return -1;
+            }
+            if (c == '\'')
+            {
+                if (i + 1 < values.length() && values.charAt(i + 1) == '\'')
+                {
+                    literal.append('\'');
+                    i++;
+                }
+                else
+                {
+                    return i + 1;
+                }
+            }
+            else
+            {
+                literal.append(c);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Converts a numeric literal to the narrowest type that holds it exactly.
+     *
+     * @param token the literal
+     * @return a <code>Long</code> for integers that fit, otherwise a <code>BigDecimal</code>
+     */
+    private static Object toNumber(String token)
+    {
+        String number = token.startsWith("+") ? token.substring(1) : token;
+        if (number.indexOf('.') < 0)
+        {
+            try
+            {
+                return Long.valueOf(number);
+            }
+            catch (NumberFormatException nfe)
+            {
+                // too big for a long
+            }
+        }
+        return new BigDecimal(number);
+    }
+
+    /**
+     * @param s     the string to scan
+     * @param start the index to start at
+     * @return the index of the next non-whitespace character, or the length of the string
+     */
+    private static int skipWhitespace(String s, int start)
+    {
+        int i = start;
+        while (i < s.length() && Character.isWhitespace(s.charAt(i)))
+        {
+            i++;
+        }
+        return i;
+    }
+}
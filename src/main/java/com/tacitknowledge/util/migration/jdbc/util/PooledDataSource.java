@@ -0,0 +1,601 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * A small, bounded connection pool for standalone migrations.  Closing a connection handed
+ * out by the pool returns it to the pool instead of closing it, so the patch table and
+ * loaders, which close their connection after nearly every call, reuse a handful of
+ * connections rather than logging in to the database again each time.
+ * <p/>
+ * At most <code>maxConnections</code> connections are open at once; a request for another
+ * waits up to <code>maxWaitMillis</code> for one to be returned.  Connections idle for longer
+ * than <code>idleTimeoutMillis</code> are closed, even if no more connections are asked for,
+ * by a daemon thread that only runs while the pool has idle connections.  If a
+ * <code>validationQuery</code> is set, connections are checked with it before they are
+ * handed out again.  Uncommitted work on a returned connection is rolled back.
+ * <p/>
+ * Call {@link #close()} once the pool is no longer needed.
+ *
+ * @see com.tacitknowledge.util.migration.jdbc.JdbcMigrationLauncherFactory
+ */
+public class PooledDataSource extends NonPooledDataSource
+{
+    /**
+     * Class logger
+     */
+    private static Log log = LogFactory.getLog(PooledDataSource.class);
+
+    /**
+     * The most connections that can be open at once
+     */
+    private int maxConnections = 10;
+
+    /**
+     * The query to check a connection with before handing it out again, or <code>null</code>
+     */
+    private String validationQuery = null;
+
+    /**
+     * Milliseconds a connection can stay unused in the pool before it is closed
+     */
+    private long idleTimeoutMillis = 300000;
+
+    /**
+     * Milliseconds to wait for a connection when all of them are in use
+     */
+    private long maxWaitMillis = 30000;
+
+    /**
+     * The connections waiting in the pool, most recently used first
+     */
+    private LinkedList<PooledConnection> idleConnections = new LinkedList<PooledConnection>();
+
+    /**
+     * The number of connections handed out, or being opened
+     */
+    private int activeConnections = 0;
+
+    /**
+     * Whether the pool has been closed
+     */
+    private boolean closed = false;
+
+    /**
+     * Closes idle connections once they expire, or <code>null</code> while there are none
+     */
+    private Timer evictor = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    public Connection getConnection(String user, String pass) throws SQLException
+    {
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        while (true)
+        {
+            PooledConnection pooled = reserveConnection(deadline);
+            if (pooled == null)
+            {
+                // a free slot, but no idle connection to fill it with
+                try
+                {
+                    Connection connection = openConnection(user, pass);
+                    pooled = new PooledConnection(connection, connection.getAutoCommit());
+                    log.debug("Opened pooled connection to " + getDatabaseUrl());
+                }
+                catch (SQLException e)
+                {
+                    releaseSlot();
+                    throw e;
+                }
+                catch (RuntimeException e)
+                {
+                    releaseSlot();
+                    throw e;
+                }
+            }
+            else if (!isValid(pooled.connection))
+            {
+                log.debug("Discarding pooled connection that failed validation");
+                SqlUtil.close(pooled.connection, null, null);
+                releaseSlot();
+                continue;
+            }
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class[] {Connection.class}, new PooledConnectionHandler(pooled));
+        }
+    }
+
+    /**
+     * Closes the connections waiting in the pool.  Connections still in use are closed when
+     * they are returned, and no more connections are handed out.
+     */
+    public void close()
+    {
+        List<PooledConnection> toClose;
+        synchronized (this)
+        {
+            closed = true;
+            toClose = new ArrayList<PooledConnection>(idleConnections);
+            idleConnections.clear();
+            stopEvictor();
+            notifyAll();
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Opens a new physical connection to the database.
+     *
+     * @param user the user to log in as
+     * @param pass the user's password
+     * @return the new connection
+     * @throws SQLException if the connection can't be opened
+     */
+    protected Connection openConnection(String user, String pass) throws SQLException
+    {
+        return super.getConnection(user, pass);
+    }
+
+    /**
+     * @return the most connections that can be open at once
+     */
+    public int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    /**
+     * @param maxConnections the most connections that can be open at once
+     * @throws IllegalArgumentException if <code>maxConnections</code> is less than 1
+     */
+    public void setMaxConnections(int maxConnections)
+    {
+        if (maxConnections < 1)
+        {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @return the query to check a connection with before handing it out again, or
+     *         <code>null</code> to only check that it is still open
+     */
+    public String getValidationQuery()
+    {
+        return validationQuery;
+    }
+
+    /**
+     * @param validationQuery the query to check a connection with before handing it out
+     *                        again, such as <code>SELECT 1</code>
+     */
+    public void setValidationQuery(String validationQuery)
+    {
+        this.validationQuery = validationQuery;
+    }
+
+    /**
+     * @return milliseconds a connection can stay unused in the pool before it is closed
+     */
+    public long getIdleTimeoutMillis()
+    {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * @param idleTimeoutMillis milliseconds a connection can stay unused in the pool before
+     *                          it is closed; 0 keeps idle connections open
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis)
+    {
+        if (idleTimeoutMillis < 0)
+        {
+            throw new IllegalArgumentException("idleTimeoutMillis can't be negative");
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * @return milliseconds to wait for a connection when all of them are in use
+     */
+    public long getMaxWaitMillis()
+    {
+        return maxWaitMillis;
+    }
+
+    /**
+     * @param maxWaitMillis milliseconds to wait for a connection when all of them are in use
+     */
+    public void setMaxWaitMillis(long maxWaitMillis)
+    {
+        if (maxWaitMillis < 0)
+        {
+            throw new IllegalArgumentException("maxWaitMillis can't be negative");
+        }
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Useful for debugging
+     *
+     * @return String with state
+     */
+    public String toString()
+    {
+        return
+                "PooledDataSource["
+                        + getDriverClass() + "/"
+                        + getDatabaseUrl() + "/"
+                        + getUsername() + "/"
+                        + "(password omitted)/"
+                        + maxConnections + "]";
+    }
+
+    /**
+     * Takes a slot in the pool, waiting for one if they are all in use.
+     *
+     * @param deadline the time to stop waiting at
+     * @return an idle connection to reuse, or <code>null</code> if a new one must be opened
+     * @throws SQLException if the pool is closed, or no slot came free in time
+     */
+    private PooledConnection reserveConnection(long deadline) throws SQLException
+    {
+        List<PooledConnection> expired = new ArrayList<PooledConnection>();
+        try
+        {
+            synchronized (this)
+            {
+                while (true)
+                {
+                    if (closed)
+                    {
+                        throw new SQLException("The connection pool has been closed");
+                    }
+
+                    long now = System.currentTimeMillis();
+                    removeExpired(now, expired);
+
+                    if (!idleConnections.isEmpty())
+                    {
+                        activeConnections++;
+                        return idleConnections.removeFirst();
+                    }
+                    if (activeConnections < maxConnections)
+                    {
+                        activeConnections++;
+                        return null;
+                    }
+
+                    long wait = deadline - now;
+                    if (wait <= 0)
+                    {
+                        throw new SQLException("Timed out after " + maxWaitMillis
+                                + " millis waiting for one of " + maxConnections
+                                + " pooled connections to " + getDatabaseUrl());
+                    }
+                    try
+                    {
+                        wait(wait);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted waiting for a pooled connection");
+                    }
+                }
+            }
+        }
+        finally
+        {
+            closeAll(expired);
+        }
+    }
+
+    /**
+     * Moves the connections that have been idle for longer than <code>idleTimeoutMillis</code>
+     * out of the pool.  Must be called holding the pool's lock.
+     *
+     * @param now     the current time
+     * @param expired the list to add the expired connections to
+     */
+    private void removeExpired(long now, List<PooledConnection> expired)
+    {
+        while (!idleConnections.isEmpty() && (idleTimeoutMillis > 0)
+                && (now - idleConnections.getLast().lastUsed > idleTimeoutMillis))
+        {
+            expired.add(idleConnections.removeLast());
+        }
+    }
+
+    /**
+     * Closes the connections that have expired while idle, and stops the evictor once no
+     * idle connections are left.
+     */
+    private void evictIdleConnections()
+    {
+        List<PooledConnection> expired = new ArrayList<PooledConnection>();
+        synchronized (this)
+        {
+            removeExpired(System.currentTimeMillis(), expired);
+            if (idleConnections.isEmpty())
+            {
+                stopEvictor();
+            }
+        }
+        if (!expired.isEmpty())
+        {
+            log.debug("Closing " + expired.size() + " idle pooled connection(s)");
+        }
+        closeAll(expired);
+    }
+
+    /**
+     * Starts the evictor if idle connections expire and it isn't already running.  Must be
+     * called holding the pool's lock.
+     */
+    private void startEvictor()
+    {
+        if ((evictor != null) || closed || (idleTimeoutMillis <= 0))
+        {
+            return;
+        }
+        long period = Math.max(idleTimeoutMillis / 2, 1);
+        evictor = new Timer("autopatch-pool-evictor", true);
+        evictor.schedule(new TimerTask()
+        {
+            public void run()
+            {
+                evictIdleConnections();
+            }
+        }, period, period);
+    }
+
+    /**
+     * Stops the evictor, if it is running.  Must be called holding the pool's lock.
+     */
+    private void stopEvictor()
+    {
+        if (evictor != null)
+        {
+            evictor.cancel();
+            evictor = null;
+        }
+    }
+
+    /**
+     * Gives up a slot taken by {@link #reserveConnection(long)} without returning a
+     * connection to the pool.
+     */
+    private synchronized void releaseSlot()
+    {
+        activeConnections--;
+        notifyAll();
+    }
+
+    /**
+     * Puts a connection back in the pool, first rolling back any uncommitted work and
+     * restoring its auto-commit mode.  A connection that can't be reset is closed.
+     *
+     * @param pooled the connection to put back
+     */
+    private void returnConnection(PooledConnection pooled)
+    {
+        boolean reusable;
+        try
+        {
+            reusable = !pooled.connection.isClosed();
+            if (reusable && !pooled.connection.getAutoCommit())
+            {
+                pooled.connection.rollback();
+            }
+            if (reusable && (pooled.connection.getAutoCommit() != pooled.autoCommit))
+            {
+                pooled.connection.setAutoCommit(pooled.autoCommit);
+            }
+        }
+        catch (SQLException e)
+        {
+            log.debug("Discarding pooled connection that could not be reset", e);
+            reusable = false;
+        }
+
+        synchronized (this)
+        {
+            activeConnections--;
+            if (reusable && !closed)
+            {
+                pooled.lastUsed = System.currentTimeMillis();
+                idleConnections.addFirst(pooled);
+                pooled = null;
+                startEvictor();
+            }
+            notifyAll();
+        }
+        if (pooled != null)
+        {
+            SqlUtil.close(pooled.connection, null, null);
+        }
+    }
+
+    /**
+     * Checks that a connection from the pool can still be used.
+     *
+     * @param connection the connection to check
+     * @return true if the connection is open and passes the validation query, if any
+     */
+    private boolean isValid(Connection connection)
+    {
+        Statement stmt = null;
+        try
+        {
+            if (connection.isClosed())
+            {
+                return false;
+            }
+            if (validationQuery != null)
+            {
+                stmt = connection.createStatement();
+                stmt.execute(validationQuery);
+            }
+            return true;
+        }
+        catch (SQLException e)
+        {
+            log.debug("Pooled connection failed validation", e);
+            return false;
+        }
+        finally
+        {
+            SqlUtil.close(null, stmt, null);
+        }
+    }
+
+    /**
+     * Closes the given connections.
+     *
+     * @param connections the connections to close
+     */
+    private void closeAll(List<PooledConnection> connections)
+    {
+        for (Iterator<PooledConnection> i = connections.iterator(); i.hasNext();)
+        {
+            SqlUtil.close(i.next().connection, null, null);
+        }
+    }
+
+    /**
+     * A physical connection kept by the pool.
+     */
+    private static class PooledConnection
+    {
+        /**
+         * The physical connection
+         */
+        private Connection connection;
+
+        /**
+         * The auto-commit mode the connection was opened with
+         */
+        private boolean autoCommit;
+
+        /**
+         * When the connection was last returned to the pool
+         */
+        private long lastUsed = 0;
+
+        /**
+         * Create a new <code>PooledConnection</code>.
+         *
+         * @param connection the physical connection
+         * @param autoCommit the auto-commit mode the connection was opened with
+         */
+        PooledConnection(Connection connection, boolean autoCommit)
+        {
+            this.connection = connection;
+            this.autoCommit = autoCommit;
+        }
+    }
+
+    /**
+     * Hands a pooled connection out until it is closed, which returns it to the pool.
+     */
+    private class PooledConnectionHandler implements InvocationHandler
+    {
+        /**
+         * The connection handed out, or <code>null</code> once it has been returned
+         */
+        private volatile PooledConnection pooled;
+
+        /**
+         * Create a new <code>PooledConnectionHandler</code>.
+         *
+         * @param pooled the connection to hand out
+         */
+        PooledConnectionHandler(PooledConnection pooled)
+        {
+            this.pooled = pooled;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            int parameterCount = method.getParameterTypes().length;
+            if ("close".equals(name) && (parameterCount == 0))
+            {
+                PooledConnection returned;
+                synchronized (this)
+                {
+                    returned = pooled;
+                    pooled = null;
+                }
+                if (returned != null)
+                {
+                    returnConnection(returned);
+                }
+                return null;
+            }
+            if ("isClosed".equals(name) && (parameterCount == 0) && (pooled == null))
+            {
+                return Boolean.TRUE;
+            }
+            if ("equals".equals(name) && (parameterCount == 1))
+            {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            if ("hashCode".equals(name) && (parameterCount == 0))
+            {
+                return new Integer(System.identityHashCode(proxy));
+            }
+
+            PooledConnection current = pooled;
+            if (current == null)
+            {
+                throw new SQLException("The connection has been returned to the pool");
+            }
+            try
+            {
+                return method.invoke(current.connection, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getTargetException();
+            }
+        }
+    }
+}
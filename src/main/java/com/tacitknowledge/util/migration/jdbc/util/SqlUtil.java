@@ -19,7 +19,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.sql.*;
-import java.util.Properties;
 
 /**
  * Utility class for dealing with JDBC.
@@ -139,7 +138,8 @@ public final class SqlUtil
     }
 
     /**
-     * Established and returns a connection based on the specified parameters.
+     * Established and returns a connection based on the specified parameters.  The driver is
+     * resolved once and then reused, see {@link DriverRegistry}.
      *
      * @param driver the JDBC driver to use
      * @param url    the database URL
@@ -152,50 +152,6 @@ public final class SqlUtil
     public static Connection getConnection(String driver, String url, String user, String pass)
             throws ClassNotFoundException, SQLException
     {
-        Connection conn = null;
-        try
-        {
-            Class.forName(driver);
-            log.debug("Getting Connection to " + url);
-            conn = DriverManager.getConnection(url, user, pass);
-        }
-        catch (Exception e)
-        {
-            /* work around for DriverManager 'feature'.  
-             * In some cases, the jdbc driver jar is injected into a new 
-             * child classloader (for example, maven provides different 
-             * class loaders for different build lifecycle phases). 
-             * 
-             * Since DriverManager uses the calling class' loader instead 
-             * of the current context's loader, it fails to find the driver.
-             * 
-             * Our work around is to give the current context's class loader 
-             * a shot at finding the driver in cases where DriverManager fails.  
-             * This 'may be' a security hole which is why DriverManager implements 
-             * things in such a way that it doesn't use the current thread context class loader.
-             */
-            try
-            {
-                Class driverClass =
-                        Class.forName(driver, true, Thread.currentThread().getContextClassLoader());
-                Driver driverImpl = (Driver) driverClass.newInstance();
-                Properties props = new Properties();
-                props.put("user", user);
-                props.put("password", pass);
-                conn = driverImpl.connect(url, props);
-            }
-            catch (InstantiationException ie)
-            {
-                log.debug(ie);
-                throw new SQLException(ie.getMessage());
-            }
-            catch (IllegalAccessException iae)
-            {
-                log.debug(iae);
-                throw new SQLException(iae.getMessage());
-            }
-        }
-
-        return conn;
+        return DriverRegistry.connect(driver, url, user, pass);
     }
 }
@@ -16,12 +16,15 @@
 package com.tacitknowledge.util.migration;
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import com.tacitknowledge.util.migration.builders.MockBuilder;
 import com.tacitknowledge.util.migration.tasks.rollback.*;
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 import org.easymock.classextension.IMocksControl;
 import org.easymock.MockControl;
 
@@ -47,6 +50,8 @@ public class DistributedMigrationProcessTest extends TestCase
     private PatchInfoStore currentPatchInfoStore;
     private IMocksControl migrationRunnerStrategyControl;
     private MigrationRunnerStrategy migrationRunnerStrategy;
+    /** each patch instance that ran, once for every node it ran on */
+    private List<MigrationTask> taskRuns;
 
 
     /**
@@ -59,6 +64,7 @@ public class DistributedMigrationProcessTest extends TestCase
         currentPatchInfoStore = MockBuilder.getPatchInfoStore(CURRENT_PATCH_LEVEL);
         migrationRunnerStrategyControl = createStrictControl();
         migrationRunnerStrategy = migrationRunnerStrategyControl.createMock(MigrationRunnerStrategy.class);
+        taskRuns = Collections.synchronizedList(new ArrayList<MigrationTask>());
     }
     
     protected HashMap createSystems()
@@ -225,4 +231,542 @@ public class DistributedMigrationProcessTest extends TestCase
         assertEquals("Two rollbacks should be applied", 3, rollbacksApplied);
     }
 
+
+    public void testConcurrentNodesStopAfterFailedLevel() throws Exception
+    {
+        List<String> executions = Collections.synchronizedList(new ArrayList<String>());
+        NodeStore node1Store = new NodeStore(CURRENT_PATCH_LEVEL, 0);
+        NodeStore node2Store = new NodeStore(CURRENT_PATCH_LEVEL, 0);
+        setUpNodes(node1Store, node2Store, executions, true);
+        migrationProcess.setMaxConcurrentNodes(2);
+        try
+        {
+            migrationProcess.doMigrations(new NodeStore(CURRENT_PATCH_LEVEL, 0), null);
+            fail("The failure on node2 should have stopped the migration");
+        }
+        catch (MigrationException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("failed on 1 of 2 nodes") > -1);
+        }
+
+        // both nodes ran level 5 at the same time, and nothing ran after the failure
+        assertEquals(2, executions.size());
+        assertTrue(executions.contains("5:node1"));
+        assertTrue(executions.contains("5:node2"));
+        assertEquals(Collections.singletonList(new Integer(5)), node1Store.updatedLevels);
+        assertTrue(node2Store.updatedLevels.isEmpty());
+
+        // each node ran an instance of the patch of its own
+        assertEquals(2, taskRuns.size());
+        assertNotSame(taskRuns.get(0), taskRuns.get(1));
+    }
+
+    public void testPatchesThatCannotBeCopiedRunOnOneNodeAtATime() throws Exception
+    {
+        NodeStore node1Store = new NodeStore(CURRENT_PATCH_LEVEL, 0);
+        NodeStore node2Store = new NodeStore(CURRENT_PATCH_LEVEL, 0);
+        setUpNodes(node1Store, node2Store, new ArrayList<String>(), false);
+        SharedTask task = new SharedTask(5);
+        JdbcMigrationLauncher launcher =
+                (JdbcMigrationLauncher) migrationProcess.getControlledSystems().get("system1");
+        final List<MigrationTask> tasks = Collections.singletonList((MigrationTask) task);
+        MigrationProcess subProcess = new MigrationProcess()
+        {
+            public List<MigrationTask> getMigrationTasks()
+            {
+                return tasks;
+            }
+        };
+        subProcess.setMigrationRunnerStrategy(new OrderedMigrationRunnerStrategy());
+        launcher.setMigrationProcess(subProcess);
+        migrationProcess.setMaxConcurrentNodes(2);
+
+        assertEquals(1, migrationProcess.doMigrations(new NodeStore(CURRENT_PATCH_LEVEL, 0),
+                null));
+        assertEquals(2, task.runs);
+        assertEquals(1, task.mostRunning);
+        assertTrue(node1Store.updatedLevels.contains(new Integer(5)));
+        assertTrue(node2Store.updatedLevels.contains(new Integer(5)));
+    }
+
+    public void testNodeThatFailsToCommitDoesNotRecordThePatch() throws Exception
+    {
+        NodeStore node1Store = new NodeStore(CURRENT_PATCH_LEVEL, 0);
+        NodeStore node2Store = new NodeStore(CURRENT_PATCH_LEVEL, 0);
+        setUpNodes(node1Store, node2Store, new ArrayList<String>(), false, true);
+        migrationProcess.setMaxConcurrentNodes(2);
+        try
+        {
+            migrationProcess.doMigrations(new NodeStore(CURRENT_PATCH_LEVEL, 0), null);
+            fail("The failed commit on node1 should have stopped the migration");
+        }
+        catch (MigrationException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("failed on 1 of 2 nodes") > -1);
+        }
+
+        // node2's success must not write the level into node1's rolled back patch table
+        assertTrue(node1Store.updatedLevels.isEmpty());
+        assertTrue(node2Store.updatedLevels.contains(new Integer(5)));
+    }
+
+    public void testContinueOnNodeFailureLeavesNodeOutOfSync() throws Exception
+    {
+        List<String> executions = Collections.synchronizedList(new ArrayList<String>());
+        NodeStore node1Store = new NodeStore(CURRENT_PATCH_LEVEL, 0);
+        NodeStore node2Store = new NodeStore(CURRENT_PATCH_LEVEL, 0);
+        JdbcMigrationContext node2 = setUpNodes(node1Store, node2Store, executions, true);
+        migrationProcess.setMaxConcurrentNodes(2);
+        migrationProcess.setContinueOnNodeFailure(true);
+        try
+        {
+            migrationProcess.doMigrations(new NodeStore(CURRENT_PATCH_LEVEL, 0), null);
+            fail("The out of sync node should have been reported");
+        }
+        catch (MigrationException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("1 nodes were left out of sync") > -1);
+        }
+
+        // level 6 only waited for level 5 to finish everywhere, and skipped the failed node
+        assertEquals(3, executions.size());
+        assertEquals("6:node1", executions.get(2));
+        assertEquals(1, migrationProcess.getOutOfSyncNodes().size());
+        assertTrue(migrationProcess.getOutOfSyncNodes().containsKey(node2));
+        assertEquals(Arrays.asList(new Integer[] {new Integer(5), new Integer(6)}),
+                node1Store.updatedLevels);
+        assertTrue(node2Store.updatedLevels.isEmpty());
+    }
+
+    public void testSyncReportListsEveryNodeThatNeedsAttention() throws Exception
+    {
+        setUpNodes(new NodeStore(CURRENT_PATCH_LEVEL - 1, 0),
+                new NodeStore(CURRENT_PATCH_LEVEL - 2, 0), new ArrayList<String>(), false);
+        JdbcMigrationLauncher launcher =
+                (JdbcMigrationLauncher) migrationProcess.getControlledSystems().get("system1");
+        JdbcMigrationContext node3 = EasyMock.createNiceMock(JdbcMigrationContext.class);
+        EasyMock.replay(node3);
+        launcher.getContexts().put(node3, new NodeStore(CURRENT_PATCH_LEVEL, 5000));
+        migrationProcess.setMaxConcurrentNodes(3);
+        migrationProcess.setNodeTimeoutMillis(200);
+
+        // the slow node is given up on rather than waited for
+        long start = System.currentTimeMillis();
+        SyncReport report =
+                migrationProcess.getSyncReport(new NodeStore(CURRENT_PATCH_LEVEL, 0));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertFalse(report.isInSync());
+        assertEquals(3, report.getNodeCount());
+        assertEquals(2, report.getOutOfSyncNodes().size());
+        assertEquals(1, report.getUnreachableNodes().size());
+        assertTrue(report.toString(), report.toString().indexOf("2 of 3 nodes are out of sync") > -1);
+
+        try
+        {
+            migrationProcess.setForceSync(true);
+            migrationProcess.validateControlledSystems(new NodeStore(CURRENT_PATCH_LEVEL, 0));
+            fail("Nodes that could not be checked can't be synced");
+        }
+        catch (MigrationException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("could not be checked") > -1);
+        }
+    }
+
+    public void testHungNodeDoesNotTimeOutTheNodesQueuedBehindIt() throws Exception
+    {
+        // the first node hangs in a way that ignores interrupts, as a blocked driver can
+        NodeStore hungStore = new NodeStore(CURRENT_PATCH_LEVEL, 2000);
+        hungStore.uninterruptible = true;
+        setUpNodes(hungStore, new NodeStore(CURRENT_PATCH_LEVEL, 100), new ArrayList<String>(),
+                false);
+        JdbcMigrationLauncher launcher =
+                (JdbcMigrationLauncher) migrationProcess.getControlledSystems().get("system1");
+        JdbcMigrationContext node3 = EasyMock.createNiceMock(JdbcMigrationContext.class);
+        EasyMock.replay(node3);
+        launcher.getContexts().put(node3, new NodeStore(CURRENT_PATCH_LEVEL, 100));
+        migrationProcess.setNodeTimeoutMillis(300);
+
+        // one node at a time, and each node gets the whole timeout once it is being read
+        long start = System.currentTimeMillis();
+        SyncReport report =
+                migrationProcess.getSyncReport(new NodeStore(CURRENT_PATCH_LEVEL, 0));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(3, report.getNodeCount());
+        assertEquals(1, report.getUnreachableNodes().size());
+        assertTrue(report.getOutOfSyncNodes().isEmpty());
+    }
+
+    public void testForceSyncAppliesOnlyTheMissingPatches() throws Exception
+    {
+        // the system is at level 6, and a new node is still at level 4
+        List<String> executions = Collections.synchronizedList(new ArrayList<String>());
+        NodeStore node1Store = new NodeStore(6, 0);
+        NodeStore node2Store = new NodeStore(4, 0);
+        setUpNodes(node1Store, node2Store, executions, false);
+        migrationProcess.setForceSync(true);
+        migrationProcess.setMaxConcurrentNodes(2);
+        RecordingListener listener = new RecordingListener();
+        migrationProcess.addListener(listener);
+
+        assertEquals(2, migrationProcess.doMigrations(new NodeStore(6, 0), null));
+        assertEquals(Arrays.asList(new String[] {"5:node2", "6:node2"}), executions);
+        assertEquals(Arrays.asList(new Integer[] {new Integer(5), new Integer(6)}),
+                node2Store.updatedLevels);
+        assertTrue(node1Store.updatedLevels.isEmpty());
+        assertEquals(Arrays.asList(new String[] {"started 5", "succeeded 5", "started 6",
+                "succeeded 6"}), listener.events);
+    }
+
+    public void testRolloutPatchesCanaryNodesFirst() throws Exception
+    {
+        List<String> executions = Collections.synchronizedList(new ArrayList<String>());
+        NodeStore node1Store = new NodeStore(CURRENT_PATCH_LEVEL, 0);
+        NodeStore node2Store = new NodeStore(CURRENT_PATCH_LEVEL, 0);
+        setUpNodes(node1Store, node2Store, executions, false);
+        WaveVerifier verifier = new WaveVerifier();
+        verifier.failing = true;
+        migrationProcess.setCanaryNodes(1);
+        migrationProcess.setRolloutVerifier(verifier);
+        RecordingListener listener = new RecordingListener();
+        migrationProcess.addListener(listener);
+        NodeStore systemStore = new NodeStore(CURRENT_PATCH_LEVEL, 0);
+        try
+        {
+            migrationProcess.doMigrations(systemStore, null);
+            fail("The canary wave should have failed verification");
+        }
+        catch (MigrationException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("verification of wave 1 of 2") > -1);
+        }
+
+        // only the canary node was patched, and the system has not recorded the patches
+        assertEquals(Arrays.asList(new String[] {"5:node1", "6:node1"}), executions);
+        assertEquals(Arrays.asList(new String[] {"started 5", "succeeded 5", "started 6",
+                "succeeded 6"}), listener.events);
+        assertEquals(Arrays.asList(new Integer[] {new Integer(5), new Integer(6)}),
+                node1Store.updatedLevels);
+        assertTrue(node2Store.updatedLevels.isEmpty());
+        assertTrue(systemStore.updatedLevels.isEmpty());
+
+        // the next run finishes the rollout without patching the canary node again
+        node1Store.patchLevel = 6;
+        verifier.failing = false;
+        migrationProcess.setForceSync(true);
+        assertEquals(2, migrationProcess.doMigrations(systemStore, null));
+        assertEquals(Arrays.asList(new String[] {"5:node1", "6:node1", "5:node2", "6:node2"}),
+                executions);
+        assertEquals(Arrays.asList(new Integer[] {new Integer(1), new Integer(1),
+                new Integer(2)}), verifier.waves);
+        assertEquals(Arrays.asList(new Integer[] {new Integer(5), new Integer(6)}),
+                systemStore.updatedLevels);
+    }
+
+    /**
+     * Sets up one system with two nodes and patches at levels 5 and 6.
+     *
+     * @param node1Store the patch table of the first node
+     * @param node2Store the patch table of the second node
+     * @param executions records each execution as <i>level</i>:<i>node</i>
+     * @param failing    if true, level 5 waits until it is running on both nodes, then fails
+     *                   on the second node
+     * @return the second node
+     */
+    private JdbcMigrationContext setUpNodes(NodeStore node1Store, NodeStore node2Store,
+            List<String> executions, boolean failing)
+    {
+        return setUpNodes(node1Store, node2Store, executions, failing, false);
+    }
+
+    /**
+     * Sets up one system with two nodes and patches at levels 5 and 6.
+     *
+     * @param node1Store    the patch table of the first node
+     * @param node2Store    the patch table of the second node
+     * @param executions    records each execution as <i>level</i>:<i>node</i>
+     * @param failing       if true, level 5 waits until it is running on both nodes, then
+     *                      fails on the second node
+     * @param commitFailing if true, the first node fails to commit, and rolling it back
+     *                      discards the levels written to its patch table
+     * @return the second node
+     */
+    private JdbcMigrationContext setUpNodes(final NodeStore node1Store, NodeStore node2Store,
+            List<String> executions, boolean failing, boolean commitFailing)
+    {
+        JdbcMigrationContext node1 = EasyMock.createNiceMock(JdbcMigrationContext.class);
+        JdbcMigrationContext node2 = EasyMock.createNiceMock(JdbcMigrationContext.class);
+        if (commitFailing)
+        {
+            try
+            {
+                node1.commit();
+                EasyMock.expectLastCall().andThrow(new MigrationException("Commit failed"));
+                node1.rollback();
+                EasyMock.expectLastCall().andAnswer(new IAnswer<Object>()
+                {
+                    public Object answer()
+                    {
+                        node1Store.updatedLevels.clear();
+                        return null;
+                    }
+                });
+            }
+            catch (MigrationException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+        EasyMock.replay(node1, node2);
+        Map<MigrationContext, String> names = new HashMap<MigrationContext, String>();
+        names.put(node1, "node1");
+        names.put(node2, "node2");
+
+        final List<MigrationTask> tasks = new ArrayList<MigrationTask>();
+        tasks.add(new NodeTask(5, names, executions, taskRuns,
+                failing ? new CountDownLatch(2) : null, failing ? node2 : null));
+        tasks.add(new NodeTask(6, names, executions, taskRuns, null, null));
+
+        MigrationProcess subProcess = new MigrationProcess()
+        {
+            public List<MigrationTask> getMigrationTasks()
+            {
+                return tasks;
+            }
+        };
+        subProcess.setMigrationRunnerStrategy(new OrderedMigrationRunnerStrategy());
+        JdbcMigrationLauncher launcher = new JdbcMigrationLauncher();
+        launcher.setMigrationProcess(subProcess);
+        LinkedHashMap contexts = new LinkedHashMap();
+        contexts.put(node1, node1Store);
+        contexts.put(node2, node2Store);
+        launcher.setContexts(contexts);
+
+        HashMap controlledSystems = new HashMap();
+        controlledSystems.put("system1", launcher);
+        migrationProcess.setControlledSystems(controlledSystems);
+        migrationProcess.setMigrationRunnerStrategy(new OrderedMigrationRunnerStrategy());
+        migrationProcess.addListener(launcher);
+        return node2;
+    }
+
+    /**
+     * A patch that records where it runs, and can wait for other nodes and fail on one.
+     * Copies share what they record.
+     */
+    private static class NodeTask extends MigrationTaskSupport implements CopyableMigrationTask
+    {
+        private Map<MigrationContext, String> names;
+        private List<String> executions;
+        private List<MigrationTask> runs;
+        private CountDownLatch started;
+        private MigrationContext failingNode;
+
+        NodeTask(int level, Map<MigrationContext, String> names, List<String> executions,
+                List<MigrationTask> runs, CountDownLatch started, MigrationContext failingNode)
+        {
+            setName("NodeTask" + level);
+            setLevel(new Integer(level));
+            this.names = names;
+            this.executions = executions;
+            this.runs = runs;
+            this.started = started;
+            this.failingNode = failingNode;
+        }
+
+        public MigrationTask copy()
+        {
+            return new NodeTask(getLevel().intValue(), names, executions, runs, started,
+                    failingNode);
+        }
+
+        public void migrate(MigrationContext context) throws MigrationException
+        {
+            executions.add(getLevel() + ":" + names.get(context));
+            runs.add(this);
+            try
+            {
+                if (started != null)
+                {
+                    started.countDown();
+                    if (!started.await(10, TimeUnit.SECONDS))
+                    {
+                        throw new MigrationException("The nodes were not patched concurrently");
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                throw new MigrationException("Interrupted", e);
+            }
+            if (context == failingNode)
+            {
+                throw new MigrationException("Patch failed on " + names.get(context));
+            }
+        }
+    }
+
+    /**
+     * A patch that can't be copied, and records how many nodes it runs on at the same time.
+     */
+    private static class SharedTask extends MigrationTaskSupport
+    {
+        private int running = 0;
+        private int mostRunning = 0;
+        private int runs = 0;
+
+        SharedTask(int level)
+        {
+            setName("SharedTask" + level);
+            setLevel(new Integer(level));
+        }
+
+        public void migrate(MigrationContext context) throws MigrationException
+        {
+            synchronized (this)
+            {
+                runs++;
+                running++;
+                mostRunning = Math.max(mostRunning, running);
+            }
+            try
+            {
+                Thread.sleep(100);
+            }
+            catch (InterruptedException e)
+            {
+                throw new MigrationException("Interrupted", e);
+            }
+            synchronized (this)
+            {
+                running--;
+            }
+        }
+    }
+
+    /**
+     * Records the patch events it is told about.
+     */
+    private static class RecordingListener implements MigrationListener
+    {
+        private List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        public void initialize(String systemName, Properties properties)
+        {
+        }
+
+        public void migrationStarted(MigrationTask task, MigrationContext context)
+        {
+            events.add("started " + task.getLevel());
+        }
+
+        public void migrationSuccessful(MigrationTask task, MigrationContext context)
+        {
+            events.add("succeeded " + task.getLevel());
+        }
+
+        public void migrationFailed(MigrationTask task, MigrationContext context,
+                MigrationException e)
+        {
+            events.add("failed " + task.getLevel());
+        }
+    }
+
+    /**
+     * Records the waves it is asked to verify, and can fail them.
+     */
+    private static class WaveVerifier implements RolloutVerifier
+    {
+        private List<Integer> waves = new ArrayList<Integer>();
+        private boolean failing;
+
+        public void initialize(String systemName, Properties properties)
+        {
+        }
+
+        public void verifyWave(int wave, List<JdbcMigrationContext> nodes,
+                List<MigrationTask> patches) throws MigrationException
+        {
+            waves.add(new Integer(wave));
+            if (failing)
+            {
+                throw new MigrationException("Smoke test failed on " + nodes.size() + " nodes");
+            }
+        }
+    }
+
+    /**
+     * The patch table of a node, which can be slow to answer, even ignoring interrupts, and is
+     * safe to use from several threads.
+     */
+    private static class NodeStore implements PatchInfoStore
+    {
+        private int patchLevel;
+        private long delayMillis;
+        private boolean uninterruptible = false;
+        private List<Integer> updatedLevels =
+                Collections.synchronizedList(new ArrayList<Integer>());
+
+        NodeStore(int patchLevel, long delayMillis)
+        {
+            this.patchLevel = patchLevel;
+            this.delayMillis = delayMillis;
+        }
+
+        public void createPatchStoreIfNeeded()
+        {
+        }
+
+        public int getPatchLevel() throws MigrationException
+        {
+            long end = System.currentTimeMillis() + delayMillis;
+            for (long wait = delayMillis; wait > 0; wait = end - System.currentTimeMillis())
+            {
+                try
+                {
+                    Thread.sleep(wait);
+                }
+                catch (InterruptedException e)
+                {
+                    if (!uninterruptible)
+                    {
+                        throw new MigrationException("Interrupted", e);
+                    }
+                }
+            }
+            return patchLevel;
+        }
+
+        public void updatePatchLevel(int level)
+        {
+            updatedLevels.add(new Integer(level));
+        }
+
+        public boolean isPatchStoreLocked()
+        {
+            return false;
+        }
+
+        public void lockPatchStore()
+        {
+        }
+
+        public void unlockPatchStore()
+        {
+        }
+
+        public boolean isPatchApplied(int level)
+        {
+            return level <= patchLevel;
+        }
+
+        public void updatePatchLevelAfterRollBack(int rollbackLevel)
+        {
+        }
+
+        public Set<Integer> getPatchesApplied()
+        {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,199 @@
+/* Copyright 2004 Tacit Knowledge
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mockrunner.jdbc.JDBCTestCaseAdapter;
+import com.mockrunner.jdbc.PreparedStatementResultSetHandler;
+import com.mockrunner.mock.jdbc.MockConnection;
+import com.mockrunner.mock.jdbc.MockResultSet;
+import com.tacitknowledge.util.migration.jdbc.util.ConnectionWrapperDataSource;
+
+/**
+ * Tests the <code>ChunkedDataMigrationTask</code>.
+ */
+public class ChunkedDataMigrationTaskTest extends JDBCTestCaseAdapter
+{
+    /**
+     * The mock JDBC connection to use during the tests
+     */
+    private MockConnection conn = null;
+
+    /**
+     * The <code>JDBCMigrationContext</code> used for testing
+     */
+    private DataSourceMigrationContext context = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        conn = getJDBCMockObjectFactory().getMockConnection();
+        conn.setAutoCommit(false);
+        PreparedStatementResultSetHandler handler = conn.getPreparedStatementResultSetHandler();
+        handler.prepareGlobalResultSet(handler.createResultSet());
+
+        context = new DataSourceMigrationContext();
+        context.setDataSource(new ConnectionWrapperDataSource(conn));
+        context.setSystemName("milestone");
+        context.setDatabaseType(new DatabaseType("postgres"));
+    }
+
+    /**
+     * Validates that the task pages through the keys and migrates every row once.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testPagesThroughKeys() throws Exception
+    {
+        TestDataTask task = new TestDataTask(25);
+        task.setInitialChunkSize(10);
+        task.setMinChunkSize(10);
+        task.setMaxChunkSize(10);
+
+        task.migrate(context);
+
+        assertEquals(3, task.ranges.size());
+        assertEquals("1-10", task.ranges.get(0));
+        assertEquals("11-20", task.ranges.get(1));
+        assertEquals("21-25", task.ranges.get(2));
+        assertEquals(25, task.getRowsMigrated());
+
+        // a clean slate, then one per chunk but the last
+        assertEquals(3, conn.getNumberCommits());
+    }
+
+    /**
+     * Validates that the chunk size moves towards the target duration, within limits.
+     */
+    public void testAdaptsChunkSize()
+    {
+        TestDataTask task = new TestDataTask(0);
+        task.setInitialChunkSize(1000);
+        task.setMinChunkSize(100);
+        task.setMaxChunkSize(3000);
+        task.setTargetChunkMillis(1000);
+        task.adjustChunkSize(1000);
+        assertEquals(1000, task.getChunkSize());
+
+        // fast chunks grow, but only by a factor of two at a time
+        task.adjustChunkSize(100);
+        assertEquals(2000, task.getChunkSize());
+        task.adjustChunkSize(100);
+        assertEquals(3000, task.getChunkSize());
+
+        // slow chunks shrink
+        task.adjustChunkSize(1500);
+        assertEquals(2000, task.getChunkSize());
+        task.adjustChunkSize(60000);
+        assertEquals(1000, task.getChunkSize());
+    }
+
+    /**
+     * Validates the remaining estimate when the task can count its rows.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testEstimatesRowsRemaining() throws Exception
+    {
+        PreparedStatementResultSetHandler handler = conn.getPreparedStatementResultSetHandler();
+        MockResultSet rs = handler.createResultSet();
+        rs.addColumn("count", new Object[] {new Long(25)});
+        handler.prepareResultSet("SELECT COUNT(*) FROM t WHERE id > ?", rs);
+
+        TestDataTask task = new TestDataTask(25);
+        task.countSql = "SELECT COUNT(*) FROM t WHERE id > ?";
+        assertEquals(-1, task.getEstimatedRowsRemaining());
+
+        task.migrate(context);
+
+        assertEquals(0, task.getEstimatedRowsRemaining());
+    }
+
+    /**
+     * A task that migrates keys 1 to a given number.
+     */
+    private static class TestDataTask extends ChunkedDataMigrationTask
+    {
+        /**
+         * The ranges migrated, as "first-last"
+         */
+        private List ranges = new ArrayList();
+
+        /**
+         * The highest key
+         */
+        private long rows;
+
+        /**
+         * The count SQL to use, if any
+         */
+        private String countSql = null;
+
+        /**
+         * Creates a new <code>TestDataTask</code>.
+         *
+         * @param rows the highest key
+         */
+        public TestDataTask(long rows)
+        {
+            this.rows = rows;
+            setLevel(new Integer(4));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        protected String getKeySql()
+        {
+            return "SELECT id FROM t WHERE id > ? ORDER BY id";
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        protected String getCountSql()
+        {
+            return countSql;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        protected List getNextKeys(JdbcMigrationContext context, long afterKey, int limit)
+        {
+            List keys = new ArrayList();
+            for (long key = Math.max(afterKey + 1, 1); key <= rows && keys.size() < limit; key++)
+            {
+                keys.add(new Long(key));
+            }
+            return keys;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        protected void migrateRange(JdbcMigrationContext context, long firstKey, long lastKey)
+        {
+            ranges.add(firstKey + "-" + lastKey);
+        }
+    }
+}
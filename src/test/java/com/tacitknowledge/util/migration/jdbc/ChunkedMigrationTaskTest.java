@@ -0,0 +1,140 @@
+/* Copyright 2004 Tacit Knowledge
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mockrunner.jdbc.JDBCTestCaseAdapter;
+import com.mockrunner.jdbc.PreparedStatementResultSetHandler;
+import com.mockrunner.mock.jdbc.MockConnection;
+import com.mockrunner.mock.jdbc.MockResultSet;
+import com.tacitknowledge.util.migration.MigrationException;
+import com.tacitknowledge.util.migration.jdbc.util.ConnectionWrapperDataSource;
+
+/**
+ * Tests the <code>ChunkedMigrationTask</code>.
+ */
+public class ChunkedMigrationTaskTest extends JDBCTestCaseAdapter
+{
+    /**
+     * The mock JDBC connection to use during the tests
+     */
+    private MockConnection conn = null;
+
+    /**
+     * The <code>JDBCMigrationContext</code> used for testing
+     */
+    private DataSourceMigrationContext context = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        conn = getJDBCMockObjectFactory().getMockConnection();
+        conn.setAutoCommit(false);
+        PreparedStatementResultSetHandler handler = conn.getPreparedStatementResultSetHandler();
+        handler.prepareGlobalResultSet(handler.createResultSet());
+
+        context = new DataSourceMigrationContext();
+        context.setDataSource(new ConnectionWrapperDataSource(conn));
+        context.setSystemName("milestone");
+        context.setDatabaseType(new DatabaseType("postgres"));
+    }
+
+    /**
+     * Validates that each chunk but the last is committed with its checkpoint.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testCommitsEachChunk() throws Exception
+    {
+        TestChunkedTask task = new TestChunkedTask(3);
+
+        task.migrate(context);
+
+        assertEquals(3, task.starts.size());
+        assertNull(task.starts.get(0));
+        assertEquals("1", task.starts.get(1));
+        assertEquals("2", task.starts.get(2));
+        verifySQLStatementExecuted(new PatchCheckpointTable(context).getSql("checkpoint.delete"));
+
+        // a clean slate, then one per chunk but the last
+        assertEquals(3, conn.getNumberCommits());
+    }
+
+    /**
+     * Validates that a task resumes from its last checkpoint.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testResumesFromCheckpoint() throws Exception
+    {
+        PatchCheckpointTable checkpoints = new PatchCheckpointTable(context);
+        PreparedStatementResultSetHandler handler = conn.getPreparedStatementResultSetHandler();
+        MockResultSet rs = handler.createResultSet();
+        rs.addColumn("patch_checkpoint", new Object[] {"2"});
+        handler.prepareResultSet(checkpoints.getSql("checkpoint.read"), rs);
+        TestChunkedTask task = new TestChunkedTask(3);
+
+        task.migrate(context);
+
+        assertEquals(1, task.starts.size());
+        assertEquals("2", task.starts.get(0));
+        assertEquals(1, conn.getNumberCommits());
+    }
+
+    /**
+     * A task that migrates a fixed number of numbered chunks.
+     */
+    private static class TestChunkedTask extends ChunkedMigrationTask
+    {
+        /**
+         * The checkpoints each chunk was started from
+         */
+        private List starts = new ArrayList();
+
+        /**
+         * The number of chunks to migrate
+         */
+        private int chunks;
+
+        /**
+         * Creates a new <code>TestChunkedTask</code>.
+         *
+         * @param chunks the number of chunks to migrate
+         */
+        public TestChunkedTask(int chunks)
+        {
+            this.chunks = chunks;
+            setLevel(new Integer(9));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        protected String migrateChunk(JdbcMigrationContext context, String checkpoint)
+                throws MigrationException
+        {
+            starts.add(checkpoint);
+            int next = (checkpoint == null) ? 1 : Integer.parseInt(checkpoint) + 1;
+            return (next < chunks) ? String.valueOf(next) : null;
+        }
+    }
+}
@@ -18,8 +18,12 @@ package com.tacitknowledge.util.migration.jdbc;
 import java.sql.Connection;
 import java.sql.SQLException;
 
+import javax.sql.DataSource;
+
 import junit.framework.TestCase;
 
+import org.easymock.MockControl;
+
 import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
 
 /**
@@ -96,4 +100,50 @@ public class DataSourceMigrationContextTest extends TestCase
             SqlUtil.close(conn, null, null);
         }
     }
+
+    /**
+     * Test that a transaction group defers commits and keeps its connection open
+     *
+     * @exception Exception if anything goes wrong
+     */
+    public void testTransactionGroup() throws Exception
+    {
+        MockControl connControl = MockControl.createControl(Connection.class);
+        Connection conn = (Connection) connControl.getMock();
+        MockControl dsControl = MockControl.createControl(DataSource.class);
+        DataSource ds = (DataSource) dsControl.getMock();
+
+        ds.getConnection();
+        dsControl.setReturnValue(conn, 1);
+        conn.isClosed();
+        connControl.setReturnValue(false, MockControl.ONE_OR_MORE);
+        conn.getAutoCommit();
+        connControl.setReturnValue(false, 2);
+
+        // one commit for the group, one once the group has ended
+        conn.commit();
+        connControl.setVoidCallable(2);
+        connControl.replay();
+        dsControl.replay();
+
+        DataSourceMigrationContext context = new DataSourceMigrationContext();
+        context.setDataSource(ds);
+        context.beginTransactionGroup();
+        assertTrue(context.isTransactionGroupOpen());
+
+        // patches commit and close the connection they are handed, neither of which happens
+        Connection groupConn = context.getConnection();
+        groupConn.close();
+        context.commit();
+        assertSame(groupConn, context.getConnection());
+
+        // the group commits for real, and afterwards commits go straight through again
+        context.commitTransactionGroup();
+        context.endTransactionGroup();
+        assertFalse(context.isTransactionGroupOpen());
+        context.commit();
+
+        connControl.verify();
+        dsControl.verify();
+    }
 }
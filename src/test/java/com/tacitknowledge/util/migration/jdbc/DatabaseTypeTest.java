@@ -132,5 +132,31 @@ public class DatabaseTypeTest extends TestCase
         assertEquals(overrideExpectedValue, databaseType.isMultipleStatementsSupported());
     }
 
+    /**
+     * Test method for {@link com.tacitknowledge.util.migration.jdbc.DatabaseType#getStatementBatchSize()}.
+     */
+    public void testStatementBatchingDisabledByDefault()
+    {
+        DatabaseType databaseType = new DatabaseType("postgres");
+        assertEquals(0, databaseType.getStatementBatchSize());
+    }
 
+    /**
+     * Test method for {@link com.tacitknowledge.util.migration.jdbc.DatabaseType#isTransactionalDdlSupported()}.
+     */
+    public void testTransactionalDdlSupported()
+    {
+        assertTrue(new DatabaseType("postgres").isTransactionalDdlSupported());
+        assertFalse(new DatabaseType("hsqldb").isTransactionalDdlSupported());
+        assertFalse(new DatabaseType("oracle").isTransactionalDdlSupported());
+    }
+
+    /**
+     * Test method for {@link com.tacitknowledge.util.migration.jdbc.DatabaseType#isXmlDataSetStreamingEnabled()}.
+     */
+    public void testXmlDataSetStreamingIsOffByDefault()
+    {
+        assertFalse(new DatabaseType("postgres").isXmlDataSetStreamingEnabled());
+        assertFalse(new DatabaseType("hsqldb").isXmlDataSetStreamingEnabled());
+    }
 }
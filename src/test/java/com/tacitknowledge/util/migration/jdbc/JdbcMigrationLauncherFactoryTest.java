@@ -16,11 +16,15 @@
 package com.tacitknowledge.util.migration.jdbc;
 
 import java.io.IOException;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.Properties;
 
 import com.tacitknowledge.util.migration.MigrationProcess;
+import com.tacitknowledge.util.migration.OrderedMigrationRunnerStrategy;
 import com.tacitknowledge.util.migration.builders.MockBuilder;
+import com.tacitknowledge.util.migration.jdbc.util.NonPooledDataSource;
+import com.tacitknowledge.util.migration.jdbc.util.PooledDataSource;
 import junit.framework.TestCase;
 
 import com.tacitknowledge.util.migration.MigrationException;
@@ -185,4 +189,46 @@ public class JdbcMigrationLauncherFactoryTest extends TestCase
 
     }
 
+    public void testCreateDataSourcePoolsConnectionsWhenAPoolSizeIsSet()
+    {
+        Properties properties = MockBuilder.getPropertiesWithSystemConfiguration("anySystem",
+                MIGRATION_STRATEGY);
+        NonPooledDataSource dataSource = factory.createDataSource(properties, "anySystem.jdbc");
+        assertFalse(dataSource instanceof PooledDataSource);
+        assertEquals("jdbcUrl", dataSource.getDatabaseUrl());
+
+        properties.setProperty("anySystem.jdbc.pool.size", "4");
+        properties.setProperty("anySystem.jdbc.pool.validationQuery", "SELECT 1");
+        properties.setProperty("anySystem.jdbc.pool.idleTimeoutMillis", "1000");
+        PooledDataSource pool =
+                (PooledDataSource) factory.createDataSource(properties, "anySystem.jdbc");
+        assertEquals(4, pool.getMaxConnections());
+        assertEquals("SELECT 1", pool.getValidationQuery());
+        assertEquals(1000, pool.getIdleTimeoutMillis());
+        assertEquals(30000, pool.getMaxWaitMillis());
+        assertEquals("jdbcDriver", pool.getDriverClass());
+    }
+
+    public void testClosingTheLauncherClosesItsConnectionPools() throws Exception
+    {
+        Properties properties = MockBuilder.getPropertiesWithSystemConfiguration("anySystem",
+                OrderedMigrationRunnerStrategy.class.getName());
+        properties.setProperty("anySystem.jdbc.pool.size", "4");
+        JdbcMigrationLauncher launcher = new JdbcMigrationLauncher();
+        factory.configureFromMigrationProperties(launcher, "anySystem", properties);
+        DataSourceMigrationContext context =
+                (DataSourceMigrationContext) launcher.getContexts().keySet().iterator().next();
+
+        launcher.close();
+        try
+        {
+            context.getDataSource().getConnection();
+            fail("The launcher's connection pool should have been closed");
+        }
+        catch (SQLException e)
+        {
+            assertEquals("The connection pool has been closed", e.getMessage());
+        }
+    }
+
 }
@@ -15,6 +15,7 @@
 
 package com.tacitknowledge.util.migration.jdbc;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Connection;
@@ -487,4 +488,263 @@ public class JdbcMigrationLauncherTest extends MigrationListenerTestBase {
         rollbackMocksControl.verify();
     }
 
+    /**
+     * Test that contexts migrate concurrently, and that one failing context doesn't stop
+     * the others
+     *
+     * @throws Exception if there is a problem
+     */
+    public void testConcurrentMigrationReportsEveryFailure() throws Exception {
+        final JdbcMigrationContext failing = (JdbcMigrationContext)
+                MockControl.createControl(JdbcMigrationContext.class).getMock();
+        final int[] running = new int[2];
+        JdbcMigrationLauncher concurrentLauncher = new JdbcMigrationLauncher() {
+            protected int doMigrations(JdbcMigrationContext ctx) throws MigrationException {
+                synchronized (running) {
+                    running[0]++;
+                    running[1] = Math.max(running[0], running[1]);
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    throw new MigrationException("interrupted", e);
+                } finally {
+                    synchronized (running) {
+                        running[0]--;
+                    }
+                }
+                if (ctx == failing) {
+                    throw new MigrationException("patch 3 failed");
+                }
+                return 2;
+            }
+        };
+        LinkedHashMap contexts = new LinkedHashMap();
+        for (int i = 0; i < 4; i++) {
+            JdbcMigrationContext ctx = (i == 1) ? failing : (JdbcMigrationContext)
+                    MockControl.createControl(JdbcMigrationContext.class).getMock();
+            contexts.put(ctx, MockControl.createControl(PatchInfoStore.class).getMock());
+        }
+        concurrentLauncher.setContexts(contexts);
+        concurrentLauncher.setMaxConcurrentContexts(2);
+        concurrentLauncher.setIndependentContexts(true);
+
+        try {
+            concurrentLauncher.doMigrations();
+            fail("Expected a MigrationException for the failing context");
+        } catch (MigrationException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("1 of 4 contexts failed"));
+            assertTrue(e.getMessage().indexOf("patch 3 failed") > 0);
+        }
+
+        List results = concurrentLauncher.getContextResults();
+        assertEquals(4, results.size());
+        for (int i = 0; i < 4; i++) {
+            ContextMigrationResult result = (ContextMigrationResult) results.get(i);
+            assertEquals(i != 1, result.isSuccessful());
+            assertEquals((i != 1) ? 2 : 0, result.getPatchCount());
+        }
+        assertTrue("at most 2 contexts should run at once", running[1] <= 2);
+    }
+
+    /**
+     * Test that failed contexts are retried, then quarantined and recorded in the context
+     * report, and that a rerun from the report only migrates the quarantined contexts
+     *
+     * @throws Exception if there is a problem
+     */
+    public void testConcurrentMigrationRetriesAndRerunsQuarantinedContexts() throws Exception {
+        final List<String> attempts = Collections.synchronizedList(new ArrayList<String>());
+        final Set<String> broken = Collections.synchronizedSet(new HashSet<String>());
+        broken.add("shard2");
+        broken.add("shard3");
+        // the mocks may only be called from one thread, so the shards look up their names here
+        final Map<JdbcMigrationContext, String> names = new HashMap<JdbcMigrationContext, String>();
+        JdbcMigrationLauncher shardLauncher = new JdbcMigrationLauncher() {
+            protected int doMigrations(JdbcMigrationContext ctx) throws MigrationException {
+                String name = names.get(ctx);
+                attempts.add(name);
+                // shard2 recovers on its second attempt, shard3 stays broken
+                if (broken.contains(name)) {
+                    if ("shard2".equals(name)) {
+                        broken.remove(name);
+                    }
+                    throw new MigrationException(name + " is down");
+                }
+                return 1;
+            }
+        };
+        LinkedHashMap contexts = new LinkedHashMap();
+        for (int i = 1; i <= 3; i++) {
+            MockControl contextControl = MockControl.createControl(JdbcMigrationContext.class);
+            JdbcMigrationContext ctx = (JdbcMigrationContext) contextControl.getMock();
+            ctx.getDatabaseName();
+            contextControl.setReturnValue("shard" + i, MockControl.ZERO_OR_MORE);
+            contextControl.replay();
+            names.put(ctx, "shard" + i);
+            contexts.put(ctx, MockControl.createControl(PatchInfoStore.class).getMock());
+        }
+        File report = File.createTempFile("contexts", ".properties");
+        report.deleteOnExit();
+        shardLauncher.setContexts(contexts);
+        shardLauncher.setMaxConcurrentContexts(3);
+        shardLauncher.setIndependentContexts(true);
+        shardLauncher.setContextRetries(1);
+        shardLauncher.setContextRetryMillis(1);
+        shardLauncher.setContextReportFile(report.getPath());
+        shardLauncher.setRerunQuarantinedContexts(true);
+        report.delete();
+
+        try {
+            shardLauncher.doMigrations();
+            fail("Expected shard3 to be quarantined");
+        } catch (MigrationException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("1 of 3 contexts failed"));
+        }
+        assertEquals(5, attempts.size());
+        ContextMigrationReport outcomes = ContextMigrationReport.load(report);
+        assertEquals(ContextMigrationReport.SUCCEEDED, outcomes.getStatus("shard1"));
+        assertEquals(ContextMigrationReport.SUCCEEDED, outcomes.getStatus("shard2"));
+        assertEquals(ContextMigrationReport.QUARANTINED, outcomes.getStatus("shard3"));
+        assertEquals(2, ((ContextMigrationResult) shardLauncher.getContextResults().get(1))
+                .getAttempts());
+
+        // once shard3 is fixed, only it is migrated again
+        attempts.clear();
+        broken.clear();
+        assertEquals(1, shardLauncher.doMigrations());
+        assertEquals(Collections.singletonList("shard3"), attempts);
+        outcomes = ContextMigrationReport.load(report);
+        assertEquals(ContextMigrationReport.SUCCEEDED, outcomes.getStatus("shard1"));
+        assertEquals(ContextMigrationReport.SUCCEEDED, outcomes.getStatus("shard3"));
+    }
+
+    /**
+     * Test that contexts can't be migrated concurrently unless they are independent
+     *
+     * @throws MigrationException if there is a problem
+     */
+    public void testConcurrentMigrationRequiresIndependentContexts() throws MigrationException {
+        final List<JdbcMigrationContext> migrated = new ArrayList<JdbcMigrationContext>();
+        JdbcMigrationLauncher concurrentLauncher = new JdbcMigrationLauncher() {
+            protected int doMigrations(JdbcMigrationContext ctx) {
+                migrated.add(ctx);
+                return 1;
+            }
+        };
+        LinkedHashMap contexts = new LinkedHashMap();
+        for (int i = 0; i < 2; i++) {
+            contexts.put(MockControl.createControl(JdbcMigrationContext.class).getMock(),
+                    MockControl.createControl(PatchInfoStore.class).getMock());
+        }
+        concurrentLauncher.setContexts(contexts);
+        concurrentLauncher.setMaxConcurrentContexts(2);
+
+        try {
+            concurrentLauncher.doMigrations();
+            fail("Expected a MigrationException for contexts that aren't independent");
+        } catch (MigrationException e) {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("independentContexts") > -1);
+        }
+        assertTrue(migrated.isEmpty());
+    }
+
+    /**
+     * Test that independent contexts only record patches in their own patch table, however
+     * many of them are migrated at the same time
+     *
+     * @throws MigrationException if there is a problem
+     */
+    public void testIndependentMigrationSuccessfulUpdatesOwnPatchTable() throws MigrationException {
+        launcher = new JdbcMigrationLauncher();
+        launcher.setIndependentContexts(true);
+
+        JdbcMigrationContext node1Context = (JdbcMigrationContext)
+                MockControl.createControl(JdbcMigrationContext.class).getMock();
+        JdbcMigrationContext node2Context = (JdbcMigrationContext)
+                MockControl.createControl(JdbcMigrationContext.class).getMock();
+        MockControl node1PatchInfoStoreControl = MockControl.createControl(PatchInfoStore.class);
+        MockControl node2PatchInfoStoreControl = MockControl.createControl(PatchInfoStore.class);
+        PatchInfoStore node1PatchInfoStore = (PatchInfoStore) node1PatchInfoStoreControl.getMock();
+        PatchInfoStore node2PatchInfoStore = (PatchInfoStore) node2PatchInfoStoreControl.getMock();
+
+        LinkedHashMap contexts = new LinkedHashMap();
+        contexts.put(node1Context, node1PatchInfoStore);
+        contexts.put(node2Context, node2PatchInfoStore);
+        launcher.setContexts(contexts);
+
+        MockControl taskControl = MockControl.createControl(RollbackableMigrationTask.class);
+        RollbackableMigrationTask task = (RollbackableMigrationTask) taskControl.getMock();
+        task.getLevel();
+        taskControl.setDefaultReturnValue(new Integer(1));
+        task.getName();
+        taskControl.setDefaultReturnValue("patch001_test.sql");
+        taskControl.replay();
+
+        IMocksControl migrationStrategyControl = createStrictControl();
+        MigrationRunnerStrategy migrationStrategyMock =
+                migrationStrategyControl.createMock(MigrationRunnerStrategy.class);
+        expect(migrationStrategyMock.shouldMigrationRun(1, node2PatchInfoStore)).andReturn(true);
+        node2PatchInfoStore.updatePatchLevel(1);
+        node1PatchInfoStoreControl.replay();
+        node2PatchInfoStoreControl.replay();
+        migrationStrategyControl.replay();
+        launcher.getMigrationProcess().setMigrationRunnerStrategy(migrationStrategyMock);
+
+        launcher.migrationSuccessful(task, node2Context);
+
+        node1PatchInfoStoreControl.verify();
+        node2PatchInfoStoreControl.verify();
+        migrationStrategyControl.verify();
+    }
+
+    /**
+     * Test that a checkpointed patch in a transaction group still commits each chunk, rather
+     * than having its checkpoints deferred to the end of the group
+     *
+     * @throws Exception if there is a problem
+     */
+    public void testTransactionGroupDoesNotDeferCheckpoints() throws Exception {
+        PreparedStatementResultSetHandler handler = conn.getPreparedStatementResultSetHandler();
+        handler.prepareGlobalResultSet(handler.createResultSet());
+        final PatchInfoStore store = EasyMock.createNiceMock(PatchInfoStore.class);
+        EasyMock.replay(store);
+        final ChunkedMigrationTask task = new ChunkedMigrationTask() {
+            protected String migrateChunk(JdbcMigrationContext ctx, String checkpoint) {
+                int next = (checkpoint == null) ? 1 : Integer.parseInt(checkpoint) + 1;
+                return (next < 3) ? String.valueOf(next) : null;
+            }
+        };
+        task.setName("patch009_chunked");
+        task.setLevel(new Integer(9));
+
+        launcher = new JdbcMigrationLauncher() {
+            protected PatchInfoStore createPatchStore(JdbcMigrationContext ctx) {
+                return store;
+            }
+        };
+        launcher.setMigrationProcess(new MigrationProcess() {
+            public int doMigrations(PatchInfoStore patchInfoStore, MigrationContext ctx)
+                    throws MigrationException {
+                applyPatch(ctx, task, true);
+                return 1;
+            }
+
+            public int doPostPatchMigrations(MigrationContext ctx) {
+                return 0;
+            }
+        });
+        launcher.getMigrationProcess().setMigrationRunnerStrategy(
+                new OrderedMigrationRunnerStrategy());
+        LinkedHashMap contexts = new LinkedHashMap();
+        contexts.put(context, store);
+        launcher.setContexts(contexts);
+        launcher.setPatchesPerTransaction(0);
+
+        assertEquals(1, launcher.doMigrations(context));
+
+        // the group before the patch, a clean slate and two chunks, then the group after it
+        assertEquals(5, conn.getNumberCommits());
+        assertFalse(context.isTransactionGroupOpen());
+    }
 }
@@ -26,6 +26,15 @@ class MockDatabaseType extends DatabaseType
 {
     /** does database type support multipe sql statements per stmt.execute() */
     private boolean multipleStatementsSupported;
+
+    /** number of statements per JDBC batch */
+    private int statementBatchSize;
+
+    /** are literal inserts parameterized */
+    private boolean insertParameterizationEnabled;
+
+    /** does the database support multi-row inserts */
+    private boolean multiRowInsertSupported;
     
     /**
      * constructor
@@ -50,6 +59,49 @@ class MockDatabaseType extends DatabaseType
     {
         this.multipleStatementsSupported = multipleStatementsSupported;
     }
-    
-}
 
+    /** {@inheritDoc} */
+    public int getStatementBatchSize()
+    {
+        return statementBatchSize;
+    }
+
+    /**
+     * simple setter
+     * @param statementBatchSize the value to set
+     */
+    public void setStatementBatchSize(int statementBatchSize)
+    {
+        this.statementBatchSize = statementBatchSize;
+    }
+
+    /** {@inheritDoc} */
+    public boolean isInsertParameterizationEnabled()
+    {
+        return insertParameterizationEnabled;
+    }
+
+    /**
+     * simple setter
+     * @param insertParameterizationEnabled the value to set
+     */
+    public void setInsertParameterizationEnabled(boolean insertParameterizationEnabled)
+    {
+        this.insertParameterizationEnabled = insertParameterizationEnabled;
+    }
+
+    /** {@inheritDoc} */
+    public boolean isMultiRowInsertSupported()
+    {
+        return multiRowInsertSupported;
+    }
+
+    /**
+     * simple setter
+     * @param multiRowInsertSupported the value to set
+     */
+    public void setMultiRowInsertSupported(boolean multiRowInsertSupported)
+    {
+        this.multiRowInsertSupported = multiRowInsertSupported;
+    }
+}
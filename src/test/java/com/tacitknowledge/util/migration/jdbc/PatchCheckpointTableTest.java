@@ -0,0 +1,159 @@
+/* Copyright 2004 Tacit Knowledge
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc;
+
+import com.mockrunner.jdbc.JDBCTestCaseAdapter;
+import com.mockrunner.jdbc.PreparedStatementResultSetHandler;
+import com.mockrunner.mock.jdbc.MockConnection;
+import com.mockrunner.mock.jdbc.MockResultSet;
+import com.tacitknowledge.util.migration.MigrationException;
+import com.tacitknowledge.util.migration.jdbc.util.ConnectionWrapperDataSource;
+
+/**
+ * Out-of-container tests the <code>PatchCheckpointTable</code> class using a
+ * mock JDBC driver.
+ */
+public class PatchCheckpointTableTest extends JDBCTestCaseAdapter
+{
+    /**
+     * The <code>PatchCheckpointTable</code> to test
+     */
+    private PatchCheckpointTable table = null;
+
+    /**
+     * The mock JDBC connection to use during the tests
+     */
+    private MockConnection conn = null;
+
+    /**
+     * Used to specify different statements in the tests
+     */
+    private PreparedStatementResultSetHandler handler = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        conn = getJDBCMockObjectFactory().getMockConnection();
+        conn.setAutoCommit(false);
+        handler = conn.getPreparedStatementResultSetHandler();
+        handler.prepareGlobalResultSet(handler.createResultSet());
+
+        DataSourceMigrationContext context = new DataSourceMigrationContext();
+        context.setDataSource(new ConnectionWrapperDataSource(conn));
+        context.setSystemName("milestone");
+        context.setDatabaseType(new DatabaseType("hsqldb"));
+
+        table = new PatchCheckpointTable(context);
+    }
+
+    /**
+     * Validates the automatic creation of the checkpoint table.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testCreateCheckpointTable() throws Exception
+    {
+        handler.prepareThrowsSQLException(table.getSql("checkpoint.read"));
+
+        table.createCheckpointTableIfNeeded();
+
+        verifySQLStatementExecuted(table.getSql("checkpoint.create"));
+        verifyCommitted();
+    }
+
+    /**
+     * Validates that a patch with no checkpoint starts from the beginning.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testNoCheckpoint() throws Exception
+    {
+        assertNull(table.getCheckpoint(12));
+        verifySQLStatementNotExecuted(table.getSql("checkpoint.create"));
+    }
+
+    /**
+     * Validates reading a checkpoint.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testGetCheckpoint() throws Exception
+    {
+        MockResultSet rs = handler.createResultSet();
+        rs.addColumn("patch_checkpoint", new Object[] {"id=1500"});
+        handler.prepareResultSet(table.getSql("checkpoint.read"), rs);
+
+        assertEquals("id=1500", table.getCheckpoint(12));
+        verifyPreparedStatementParameter(table.getSql("checkpoint.read"), 1, "milestone");
+    }
+
+    /**
+     * Validates that the first checkpoint of a patch is inserted, and not committed.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testSaveFirstCheckpoint() throws Exception
+    {
+        table.saveCheckpoint(12, "42");
+
+        verifySQLStatementExecuted(table.getSql("checkpoint.update"));
+        verifySQLStatementExecuted(table.getSql("checkpoint.insert"));
+        verifyPreparedStatementParameter(table.getSql("checkpoint.insert"), 1, "42");
+        verifyPreparedStatementParameter(table.getSql("checkpoint.insert"), 2, "milestone");
+        verifyPreparedStatementParameter(table.getSql("checkpoint.insert"), 3, new Integer(12));
+        verifyNotCommitted();
+    }
+
+    /**
+     * Validates that later checkpoints replace the earlier one.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testSaveLaterCheckpoint() throws Exception
+    {
+        handler.prepareUpdateCount(table.getSql("checkpoint.update"), 1);
+
+        table.saveCheckpoint(12, "43");
+
+        verifySQLStatementNotExecuted(table.getSql("checkpoint.insert"));
+        verifyPreparedStatementParameter(table.getSql("checkpoint.update"), 1, "43");
+    }
+
+    /**
+     * Validates that overly long checkpoints are refused.
+     */
+    public void testCheckpointTooLong()
+    {
+        StringBuffer checkpoint = new StringBuffer();
+        for (int i = 0; i <= PatchCheckpointTable.MAX_CHECKPOINT_LENGTH; i++)
+        {
+            checkpoint.append('x');
+        }
+        try
+        {
+            table.saveCheckpoint(12, checkpoint.toString());
+            fail("Expected MigrationException because the checkpoint is too long");
+        }
+        catch (MigrationException e)
+        {
+            // Expected
+        }
+    }
+}
@@ -17,6 +17,8 @@ package com.tacitknowledge.util.migration.jdbc;
 
 import java.sql.SQLException;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import org.easymock.MockControl;
@@ -24,6 +26,7 @@ import org.easymock.MockControl;
 import com.mockrunner.jdbc.JDBCTestCaseAdapter;
 import com.mockrunner.jdbc.PreparedStatementResultSetHandler;
 import com.mockrunner.mock.jdbc.MockConnection;
+import com.mockrunner.mock.jdbc.MockPreparedStatement;
 import com.mockrunner.mock.jdbc.MockResultSet;
 import com.tacitknowledge.util.migration.MigrationException;
 import com.tacitknowledge.util.migration.jdbc.util.ConnectionWrapperDataSource;
@@ -193,6 +196,28 @@ public class PatchTableTest extends JDBCTestCaseAdapter
         verifyPreparedStatementNotPresent(table.getSql("level.create"));
     }
 
+    /**
+     * Makes sure statements on the patches table get the query timeout, when there is one.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testQueryTimeoutIsAppliedToStatements() throws Exception
+    {
+        handler = conn.getPreparedStatementResultSetHandler();
+        MockResultSet rs = handler.createResultSet();
+        rs.addRow(new Integer[]{new Integer(13)});
+        handler.prepareGlobalResultSet(rs);
+        table.setQueryTimeout(5);
+
+        assertEquals(13, table.getPatchLevel());
+        List statements = handler.getPreparedStatements();
+        assertFalse(statements.isEmpty());
+        for (Iterator i = statements.iterator(); i.hasNext();)
+        {
+            assertEquals(5, ((MockPreparedStatement) i.next()).getQueryTimeout());
+        }
+    }
+
     /**
      * Validates that <code>getPatchLevel</code> works on a new system.
      * 
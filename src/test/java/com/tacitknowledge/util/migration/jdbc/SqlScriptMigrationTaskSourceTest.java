@@ -91,4 +91,37 @@ public class SqlScriptMigrationTaskSourceTest extends TestCase
             fail("There shouldn't have been a problem loading the tasks: "+ me);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Test that gzip compressed scripts are decompressed as they are read, and are named
+     * like the scripts they were compressed from.
+     *
+     * @throws MigrationException if the scripts can't be loaded
+     */
+    public void testCompressedScriptLoad() throws MigrationException
+    {
+        SqlScriptMigrationTaskSource source = new SqlScriptMigrationTaskSource();
+        List tasks = source.getMigrationTasks(this.getClass().getPackage().getName() + ".gzip");
+        assertEquals(2, tasks.size());
+
+        DataSourceMigrationContext context = new DataSourceMigrationContext();
+        context.setDatabaseType(new DatabaseType("hsqldb"));
+        for (Iterator i = tasks.iterator(); i.hasNext();)
+        {
+            SqlScriptMigrationTask task = (SqlScriptMigrationTask) i.next();
+            if (task.getLevel().equals(Integer.valueOf(1)))
+            {
+                assertEquals("patch0001_create.sql", task.getName());
+                assertTrue(task.isRollbackSupported());
+                List statements = task.getSqlStatements(context);
+                assertEquals(2, statements.size());
+                assertTrue(((String) statements.get(0)).startsWith("CREATE TABLE widgets"));
+            }
+            else
+            {
+                assertEquals("patch0002_insert.sql", task.getName());
+                assertFalse(task.isRollbackSupported());
+            }
+        }
+    }
+}
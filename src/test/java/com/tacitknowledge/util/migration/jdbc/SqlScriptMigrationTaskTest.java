@@ -17,7 +17,9 @@ package com.tacitknowledge.util.migration.jdbc;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Iterator;
@@ -30,7 +32,10 @@ import org.apache.commons.logging.LogFactory;
 import org.easymock.MockControl;
 
 import com.mockrunner.jdbc.JDBCTestCaseAdapter;
+import com.mockrunner.jdbc.PreparedStatementResultSetHandler;
 import com.mockrunner.mock.jdbc.MockConnection;
+import com.mockrunner.mock.jdbc.MockPreparedStatement;
+import com.mockrunner.mock.jdbc.MockResultSet;
 import com.tacitknowledge.util.migration.MigrationException;
 import com.tacitknowledge.util.migration.MigrationTaskSupport;
 import com.tacitknowledge.util.migration.RollbackableMigrationTask;
@@ -327,4 +332,239 @@ public class SqlScriptMigrationTaskTest extends JDBCTestCaseAdapter
 	connectionControl.verify();
     }
 
+    /**
+     * Test that consecutive DML statements are sent in batches, and that
+     * other statements are executed on their own between the batches.
+     *
+     * @throws MigrationException
+     *                 if an unexpected error occurs
+     * @throws SQLException
+     *                 if an unexpected error occurs
+     */
+    public void testBatchesConsecutiveDmlStatements() throws MigrationException,
+	    SQLException
+    {
+	task = new SqlScriptMigrationTask("batch", 1, "insert into t values (1);\n"
+		+ "insert into t values (2);\n" + "insert into t values (3);\n"
+		+ "create table u (id int);\n" + "update t set id = 4;\n");
+
+	MockDatabaseType dbType = new MockDatabaseType("postgres");
+	dbType.setMultipleStatementsSupported(false);
+	dbType.setStatementBatchSize(2);
+	context.setDatabaseType(dbType);
+
+	MockControl dataSourceControl = MockControl.createControl(DataSource.class);
+	DataSource dataSource = (DataSource) dataSourceControl.getMock();
+	context.setDataSource(dataSource);
+
+	MockControl connectionControl = MockControl.createControl(Connection.class);
+	Connection connection = (Connection) connectionControl.getMock();
+	dataSourceControl.expectAndReturn(dataSource.getConnection(), connection);
+
+	MockControl statementControl = MockControl.createStrictControl(Statement.class);
+	Statement statement = (Statement) statementControl.getMock();
+	statement.addBatch("insert into t values (1)");
+	statement.addBatch("insert into t values (2)");
+	statementControl.expectAndReturn(statement.executeBatch(), new int[] {1, 1});
+	statementControl.expectAndReturn(statement.isClosed(), false);
+	statement.close();
+	statement.addBatch("insert into t values (3)");
+	statementControl.expectAndReturn(statement.executeBatch(), new int[] {1});
+	statementControl.expectAndReturn(statement.isClosed(), false);
+	statement.close();
+	statementControl.expectAndReturn(statement.execute("create table u (id int)"), false);
+	statementControl.expectAndReturn(statement.isClosed(), false);
+	statement.close();
+	statement.addBatch("update t set id = 4");
+	statementControl.expectAndReturn(statement.executeBatch(), new int[] {1});
+	statementControl.expectAndReturn(statement.isClosed(), false);
+	statement.close();
+	statementControl.expectAndReturn(statement.isClosed(), true);
+
+	connectionControl.expectAndReturn(connection.isClosed(), false, MockControl.ONE_OR_MORE);
+	connectionControl.expectAndReturn(connection.createStatement(), statement, 4);
+	connectionControl.expectAndReturn(connection.getAutoCommit(), false, MockControl.ONE_OR_MORE);
+	connection.commit();
+	connectionControl.setVoidCallable(2);
+
+	dataSourceControl.replay();
+	connectionControl.replay();
+	statementControl.replay();
+
+	task.migrate(context);
+	dataSourceControl.verify();
+	connectionControl.verify();
+	statementControl.verify();
+    }
+
+    /**
+     * Test that a failing batch reports the statement the driver said failed
+     *
+     * @throws SQLException
+     *                 if an unexpected error occurs
+     */
+    public void testFailedBatchReportsFailingStatement() throws SQLException
+    {
+	task = new SqlScriptMigrationTask("batch", 1, "insert into t values (1);\n"
+		+ "insert into t values (2);\n" + "insert into t values (3);\n");
+
+	MockDatabaseType dbType = new MockDatabaseType("postgres");
+	dbType.setMultipleStatementsSupported(false);
+	dbType.setStatementBatchSize(10);
+	context.setDatabaseType(dbType);
+
+	MockControl dataSourceControl = MockControl.createControl(DataSource.class);
+	DataSource dataSource = (DataSource) dataSourceControl.getMock();
+	context.setDataSource(dataSource);
+
+	MockControl connectionControl = MockControl.createControl(Connection.class);
+	Connection connection = (Connection) connectionControl.getMock();
+	dataSourceControl.expectAndReturn(dataSource.getConnection(), connection);
+
+	MockControl statementControl = MockControl.createControl(Statement.class);
+	Statement statement = (Statement) statementControl.getMock();
+	statement.addBatch("");
+	statementControl.setMatcher(MockControl.ALWAYS_MATCHER);
+	statementControl.setVoidCallable(3);
+	statementControl.expectAndThrow(statement.executeBatch(),
+		new BatchUpdateException(new int[] {1}));
+	statementControl.expectAndReturn(statement.isClosed(), false, MockControl.ONE_OR_MORE);
+	statement.close();
+	statementControl.setVoidCallable(MockControl.ONE_OR_MORE);
+
+	connectionControl.expectAndReturn(connection.isClosed(), false, MockControl.ONE_OR_MORE);
+	connectionControl.expectAndReturn(connection.createStatement(), statement);
+	connectionControl.expectAndReturn(connection.getAutoCommit(), false, MockControl.ONE_OR_MORE);
+	connection.commit();
+	connection.rollback();
+
+	dataSourceControl.replay();
+	connectionControl.replay();
+	statementControl.replay();
+
+	try
+	{
+	    task.migrate(context);
+	    fail("Expected the failing batch to fail the patch");
+	}
+	catch (MigrationException me)
+	{
+	    assertEquals("batch: Error running SQL at statement number 1 "
+		    + "\"insert into t values (2)\"", me.getMessage());
+	}
+	connectionControl.verify();
+    }
+
+    /**
+     * Test that a run of same-shaped literal inserts is collapsed into one
+     * prepared multi-row insert, while other statements in the batch are
+     * sent as they are.
+     *
+     * @throws MigrationException
+     *                 if an unexpected error occurs
+     * @throws SQLException
+     *                 if an unexpected error occurs
+     */
+    public void testParameterizesRunsOfInserts() throws MigrationException,
+	    SQLException
+    {
+	task = new SqlScriptMigrationTask("inserts", 1, "insert into t (id, name) values (1, 'a');\n"
+		+ "insert into t (id, name) values (2, 'b');\n"
+		+ "insert into t (id, name) values (3, 'c');\n"
+		+ "delete from u;\n");
+
+	MockDatabaseType dbType = new MockDatabaseType("postgres");
+	dbType.setMultipleStatementsSupported(false);
+	dbType.setStatementBatchSize(10);
+	dbType.setInsertParameterizationEnabled(true);
+	dbType.setMultiRowInsertSupported(true);
+	context.setDatabaseType(dbType);
+
+	MockControl dataSourceControl = MockControl.createControl(DataSource.class);
+	DataSource dataSource = (DataSource) dataSourceControl.getMock();
+	context.setDataSource(dataSource);
+
+	MockControl connectionControl = MockControl.createControl(Connection.class);
+	Connection connection = (Connection) connectionControl.getMock();
+	dataSourceControl.expectAndReturn(dataSource.getConnection(), connection);
+
+	MockControl preparedControl = MockControl.createStrictControl(PreparedStatement.class);
+	PreparedStatement prepared = (PreparedStatement) preparedControl.getMock();
+	prepared.setLong(1, 1);
+	prepared.setString(2, "a");
+	prepared.setLong(3, 2);
+	prepared.setString(4, "b");
+	prepared.setLong(5, 3);
+	prepared.setString(6, "c");
+	prepared.addBatch();
+	preparedControl.expectAndReturn(prepared.executeBatch(), new int[] {3});
+	preparedControl.expectAndReturn(prepared.isClosed(), false);
+	prepared.close();
+
+	MockControl statementControl = MockControl.createStrictControl(Statement.class);
+	Statement statement = (Statement) statementControl.getMock();
+	statement.addBatch("delete from u");
+	statementControl.expectAndReturn(statement.executeBatch(), new int[] {1});
+	statementControl.expectAndReturn(statement.isClosed(), false);
+	statement.close();
+
+	connectionControl.expectAndReturn(connection.isClosed(), false, MockControl.ONE_OR_MORE);
+	connectionControl.expectAndReturn(connection.prepareStatement(
+		"INSERT INTO t (id, name) VALUES (?, ?), (?, ?), (?, ?)"), prepared);
+	connectionControl.expectAndReturn(connection.createStatement(), statement);
+	connectionControl.expectAndReturn(connection.getAutoCommit(), false, MockControl.ONE_OR_MORE);
+	connection.commit();
+	connectionControl.setVoidCallable(2);
+
+	dataSourceControl.replay();
+	connectionControl.replay();
+	preparedControl.replay();
+	statementControl.replay();
+
+	task.migrate(context);
+	connectionControl.verify();
+	preparedControl.verify();
+	statementControl.verify();
+    }
+
+    /**
+     * Test that a resumable script skips the statements an earlier run completed, and
+     * checkpoints the rest
+     * 
+     * @throws Exception
+     *                 if an unexpected error occurs
+     */
+    public void testResumesFromCheckpoint() throws Exception
+    {
+	task = new SqlScriptMigrationTask("resume", 7, "-- autopatch:resumable\n"
+		+ "insert into t values (1);\n" + "insert into t values (2);\n"
+		+ "insert into t values (3);\n" + "insert into t values (4);\n");
+	assertTrue(task.isResumable());
+
+	MockConnection conn = getJDBCMockObjectFactory().getMockConnection();
+	conn.setAutoCommit(false);
+	PatchCheckpointTable checkpoints = new PatchCheckpointTable(context);
+	PreparedStatementResultSetHandler handler = conn.getPreparedStatementResultSetHandler();
+	MockResultSet rs = handler.createResultSet();
+	rs.addColumn("patch_checkpoint", new Object[] {"2"});
+	handler.prepareResultSet(checkpoints.getSql("checkpoint.read"), rs);
+	handler.prepareUpdateCount(checkpoints.getSql("checkpoint.update"), 1);
+
+	task.migrate(context);
+
+	verifySQLStatementNotExecuted("insert into t values (1)");
+	verifySQLStatementNotExecuted("insert into t values (2)");
+	verifySQLStatementExecuted("insert into t values (3)");
+	verifySQLStatementExecuted("insert into t values (4)");
+	verifySQLStatementExecuted(checkpoints.getSql("checkpoint.delete"));
+	verifySQLStatementNotExecuted(checkpoints.getSql("checkpoint.insert"));
+
+	List updates = getPreparedStatements(checkpoints.getSql("checkpoint.update"));
+	assertEquals(2, updates.size());
+	assertEquals("3", ((MockPreparedStatement) updates.get(0)).getParameter(1));
+	assertEquals("4", ((MockPreparedStatement) updates.get(1)).getParameter(1));
+
+	// a clean slate, a commit per statement, and the final commit
+	assertEquals(4, conn.getNumberCommits());
+    }
 }
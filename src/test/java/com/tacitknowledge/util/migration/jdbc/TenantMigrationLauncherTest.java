@@ -0,0 +1,314 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.tacitknowledge.util.migration.CopyableMigrationTask;
+import com.tacitknowledge.util.migration.MigrationContext;
+import com.tacitknowledge.util.migration.MigrationException;
+import com.tacitknowledge.util.migration.MigrationProcess;
+import com.tacitknowledge.util.migration.MigrationTask;
+import com.tacitknowledge.util.migration.MigrationTaskSource;
+import com.tacitknowledge.util.migration.MigrationTaskSupport;
+import com.tacitknowledge.util.migration.OrderedMigrationRunnerStrategy;
+import com.tacitknowledge.util.migration.jdbc.util.NonPooledDataSource;
+import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
+
+/**
+ * Tests the <code>TenantMigrationLauncher</code> against an in-memory database.
+ */
+public class TenantMigrationLauncherTest extends TestCase
+{
+    /**
+     * The context of the tenant batch
+     */
+    private DataSourceMigrationContext context = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        NonPooledDataSource dataSource = new NonPooledDataSource();
+        dataSource.setDriverClass("org.hsqldb.jdbcDriver");
+        dataSource.setDatabaseUrl("jdbc:hsqldb:mem:" + getName());
+        dataSource.setUsername("sa");
+        dataSource.setPassword("");
+        context = new DataSourceMigrationContext();
+        context.setDataSource(dataSource);
+        context.setDatabaseType(new DatabaseType("hsqldb"));
+        context.setSystemName("tenants");
+    }
+
+    /**
+     * Migrates three tenants, one of which already has the first patch.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testMigratesEveryTenantFromOneCatalog() throws Exception
+    {
+        PatchTable tenant1Table = new PatchTable(createTenantContext("tenant1"));
+        tenant1Table.createPatchStoreIfNeeded();
+        tenant1Table.updatePatchLevel(1);
+
+        List<String> executions = Collections.synchronizedList(new ArrayList<String>());
+        CountingTaskSource source = new CountingTaskSource(executions);
+        MigrationProcess process = new MigrationProcess();
+        process.setMigrationRunnerStrategy(new OrderedMigrationRunnerStrategy());
+        process.addMigrationTaskSource(source);
+        process.addPatchResourcePackage("tenant.patches");
+
+        TenantMigrationLauncher launcher = new TenantMigrationLauncher(context);
+        launcher.setMigrationProcess(process);
+        launcher.addTenant("tenant1");
+        launcher.addTenant("tenant2");
+        launcher.addTenant("tenant3");
+        launcher.setMaxConcurrentContexts(3);
+
+        assertEquals(5, launcher.doMigrations());
+        assertEquals("the patch path should be searched once for all tenants", 1, source.scans);
+        assertEquals(5, executions.size());
+        assertEquals("each tenant should run tasks of its own", 5, source.instances.size());
+        assertEquals("each patch level should be committed with its patch",
+                Arrays.asList(new Integer[] {new Integer(1), new Integer(1), new Integer(1)}),
+                source.levelsBeforePatch2);
+        assertFalse(executions.contains("1:tenant1"));
+        for (int i = 1; i <= 3; i++)
+        {
+            assertEquals(2, new PatchTable(createTenantContext("tenant" + i)).getPatchLevel());
+        }
+        assertFalse(new PatchTable(context).isPatchStoreLocked());
+
+        // nothing left to do the second time round
+        assertEquals(0, launcher.doMigrations());
+    }
+
+    /**
+     * Searches the patch path for each tenant when the tasks found can't be recreated, rather
+     * than sharing them between tenants.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testSearchesForEachTenantWhenTasksCannotBeCopied() throws Exception
+    {
+        List<String> executions = Collections.synchronizedList(new ArrayList<String>());
+        CountingTaskSource source = new CountingTaskSource(executions);
+        source.copyable = false;
+        MigrationProcess process = new MigrationProcess();
+        process.setMigrationRunnerStrategy(new OrderedMigrationRunnerStrategy());
+        process.addMigrationTaskSource(source);
+        process.addPatchResourcePackage("tenant.patches");
+
+        TenantMigrationLauncher launcher = new TenantMigrationLauncher(context);
+        launcher.setMigrationProcess(process);
+        launcher.addTenant("tenant1");
+        launcher.addTenant("tenant2");
+        launcher.setMaxConcurrentContexts(2);
+
+        assertEquals(4, launcher.doMigrations());
+        assertEquals(4, source.instances.size());
+        assertTrue(source.scans >= 3);
+    }
+
+    /**
+     * Applies a patch to two schemas, recording both in the central patches table.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testAppliesPatchesInEachSchema() throws Exception
+    {
+        execute("CREATE SCHEMA tenant_a");
+        execute("CREATE SCHEMA tenant_b");
+
+        List<String> executions = Collections.synchronizedList(new ArrayList<String>());
+        CountingTaskSource source = new CountingTaskSource(executions);
+        source.sql = "CREATE TABLE widgets (id INT)";
+        MigrationProcess process = new MigrationProcess();
+        process.setMigrationRunnerStrategy(new OrderedMigrationRunnerStrategy());
+        process.addMigrationTaskSource(source);
+        process.addPatchResourcePackage("tenant.patches");
+
+        TenantMigrationLauncher launcher = new TenantMigrationLauncher(context);
+        launcher.setMigrationProcess(process);
+        launcher.addSchema("tenant_a");
+        launcher.addSchema("tenant_b");
+        launcher.setMaxConcurrentContexts(2);
+
+        assertEquals(4, launcher.doMigrations());
+        execute("SELECT COUNT(*) FROM tenant_a.widgets");
+        execute("SELECT COUNT(*) FROM tenant_b.widgets");
+        try
+        {
+            execute("SELECT COUNT(*) FROM widgets");
+            fail("The patch should not have run in the default schema");
+        }
+        catch (SQLException e)
+        {
+            // expected
+        }
+        assertEquals(2, new PatchTable(createTenantContext("tenant_a")).getPatchLevel());
+        assertEquals(2, new PatchTable(createTenantContext("tenant_b")).getPatchLevel());
+    }
+
+    /**
+     * Executes a statement in the batch's default schema.
+     *
+     * @param sql the statement to execute
+     * @throws SQLException if the statement fails
+     */
+    private void execute(String sql) throws SQLException
+    {
+        Connection conn = context.getDataSource().getConnection();
+        Statement stmt = null;
+        try
+        {
+            stmt = conn.createStatement();
+            stmt.execute(sql);
+        }
+        finally
+        {
+            SqlUtil.close(conn, stmt, null);
+        }
+    }
+
+    /**
+     * Creates a context for one tenant, sharing the batch's database.
+     *
+     * @param systemName the system name of the tenant
+     * @return the tenant's context
+     */
+    private DataSourceMigrationContext createTenantContext(String systemName)
+    {
+        DataSourceMigrationContext tenant = new DataSourceMigrationContext();
+        tenant.setDataSource(context.getDataSource());
+        tenant.setDatabaseType(context.getDatabaseType());
+        tenant.setSystemName(systemName);
+        return tenant;
+    }
+
+    /**
+     * Supplies two patches that record which tenant they ran for, and counts how often it is
+     * asked for them.
+     */
+    private static class CountingTaskSource implements MigrationTaskSource
+    {
+        private int scans = 0;
+        private List<String> executions;
+        private String sql;
+        private boolean copyable = true;
+        private List<Integer> levelsBeforePatch2 =
+                Collections.synchronizedList(new ArrayList<Integer>());
+        private Set<MigrationTask> instances = Collections.synchronizedSet(
+                Collections.newSetFromMap(new IdentityHashMap<MigrationTask, Boolean>()));
+
+        CountingTaskSource(List<String> executions)
+        {
+            this.executions = executions;
+        }
+
+        public List<MigrationTask> getMigrationTasks(String packageName)
+        {
+            scans++;
+            List<MigrationTask> tasks = new ArrayList<MigrationTask>();
+            for (int level = 1; level <= 2; level++)
+            {
+                String levelSql = (level == 1) ? sql : null;
+                tasks.add(copyable ? new CopyableTenantTask(level, this, levelSql)
+                        : new TenantTask(level, this, levelSql));
+            }
+            return tasks;
+        }
+    }
+
+    /**
+     * A patch that records the tenant it runs for, and can run a statement.
+     */
+    private static class TenantTask extends MigrationTaskSupport
+    {
+        protected CountingTaskSource source;
+        protected String sql;
+
+        TenantTask(int level, CountingTaskSource source, String sql)
+        {
+            setName("TenantTask" + level);
+            setLevel(new Integer(level));
+            this.source = source;
+            this.sql = sql;
+        }
+
+        public void migrate(MigrationContext context) throws MigrationException
+        {
+            JdbcMigrationContext tenant = (JdbcMigrationContext) context;
+            source.executions.add(getLevel() + ":" + tenant.getSystemName());
+            source.instances.add(this);
+            if (getLevel().intValue() == 2)
+            {
+                // read the tenant's patch level as another run would see it
+                DataSourceMigrationContext reader = new DataSourceMigrationContext();
+                reader.setDataSource(((DataSourceMigrationContext) context).getDataSource());
+                reader.setDatabaseType(tenant.getDatabaseType());
+                reader.setSystemName(tenant.getSystemName());
+                source.levelsBeforePatch2.add(new Integer(new PatchTable(reader).getPatchLevel()));
+            }
+            if (sql == null)
+            {
+                return;
+            }
+            Statement stmt = null;
+            try
+            {
+                stmt = tenant.getConnection().createStatement();
+                stmt.execute(sql);
+            }
+            catch (SQLException e)
+            {
+                throw new MigrationException("Unable to run " + sql, e);
+            }
+            finally
+            {
+                SqlUtil.close(null, stmt, null);
+            }
+        }
+    }
+
+    /**
+     * A tenant patch that the task catalog can copy for each tenant.
+     */
+    private static class CopyableTenantTask extends TenantTask implements CopyableMigrationTask
+    {
+        CopyableTenantTask(int level, CountingTaskSource source, String sql)
+        {
+            super(level, source, sql);
+        }
+
+        public MigrationTask copy()
+        {
+            return new CopyableTenantTask(getLevel().intValue(), source, sql);
+        }
+    }
+}
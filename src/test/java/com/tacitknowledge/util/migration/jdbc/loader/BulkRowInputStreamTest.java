@@ -0,0 +1,63 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.tacitknowledge.util.migration.jdbc.BulkRowReader;
+
+/**
+ * Tests the <code>BulkRowInputStream</code>.
+ */
+public class BulkRowInputStreamTest extends TestCase
+{
+    /**
+     * Makes sure values are quoted, quotes doubled, and nulls written as the null text.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testFormatsRows() throws Exception
+    {
+        final String[][] rows = {
+            {"1", "say \"hi\"", null},
+            {"2", "", "two\nlines \u00e9"},
+        };
+        BulkRowInputStream in = new BulkRowInputStream(new BulkRowReader()
+        {
+            private int index = 0;
+
+            public String[] next() throws IOException
+            {
+                return (index < rows.length) ? rows[index++] : null;
+            }
+        }, "NULL");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[5];
+        int count = 0;
+        while ((count = in.read(buffer, 0, buffer.length)) != -1)
+        {
+            out.write(buffer, 0, count);
+        }
+        assertEquals("\"1\",\"say \"\"hi\"\"\",NULL\n\"2\",\"\",\"two\nlines \u00e9\"\n",
+                new String(out.toByteArray(), "UTF-8"));
+        assertEquals(2, in.getRowCount());
+        assertEquals(-1, in.read());
+    }
+}
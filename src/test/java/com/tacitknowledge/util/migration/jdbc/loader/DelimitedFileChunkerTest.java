@@ -0,0 +1,124 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the <code>DelimitedFileChunker</code> and the <code>ParallelDelimitedReader</code>.
+ */
+public class DelimitedFileChunkerTest extends TestCase
+{
+    /**
+     * The file being split
+     */
+    private File file = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        file = File.createTempFile("chunker", ".dat");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("1|\"a\nb\"\n2|\"c\"\"\n\"\r\n\n3|d".getBytes("UTF-8"));
+        out.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure chunks only end between records, even with line breaks in quoted fields.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testSplitsBetweenRecords() throws Exception
+    {
+        List chunks = new ArrayList();
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            DelimitedFileChunker chunker = new DelimitedFileChunker(in.getChannel(), "|", '"', 1);
+            while (chunker.next())
+            {
+                byte[] chunk = new byte[chunker.getChunkLength()];
+                in.getChannel().read(ByteBuffer.wrap(chunk), chunker.getChunkStart());
+                chunks.add(new String(chunk, "UTF-8"));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        assertEquals(4, chunks.size());
+        assertEquals("1|\"a\nb\"\n", chunks.get(0));
+        assertEquals("2|\"c\"\"\n\"\r\n", chunks.get(1));
+        assertEquals("\n", chunks.get(2));
+        assertEquals("3|d", chunks.get(3));
+    }
+
+    /**
+     * Makes sure records parsed on several threads come back whole and in order.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testReadsRecordsInOrder() throws Exception
+    {
+        ParallelDelimitedReader reader = new ParallelDelimitedReader(file, "|", '"',
+                Charset.forName("UTF-8"), 3, 1);
+        try
+        {
+            assertTrue(reader.next());
+            assertEquals("a\nb", reader.getFields()[1]);
+            assertTrue(reader.next());
+            assertEquals("c\"\n", reader.getFields()[1]);
+            assertTrue(reader.next());
+            assertEquals("3|d", reader.getRecord());
+            assertFalse(reader.next());
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Makes sure encodings that store ASCII characters in other bytes are refused.
+     */
+    public void testIsSupported()
+    {
+        assertTrue(DelimitedFileChunker.isSupported(Charset.forName("UTF-8"), "|", '"'));
+        assertTrue(DelimitedFileChunker.isSupported(Charset.forName("ISO-8859-1"), ",\t", '"'));
+        assertFalse(DelimitedFileChunker.isSupported(Charset.forName("UTF-16"), "|", '"'));
+        assertFalse(DelimitedFileChunker.isSupported(Charset.forName("UTF-8"), "\u00a6", '"'));
+    }
+}
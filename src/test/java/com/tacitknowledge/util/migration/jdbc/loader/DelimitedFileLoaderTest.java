@@ -0,0 +1,553 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import com.tacitknowledge.util.migration.MigrationException;
+import com.tacitknowledge.util.migration.jdbc.DataSourceMigrationContext;
+import com.tacitknowledge.util.migration.jdbc.DatabaseType;
+import com.tacitknowledge.util.migration.jdbc.SqlLoadMigrationTask;
+import com.tacitknowledge.util.migration.jdbc.util.NonPooledDataSource;
+import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
+
+/**
+ * Tests loading delimited files into an in-memory database.
+ */
+public class DelimitedFileLoaderTest extends TestCase
+{
+    /**
+     * The context to load the data into
+     */
+    private CountingContext context = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        NonPooledDataSource dataSource = new NonPooledDataSource();
+        dataSource.setDriverClass("org.hsqldb.jdbcDriver");
+        dataSource.setDatabaseUrl("jdbc:hsqldb:mem:" + getName());
+        dataSource.setUsername("sa");
+        dataSource.setPassword("");
+        context = new CountingContext();
+        context.setDataSource(dataSource);
+        context.setDatabaseType(new DatabaseType("hsqldb"));
+        context.setSystemName("loader");
+        execute("CREATE TABLE widgets (id INT, name VARCHAR(20))");
+    }
+
+    /**
+     * Makes sure rows are inserted while the file is still being read, and that the header
+     * is skipped each time the file is loaded.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testStreamsRowsIntoTheDatabase() throws Exception
+    {
+        StreamingLoader loader = new StreamingLoader(10000);
+        loader.migrate(context);
+        assertTrue("rows should be inserted before the whole file is read",
+                loader.firstRowRead < loader.rowCount);
+        assertEquals(10000, count());
+
+        loader.migrate(context);
+        assertEquals(20000, count());
+    }
+
+    /**
+     * Makes sure a load with a commit interval commits along the way.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testCommitsEveryCommitInterval() throws Exception
+    {
+        StreamingLoader loader = new StreamingLoader(10000);
+        loader.setBatchSize(300);
+        loader.setCommitInterval(1000);
+        loader.migrate(context);
+        assertEquals(10000, count());
+        assertEquals("10 interval commits and the final one", 11, context.commits);
+
+        context.commits = 0;
+        loader.setCommitInterval(0);
+        loader.migrate(context);
+        assertEquals(20000, count());
+        assertEquals(1, context.commits);
+    }
+
+    /**
+     * Makes sure adaptive batches grow when they are quick and shrink when they are slow.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testAdaptsBatchSizeToTargetTime() throws Exception
+    {
+        StreamingLoader loader = new StreamingLoader(0);
+        assertEquals(100, loader.nextBatchSize(50, 10, 100));
+        assertEquals(50, loader.nextBatchSize(50, 70, 100));
+        assertEquals(25, loader.nextBatchSize(50, 250, 100));
+        assertEquals(1, loader.nextBatchSize(1, 250, 100));
+        assertEquals(SqlLoadMigrationTask.MAX_ADAPTIVE_BATCH_SIZE, loader.nextBatchSize(
+                SqlLoadMigrationTask.MAX_ADAPTIVE_BATCH_SIZE, 0, 100));
+
+        loader = new StreamingLoader(5000);
+        loader.setTargetBatchMillis(1000);
+        loader.migrate(context);
+        assertEquals(5000, count());
+    }
+
+    /**
+     * Makes sure quoted fields, with delimiters and line breaks in them, are loaded whole.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testLoadsQuotedFields() throws Exception
+    {
+        StreamingLoader loader = new StreamingLoader(0);
+        loader.data = "id|name\n1|\"a|b\"\n\n2|\"two\nlines\"\n3|<NULL>\n";
+        loader.migrate(context);
+
+        Connection conn = context.getDataSource().getConnection();
+        Statement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = conn.createStatement();
+            rs = stmt.executeQuery("SELECT name FROM widgets ORDER BY id");
+            assertTrue(rs.next());
+            assertEquals("a|b", rs.getString(1));
+            assertTrue(rs.next());
+            assertEquals("two\nlines", rs.getString(1));
+            assertTrue(rs.next());
+            assertNull(rs.getString(1));
+            assertFalse(rs.next());
+        }
+        finally
+        {
+            SqlUtil.close(conn, stmt, rs);
+        }
+    }
+
+    /**
+     * Makes sure rows spread over several connections, by turns or by a key column, are all
+     * loaded.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testLoadsOverSeveralConnections() throws Exception
+    {
+        execute("SET DATABASE TRANSACTION CONTROL MVCC");
+        StreamingLoader loader = new StreamingLoader(10000);
+        loader.setLoadConnections(3);
+        loader.setBatchSize(200);
+        loader.migrate(context);
+        assertEquals(10000, count());
+        assertEquals(1, context.commits);
+
+        loader.setPartitionColumn("id");
+        loader.migrate(context);
+        assertEquals(20000, count());
+    }
+
+    /**
+     * Makes sure a row that fails on one connection rolls back the rows of every connection.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testRollsBackEveryConnectionOnFailure() throws Exception
+    {
+        execute("SET DATABASE TRANSACTION CONTROL MVCC");
+        StringBuffer data = new StringBuffer("id|name\n");
+        for (int i = 1; i <= 1000; i++)
+        {
+            data.append(i).append((i == 900) ? "|a name much too long for the column\n"
+                    : "|widget\n");
+        }
+        StreamingLoader loader = new StreamingLoader(0);
+        loader.data = data.toString();
+        loader.setLoadConnections(3);
+        loader.setBatchSize(50);
+        try
+        {
+            loader.migrate(context);
+            fail("The row that is too long should fail the load");
+        }
+        catch (MigrationException e)
+        {
+            // expected
+        }
+        assertEquals(0, count());
+        assertEquals(0, context.commits);
+    }
+
+    /**
+     * Makes sure a file is loaded with the database type's bulk loader when one is turned on,
+     * unless the loader turns bulk loading off.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testBulkLoadsWithTheDatabaseTypesLoader() throws Exception
+    {
+        assertNull("bulk loading is opt-in", new DatabaseType("hsqldb").getBulkLoader());
+        context.setDatabaseType(createDatabaseType("hsqldb.bulkLoader="
+                + MultiRowInsertBulkLoader.class.getName()));
+        assertTrue(context.getDatabaseType().getBulkLoader() instanceof MultiRowInsertBulkLoader);
+        StringBuffer data = new StringBuffer("id|name\n");
+        for (int i = 1; i <= 1234; i++)
+        {
+            data.append(i).append((i % 100 == 0) ? "|<null>\n" : "|\"widget|" + i + "\"\n");
+        }
+        FileLoader loader = new FileLoader(data.toString());
+        loader.migrate(context);
+        assertEquals("the insert statement is not used", 0, loader.statements);
+        assertEquals(1222, count());
+        assertEquals(1, context.commits);
+
+        Connection conn = context.getDataSource().getConnection();
+        Statement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = conn.createStatement();
+            rs = stmt.executeQuery("SELECT name FROM widgets WHERE id = 7");
+            assertTrue(rs.next());
+            assertEquals("widget|7", rs.getString(1));
+        }
+        finally
+        {
+            SqlUtil.close(conn, stmt, rs);
+        }
+
+        loader.setBulkLoadEnabled(false);
+        loader.migrate(context);
+        assertEquals("inserts are used when bulk loading is off", 1, loader.statements);
+        assertEquals(2444, count());
+    }
+
+    /**
+     * Creates an HSQLDB database type as migration.properties would configure it.
+     *
+     * @param migrationProperties the contents of migration.properties
+     * @return the database type
+     */
+    private DatabaseType createDatabaseType(final String migrationProperties)
+    {
+        ClassLoader loader = new ClassLoader(getClass().getClassLoader())
+        {
+            public InputStream getResourceAsStream(String name)
+            {
+                if ("migration.properties".equals(name))
+                {
+                    return new ByteArrayInputStream(migrationProperties.getBytes());
+                }
+                return super.getResourceAsStream(name);
+            }
+        };
+        Thread thread = Thread.currentThread();
+        ClassLoader contextLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(loader);
+        try
+        {
+            return new DatabaseType("hsqldb");
+        }
+        finally
+        {
+            thread.setContextClassLoader(contextLoader);
+        }
+    }
+
+    /**
+     * Makes sure a file parsed on several threads is loaded whole and in file order.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testParsesChunksOnSeveralThreads() throws Exception
+    {
+        File dir = File.createTempFile("loader", "");
+        dir.delete();
+        dir.mkdir();
+        final File file = new File(dir, "widgets_db.dat");
+        FileOutputStream out = new FileOutputStream(file);
+        StringBuffer data = new StringBuffer("id|name\n");
+        for (int i = 1; i <= 2000; i++)
+        {
+            data.append(i).append((i % 7 == 0) ? "|\"w|\nx\"\n" : "|widget\n");
+        }
+        out.write(data.toString().getBytes());
+        out.close();
+
+        final List ids = new ArrayList();
+        DelimitedFileLoader loader = new DelimitedFileLoader()
+        {
+            public String getName()
+            {
+                return file.getAbsolutePath();
+            }
+
+            public String getDelimiter()
+            {
+                return "|";
+            }
+
+            protected boolean insert(String data, PreparedStatement stmt) throws SQLException
+            {
+                ids.add(data.substring(0, data.indexOf('|')));
+                return super.insert(data, stmt);
+            }
+        };
+        loader.setParserThreads(4);
+        loader.setChunkSize(256);
+        try
+        {
+            loader.migrate(context);
+        }
+        finally
+        {
+            file.delete();
+            dir.delete();
+        }
+        assertEquals(2000, count());
+        assertEquals("id", ids.get(0));
+        for (int i = 1; i <= 2000; i++)
+        {
+            assertEquals(String.valueOf(i), ids.get(i));
+        }
+    }
+
+    /**
+     * Makes sure a gzip compressed file is decompressed as it is parsed, on the loading thread
+     * since it can't be split into chunks.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testLoadsCompressedFile() throws Exception
+    {
+        final File file = File.createTempFile("widgets_db", ".dat.gz");
+        GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+        StringBuffer data = new StringBuffer("id|name\n");
+        for (int i = 1; i <= 2000; i++)
+        {
+            data.append(i).append("|widget\n");
+        }
+        out.write(data.toString().getBytes());
+        out.close();
+
+        DelimitedFileLoader loader = new DelimitedFileLoader()
+        {
+            public String getName()
+            {
+                return file.getAbsolutePath();
+            }
+
+            public String getDelimiter()
+            {
+                return "|";
+            }
+        };
+        loader.setParserThreads(4);
+        try
+        {
+            assertNull(loader.getFile());
+            loader.migrate(context);
+        }
+        finally
+        {
+            file.delete();
+        }
+        assertEquals(2000, count());
+    }
+
+    /**
+     * Returns the number of rows loaded.
+     *
+     * @return the number of rows in the table
+     * @throws SQLException if the table can't be read
+     */
+    private int count() throws SQLException
+    {
+        Connection conn = context.getDataSource().getConnection();
+        Statement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = conn.createStatement();
+            rs = stmt.executeQuery("SELECT COUNT(*) FROM widgets WHERE name IS NOT NULL");
+            rs.next();
+            return rs.getInt(1);
+        }
+        finally
+        {
+            SqlUtil.close(conn, stmt, rs);
+        }
+    }
+
+    /**
+     * Executes a statement.
+     *
+     * @param sql the statement to execute
+     * @throws SQLException if the statement fails
+     */
+    private void execute(String sql) throws SQLException
+    {
+        Connection conn = context.getDataSource().getConnection();
+        Statement stmt = null;
+        try
+        {
+            stmt = conn.createStatement();
+            stmt.execute(sql);
+        }
+        finally
+        {
+            SqlUtil.close(conn, stmt, null);
+        }
+    }
+
+    /**
+     * A context that counts its commits.
+     */
+    private static class CountingContext extends DataSourceMigrationContext
+    {
+        private int commits = 0;
+
+        public void commit() throws MigrationException
+        {
+            commits++;
+            super.commit();
+        }
+    }
+
+    /**
+     * Loads a pipe-delimited file held in a string, binding rows the default way, and counts
+     * how often it builds its insert statement.
+     */
+    private static class FileLoader extends DelimitedFileLoader
+    {
+        private String data;
+        private int statements = 0;
+
+        FileLoader(String data)
+        {
+            this.data = data;
+        }
+
+        public String getName()
+        {
+            return "widgets_db.dat";
+        }
+
+        public String getDelimiter()
+        {
+            return "|";
+        }
+
+        protected InputStream getResourceAsStream()
+        {
+            return new ByteArrayInputStream(data.getBytes());
+        }
+
+        protected String getStatmentSql()
+        {
+            statements++;
+            return super.getStatmentSql();
+        }
+    }
+
+    /**
+     * Loads a pipe-delimited file that is generated as it is read, and notes how much of it
+     * had been generated when the first row was inserted.
+     */
+    private static class StreamingLoader extends DelimitedFileLoader
+    {
+        private int rowCount;
+        private int rowsGenerated = 0;
+        private int firstRowRead = -1;
+        private String data = null;
+
+        StreamingLoader(int rowCount)
+        {
+            this.rowCount = rowCount;
+        }
+
+        public String getName()
+        {
+            return "widgets_db.dat";
+        }
+
+        public String getDelimiter()
+        {
+            return "|";
+        }
+
+        protected boolean insert(String data, PreparedStatement stmt) throws SQLException
+        {
+            if (firstRowRead == -1 && !data.startsWith("id"))
+            {
+                firstRowRead = rowsGenerated;
+            }
+            return super.insert(data, stmt);
+        }
+
+        public int nextBatchSize(int batchSize, long batchMillis, long targetBatchMillis)
+        {
+            return super.nextBatchSize(batchSize, batchMillis, targetBatchMillis);
+        }
+
+        protected InputStream getResourceAsStream()
+        {
+            if (data != null)
+            {
+                return new ByteArrayInputStream(data.getBytes());
+            }
+            rowsGenerated = 0;
+            return new InputStream()
+            {
+                private byte[] line = "id|name\n".getBytes();
+                private int position = 0;
+
+                public int read()
+                {
+                    if (position == line.length)
+                    {
+                        if (rowsGenerated == rowCount)
+                        {
+                            return -1;
+                        }
+                        rowsGenerated++;
+                        line = (rowsGenerated + "|widget" + rowsGenerated + "\n").getBytes();
+                        position = 0;
+                    }
+                    return line[position++];
+                }
+            };
+        }
+    }
+}
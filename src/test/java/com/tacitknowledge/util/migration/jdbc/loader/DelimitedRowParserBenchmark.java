@@ -0,0 +1,229 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.StringTokenizer;
+
+/**
+ * Compares how fast rows of a delimited file are split into fields by the
+ * <code>StringTokenizer</code> that <code>DelimitedFileLoader</code> used to use, and by the
+ * {@link DelimitedRowParser}, and by a {@link ParallelDelimitedReader} over the same rows
+ * written to a temporary file.  The fields are only handed to a checksum, so only the
+ * parsing is measured.
+ * <p/>
+ * This is not run by the unit tests; run its <code>main</code> method with the test class
+ * path, optionally passing the number of rows, fields per row and parsing threads:
+ * <pre>
+ * java -cp target/classes:target/test-classes:<i>commons-logging.jar</i>
+ *     com.tacitknowledge.util.migration.jdbc.loader.DelimitedRowParserBenchmark 500000 12 4
+ * </pre>
+ */
+public class DelimitedRowParserBenchmark
+{
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the number of rows, the number of fields in each row, and the number of
+     *             threads to parse the file on
+     * @throws IOException if the data can't be parsed
+     */
+    public static void main(String[] args) throws IOException
+    {
+        int rows = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        int fields = (args.length > 1) ? Integer.parseInt(args[1]) : 12;
+        int threads = (args.length > 2) ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+        String data = generate(rows, fields);
+        double megabytes = data.length() / (1024.0 * 1024.0);
+        File file = File.createTempFile("benchmark", ".dat");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data.getBytes("UTF-8"));
+        out.close();
+
+        // warm up the parsers
+        tokenize(data);
+        parse(data);
+        parseInParallel(file, threads);
+        for (int round = 1; round <= 3; round++)
+        {
+            long start = System.nanoTime();
+            long checksum = tokenize(data);
+            report("StringTokenizer        ", round, rows, megabytes,
+                    System.nanoTime() - start, checksum);
+
+            start = System.nanoTime();
+            checksum = parse(data);
+            report("DelimitedRowParser     ", round, rows, megabytes,
+                    System.nanoTime() - start, checksum);
+
+            start = System.nanoTime();
+            checksum = parseInParallel(file, threads);
+            report("ParallelDelimitedReader", round, rows, megabytes,
+                    System.nanoTime() - start, checksum);
+        }
+        file.delete();
+    }
+
+    /**
+     * Splits the rows the way <code>DelimitedFileLoader</code> used to.
+     *
+     * @param data the rows to split
+     * @return a checksum of the fields
+     * @throws IOException if the data can't be read
+     */
+    private static long tokenize(String data) throws IOException
+    {
+        long checksum = 0;
+        BufferedReader reader = new BufferedReader(new StringReader(data));
+        String line = null;
+        while ((line = reader.readLine()) != null)
+        {
+            StringTokenizer st = new StringTokenizer(line, "|");
+            while (st.hasMoreTokens())
+            {
+                String value = st.nextToken();
+                if (!value.equalsIgnoreCase("<null>"))
+                {
+                    checksum += value.length();
+                }
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * Splits the rows with a <code>DelimitedRowParser</code>.
+     *
+     * @param data the rows to split
+     * @return a checksum of the fields
+     * @throws IOException if the data can't be parsed
+     */
+    private static long parse(String data) throws IOException
+    {
+        long checksum = 0;
+        DelimitedRowParser parser = new DelimitedRowParser(
+                new BufferedReader(new StringReader(data)), "|", '"',
+                DelimitedRowParser.DEFAULT_BUFFER_SIZE);
+        while (parser.next())
+        {
+            int fieldCount = parser.getFieldCount();
+            for (int i = 0; i < fieldCount; i++)
+            {
+                if (!parser.fieldEqualsIgnoreCase(i, DelimitedFileLoader.NULL_TOKEN))
+                {
+                    checksum += parser.getField(i).length();
+                }
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * Splits the rows of a file with a <code>ParallelDelimitedReader</code>.
+     *
+     * @param file    the file holding the rows
+     * @param threads the number of threads to parse the file on
+     * @return a checksum of the fields
+     * @throws IOException if the file can't be parsed
+     */
+    private static long parseInParallel(File file, int threads) throws IOException
+    {
+        long checksum = 0;
+        ParallelDelimitedReader reader = new ParallelDelimitedReader(file, "|", '"',
+                Charset.forName("UTF-8"), threads, 1024 * 1024);
+        try
+        {
+            while (reader.next())
+            {
+                String[] values = reader.getFields();
+                for (int i = 0; i < values.length; i++)
+                {
+                    if (!values[i].equalsIgnoreCase(DelimitedFileLoader.NULL_TOKEN))
+                    {
+                        checksum += values[i].length();
+                    }
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return checksum;
+    }
+
+    /**
+     * Generates pipe-delimited rows of numbers, words and nulls, without quotes so that both
+     * parsers read the same fields.
+     *
+     * @param rows   the number of rows
+     * @param fields the number of fields in each row
+     * @return the rows
+     */
+    private static String generate(int rows, int fields)
+    {
+        StringBuffer data = new StringBuffer(rows * fields * 8);
+        for (int row = 0; row < rows; row++)
+        {
+            for (int field = 0; field < fields; field++)
+            {
+                if (field > 0)
+                {
+                    data.append('|');
+                }
+                switch ((row + field) % 3)
+                {
+                    case 0:
+                        data.append(row * 31 + field);
+                        break;
+                    case 1:
+                        data.append("value-").append(field);
+                        break;
+                    default:
+                        data.append((field % 5 == 0) ? "<null>" : "x");
+                }
+            }
+            data.append('\n');
+        }
+        return data.toString();
+    }
+
+    /**
+     * Prints the outcome of one run.
+     *
+     * @param name      the parser
+     * @param round     the number of the run
+     * @param rows      the number of rows parsed
+     * @param megabytes the size of the data
+     * @param elapsed   the elapsed time in nanoseconds
+     * @param checksum  the checksum of the fields, which should be the same for both parsers
+     */
+    private static void report(String name, int round, int rows, double megabytes,
+            long elapsed, long checksum)
+    {
+        double seconds = elapsed / 1000000000.0;
+        System.out.println(name + " round " + round + ": " + (long) (rows / seconds)
+                + " rows/s, " + (long) (megabytes / seconds) + " MB/s (checksum " + checksum
+                + ")");
+    }
+}
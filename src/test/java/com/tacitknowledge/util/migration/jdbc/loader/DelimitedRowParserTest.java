@@ -0,0 +1,120 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the <code>DelimitedRowParser</code>.
+ */
+public class DelimitedRowParserTest extends TestCase
+{
+    /**
+     * Makes sure plain fields are split, keeping empty ones.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testKeepsEmptyFields() throws Exception
+    {
+        DelimitedRowParser parser = new DelimitedRowParser("|", '"');
+        parser.parse("a||c|");
+        assertFields(parser, new String[] {"a", "", "c", ""});
+    }
+
+    /**
+     * Makes sure quoted fields can hold delimiters, quotes and line breaks.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testQuotedFields() throws Exception
+    {
+        String data = "1,\"a,b\",\"say \"\"hi\"\"\"\r\n"
+                + "2,\"two\r\nlines\",\"\"\n"
+                + "3,x,y";
+        // a tiny buffer makes records straddle reads
+        DelimitedRowParser parser = new DelimitedRowParser(new StringReader(data), ",", '"', 3);
+
+        assertTrue(parser.next());
+        assertFields(parser, new String[] {"1", "a,b", "say \"hi\""});
+        assertEquals("1,\"a,b\",\"say \"\"hi\"\"\"", parser.getRecord());
+
+        assertTrue(parser.next());
+        assertFields(parser, new String[] {"2", "two\r\nlines", ""});
+
+        assertTrue(parser.next());
+        assertFields(parser, new String[] {"3", "x", "y"});
+        assertEquals(3, parser.getRecordNumber());
+        assertFalse(parser.next());
+    }
+
+    /**
+     * Makes sure null markers are matched without regard to case.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testFieldEqualsIgnoreCase() throws Exception
+    {
+        DelimitedRowParser parser = new DelimitedRowParser("|", '"');
+        parser.parse("<NULL>|<null>x|\"<Null>\"");
+        assertTrue(parser.fieldEqualsIgnoreCase(0, "<null>"));
+        assertFalse(parser.fieldEqualsIgnoreCase(1, "<null>"));
+        assertTrue(parser.fieldEqualsIgnoreCase(2, "<null>"));
+    }
+
+    /**
+     * Makes sure malformed quoting is reported.
+     */
+    public void testMalformedQuotes()
+    {
+        DelimitedRowParser parser = new DelimitedRowParser("|", '"');
+        try
+        {
+            parser.parse("a|\"unterminated");
+            fail("An unterminated quote should be reported");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+        try
+        {
+            parser.parse("a|\"b\"c");
+            fail("Characters after a closing quote should be reported");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * Checks the fields of the current record.
+     *
+     * @param parser the parser
+     * @param fields the expected fields
+     */
+    private void assertFields(DelimitedRowParser parser, String[] fields)
+    {
+        assertEquals(fields.length, parser.getFieldCount());
+        for (int i = 0; i < fields.length; i++)
+        {
+            assertEquals(fields[i], parser.getField(i));
+        }
+    }
+}
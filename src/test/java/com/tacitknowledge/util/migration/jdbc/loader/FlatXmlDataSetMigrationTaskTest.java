@@ -0,0 +1,280 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import com.tacitknowledge.util.migration.jdbc.DataSourceMigrationContext;
+import com.tacitknowledge.util.migration.jdbc.DatabaseType;
+import com.tacitknowledge.util.migration.jdbc.util.NonPooledDataSource;
+import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
+
+/**
+ * Tests the <code>FlatXmlDataSetMigrationTask</code>.
+ */
+public class FlatXmlDataSetMigrationTaskTest extends TestCase
+{
+    /**
+     * The context to load the data into
+     */
+    private BatchCountingContext context = null;
+
+    /**
+     * The data set being loaded
+     */
+    private File file = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        NonPooledDataSource dataSource = new NonPooledDataSource();
+        dataSource.setDriverClass("org.hsqldb.jdbcDriver");
+        dataSource.setDatabaseUrl("jdbc:hsqldb:mem:" + getName());
+        dataSource.setUsername("sa");
+        dataSource.setPassword("");
+        context = new BatchCountingContext();
+        context.setDataSource(dataSource);
+        context.setDatabaseType(new DatabaseType("hsqldb"));
+        context.setSystemName("loader");
+        execute("CREATE TABLE widgets (id INT, name VARCHAR(20))");
+        execute("CREATE TABLE gadgets (id INT)");
+
+        file = File.createTempFile("patch1", ".xml");
+        Writer out = new FileWriter(file);
+        try
+        {
+            out.write("<?xml version='1.0' encoding='UTF-8'?>\n<dataset>\n");
+            for (int i = 1; i <= 1000; i++)
+            {
+                out.write("  <widgets id='" + i + "' name='widget " + i + "'/>\n");
+            }
+            out.write("  <gadgets id='1'/>\n</dataset>\n");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void tearDown() throws Exception
+    {
+        execute("SHUTDOWN");
+        file.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure a data set is inserted a row at a time by default.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testInsertsRowByRowByDefault() throws Exception
+    {
+        createTask().migrate(context);
+        assertEquals(1000, count("widgets"));
+        assertEquals(1, count("gadgets"));
+        assertEquals(0, context.batches);
+    }
+
+    /**
+     * Makes sure a streamed data set is inserted in batches of the task's batch size.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testStreamsInBatches() throws Exception
+    {
+        FlatXmlDataSetMigrationTask task = createTask();
+        task.setStreaming(true);
+        task.setBatchSize(100);
+        task.migrate(context);
+        assertEquals(1000, count("widgets"));
+        assertEquals(1, count("gadgets"));
+        assertEquals("10 batches of widgets and 1 of gadgets", 11, context.batches);
+    }
+
+    /**
+     * Makes sure a gzip compressed data set is decompressed as it is streamed.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testStreamsCompressedDataSet() throws Exception
+    {
+        File compressed = new File(file.getPath() + FileLoadingUtility.GZIP_SUFFIX);
+        InputStream in = new FileInputStream(file);
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed));
+        try
+        {
+            byte[] buffer = new byte[8192];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer))
+            {
+                out.write(buffer, 0, read);
+            }
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+
+        try
+        {
+            FlatXmlDataSetMigrationTask task = createTask(compressed);
+            task.setStreaming(true);
+            task.setBatchSize(100);
+            task.migrate(context);
+            assertEquals(1000, count("widgets"));
+            assertEquals(1, count("gadgets"));
+            assertEquals(11, context.batches);
+        }
+        finally
+        {
+            compressed.delete();
+        }
+    }
+
+    /**
+     * Creates a task that loads the test data set.
+     *
+     * @return the task
+     */
+    private FlatXmlDataSetMigrationTask createTask()
+    {
+        return createTask(file);
+    }
+
+    /**
+     * Creates a task that loads a data set.
+     *
+     * @param dataSet the data set to load
+     * @return the task
+     */
+    private FlatXmlDataSetMigrationTask createTask(File dataSet)
+    {
+        FlatXmlDataSetMigrationTask task = new FlatXmlDataSetMigrationTask();
+        task.setName(dataSet.getAbsolutePath());
+        task.setLevel(new Integer(1));
+        return task;
+    }
+
+    /**
+     * Counts the rows of a table.
+     *
+     * @param table the table
+     * @return the number of rows
+     * @throws SQLException if the rows can't be counted
+     */
+    private int count(String table) throws SQLException
+    {
+        Connection conn = context.getDataSource().getConnection();
+        Statement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = conn.createStatement();
+            rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table);
+            rs.next();
+            return rs.getInt(1);
+        }
+        finally
+        {
+            SqlUtil.close(conn, stmt, rs);
+        }
+    }
+
+    /**
+     * Executes a statement.
+     *
+     * @param sql the statement to execute
+     * @throws SQLException if the statement fails
+     */
+    private void execute(String sql) throws SQLException
+    {
+        Connection conn = context.getDataSource().getConnection();
+        Statement stmt = null;
+        try
+        {
+            stmt = conn.createStatement();
+            stmt.execute(sql);
+        }
+        finally
+        {
+            SqlUtil.close(conn, stmt, null);
+        }
+    }
+
+    /**
+     * A context that counts the JDBC batches executed through its connection.
+     */
+    private static class BatchCountingContext extends DataSourceMigrationContext
+    {
+        private int batches = 0;
+
+        public Connection getConnection() throws SQLException
+        {
+            return (Connection) wrap(super.getConnection(), Connection.class);
+        }
+
+        private Object wrap(final Object target, Class type)
+        {
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {type},
+                    new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args)
+                                throws Throwable
+                        {
+                            if (method.getName().equals("executeBatch"))
+                            {
+                                batches++;
+                            }
+                            try
+                            {
+                                Object result = method.invoke(target, args);
+                                return (result instanceof PreparedStatement)
+                                        ? wrap(result, PreparedStatement.class) : result;
+                            }
+                            catch (InvocationTargetException e)
+                            {
+                                throw e.getTargetException();
+                            }
+                        }
+                    });
+        }
+    }
+}
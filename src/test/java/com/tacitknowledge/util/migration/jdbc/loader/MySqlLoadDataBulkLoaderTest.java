@@ -0,0 +1,73 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+
+import junit.framework.TestCase;
+
+import com.mockrunner.mock.jdbc.MockConnection;
+
+import com.tacitknowledge.util.migration.jdbc.DatabaseType;
+
+/**
+ * Tests the <code>MySqlLoadDataBulkLoader</code>.
+ */
+public class MySqlLoadDataBulkLoaderTest extends TestCase
+{
+    /**
+     * Makes sure MySQL only bulk loads when it is turned on.
+     */
+    public void testIsOffByDefault()
+    {
+        assertNull(new DatabaseType("mysql").getBulkLoader());
+    }
+
+    /**
+     * Makes sure connections that aren't from Connector/J are loaded with inserts.
+     */
+    public void testIsNotSupportedWithoutTheDriver()
+    {
+        assertFalse(new MySqlLoadDataBulkLoader().isSupported(new MockConnection()));
+    }
+
+    /**
+     * Makes sure a load that skipped rows fails, listing the server's warnings.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testFailsWhenRowsAreSkipped() throws Exception
+    {
+        MySqlLoadDataBulkLoader loader = new MySqlLoadDataBulkLoader();
+        loader.checkRowCount("orders", 3, 3, null);
+
+        SQLWarning warnings = new SQLWarning("Duplicate entry '2' for key 'PRIMARY'");
+        warnings.setNextWarning(new SQLWarning("Incorrect integer value: 'x' for column 'id'"));
+        try
+        {
+            loader.checkRowCount("orders", 3, 1, warnings);
+            fail("Skipped rows should fail the load");
+        }
+        catch (SQLException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(
+                    "LOAD DATA skipped 2 of 3 rows loading orders"));
+            assertTrue(e.getMessage(), e.getMessage().indexOf("Duplicate entry '2'") > -1);
+            assertTrue(e.getMessage(), e.getMessage().indexOf("column 'id'") > -1);
+        }
+    }
+}
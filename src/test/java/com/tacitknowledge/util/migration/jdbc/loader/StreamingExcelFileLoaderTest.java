@@ -0,0 +1,411 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import junit.framework.TestCase;
+
+import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.hssf.usermodel.HSSFCellStyle;
+import org.apache.poi.hssf.usermodel.HSSFDataFormat;
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+
+import com.tacitknowledge.util.migration.MigrationException;
+import com.tacitknowledge.util.migration.jdbc.DataSourceMigrationContext;
+import com.tacitknowledge.util.migration.jdbc.DatabaseType;
+import com.tacitknowledge.util.migration.jdbc.SchemaMigrationContext;
+import com.tacitknowledge.util.migration.jdbc.util.NonPooledDataSource;
+import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
+
+/**
+ * Tests the <code>StreamingExcelFileLoader</code>.
+ */
+public class StreamingExcelFileLoaderTest extends TestCase
+{
+    /**
+     * The context to load the data into
+     */
+    private CountingContext context = null;
+
+    /**
+     * The workbook being loaded
+     */
+    private File file = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        NonPooledDataSource dataSource = new NonPooledDataSource();
+        dataSource.setDriverClass("org.hsqldb.jdbcDriver");
+        dataSource.setDatabaseUrl("jdbc:hsqldb:mem:" + getName());
+        dataSource.setUsername("sa");
+        dataSource.setPassword("");
+        context = new CountingContext();
+        context.setDataSource(dataSource);
+        context.setDatabaseType(new DatabaseType("hsqldb"));
+        context.setSystemName("loader");
+        execute("CREATE TABLE widgets (id INT, name VARCHAR(20), made DATE, active BOOLEAN)");
+        execute("CREATE TABLE gadgets (id BIGINT, price DECIMAL(10, 2))");
+        file = File.createTempFile("workbook", ".xls");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void tearDown() throws Exception
+    {
+        execute("SHUTDOWN");
+        file.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure each sheet is loaded into its table with values of the right types, and
+     * skipped sheets aren't loaded.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testLoadsEachSheetIntoItsTable() throws Exception
+    {
+        writeWorkbook(3, -1);
+        WorkbookLoader loader = new WorkbookLoader();
+        loader.migrate(context);
+        assertEquals(3, count("widgets"));
+        assertEquals(3, count("gadgets"));
+        assertEquals(1, context.commits);
+
+        Connection conn = context.getDataSource().getConnection();
+        Statement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = conn.createStatement();
+            rs = stmt.executeQuery("SELECT w.name, w.made, w.active, g.price FROM widgets w, "
+                    + "gadgets g WHERE w.id = 2 AND g.id = 2");
+            assertTrue(rs.next());
+            assertEquals("widget 2", rs.getString(1));
+            assertEquals(Date.valueOf("2004-08-03"), rs.getDate(2));
+            assertFalse(rs.getBoolean(3));
+            assertEquals(new BigDecimal("2.50"), rs.getBigDecimal(4));
+        }
+        finally
+        {
+            SqlUtil.close(conn, stmt, rs);
+        }
+    }
+
+    /**
+     * Makes sure sheets load over several connections and commit together.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testLoadsSheetsOverSeveralConnections() throws Exception
+    {
+        execute("SET DATABASE TRANSACTION CONTROL MVCC");
+        writeWorkbook(1000, -1);
+        WorkbookLoader loader = new WorkbookLoader();
+        loader.setLoadConnections(2);
+        loader.setBatchSize(50);
+        loader.migrate(context);
+        assertEquals(1000, count("widgets"));
+        assertEquals(1000, count("gadgets"));
+        assertEquals(1, context.commits);
+    }
+
+    /**
+     * Makes sure every connection of a load into a schema is switched to the schema.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testLoadsEveryConnectionIntoTheContextsSchema() throws Exception
+    {
+        execute("SET DATABASE TRANSACTION CONTROL MVCC");
+        execute("CREATE SCHEMA tenant AUTHORIZATION DBA");
+        execute("CREATE TABLE tenant.widgets (id INT, name VARCHAR(20), made DATE, "
+                + "active BOOLEAN)");
+        execute("CREATE TABLE tenant.gadgets (id BIGINT, price DECIMAL(10, 2))");
+        SchemaMigrationContext tenant = new SchemaMigrationContext();
+        tenant.setDataSource(context.getDataSource());
+        tenant.setDatabaseType(context.getDatabaseType());
+        tenant.setSystemName("loader");
+        tenant.setSchemaName("tenant");
+
+        writeWorkbook(1000, -1);
+        WorkbookLoader loader = new WorkbookLoader();
+        loader.setLoadConnections(2);
+        loader.setBatchSize(50);
+        loader.migrate(tenant);
+        assertEquals(1000, count("tenant.widgets"));
+        assertEquals(1000, count("tenant.gadgets"));
+        assertEquals(0, count("widgets"));
+        assertEquals(0, count("gadgets"));
+    }
+
+    /**
+     * Makes sure a row that fails in the last sheet rolls back the sheets loaded before it.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testRollsBackEverySheetOnFailure() throws Exception
+    {
+        execute("SET DATABASE TRANSACTION CONTROL MVCC");
+        writeWorkbook(1000, 900);
+        WorkbookLoader loader = new WorkbookLoader();
+        loader.setLoadConnections(2);
+        loader.setBatchSize(50);
+        try
+        {
+            loader.migrate(context);
+            fail("The price that is too large should fail the load");
+        }
+        catch (MigrationException e)
+        {
+            // expected
+        }
+        assertEquals(0, count("widgets"));
+        assertEquals(0, count("gadgets"));
+        assertEquals(0, context.commits);
+    }
+
+    /**
+     * Makes sure a connection that fails to commit rolls back its sheets, and the error names
+     * the sheets that were already committed over the connections before it.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testReportsTheSheetsCommittedBeforeAFailedCommit() throws Exception
+    {
+        execute("SET DATABASE TRANSACTION CONTROL MVCC");
+        writeWorkbook(1000, -1);
+        WorkbookLoader loader = new WorkbookLoader();
+        loader.setLoadConnections(2);
+        loader.setBatchSize(50);
+        context.failExtraCommits = true;
+        try
+        {
+            loader.migrate(context);
+            fail("The second connection should fail to commit");
+        }
+        catch (MigrationException e)
+        {
+            // the sheets take whichever connection is free, so either may have been committed
+            String committed = (count("widgets") > 0) ? "widgets" : "gadgets";
+            String rolledBack = (count("widgets") > 0) ? "gadgets" : "widgets";
+            assertEquals(1000, count(committed));
+            assertEquals(0, count(rolledBack));
+            String message = e.getCause().getMessage();
+            assertTrue(message, message.indexOf("sheets [" + committed
+                    + "] were already committed") > -1);
+            assertTrue(message, message.indexOf("sheets [" + rolledBack + "] are rolled back")
+                    > -1);
+        }
+        assertEquals(1, context.commits);
+    }
+
+    /**
+     * Writes a workbook with a sheet of widgets, a sheet of notes and a sheet of gadgets.
+     *
+     * @param rows      the number of widgets and gadgets
+     * @param badGadget the gadget whose price is too large for its column, or -1
+     * @throws Exception if the workbook can't be written
+     */
+    private void writeWorkbook(int rows, int badGadget) throws Exception
+    {
+        HSSFWorkbook workbook = new HSSFWorkbook();
+        HSSFCellStyle dateStyle = workbook.createCellStyle();
+        dateStyle.setDataFormat(HSSFDataFormat.getBuiltinFormat("m/d/yy"));
+
+        HSSFSheet widgets = workbook.createSheet("widgets");
+        setRow(widgets, 0, new String[] {"id", "name", "made", "active"});
+        for (int i = 1; i <= rows; i++)
+        {
+            HSSFRow row = widgets.createRow((short) i);
+            row.createCell((short) 0).setCellValue(i);
+            row.createCell((short) 1).setCellValue("widget " + i);
+            HSSFCell made = row.createCell((short) 2);
+            made.setCellValue(Date.valueOf("2004-08-0" + (i % 9 + 1)));
+            made.setCellStyle(dateStyle);
+            row.createCell((short) 3).setCellValue(i % 2 == 1);
+        }
+
+        HSSFSheet notes = workbook.createSheet("notes");
+        setRow(notes, 0, new String[] {"not", "a", "table"});
+        setRow(notes, 1, new String[] {"1", "2", "3"});
+
+        HSSFSheet gadgets = workbook.createSheet("gadgets");
+        setRow(gadgets, 0, new String[] {"id", "price", ""});
+        for (int i = 1; i <= rows; i++)
+        {
+            HSSFRow row = gadgets.createRow((short) i);
+            row.createCell((short) 0).setCellValue(i);
+            row.createCell((short) 1).setCellValue((i == badGadget) ? 1e12 : i + 0.5);
+            row.createCell((short) 2).setCellValue("ignored");
+        }
+
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            workbook.write(out);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes a row of strings.
+     *
+     * @param sheet  the sheet to write to
+     * @param index  the index of the row
+     * @param values the values of the row
+     */
+    private void setRow(HSSFSheet sheet, int index, String[] values)
+    {
+        HSSFRow row = sheet.createRow((short) index);
+        for (int i = 0; i < values.length; i++)
+        {
+            row.createCell((short) i).setCellValue(values[i]);
+        }
+    }
+
+    /**
+     * Counts the rows of a table.
+     *
+     * @param table the table
+     * @return the number of rows
+     * @throws SQLException if the rows can't be counted
+     */
+    private int count(String table) throws SQLException
+    {
+        Connection conn = context.getDataSource().getConnection();
+        Statement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = conn.createStatement();
+            rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table);
+            rs.next();
+            return rs.getInt(1);
+        }
+        finally
+        {
+            SqlUtil.close(conn, stmt, rs);
+        }
+    }
+
+    /**
+     * Executes a statement.
+     *
+     * @param sql the statement to execute
+     * @throws SQLException if the statement fails
+     */
+    private void execute(String sql) throws SQLException
+    {
+        Connection conn = context.getDataSource().getConnection();
+        Statement stmt = null;
+        try
+        {
+            stmt = conn.createStatement();
+            stmt.execute(sql);
+        }
+        finally
+        {
+            SqlUtil.close(conn, stmt, null);
+        }
+    }
+
+    /**
+     * A context that counts its commits, and can hand out extra connections that fail to
+     * commit.
+     */
+    private static class CountingContext extends DataSourceMigrationContext
+    {
+        private int commits = 0;
+
+        private int opened = 0;
+
+        private boolean failExtraCommits = false;
+
+        public void commit() throws MigrationException
+        {
+            commits++;
+            super.commit();
+        }
+
+        public Connection openConnection() throws SQLException
+        {
+            final Connection conn = super.openConnection();
+            if (!failExtraCommits || (++opened == 1))
+            {
+                return conn;
+            }
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class[] {Connection.class}, new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args)
+                                throws Throwable
+                        {
+                            if ("commit".equals(method.getName()))
+                            {
+                                throw new SQLException("Commit failed");
+                            }
+                            try
+                            {
+                                return method.invoke(conn, args);
+                            }
+                            catch (InvocationTargetException e)
+                            {
+                                throw e.getTargetException();
+                            }
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Loads the test workbook, skipping its notes.
+     */
+    private class WorkbookLoader extends StreamingExcelFileLoader
+    {
+        public String getName()
+        {
+            return file.getAbsolutePath();
+        }
+
+        protected String getTableName(String sheetName)
+        {
+            return "notes".equals(sheetName) ? null : sheetName;
+        }
+    }
+}
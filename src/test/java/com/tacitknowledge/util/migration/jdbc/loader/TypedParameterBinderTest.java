@@ -0,0 +1,240 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.loader;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IMocksControl;
+
+import com.tacitknowledge.util.migration.jdbc.util.SqlUtil;
+
+/**
+ * Tests the <code>TypedParameterBinder</code>.
+ */
+public class TypedParameterBinderTest extends TestCase
+{
+    /**
+     * The connection the test table is created through
+     */
+    private Connection conn = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        conn = SqlUtil.getConnection("org.hsqldb.jdbcDriver", "jdbc:hsqldb:mem:" + getName(),
+                "sa", "");
+        Statement stmt = conn.createStatement();
+        stmt.execute("CREATE TABLE orders (id BIGINT, price DECIMAL(10, 2), placed DATE, "
+                + "shipped TIMESTAMP, paid BOOLEAN, note VARCHAR(50))");
+        stmt.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void tearDown() throws Exception
+    {
+        Statement stmt = conn.createStatement();
+        stmt.execute("SHUTDOWN");
+        stmt.close();
+        conn.close();
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure each value is bound with the setter of its column's type.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testBindsByColumnType() throws Exception
+    {
+        TypedParameterBinder binder = TypedParameterBinder.forTable(conn, "orders",
+                new String[] {"ID", "price", "placed", "shipped", "paid", "note"});
+
+        IMocksControl control = EasyMock.createStrictControl();
+        PreparedStatement stmt = (PreparedStatement) control.createMock(PreparedStatement.class);
+        stmt.setLong(1, 42L);
+        stmt.setBigDecimal(2, new BigDecimal("9.50"));
+        stmt.setDate(3, Date.valueOf("2004-02-29"));
+        stmt.setTimestamp(4, Timestamp.valueOf("2004-03-01 08:15:00.5"));
+        stmt.setBoolean(5, true);
+        stmt.setString(6, "42");
+        control.replay();
+
+        binder.bind(stmt, 1, 0, " 42");
+        binder.bind(stmt, 2, 1, "9.50");
+        binder.bind(stmt, 3, 2, "2004-02-29");
+        binder.bind(stmt, 4, 3, "2004-03-01 08:15:00.5");
+        binder.bind(stmt, 5, 4, "Y");
+        binder.bind(stmt, 6, 5, "42");
+        control.verify();
+    }
+
+    /**
+     * Makes sure nulls are bound with their column's type, and values that don't parse, or
+     * belong to unknown columns, are bound as strings.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testFallsBackToStrings() throws Exception
+    {
+        TypedParameterBinder binder = TypedParameterBinder.forTable(conn, "ORDERS",
+                new String[] {"id", "placed", "missing"});
+
+        IMocksControl control = EasyMock.createStrictControl();
+        PreparedStatement stmt = (PreparedStatement) control.createMock(PreparedStatement.class);
+        stmt.setNull(1, Types.BIGINT);
+        stmt.setString(1, "");
+        stmt.setString(2, "02/29/2004");
+        stmt.setString(3, "7");
+        stmt.setNull(3, Types.VARCHAR);
+        control.replay();
+
+        binder.bind(stmt, 1, 0, null);
+        binder.bind(stmt, 1, 0, "");
+        binder.bind(stmt, 2, 1, "02/29/2004");
+        binder.bind(stmt, 3, 2, "7");
+        binder.bind(stmt, 3, 2, null);
+        control.verify();
+    }
+
+    /**
+     * Makes sure approximate numbers are only bound as doubles when they are plain decimals,
+     * so that forms only Java parses reach the database as the text they are.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testBindsOnlyPlainDecimalsAsDoubles() throws Exception
+    {
+        Statement create = conn.createStatement();
+        create.execute("CREATE TABLE readings (reading DOUBLE)");
+        create.close();
+        TypedParameterBinder binder = TypedParameterBinder.forTable(conn, "readings",
+                new String[] {"reading"});
+
+        IMocksControl control = EasyMock.createStrictControl();
+        PreparedStatement stmt = (PreparedStatement) control.createMock(PreparedStatement.class);
+        stmt.setDouble(1, 1500.0);
+        stmt.setDouble(1, -0.5);
+        stmt.setDouble(1, 7.0);
+        stmt.setString(1, "1f");
+        stmt.setString(1, "1d");
+        stmt.setString(1, "0x1p3");
+        stmt.setString(1, "NaN");
+        stmt.setString(1, "-Infinity");
+        control.replay();
+
+        binder.bind(stmt, 1, 0, "1.5E3");
+        binder.bind(stmt, 1, 0, "-.5");
+        binder.bind(stmt, 1, 0, " 7. ");
+        binder.bind(stmt, 1, 0, "1f");
+        binder.bind(stmt, 1, 0, "1d");
+        binder.bind(stmt, 1, 0, "0x1p3");
+        binder.bind(stmt, 1, 0, "NaN");
+        binder.bind(stmt, 1, 0, "-Infinity");
+        control.verify();
+    }
+
+    /**
+     * Makes sure a table that another schema also has is read from the current schema, and
+     * that a column of a table found in several schemas with different types is bound as a
+     * string.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testReadsTheTableOfTheCurrentSchema() throws Exception
+    {
+        Statement setup = conn.createStatement();
+        setup.execute("CREATE SCHEMA archive AUTHORIZATION DBA");
+        setup.execute("CREATE SCHEMA empty AUTHORIZATION DBA");
+        setup.execute("CREATE TABLE archive.orders (id VARCHAR(20), placed DATE)");
+        setup.close();
+
+        IMocksControl control = EasyMock.createStrictControl();
+        PreparedStatement stmt = (PreparedStatement) control.createMock(PreparedStatement.class);
+        stmt.setLong(1, 7L);
+        stmt.setString(1, "007");
+        stmt.setString(1, "007");
+        stmt.setDate(2, Date.valueOf("2004-02-29"));
+        control.replay();
+
+        String[] columns = new String[] {"id", "placed"};
+        TypedParameterBinder.forTable(conn, "orders", columns).bind(stmt, 1, 0, "007");
+        setSchema("archive");
+        TypedParameterBinder.forTable(conn, "orders", columns).bind(stmt, 1, 0, "007");
+
+        // neither table is in the current schema, and the tables disagree about id
+        setSchema("empty");
+        TypedParameterBinder binder = TypedParameterBinder.forTable(conn, "orders", columns);
+        binder.bind(stmt, 1, 0, "007");
+        binder.bind(stmt, 2, 1, "2004-02-29");
+        control.verify();
+    }
+
+    /**
+     * Makes sure the wildcards of a table name only match themselves.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testEscapesWildcardsInTheTableName() throws Exception
+    {
+        Statement setup = conn.createStatement();
+        setup.execute("CREATE TABLE lineXitems (qty VARCHAR(20))");
+        setup.execute("CREATE TABLE line_items (qty INT)");
+        setup.close();
+
+        IMocksControl control = EasyMock.createStrictControl();
+        PreparedStatement stmt = (PreparedStatement) control.createMock(PreparedStatement.class);
+        stmt.setLong(1, 3L);
+        control.replay();
+
+        TypedParameterBinder.forTable(conn, "line_items", new String[] {"qty"})
+                .bind(stmt, 1, 0, "3");
+        control.verify();
+    }
+
+    /**
+     * Switches the connection to another schema.
+     *
+     * @param schema the schema
+     * @throws SQLException if the schema can't be set
+     */
+    private void setSchema(String schema) throws SQLException
+    {
+        Statement stmt = conn.createStatement();
+        try
+        {
+            stmt.execute("SET SCHEMA " + schema);
+        }
+        finally
+        {
+            stmt.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.util;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures how long it takes threads to open connections concurrently, through
+ * <code>DriverManager</code> as <code>SqlUtil</code> used to, and through the
+ * {@link DriverRegistry}.  It connects to an in-memory HSQLDB database so that the time spent
+ * finding the driver is not hidden by network round trips.
+ * <p/>
+ * This is not run by the unit tests; run its <code>main</code> method with the test class
+ * path, optionally passing the number of threads and connections per thread:
+ * <pre>
+ * java -cp target/classes:target/test-classes:<i>hsqldb.jar</i>:<i>commons-logging.jar</i>
+ *     com.tacitknowledge.util.migration.jdbc.util.DriverRegistryBenchmark 16 2000
+ * </pre>
+ */
+public class DriverRegistryBenchmark
+{
+    /**
+     * The driver to connect through
+     */
+    private static final String DRIVER = "org.hsqldb.jdbcDriver";
+
+    /**
+     * The database to connect to
+     */
+    private static final String URL = "jdbc:hsqldb:mem:driverRegistryBenchmark";
+
+    /**
+     * Opens one connection.
+     */
+    private interface Connector
+    {
+        /**
+         * @return a new connection
+         * @throws Exception if the connection could not be opened
+         */
+        Connection connect() throws Exception;
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the number of threads, and the number of connections each thread opens
+     * @throws Exception if a connection could not be opened
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+        int connections = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+
+        Connector driverManager = new Connector()
+        {
+            public Connection connect() throws Exception
+            {
+                Class.forName(DRIVER);
+                return DriverManager.getConnection(URL, "sa", "");
+            }
+        };
+        Connector registry = new Connector()
+        {
+            public Connection connect() throws Exception
+            {
+                return DriverRegistry.connect(DRIVER, URL, "sa", "");
+            }
+        };
+
+        // keep the database open, and warm up both paths
+        Connection keepAlive = registry.connect();
+        try
+        {
+            run(driverManager, threads, connections);
+            run(registry, threads, connections);
+            for (int round = 1; round <= 3; round++)
+            {
+                report("DriverManager ", round, threads, connections,
+                        run(driverManager, threads, connections));
+                report("DriverRegistry", round, threads, connections,
+                        run(registry, threads, connections));
+            }
+        }
+        finally
+        {
+            keepAlive.close();
+        }
+    }
+
+    /**
+     * Opens and closes connections on several threads at once.
+     *
+     * @param connector   opens each connection
+     * @param threads     the number of threads
+     * @param connections the number of connections each thread opens
+     * @return the elapsed time in nanoseconds
+     * @throws Exception if a connection could not be opened
+     */
+    private static long run(final Connector connector, int threads, final int connections)
+            throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        for (int i = 0; i < threads; i++)
+        {
+            new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int j = 0; j < connections; j++)
+                        {
+                            connector.connect().close();
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        if (failure.get() != null)
+        {
+            throw failure.get();
+        }
+        return elapsed;
+    }
+
+    /**
+     * Prints the outcome of one run.
+     *
+     * @param name        the way connections were opened
+     * @param round       the number of the run
+     * @param threads     the number of threads
+     * @param connections the number of connections each thread opened
+     * @param elapsed     the elapsed time in nanoseconds
+     */
+    private static void report(String name, int round, int threads, int connections,
+            long elapsed)
+    {
+        long total = (long) threads * connections;
+        System.out.println(name + " round " + round + ": " + total + " connections on "
+                + threads + " threads in " + (elapsed / 1000000) + " ms, "
+                + (elapsed / total / 1000) + " us per connection");
+    }
+}
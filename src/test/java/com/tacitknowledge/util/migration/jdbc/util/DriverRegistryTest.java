@@ -0,0 +1,229 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the <code>DriverRegistry</code>.
+ */
+public class DriverRegistryTest extends TestCase
+{
+    /**
+     * The driver used by the tests
+     */
+    private static final String DRIVER = "org.hsqldb.jdbcDriver";
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        DriverRegistry.clear();
+    }
+
+    /**
+     * Makes sure a driver is only resolved once per class loader.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testCachesDriverPerClassLoader() throws Exception
+    {
+        Driver driver = DriverRegistry.getDriver(DRIVER);
+        assertSame(driver, DriverRegistry.getDriver(DRIVER));
+
+        Thread thread = Thread.currentThread();
+        ClassLoader loader = thread.getContextClassLoader();
+        thread.setContextClassLoader(new ClassLoader(loader)
+        {
+            // a distinct class loader that finds the same classes
+        });
+        try
+        {
+            assertNotSame(driver, DriverRegistry.getDriver(DRIVER));
+        }
+        finally
+        {
+            thread.setContextClassLoader(loader);
+        }
+        assertSame(driver, DriverRegistry.getDriver(DRIVER));
+    }
+
+    /**
+     * Makes sure a driver loaded by another class loader doesn't keep that class loader from
+     * being collected.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testDoesNotKeepClassLoadersAlive() throws Exception
+    {
+        Reference<ClassLoader> loader = loadIsolatedDriver();
+        for (int i = 0; (i < 50) && (loader.get() != null); i++)
+        {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull("The driver's class loader should have been collected", loader.get());
+    }
+
+    /**
+     * Resolves a driver through a class loader of its own, which nothing else refers to.
+     *
+     * @return a weak reference to the class loader
+     * @throws Exception if the driver can't be resolved
+     */
+    private Reference<ClassLoader> loadIsolatedDriver() throws Exception
+    {
+        URL classes = getClass().getProtectionDomain().getCodeSource().getLocation();
+        ClassLoader loader = new URLClassLoader(new URL[] {classes},
+                ClassLoader.getSystemClassLoader().getParent());
+        Thread thread = Thread.currentThread();
+        ClassLoader contextLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(loader);
+        try
+        {
+            Driver driver = DriverRegistry.getDriver(UnregisteredDriver.class.getName());
+            assertSame(loader, driver.getClass().getClassLoader());
+            assertSame(driver, DriverRegistry.getDriver(UnregisteredDriver.class.getName()));
+        }
+        finally
+        {
+            thread.setContextClassLoader(contextLoader);
+        }
+        return new WeakReference<ClassLoader>(loader);
+    }
+
+    /**
+     * Makes sure connections are opened through the cached driver.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testConnects() throws Exception
+    {
+        Connection conn = SqlUtil.getConnection(DRIVER, "jdbc:hsqldb:mem:" + getName(), "sa", "");
+        assertFalse(conn.isClosed());
+        conn.close();
+    }
+
+    /**
+     * Makes sure an unknown driver class is reported as such.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testUnknownDriver() throws Exception
+    {
+        try
+        {
+            DriverRegistry.connect("com.example.NoSuchDriver", "jdbc:none:", "sa", "");
+            fail("The driver should not have been found");
+        }
+        catch (ClassNotFoundException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * Makes sure a URL the driver doesn't accept is reported.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testUrlNotAccepted() throws Exception
+    {
+        try
+        {
+            DriverRegistry.connect(DRIVER, "jdbc:oracle:thin:@localhost:1521:xe", "sa", "");
+            fail("The driver should not have accepted the URL");
+        }
+        catch (SQLException e)
+        {
+            assertTrue(e.getMessage().indexOf("does not accept") != -1);
+        }
+    }
+
+    /**
+     * Makes sure a class that isn't a driver is reported.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testNotADriver() throws Exception
+    {
+        try
+        {
+            DriverRegistry.getDriver("java.lang.Object");
+            fail("Object is not a driver");
+        }
+        catch (SQLException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * A driver that, unlike most, doesn't register itself with <code>DriverManager</code>,
+     * which would keep its class loader alive.
+     */
+    public static class UnregisteredDriver implements Driver
+    {
+        public Connection connect(String url, Properties info)
+        {
+            return null;
+        }
+
+        public boolean acceptsURL(String url)
+        {
+            return false;
+        }
+
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info)
+        {
+            return new DriverPropertyInfo[0];
+        }
+
+        public int getMajorVersion()
+        {
+            return 1;
+        }
+
+        public int getMinorVersion()
+        {
+            return 0;
+        }
+
+        public boolean jdbcCompliant()
+        {
+            return false;
+        }
+
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException
+        {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+}
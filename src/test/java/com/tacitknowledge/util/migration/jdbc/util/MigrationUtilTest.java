@@ -52,6 +52,7 @@ public class MigrationUtilTest extends TestCase{
 
         expect( launcherFactoryMock.createMigrationLauncher(MIGRATION_NAME)).andReturn(launcherMock);
         expect(launcherMock.doRollbacks(ROLLBACK_LEVELS, FORCE_ROLLBACK)).andReturn(PATCHES_APPLIED);
+        launcherMock.close();
         mockControl.replay();
 
 
@@ -64,6 +65,7 @@ public class MigrationUtilTest extends TestCase{
 
         expect( launcherFactoryMock.createMigrationLauncher(MIGRATION_NAME, MIGRATION_SETTINGS)).andReturn(launcherMock);
         expect( launcherMock.doRollbacks(ROLLBACK_LEVELS, FORCE_ROLLBACK)).andReturn(PATCHES_APPLIED);
+        launcherMock.close();
         mockControl.replay();
 
         migrationUtil.doRollbacks(MIGRATION_NAME, MIGRATION_SETTINGS,ROLLBACK_LEVELS,FORCE_ROLLBACK);
@@ -0,0 +1,73 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.util;
+
+import java.math.BigDecimal;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the <code>ParameterizedInsert</code> parser.
+ */
+public class ParameterizedInsertTest extends TestCase
+{
+    /**
+     * Literals are pulled out into parameters and <code>NULL</code>s are left in place
+     */
+    public void testParsesLiterals()
+    {
+        ParameterizedInsert insert = ParameterizedInsert.parse(
+                "insert into users (id, name, balance, note)\n values (1, 'O''Brien', -2.50, null)");
+        assertNotNull(insert);
+        assertEquals("INSERT INTO users (id, name, balance, note) VALUES (?, ?, ?, NULL)",
+                insert.getShape());
+        assertEquals(3, insert.getParameters().size());
+        assertEquals(new Long(1), insert.getParameters().get(0));
+        assertEquals("O'Brien", insert.getParameters().get(1));
+        assertEquals(new BigDecimal("-2.50"), insert.getParameters().get(2));
+    }
+
+    /**
+     * Inserts that differ only in their values have the same shape
+     */
+    public void testSameShape()
+    {
+        ParameterizedInsert first = ParameterizedInsert.parse(
+                "INSERT INTO t (a, b) VALUES (1, 'x')");
+        ParameterizedInsert second = ParameterizedInsert.parse(
+                "insert into t (a,b) values (2,'a, b')");
+        ParameterizedInsert third = ParameterizedInsert.parse(
+                "insert into t (a,b) values (2, NULL)");
+        assertEquals(first.getShape(), second.getShape());
+        assertFalse(first.getShape().equals(third.getShape()));
+        assertEquals("INSERT INTO t (a, b) VALUES (?, ?), (?, ?)", first.getSql(2));
+    }
+
+    /**
+     * Anything that isn't a simple single-row insert of literals is left alone
+     */
+    public void testRejectsStatementsItCannotParameterize()
+    {
+        assertNull(ParameterizedInsert.parse("insert into t values (1, 2)"));
+        assertNull(ParameterizedInsert.parse("insert into t (a) values (nextval('seq'))"));
+        assertNull(ParameterizedInsert.parse("insert into t (a) values (1), (2)"));
+        assertNull(ParameterizedInsert.parse("insert into t (a, b) values (1)"));
+        assertNull(ParameterizedInsert.parse("insert into t (a) values ('it\\'s')"));
+        assertNull(ParameterizedInsert.parse("insert into t (a) values (1e5)"));
+        assertNull(ParameterizedInsert.parse("insert into t (a) select a from u"));
+        assertNull(ParameterizedInsert.parse("update t set a = 1"));
+    }
+}
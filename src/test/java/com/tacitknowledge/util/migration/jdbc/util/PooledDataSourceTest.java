@@ -0,0 +1,211 @@
+/* Copyright 2004 Tacit Knowledge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tacitknowledge.util.migration.jdbc.util;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the <code>PooledDataSource</code> against an in-memory database.
+ */
+public class PooledDataSourceTest extends TestCase
+{
+    /**
+     * The pool under test
+     */
+    private CountingDataSource pool = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        pool = new CountingDataSource();
+        pool.setDriverClass("org.hsqldb.jdbcDriver");
+        pool.setDatabaseUrl("jdbc:hsqldb:mem:" + getName());
+        pool.setUsername("sa");
+        pool.setPassword("");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void tearDown() throws Exception
+    {
+        pool.close();
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure a closed connection is handed out again rather than a new one opened.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testReusesReturnedConnections() throws Exception
+    {
+        for (int i = 0; i < 5; i++)
+        {
+            Connection conn = pool.getConnection();
+            assertFalse(conn.isClosed());
+            conn.close();
+            assertTrue(conn.isClosed());
+        }
+        assertEquals(1, pool.opened);
+    }
+
+    /**
+     * Makes sure a returned connection can no longer be used.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testReturnedConnectionCannotBeUsed() throws Exception
+    {
+        Connection conn = pool.getConnection();
+        conn.close();
+        try
+        {
+            conn.createStatement();
+            fail("A returned connection should not be usable");
+        }
+        catch (SQLException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * Makes sure no more than <code>maxConnections</code> are handed out at once.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testWaitsForAConnectionWhenAllAreInUse() throws Exception
+    {
+        pool.setMaxConnections(1);
+        pool.setMaxWaitMillis(50);
+        Connection conn = pool.getConnection();
+        try
+        {
+            pool.getConnection();
+            fail("The pool should not have handed out a second connection");
+        }
+        catch (SQLException e)
+        {
+            // expected
+        }
+        conn.close();
+        pool.getConnection().close();
+        assertEquals(1, pool.opened);
+    }
+
+    /**
+     * Makes sure connections that fail validation are replaced.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testReplacesConnectionsFailingValidation() throws Exception
+    {
+        pool.setValidationQuery("SELECT * FROM no_such_table");
+        pool.getConnection().close();
+        pool.getConnection().close();
+        assertEquals(2, pool.opened);
+
+        pool.setValidationQuery("VALUES (1)");
+        pool.getConnection().close();
+        pool.getConnection().close();
+        assertEquals(2, pool.opened);
+    }
+
+    /**
+     * Makes sure connections left idle too long are closed.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testClosesIdleConnections() throws Exception
+    {
+        pool.setIdleTimeoutMillis(1);
+        pool.getConnection().close();
+        Thread.sleep(20);
+        pool.getConnection().close();
+        assertEquals(2, pool.opened);
+    }
+
+    /**
+     * Makes sure idle connections are closed once they expire, without waiting for another
+     * connection to be asked for.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testClosesIdleConnectionsInTheBackground() throws Exception
+    {
+        pool.setIdleTimeoutMillis(20);
+        pool.getConnection().close();
+        for (int i = 0; (i < 100) && !pool.last.isClosed(); i++)
+        {
+            Thread.sleep(10);
+        }
+        assertTrue("The idle connection should have been closed", pool.last.isClosed());
+        assertEquals(1, pool.opened);
+    }
+
+    /**
+     * Makes sure uncommitted work is rolled back when a connection is returned.
+     *
+     * @throws Exception if an unexpected error occurs
+     */
+    public void testRollsBackReturnedConnections() throws Exception
+    {
+        Connection conn = pool.getConnection();
+        Statement stmt = conn.createStatement();
+        stmt.execute("CREATE TABLE widgets (id INT)");
+        stmt.close();
+        conn.setAutoCommit(false);
+        stmt = conn.createStatement();
+        stmt.execute("INSERT INTO widgets VALUES (1)");
+        stmt.close();
+        conn.close();
+
+        conn = pool.getConnection();
+        assertTrue(conn.getAutoCommit());
+        stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM widgets");
+        assertTrue(rs.next());
+        assertEquals(0, rs.getInt(1));
+        SqlUtil.close(conn, stmt, rs);
+        assertEquals(1, pool.opened);
+    }
+
+    /**
+     * A pool that counts the connections it opens.
+     */
+    private static class CountingDataSource extends PooledDataSource
+    {
+        private int opened = 0;
+
+        private volatile Connection last = null;
+
+        protected Connection openConnection(String user, String pass) throws SQLException
+        {
+            opened++;
+            last = super.openConnection(user, pass);
+            return last;
+        }
+    }
+}
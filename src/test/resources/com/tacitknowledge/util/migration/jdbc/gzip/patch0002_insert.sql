@@ -0,0 +1 @@
+INSERT INTO widgets VALUES (2, 'widget 2');